@@ -1,14 +1,92 @@
 package com.webserver.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import com.webserver.service.UpstreamDeadline;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 public class AppConfig {
+
+    // Connections kept to the file server, in total and per host
+    @Value("${web.upstream.max-connections:200}")
+    private int maxConnections;
+
+    @Value("${web.upstream.max-connections-per-route:200}")
+    private int maxConnectionsPerRoute;
+
+    // Time to open a connection, to wait for a free pooled connection, and for the next bytes of a response;
+    // the read timeout must stay above the event stream's heartbeat interval
+    @Value("${web.upstream.connect-timeout-ms:2000}")
+    private int connectTimeoutMs;
+
+    @Value("${web.upstream.pool-timeout-ms:5000}")
+    private int poolTimeoutMs;
+
+    @Value("${web.upstream.read-timeout-ms:60000}")
+    private int readTimeoutMs;
+
+    // Idle connections are closed before the file server's keep-alive timeout closes them under us
+    @Value("${web.upstream.idle-timeout-seconds:30}")
+    private long idleTimeoutSeconds;
+
+    // Timeouts of calls to the file server; a bulkhead's deadline can only shorten them (see UpstreamDeadline)
     @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
+    public RequestConfig fileServerRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setConnectionRequestTimeout(poolTimeoutMs)
+                .setSocketTimeout(readTimeoutMs)
+                .build();
+    }
+
+    // Keep-alive connection pool shared by every call to the file server
+    @Bean
+    public CloseableHttpClient fileServerHttpClient(MeterRegistry meterRegistry, RequestConfig fileServerRequestConfig) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(2000); // Catches connections the server closed while idle
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "file-server").bindTo(meterRegistry);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(fileServerRequestConfig)
+                .disableContentCompression() // Relays pass gzip through untouched; nothing is decoded here
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
     }
-}
 
+    // Built through Spring's builder so calls to the file server are timed (http.client.requests);
+    // each request gets the timeouts left before the caller's deadline
+    @Bean
+    public RestTemplate restTemplate(RestTemplateBuilder builder, CloseableHttpClient fileServerHttpClient,
+                                     RequestConfig fileServerRequestConfig) {
+        return builder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(fileServerHttpClient) {
+                    @Override
+                    protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+                        HttpClientContext context = HttpClientContext.create();
+                        context.setRequestConfig(UpstreamDeadline.limit(fileServerRequestConfig));
+                        return context;
+                    }
+                })
+                .build();
+    }
+}
@@ -1,18 +1,44 @@
 package com.webserver.config;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
-    
+
+    // Threads copying relayed bodies (downloads, views, listings, archives); each slow client holds one
+    @Value("${web.relay.threads:200}")
+    private int relayThreads;
+
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/**")
                 .allowedOrigins("http://localhost:4200")
                 .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
                 .allowedHeaders("*")
+                .exposedHeaders("ETag", "Content-Range", "Accept-Ranges", "X-Change-Sequence", "X-Change-Journal")
                 .allowCredentials(true);
     }
+
+    // Streamed responses run here instead of on Spring's default pool of 8 threads
+    @Bean
+    public AsyncTaskExecutor relayExecutor() {
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(relayThreads);
+        pool.setMaxPoolSize(relayThreads);
+        pool.setAllowCoreThreadTimeOut(true);
+        pool.setThreadNamePrefix("web-relay-");
+        return pool;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(relayExecutor());
+    }
 }
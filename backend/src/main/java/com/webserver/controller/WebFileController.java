@@ -1,13 +1,32 @@
 package com.webserver.controller;
 
 import com.webserver.model.FileInfo;
+import com.webserver.model.FileChanges;
+import com.webserver.model.FilePage;
+import com.webserver.service.Bulkheads;
+import com.webserver.service.FileEventRelay;
+import com.webserver.service.FileServerPool;
 import com.webserver.service.FileServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.FormHttpMessageConverter;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import java.net.URI;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This controller acts as a proxy between the frontend (Angular)
@@ -18,27 +37,131 @@ import java.util.*;
 @CrossOrigin(origins = "http://localhost:4200") // Allow requests from Angular app
 public class WebFileController {
 
+    private static final Logger log = LoggerFactory.getLogger(WebFileController.class);
+
     @Autowired
     private FileServerService fileServerService;
 
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired
+    private FileEventRelay fileEventRelay;
+
+    @Autowired
+    private FileServerPool fileServerPool;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
     /**
      * Preferred endpoint: Fetches file list using RestTemplate (for flexibility + clarity).
+     * Listings come from the web tier's response cache while they are fresh; the
+     * client's ETag is checked against it, so an unchanged listing is a 304. Send
+     * Cache-Control: no-cache to get the file server's current listing instead.
      */
     @GetMapping("/list")
-    public ResponseEntity<List<FileInfo>> getAllFiles() {
+    public ResponseEntity<StreamingResponseBody> getAllFiles(@RequestParam(required = false) String sort,
+                                                             @RequestParam(required = false) String order,
+                                                             @RequestParam(required = false) String ext,
+                                                             @RequestParam(required = false) String prefix,
+                                                             @RequestHeader HttpHeaders headers) {
+        String path = UriComponentsBuilder.fromPath("/api/files/list")
+                .queryParamIfPresent("sort", Optional.ofNullable(sort))
+                .queryParamIfPresent("order", Optional.ofNullable(order))
+                .queryParamIfPresent("ext", Optional.ofNullable(ext))
+                .queryParamIfPresent("prefix", Optional.ofNullable(prefix))
+                .build().encode().toUriString();
+
+        try {
+            return fileServerService.relay(path, "list", Bulkheads.LIST, headers, null);
+        } catch (RejectedExecutionException e) {
+            return unavailable(); // Bulkhead full or no file server available
+        } catch (Exception e) {
+            log.error("Failed to fetch file list", e);
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
+        }
+    }
+
+    /**
+     * Fetches one page of the file list, forwarding paging, sorting and filtering parameters.
+     */
+    @GetMapping("/list/page")
+    public ResponseEntity<FilePage> getFilePage(@RequestParam(required = false) String cursor,
+                                                @RequestParam(required = false) Integer limit,
+                                                @RequestParam(required = false) String sort,
+                                                @RequestParam(required = false) String order,
+                                                @RequestParam(required = false) String ext,
+                                                @RequestParam(required = false) String prefix) {
+        try {
+            String path = UriComponentsBuilder.fromPath("/api/files/list/page")
+                    .queryParamIfPresent("cursor", Optional.ofNullable(cursor))
+                    .queryParamIfPresent("limit", Optional.ofNullable(limit))
+                    .queryParamIfPresent("sort", Optional.ofNullable(sort))
+                    .queryParamIfPresent("order", Optional.ofNullable(order))
+                    .queryParamIfPresent("ext", Optional.ofNullable(ext))
+                    .queryParamIfPresent("prefix", Optional.ofNullable(prefix))
+                    .build().encode().toUriString();
+
+            ResponseEntity<FilePage> response = bulkheads.call(Bulkheads.LIST, () -> fileServerPool.executeRead(
+                    baseUrl -> restTemplate.getForEntity(URI.create(baseUrl + path), FilePage.class)));
+            return ResponseEntity.ok(response.getBody());
+        } catch (HttpClientErrorException e) {
+            return ResponseEntity.status(e.getStatusCode()).build(); // e.g. 400 for a bad cursor
+        } catch (RejectedExecutionException e) {
+            return unavailable(); // Bulkhead full or no file server available
+        } catch (Exception e) {
+            log.error("Failed to fetch file page", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Fetches the file changes since a known journal position, so the client can patch its
+     * listing instead of reloading it. With resync set (e.g. for since=0), reload the list
+     * and continue from the returned sequence.
+     */
+    @GetMapping("/changes")
+    public ResponseEntity<FileChanges> getChanges(@RequestParam long since,
+                                                  @RequestParam(required = false) Integer limit) {
         try {
-            // Forward the call to the file server via service (for easier logic control & future enhancements)
-            String url = "http://file-server:8081/api/files/list"; // 'file-server' should be the Docker hostname
-            ResponseEntity<FileInfo[]> response = restTemplate.getForEntity(url, FileInfo[].class);
+            String path = UriComponentsBuilder.fromPath("/api/files/changes")
+                    .queryParam("since", since)
+                    .queryParamIfPresent("limit", Optional.ofNullable(limit))
+                    .build().encode().toUriString();
 
-            List<FileInfo> files = Arrays.asList(response.getBody());
-            return ResponseEntity.ok(files); // 200 OK with list of files
+            // Positions are per replica; one that doesn't know this position answers with a resync
+            ResponseEntity<FileChanges> response = bulkheads.call(Bulkheads.LIST, () -> fileServerPool.execute(
+                    baseUrl -> restTemplate.getForEntity(URI.create(baseUrl + path), FileChanges.class)));
+            return ResponseEntity.ok()
+                    .cacheControl(CacheControl.noStore())
+                    .body(response.getBody());
+        } catch (HttpClientErrorException e) {
+            return ResponseEntity.status(e.getStatusCode()).build(); // e.g. 400 for a bad limit
+        } catch (RejectedExecutionException e) {
+            return unavailable(); // Bulkhead full or no file server available
         } catch (Exception e) {
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build(); // 500 error
+            log.error("Failed to fetch file changes", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Streams file changes to the browser as Server-Sent Events ("change" and "resync").
+     * All browsers share one upstream connection to the file server.
+     * @param lastEventId Id of the last event received, sent by the browser when it reconnects
+     * @param since Position of the listing the browser holds ("journal:sequence" from the
+     *              X-Change-Journal and X-Change-Sequence headers of /list), to replay from
+     */
+    @GetMapping(path = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamChanges(@RequestHeader(name = "Last-Event-ID", required = false) String lastEventId,
+                                                    @RequestParam(name = "lastEventId", required = false) String since) {
+        try {
+            return ResponseEntity.ok()
+                    .cacheControl(CacheControl.noStore())
+                    .body(fileEventRelay.subscribe(lastEventId != null ? lastEventId : since));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build(); // Too many open streams
         }
     }
 
@@ -47,101 +170,139 @@ public class WebFileController {
      * Demonstrates raw proxying using RestTemplate.
      */
     @GetMapping("/proxy/files")
-    public ResponseEntity<List<FileInfo>> getFilesFromFileServer() {
-        String url = "http://file-server:8081/api/files/list";
-        ResponseEntity<FileInfo[]> response = restTemplate.getForEntity(url, FileInfo[].class);
+    public ResponseEntity<List<FileInfo>> getFilesFromFileServer() throws Exception {
+        ResponseEntity<FileInfo[]> response = bulkheads.call(Bulkheads.LIST, () -> fileServerPool.executeRead(
+                baseUrl -> restTemplate.getForEntity(baseUrl + "/api/files/list", FileInfo[].class)));
         List<FileInfo> files = Arrays.asList(response.getBody());
         return ResponseEntity.ok(files);
     }
 
     /**
      * Downloads a file from the file server and sends it to the frontend as an attachment.
+     * The body is streamed through as it arrives; Range and conditional requests are
+     * answered by the file server.
      */
     @GetMapping("/download/{fileName}")
-    public ResponseEntity<byte[]> downloadFile(@PathVariable String fileName) {
+    public ResponseEntity<StreamingResponseBody> downloadFile(@PathVariable String fileName,
+                                                              @RequestHeader HttpHeaders headers) {
         try {
-            byte[] fileContent = fileServerService.downloadFile(fileName);
+            return fileServerService.relayFile("download", fileName, headers, "attachment; filename=" + fileName);
+        } catch (RejectedExecutionException e) {
+            return unavailable(); // Bulkhead full or no file server available
+        } catch (Exception e) {
+            log.error("Failed to download {}", fileName, e);
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
+        }
+    }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileName);
+    /**
+     * Downloads many files as one ZIP archive, given either file names or a name prefix.
+     * The archive is relayed from the file server as it is built, so neither server
+     * holds it in memory and the download starts right away.
+     */
+    @RequestMapping(value = "/archive", method = {RequestMethod.GET, RequestMethod.POST})
+    public ResponseEntity<StreamingResponseBody> downloadArchive(@RequestParam(required = false) List<String> names,
+                                                                 @RequestParam(required = false) String prefix) {
+        // Names go in a form body: a few hundred of them don't fit in a URL
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        if (names != null) {
+            form.put("names", names);
+        }
+        if (prefix != null) {
+            form.add("prefix", prefix);
+        }
+
+        // The download bulkhead's permit is held until the archive is relayed
+        Bulkheads.Permit permit = null;
+        ClientHttpResponse upstream = null;
+        try {
+            permit = bulkheads.acquire(Bulkheads.DOWNLOAD);
+            upstream = permit.call(() -> fileServerPool.execute(baseUrl -> {
+                ClientHttpRequest request = restTemplate.getRequestFactory()
+                        .createRequest(URI.create(baseUrl + "/api/files/archive"), HttpMethod.POST);
+                new FormHttpMessageConverter().write(form, MediaType.APPLICATION_FORM_URLENCODED, request);
+                return request.execute();
+            }));
 
+            // Pass errors (400, 404, 503) through before committing to a 200
+            if (upstream.getRawStatusCode() != HttpStatus.OK.value()) {
+                HttpHeaders headers = new HttpHeaders();
+                headers.addAll(HttpHeaders.RETRY_AFTER, upstream.getHeaders().getOrEmpty(HttpHeaders.RETRY_AFTER));
+                int status = upstream.getRawStatusCode();
+                upstream.close();
+                permit.close();
+                return ResponseEntity.status(status).headers(headers).build();
+            }
+
+            Bulkheads.Permit held = permit;
+            ClientHttpResponse archive = upstream;
+            StreamingResponseBody body = out -> {
+                try (held; ClientHttpResponse response = archive) {
+                    StreamUtils.copy(response.getBody(), out);
+                }
+            };
             return ResponseEntity.ok()
-                    .headers(headers)
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(fileContent);
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=files.zip")
+                    .contentType(MediaType.parseMediaType("application/zip"))
+                    .body(body);
         } catch (Exception e) {
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+            if (upstream != null) {
+                upstream.close();
+            }
+            if (permit != null) {
+                permit.close();
+            }
+            if (e instanceof RejectedExecutionException) {
+                return unavailable(); // Bulkhead full or no file server available
+            }
+            log.error("Failed to relay archive", e);
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
         }
     }
 
     /**
      * Gets plain text content of `.txt` or `.loc` files from the file server.
+     * Pass fromLine/count to fetch only a window of lines from large files.
      */
     @GetMapping("/content/{fileName}")
-    public ResponseEntity<String> getFileContent(@PathVariable String fileName) {
+    public ResponseEntity<String> getFileContent(@PathVariable String fileName,
+                                                 @RequestParam(required = false) Long fromLine,
+                                                 @RequestParam(required = false) Integer count) {
         try {
-            String content = fileServerService.getFileContent(fileName);
+            String content = fileServerService.getFileContent(fileName, fromLine, count);
             return ResponseEntity.ok(content);
+        } catch (RejectedExecutionException e) {
+            return unavailable(); // Bulkhead full or no file server available
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Failed to get content of {}", fileName, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Failed to get file content");
         }
     }
 
     /**
-     * Views a file (PDF/image) inline in the browser.
+     * Views a file (PDF/image) inline in the browser, streamed like a download.
+     * The file server sends the type it sniffed from the content.
      */
     @GetMapping("/view/{fileName}")
-    public ResponseEntity<byte[]> viewFile(@PathVariable String fileName) {
+    public ResponseEntity<StreamingResponseBody> viewFile(@PathVariable String fileName,
+                                                          @RequestHeader HttpHeaders headers) {
         try {
-            byte[] fileContent = fileServerService.viewFile(fileName);
-
-            String fileType = getFileExtension(fileName).toLowerCase();
-            MediaType mediaType = getMediaType(fileType);
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.add(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + fileName);
-
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .contentType(mediaType)
-                    .body(fileContent);
+            return fileServerService.relayFile("view", fileName, headers, "inline; filename=" + fileName);
+        } catch (RejectedExecutionException e) {
+            return unavailable(); // Bulkhead full or no file server available
         } catch (Exception e) {
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+            log.error("Failed to view {}", fileName, e);
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
         }
     }
 
     /**
-     * Utility method to extract file extension from file name.
+     * Refuses a request the file server can't take now; the client may retry shortly.
      */
-    private String getFileExtension(String fileName) {
-        int lastDotIndex = fileName.lastIndexOf('.');
-        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
-            return fileName.substring(lastDotIndex + 1);
-        }
-        return "";
-    }
-
-    /**
-     * Maps known file extensions to appropriate media types.
-     */
-    private MediaType getMediaType(String fileType) {
-        switch (fileType.toLowerCase()) {
-            case "png":
-                return MediaType.IMAGE_PNG;
-            case "jpg":
-            case "jpeg":
-                return MediaType.IMAGE_JPEG;
-            case "pdf":
-                return MediaType.APPLICATION_PDF;
-            case "txt":
-            case "loc":
-                return MediaType.TEXT_PLAIN;
-            default:
-                return MediaType.APPLICATION_OCTET_STREAM;
-        }
+    private static <T> ResponseEntity<T> unavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .build();
     }
 }
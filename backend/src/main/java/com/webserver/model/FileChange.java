@@ -0,0 +1,40 @@
+package com.webserver.model;
+
+public class FileChange {
+    private long sequence;
+    private String type; // ADDED, MODIFIED or DELETED
+    private FileInfo file;
+    
+    public FileChange() {}
+    
+    public FileChange(long sequence, String type, FileInfo file) {
+        this.sequence = sequence;
+        this.type = type;
+        this.file = file;
+    }
+    
+    // Getters and Setters
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
+    public String getType() {
+        return type;
+    }
+    
+    public void setType(String type) {
+        this.type = type;
+    }
+    
+    public FileInfo getFile() {
+        return file;
+    }
+    
+    public void setFile(FileInfo file) {
+        this.file = file;
+    }
+}
@@ -0,0 +1,52 @@
+package com.webserver.model;
+
+import java.util.List;
+
+public class FileChanges {
+    private List<FileChange> changes;
+    private long sequence;
+    private boolean more;
+    private boolean resync;
+    
+    public FileChanges() {}
+    
+    public FileChanges(List<FileChange> changes, long sequence, boolean more, boolean resync) {
+        this.changes = changes;
+        this.sequence = sequence;
+        this.more = more;
+        this.resync = resync;
+    }
+    
+    // Getters and Setters
+    public List<FileChange> getChanges() {
+        return changes;
+    }
+    
+    public void setChanges(List<FileChange> changes) {
+        this.changes = changes;
+    }
+    
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
+    public boolean isMore() {
+        return more;
+    }
+    
+    public void setMore(boolean more) {
+        this.more = more;
+    }
+    
+    public boolean isResync() {
+        return resync;
+    }
+    
+    public void setResync(boolean resync) {
+        this.resync = resync;
+    }
+}
@@ -5,6 +5,12 @@ public class FileInfo {
     private String fileType;
     private long fileSize;
     private String filePath;
+    private long lastModified;
+    private String contentHash;
+    private String mimeType;
+    private Long lineCount;
+    private Integer width;
+    private Integer height;
     
     public FileInfo() {}
     
@@ -47,4 +53,52 @@ public class FileInfo {
     public void setFilePath(String filePath) {
         this.filePath = filePath;
     }
+    
+    public long getLastModified() {
+        return lastModified;
+    }
+    
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+    
+    public String getContentHash() {
+        return contentHash;
+    }
+    
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+    
+    public String getMimeType() {
+        return mimeType;
+    }
+    
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+    
+    public Long getLineCount() {
+        return lineCount;
+    }
+    
+    public void setLineCount(Long lineCount) {
+        this.lineCount = lineCount;
+    }
+    
+    public Integer getWidth() {
+        return width;
+    }
+    
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+    
+    public Integer getHeight() {
+        return height;
+    }
+    
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
 }
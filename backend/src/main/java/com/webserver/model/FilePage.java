@@ -0,0 +1,32 @@
+package com.webserver.model;
+
+import java.util.List;
+
+public class FilePage {
+    private List<FileInfo> files;
+    private String nextCursor;
+    
+    public FilePage() {}
+    
+    public FilePage(List<FileInfo> files, String nextCursor) {
+        this.files = files;
+        this.nextCursor = nextCursor;
+    }
+    
+    // Getters and Setters
+    public List<FileInfo> getFiles() {
+        return files;
+    }
+    
+    public void setFiles(List<FileInfo> files) {
+        this.files = files;
+    }
+    
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
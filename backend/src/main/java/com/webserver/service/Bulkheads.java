@@ -0,0 +1,173 @@
+package com.webserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Separate limits on the file server calls in flight for listings, text content
+ * and file bodies, so a stall in one kind of call can't take every web server
+ * thread with it: once a bulkhead is full, further requests of that kind wait
+ * briefly for a permit and are then refused with 503, while the others (and
+ * cached responses, which need no permit) are served as usual.
+ *
+ * Calls made under a permit also get its deadline (see UpstreamDeadline). For
+ * file bodies the deadline covers the time until the response starts; the body
+ * itself is relayed as long as bytes keep arriving.
+ */
+@Service
+public class Bulkheads {
+
+    public static final String LIST = "list";
+    public static final String CONTENT = "content";
+    public static final String DOWNLOAD = "download";
+
+    // Calls in flight per bulkhead, and the time each call may take
+    @Value("${web.bulkhead.list.max-concurrent:50}")
+    private int listMaxConcurrent;
+
+    @Value("${web.bulkhead.list.deadline-ms:10000}")
+    private long listDeadlineMs;
+
+    @Value("${web.bulkhead.content.max-concurrent:50}")
+    private int contentMaxConcurrent;
+
+    @Value("${web.bulkhead.content.deadline-ms:15000}")
+    private long contentDeadlineMs;
+
+    @Value("${web.bulkhead.download.max-concurrent:150}")
+    private int downloadMaxConcurrent;
+
+    @Value("${web.bulkhead.download.deadline-ms:10000}")
+    private long downloadDeadlineMs;
+
+    // Milliseconds a request waits for a permit of a full bulkhead before it is refused
+    @Value("${web.bulkhead.max-wait-ms:50}")
+    private long maxWaitMs;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, Bulkhead> bulkheads = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        bulkheads.put(LIST, new Bulkhead(LIST, listMaxConcurrent, listDeadlineMs));
+        bulkheads.put(CONTENT, new Bulkhead(CONTENT, contentMaxConcurrent, contentDeadlineMs));
+        bulkheads.put(DOWNLOAD, new Bulkhead(DOWNLOAD, downloadMaxConcurrent, downloadDeadlineMs));
+    }
+
+    /**
+     * Runs file server calls in a bulkhead, within its deadline.
+     *
+     * @param name LIST, CONTENT or DOWNLOAD
+     * @param call Calls to the file server
+     * @return Result of the calls
+     * @throws RejectedExecutionException If the bulkhead stays full for the maximum wait
+     * @throws Exception                  If the calls fail
+     */
+    public <T> T call(String name, Callable<T> call) throws Exception {
+        try (Permit permit = acquire(name)) {
+            return permit.call(call);
+        }
+    }
+
+    /**
+     * Takes a permit of a bulkhead, for calls whose body is relayed after the method returns.
+     *
+     * @param name LIST, CONTENT or DOWNLOAD
+     * @return Permit to close when the call and the body it relays are done
+     * @throws RejectedExecutionException If the bulkhead stays full for the maximum wait
+     * @throws InterruptedException       If interrupted while waiting
+     */
+    public Permit acquire(String name) throws InterruptedException {
+        Bulkhead bulkhead = bulkheads.get(name);
+        if (bulkhead == null) {
+            throw new IllegalArgumentException("Unknown bulkhead: " + name);
+        }
+        long start = System.nanoTime();
+        boolean acquired = bulkhead.semaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+        bulkhead.waits.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (!acquired) {
+            bulkhead.rejected.increment();
+            throw new RejectedExecutionException("Too many " + name + " requests to the file server");
+        }
+        return new Permit(bulkhead);
+    }
+
+    /**
+     * A held place in a bulkhead, with the deadline that started when it was taken.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Bulkhead bulkhead;
+        private final long deadline;
+        private boolean closed;
+
+        private Permit(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(bulkhead.deadlineMs);
+        }
+
+        /**
+         * Runs file server calls on the current thread within the permit's deadline.
+         *
+         * @param call Calls to the file server
+         * @return Result of the calls
+         * @throws Exception If the calls fail
+         */
+        public <T> T call(Callable<T> call) throws Exception {
+            Long previous = UpstreamDeadline.get();
+            UpstreamDeadline.set(deadline);
+            try {
+                return call.call();
+            } finally {
+                UpstreamDeadline.set(previous);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                bulkhead.semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * One bulkhead and its meters.
+     */
+    private class Bulkhead {
+        final Semaphore semaphore;
+        final long deadlineMs;
+        final Counter rejected;
+        final Timer waits;
+
+        Bulkhead(String name, int maxConcurrent, long deadlineMs) {
+            this.semaphore = new Semaphore(maxConcurrent);
+            this.deadlineMs = deadlineMs;
+            this.rejected = meterRegistry.counter("web.bulkhead.rejected", "bulkhead", name);
+            this.waits = meterRegistry.timer("web.bulkhead.wait", "bulkhead", name);
+            Gauge.builder("web.bulkhead.active", semaphore, s -> maxConcurrent - s.availablePermits())
+                    .tag("bulkhead", name)
+                    .register(meterRegistry);
+            Gauge.builder("web.bulkhead.saturation", semaphore,
+                            s -> (double) (maxConcurrent - s.availablePermits()) / maxConcurrent)
+                    .description("Share of the bulkhead's permits in use")
+                    .tag("bulkhead", name)
+                    .register(meterRegistry);
+        }
+    }
+}
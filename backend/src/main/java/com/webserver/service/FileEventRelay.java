@@ -0,0 +1,593 @@
+package com.webserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relays the file server's change events to any number of browsers over a single
+ * upstream Server-Sent Events connection.
+ *
+ * The upstream connection is opened when the first browser subscribes and kept open
+ * from then on, reconnecting with Last-Event-ID (and backing off) when it drops, so
+ * no change is missed. Incoming events are kept verbatim in a small ring buffer;
+ * each browser only remembers the id of the last event it was sent, and a few sender
+ * threads catch browsers up from the ring. A browser that can't keep up falls out of
+ * the ring and gets a "resync" event, so a slow connection never makes the relay
+ * buffer more, and a browser whose send blocks for longer than the send timeout is
+ * dropped and its sender thread replaced, so a stalled connection can't hold up the
+ * others. Idle browsers get a heartbeat comment every few seconds.
+ *
+ * Each replica numbers its changes in a journal of its own, so event ids sent to
+ * browsers are "journalId:sequence". A browser that loaded the listing first opens
+ * its stream from the listing's position (the lastEventId parameter) and is caught up
+ * from there; a position from another journal than the one the relay follows, or
+ * a switch of the relay to another replica, gets a "resync" instead.
+ */
+@Service
+public class FileEventRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(FileEventRelay.class);
+
+    // Events sent to a browser per catch-up step
+    private static final int BATCH = 256;
+
+    // Path of the event stream on the file server; each reconnect picks a replica
+    @Value("${web.events.upstream-path:/api/files/events}")
+    private String upstreamPath;
+
+    // Recent events kept for browsers that are catching up
+    @Value("${web.events.buffer:1024}")
+    private int bufferSize;
+
+    // Seconds of silence after which a browser gets a heartbeat comment
+    @Value("${web.events.heartbeat-seconds:15}")
+    private long heartbeatSeconds;
+
+    // Threads sending events to browsers
+    @Value("${web.events.threads:4}")
+    private int senderThreads;
+
+    // Milliseconds one event may take to send before the browser is dropped and its thread replaced
+    @Value("${web.events.send-timeout-ms:5000}")
+    private long sendTimeoutMs;
+
+    // Browser streams allowed at once; more are refused
+    @Value("${web.events.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    // Longest wait between upstream reconnect attempts
+    @Value("${web.events.reconnect-max-seconds:10}")
+    private long reconnectMaxSeconds;
+
+    @Autowired
+    private RestTemplate restTemplate;
+
+    @Autowired
+    private FileServerPool fileServerPool;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<Subscriber, Boolean> subscribers = new ConcurrentHashMap<>();
+
+    // Ring of recent events; slot of the n-th event received is n modulo its length; guarded by "this"
+    private Frame[] ring;
+    private long received;
+    private long latestId;
+    private long floorId; // Events after this id are all in the ring
+    private String journal; // Journal of the replica followed, null until connected
+    private long epoch; // Bumped whenever the ring starts over, which sends every browser a resync
+
+    private final AtomicBoolean dispatchPending = new AtomicBoolean();
+    private final AtomicBoolean upstreamStarted = new AtomicBoolean();
+    private volatile boolean running = true;
+    private volatile boolean upstreamConnected;
+
+    private ScheduledExecutorService scheduler;
+    private ThreadPoolExecutor senders;
+
+    // Sender threads stuck on stalled connections, replaced by extra threads meanwhile; guarded by "senders"
+    private int stalledSenders;
+
+    private Counter dropped;
+    private Counter reconnects;
+
+    @PostConstruct
+    public void init() {
+        ring = new Frame[Math.max(1, bufferSize)];
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "web-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(senderThreads, senderThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "web-events-send-" + count++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        senders = pool;
+
+        dropped = meterRegistry.counter("web.events.dropped");
+        reconnects = meterRegistry.counter("web.events.upstream.reconnects");
+        Gauge.builder("web.events.subscribers", subscribers, Map::size)
+                .description("Open browser event streams")
+                .register(meterRegistry);
+        Gauge.builder("web.events.upstream.connected", this, relay -> relay.upstreamConnected ? 1 : 0)
+                .description("Whether the upstream event stream is connected")
+                .register(meterRegistry);
+
+        scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::dropStalled, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        scheduler.shutdownNow();
+        senders.shutdownNow();
+        for (Subscriber subscriber : subscribers.keySet()) {
+            subscriber.emitter.complete();
+        }
+    }
+
+    /**
+     * Opens an event stream for a browser.
+     *
+     * @param lastEventId Id of the last event the browser received (from Last-Event-ID, or the
+     *                    "journalId:sequence" position of its listing), or null to start now
+     * @return Emitter to return from the controller
+     * @throws RejectedExecutionException If too many streams are open
+     */
+    public SseEmitter subscribe(String lastEventId) {
+        if (subscribers.size() >= maxSubscribers) {
+            throw new RejectedExecutionException("Too many event subscribers");
+        }
+        startUpstream();
+
+        // No timeout: heartbeats find dead connections
+        SseEmitter emitter = new SseEmitter(0L);
+        Subscriber subscriber = newSubscriber(emitter, lastEventId);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        subscribers.put(subscriber, Boolean.TRUE);
+
+        // Sends the response headers right away, plus anything missed since Last-Event-ID
+        senders.execute(() -> drain(subscriber));
+        return emitter;
+    }
+
+    private synchronized Subscriber newSubscriber(SseEmitter emitter, String lastEventId) {
+        if (lastEventId == null) {
+            return new Subscriber(emitter, epoch, latestId);
+        }
+        String position = lastEventId.trim();
+        int separator = position.indexOf(':');
+        try {
+            if (separator >= 0) {
+                String from = position.substring(0, separator);
+                if (journal != null && !journal.equals(from)) {
+                    return new Subscriber(emitter, -1, 0); // Listed on another replica; resync
+                }
+                // Not connected yet: taken as is until the first connection, which resyncs it
+                position = position.substring(separator + 1);
+            }
+            return new Subscriber(emitter, epoch, Long.parseLong(position));
+        } catch (NumberFormatException e) {
+            return new Subscriber(emitter, -1, 0); // Unknown position; resync
+        }
+    }
+
+    // ---------- Upstream ----------
+
+    private void startUpstream() {
+        if (upstreamStarted.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::readUpstream, "web-events-upstream");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Keeps the upstream stream open for the life of the server, reconnecting from the
+     * last event received whenever it drops.
+     */
+    private void readUpstream() {
+        long backoffMillis = 0;
+        while (running) {
+            try (FileServerPool.Lease lease = fileServerPool.lease()) {
+                connect(lease);
+            } catch (Exception e) {
+                // Logged once per outage, not on every retry (also when every file server is down)
+                if (upstreamConnected || backoffMillis == 0) {
+                    log.warn("File events unavailable: {}", e.toString());
+                }
+            }
+            if (upstreamConnected) {
+                upstreamConnected = false;
+                reconnects.increment();
+                backoffMillis = 0; // Was connected; retry quickly
+            }
+
+            backoffMillis = backoffMillis == 0 ? 1000
+                    : Math.min(backoffMillis * 2, TimeUnit.SECONDS.toMillis(reconnectMaxSeconds));
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the event stream of one replica until it ends.
+     */
+    private void connect(FileServerPool.Lease lease) throws Exception {
+        String upstreamUrl = lease.getBaseUrl() + upstreamPath;
+        try {
+            restTemplate.execute(URI.create(upstreamUrl), HttpMethod.GET, request -> {
+                request.getHeaders().setAccept(List.of(MediaType.TEXT_EVENT_STREAM));
+                String lastId = getLastEventId();
+                if (lastId != null) {
+                    request.getHeaders().set("Last-Event-ID", lastId);
+                }
+            }, response -> {
+                lease.succeeded();
+                lease.close(); // An open stream isn't load to route around
+                upstreamConnected = true;
+                log.info("Connected to file events at {}", upstreamUrl);
+                follow(response.getHeaders().getFirst("X-Change-Journal"),
+                        response.getHeaders().getFirst("X-Change-Sequence"));
+                readEvents(new BufferedReader(new InputStreamReader(response.getBody(), StandardCharsets.UTF_8)));
+                return null;
+            });
+        } catch (Exception e) {
+            lease.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Parses Server-Sent Events off the upstream connection until it ends.
+     */
+    private void readEvents(BufferedReader reader) throws IOException {
+        String id = null;
+        String name = "message";
+        StringBuilder data = null;
+        String line;
+        while (running && (line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                // Blank line ends an event; comments (heartbeats) leave no data
+                if (data != null && id != null) {
+                    long frameId = Long.parseLong(id);
+                    append(new Frame(frameId, eventId(frameId), name, data.toString()));
+                }
+                id = null;
+                name = "message";
+                data = null;
+            } else if (line.startsWith("id:")) {
+                id = fieldValue(line, 3);
+            } else if (line.startsWith("event:")) {
+                name = fieldValue(line, 6);
+            } else if (line.startsWith("data:")) {
+                data = data == null ? new StringBuilder() : data.append('\n');
+                data.append(fieldValue(line, 5));
+            }
+        }
+    }
+
+    private static String fieldValue(String line, int start) {
+        return line.startsWith(" ", start) ? line.substring(start + 1) : line.substring(start);
+    }
+
+    /**
+     * Starts the ring over when the stream just opened belongs to another journal than
+     * the events buffered so far, at the position the new stream starts after.
+     */
+    private void follow(String streamJournal, String streamSequence) {
+        synchronized (this) {
+            if (streamJournal == null || streamSequence == null || streamJournal.equals(journal)) {
+                return; // Same journal, resumed from Last-Event-ID; or a file server that doesn't say
+            }
+            long start;
+            try {
+                start = Long.parseLong(streamSequence);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (journal != null) {
+                log.info("File events now come from journal {}, browsers will resync", streamJournal);
+            }
+            journal = streamJournal;
+            received = 0;
+            epoch++;
+            floorId = start;
+            latestId = start;
+        }
+        scheduleDispatch(); // Resyncs every browser now rather than with the next event
+    }
+
+    private void append(Frame frame) {
+        synchronized (this) {
+            if (received > 0 && frame.id <= latestId) {
+                // Ids went back: a restarted file server that doesn't name its journal. Start
+                // over, so every browser is told to resync instead of being matched against the old ids
+                received = 0;
+                epoch++;
+                floorId = frame.id - 1;
+            }
+            int slot = (int) (received % ring.length);
+            if (received >= ring.length) {
+                floorId = ring[slot].id; // Oldest event overwritten
+            }
+            ring[slot] = frame;
+            received++;
+            latestId = frame.id;
+        }
+        scheduleDispatch();
+    }
+
+    private synchronized long getLatestId() {
+        return latestId;
+    }
+
+    /**
+     * Gets the id to resume the upstream stream from, or null before the first event.
+     */
+    private synchronized String getLastEventId() {
+        if (latestId <= 0) {
+            return null;
+        }
+        return eventId(latestId);
+    }
+
+    /**
+     * Gets the id browsers see for a position in the journal followed.
+     */
+    private synchronized String eventId(long id) {
+        return journal != null ? journal + ":" + id : Long.toString(id);
+    }
+
+    /**
+     * Returns the buffered events after a browser's position, or null if it must resync.
+     * A position ahead of the ring (a listing newer than the last event relayed) waits
+     * for the events to arrive.
+     */
+    private synchronized List<Frame> framesAfter(Subscriber subscriber, int limit) {
+        long position = subscriber.position;
+        if (subscriber.epoch != epoch || position < floorId) {
+            return null;
+        }
+        // Ids grow with arrival order, so binary search for the first one after position
+        long low = Math.max(0, received - ring.length);
+        long high = received;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (ring[(int) (mid % ring.length)].id <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        List<Frame> frames = new ArrayList<>();
+        for (long n = low; n < received && frames.size() < limit; n++) {
+            frames.add(ring[(int) (n % ring.length)]);
+        }
+        return frames;
+    }
+
+    // ---------- Fan-out ----------
+
+    private void scheduleDispatch() {
+        if (dispatchPending.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                dispatchPending.set(false);
+                for (Subscriber subscriber : subscribers.keySet()) {
+                    if (!subscriber.sending.get()) {
+                        senders.execute(() -> drain(subscriber));
+                    }
+                }
+            });
+        }
+    }
+
+    private void heartbeat() {
+        long idleSince = System.nanoTime() - TimeUnit.SECONDS.toNanos(heartbeatSeconds);
+        for (Subscriber subscriber : subscribers.keySet()) {
+            if (subscriber.lastSent - idleSince <= 0 && !subscriber.sending.get()) {
+                subscriber.heartbeat = true;
+                senders.execute(() -> drain(subscriber));
+            }
+        }
+    }
+
+    /**
+     * Drops subscribers whose current send has been blocked for longer than the send
+     * timeout, and starts another sender thread for each, so the others keep getting
+     * events while the blocked write waits for the connection to time out.
+     */
+    private void dropStalled() {
+        long stalledSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(sendTimeoutMs);
+        for (Subscriber subscriber : subscribers.keySet()) {
+            if (subscriber.state.get() == Subscriber.SENDING && subscriber.sendStarted - stalledSince < 0
+                    && subscriber.state.compareAndSet(Subscriber.SENDING, Subscriber.STALLED)) {
+                log.debug("Dropping stalled event subscriber");
+                dropped.increment();
+                subscribers.remove(subscriber);
+                synchronized (senders) {
+                    stalledSenders++;
+                    senders.setMaximumPoolSize(senderThreads + stalledSenders);
+                    senders.setCorePoolSize(senderThreads + stalledSenders);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends one event, failing if the send was given up on as stalled meanwhile.
+     */
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) throws IOException {
+        subscriber.sendStarted = System.nanoTime();
+        subscriber.state.set(Subscriber.SENDING);
+        boolean stalled;
+        try {
+            subscriber.emitter.send(event);
+        } finally {
+            stalled = !subscriber.state.compareAndSet(Subscriber.SENDING, Subscriber.IDLE);
+            if (stalled) {
+                synchronized (senders) {
+                    stalledSenders--;
+                    senders.setCorePoolSize(senderThreads + stalledSenders);
+                    senders.setMaximumPoolSize(senderThreads + stalledSenders);
+                }
+            }
+        }
+        if (stalled) {
+            throw new IOException("Event stream stalled");
+        }
+    }
+
+    /**
+     * Sends a browser everything it hasn't seen yet. Only one thread drains a browser
+     * at a time; events that arrive meanwhile are picked up by its loop.
+     */
+    private void drain(Subscriber subscriber) {
+        while (subscriber.sending.compareAndSet(false, true)) {
+            try {
+                boolean sent = sendPending(subscriber);
+                if (!sent && (subscriber.heartbeat || subscriber.greet)) {
+                    send(subscriber, SseEmitter.event().comment(subscriber.greet ? "connected" : "heartbeat"));
+                    subscriber.lastSent = System.nanoTime();
+                }
+                subscriber.heartbeat = false;
+                subscriber.greet = false;
+            } catch (IOException | IllegalStateException e) {
+                // Browser went away or the stream was already completed
+                log.debug("Dropping event subscriber: {}", e.toString());
+                if (subscribers.remove(subscriber) != null) {
+                    dropped.increment(); // Not counted yet as stalled
+                }
+                subscriber.emitter.completeWithError(e);
+                return;
+            } finally {
+                subscriber.sending.set(false);
+            }
+            if (getLatestId() <= subscriber.position || !subscribers.containsKey(subscriber)) {
+                return;
+            }
+        }
+    }
+
+    private boolean sendPending(Subscriber subscriber) throws IOException {
+        boolean sent = false;
+        while (true) {
+            List<Frame> frames = framesAfter(subscriber, BATCH);
+            if (frames == null) {
+                long latest;
+                String latestEventId;
+                synchronized (this) {
+                    latest = latestId;
+                    latestEventId = eventId(latest);
+                    subscriber.epoch = epoch;
+                }
+                send(subscriber, SseEmitter.event()
+                        .id(latestEventId)
+                        .name("resync")
+                        .data(Long.toString(latest)));
+                subscriber.position = latest;
+                subscriber.lastSent = System.nanoTime();
+                return true;
+            }
+            if (frames.isEmpty()) {
+                return sent;
+            }
+            for (Frame frame : frames) {
+                // Relayed verbatim; nothing is parsed or serialized per browser
+                send(subscriber, SseEmitter.event()
+                        .id(frame.eventId)
+                        .name(frame.name)
+                        .data(frame.data, MediaType.APPLICATION_JSON));
+                subscriber.position = frame.id;
+            }
+            subscriber.lastSent = System.nanoTime();
+            sent = true;
+        }
+    }
+
+    /**
+     * One event as received from upstream.
+     */
+    private static class Frame {
+        final long id;
+        final String eventId;
+        final String name;
+        final String data;
+
+        Frame(long id, String eventId, String name, String data) {
+            this.id = id;
+            this.eventId = eventId;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    /**
+     * One browser stream and how far it has been caught up.
+     */
+    private static class Subscriber {
+        static final int IDLE = 0;
+        static final int SENDING = 1;
+        static final int STALLED = 2;
+
+        final SseEmitter emitter;
+        final AtomicBoolean sending = new AtomicBoolean();
+
+        // Whether a single send is in progress, and since when; a stalled send is given up on
+        final AtomicInteger state = new AtomicInteger(IDLE);
+        volatile long sendStarted;
+
+        // Written only by the thread that holds "sending"; a ring epoch other than the current one means resync
+        volatile long epoch;
+        volatile long position;
+        volatile long lastSent = System.nanoTime();
+        volatile boolean heartbeat;
+        volatile boolean greet = true;
+
+        Subscriber(SseEmitter emitter, long epoch, long position) {
+            this.emitter = emitter;
+            this.epoch = epoch;
+            this.position = position;
+        }
+    }
+}
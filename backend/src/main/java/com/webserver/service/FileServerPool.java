@@ -0,0 +1,566 @@
+package com.webserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.ResourceAccessException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The file server replicas the web tier talks to, and which one gets each request.
+ *
+ * Every request goes to the better of two randomly picked healthy replicas, scored
+ * by their outstanding requests times their recent latency (a peak-sensitive moving
+ * average, so a replica that slows down is avoided at once and trusted again
+ * gradually).
+ *
+ * Each replica has a circuit breaker. A few connection failures or timeouts in a
+ * row, seen by requests or by the periodic health check, open it: the replica gets
+ * no requests for a while, then one request is let through as a probe (sooner if a
+ * health check passes), and its outcome closes the circuit or opens it again. While
+ * every circuit is open, requests fail at once with RejectedExecutionException
+ * instead of tying up threads on replicas that are known to be down.
+ *
+ * Idempotent reads go through executeRead: after a connection failure they are
+ * retried on another replica, and if the first replica hasn't answered within the
+ * hedge delay the same read is also sent to a second one and the first answer wins.
+ * Replicas are expected to serve the same storage.
+ */
+@Service
+public class FileServerPool {
+
+    private static final Logger log = LoggerFactory.getLogger(FileServerPool.class);
+
+    // How fast a latency spike is forgotten
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Latency assumed for a replica before it has answered anything
+    private static final long INITIAL_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Base URLs of the file server replicas, comma-separated
+    @Value("${web.upstream.servers:http://file-server:8081}")
+    private String[] servers;
+
+    // Path every replica answers with 2xx while it is able to serve
+    @Value("${web.upstream.health-path:/actuator/health}")
+    private String healthPath;
+
+    @Value("${web.upstream.health-interval-ms:2000}")
+    private long healthIntervalMs;
+
+    @Value("${web.upstream.health-timeout-ms:1000}")
+    private int healthTimeoutMs;
+
+    // Consecutive connection failures after which a replica's circuit opens
+    @Value("${web.upstream.unhealthy-threshold:2}")
+    private int unhealthyThreshold;
+
+    // Milliseconds an open circuit refuses requests before one is let through as a probe
+    @Value("${web.upstream.open-ms:5000}")
+    private long openMs;
+
+    // Milliseconds after which a read is also sent to a second replica (0 disables hedging)
+    @Value("${web.upstream.hedge-delay-ms:0}")
+    private long hedgeDelayMs;
+
+    // Threads running hedged reads; when all are busy, reads run unhedged on the caller's thread
+    @Value("${web.upstream.hedge-threads:64}")
+    private int hedgeThreads;
+
+    @Autowired
+    private CloseableHttpClient fileServerHttpClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final List<Backend> backends = new ArrayList<>();
+
+    private ScheduledExecutorService healthChecker;
+    private ThreadPoolExecutor hedgeExecutor;
+    private Counter hedges;
+    private Counter hedgeWins;
+    private Counter failovers;
+    private Counter rejected;
+
+    @PostConstruct
+    public void init() {
+        for (String server : servers) {
+            String baseUrl = server.trim().replaceAll("/+$", "");
+            if (!baseUrl.isEmpty()) {
+                backends.add(new Backend(baseUrl));
+            }
+        }
+        if (backends.isEmpty()) {
+            throw new IllegalStateException("web.upstream.servers lists no file server");
+        }
+
+        for (Backend backend : backends) {
+            Gauge.builder("upstream.backend.outstanding", backend.outstanding, AtomicInteger::get)
+                    .tag("backend", backend.baseUrl)
+                    .register(meterRegistry);
+            Gauge.builder("upstream.backend.latency", backend, b -> b.latency() / 1e6)
+                    .description("Peak-weighted moving average of response times in milliseconds")
+                    .tag("backend", backend.baseUrl)
+                    .register(meterRegistry);
+            Gauge.builder("upstream.backend.healthy", backend, b -> b.isClosed() ? 1 : 0)
+                    .description("1 while the replica's circuit is closed")
+                    .tag("backend", backend.baseUrl)
+                    .register(meterRegistry);
+        }
+        hedges = meterRegistry.counter("upstream.hedges");
+        hedgeWins = meterRegistry.counter("upstream.hedge.wins");
+        failovers = meterRegistry.counter("upstream.failovers");
+        rejected = meterRegistry.counter("upstream.circuit.rejected");
+
+        AtomicInteger threadCount = new AtomicInteger();
+        hedgeExecutor = new ThreadPoolExecutor(0, hedgeThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "web-upstream-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "web-upstream-health");
+            t.setDaemon(true);
+            return t;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, 0, healthIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("Routing to file servers {}", backends);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        healthChecker.shutdownNow();
+        hedgeExecutor.shutdownNow();
+    }
+
+    /**
+     * One call to a file server replica.
+     */
+    public interface Attempt<T> {
+
+        /**
+         * Sends the request to a replica.
+         *
+         * @param baseUrl Base URL of the replica, e.g. http://file-server:8081
+         * @return Result of the call
+         * @throws Exception If the call fails
+         */
+        T call(String baseUrl) throws Exception;
+    }
+
+    /**
+     * Picks a replica for a request the caller sends itself, e.g. a relay that
+     * outlives the method call. The caller reports the outcome and closes the lease
+     * when it is done with the replica.
+     *
+     * @return Lease on the chosen replica
+     * @throws RejectedExecutionException If every replica's circuit is open
+     * @throws UpstreamDeadline.DeadlineExceededException If the caller's deadline has passed
+     */
+    public Lease lease() {
+        return lease(null);
+    }
+
+    /**
+     * Sends a request to one replica.
+     *
+     * @param attempt The call
+     * @return Result of the call
+     * @throws Exception If the call fails
+     */
+    public <T> T execute(Attempt<T> attempt) throws Exception {
+        try (Lease lease = lease()) {
+            return lease.run(attempt);
+        }
+    }
+
+    /**
+     * Sends an idempotent read to the best replica, retrying another one after a
+     * connection failure and hedging with a second one if the first is slow.
+     *
+     * @param attempt The read; it may run twice, on different threads
+     * @return The first successful result
+     * @throws Exception If the read fails
+     */
+    public <T> T executeRead(Attempt<T> attempt) throws Exception {
+        Lease first = lease(null);
+        if (hedgeDelayMs <= 0 || backends.size() < 2) {
+            try (first) {
+                return first.run(attempt);
+            } catch (Exception e) {
+                return failOver(first, attempt, e);
+            }
+        }
+
+        CompletableFuture<T> primary = submit(first, attempt);
+        try {
+            return primary.get(hedgeDelayMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Slow; ask a second replica as well
+        } catch (ExecutionException e) {
+            return failOver(first, attempt, unwrap(e));
+        }
+
+        Lease second;
+        try {
+            second = lease(first.backend);
+        } catch (RejectedExecutionException | UpstreamDeadline.DeadlineExceededException e) {
+            return await(primary); // Every other circuit is open, or no time left for a second try
+        }
+        if (second.backend == first.backend) {
+            second.close(); // Nowhere else to go
+            return await(primary);
+        }
+        hedges.increment();
+        CompletableFuture<T> backup = submit(second, attempt);
+
+        // The first success wins; the read fails only if both attempts fail
+        CompletableFuture<T> winner = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(2);
+        primary.whenComplete((result, error) -> settle(winner, remaining, result, error, false));
+        backup.whenComplete((result, error) -> settle(winner, remaining, result, error, true));
+        return await(winner);
+    }
+
+    private <T> void settle(CompletableFuture<T> winner, AtomicInteger remaining, T result, Throwable error,
+                            boolean hedge) {
+        if (error == null) {
+            if (winner.complete(result) && hedge) {
+                hedgeWins.increment();
+            }
+        } else if (remaining.decrementAndGet() == 0) {
+            winner.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Picks another replica after a request failed before getting any response.
+     *
+     * @param failed Closed lease of the failed request
+     * @param e      Why it failed
+     * @return Lease on another replica
+     * @throws Exception e itself, unless it was a connection failure, there is another
+     *                   replica and the caller's deadline hasn't passed
+     */
+    public Lease failOver(Lease failed, Exception e) throws Exception {
+        if (!isConnectionFailure(e) || UpstreamDeadline.isExceeded()) {
+            throw e;
+        }
+        Lease lease;
+        try {
+            lease = lease(failed.backend);
+        } catch (RejectedExecutionException rejected) {
+            throw e; // Every other circuit is open
+        }
+        if (lease.backend == failed.backend) {
+            lease.close();
+            throw e; // Nowhere else to go
+        }
+        failovers.increment();
+        return lease;
+    }
+
+    private <T> T failOver(Lease failed, Attempt<T> attempt, Exception e) throws Exception {
+        try (Lease lease = failOver(failed, e)) {
+            return lease.run(attempt);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Lease lease, Attempt<T> attempt) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Long deadline = UpstreamDeadline.get(); // The caller's deadline holds on the hedge thread too
+        Runnable task = () -> {
+            Long previous = UpstreamDeadline.get();
+            UpstreamDeadline.set(deadline);
+            try (lease) {
+                future.complete(lease.run(attempt));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            } finally {
+                UpstreamDeadline.set(previous);
+            }
+        };
+        try {
+            hedgeExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run(); // All hedge threads busy
+        }
+        return future;
+    }
+
+    private <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    /**
+     * Picks the less loaded of two random replicas with a closed circuit, unless a
+     * replica with an open circuit is due for a probe.
+     *
+     * @param exclude Replica to avoid if there is any other, or null
+     * @throws RejectedExecutionException If every circuit is open
+     * @throws UpstreamDeadline.DeadlineExceededException If the caller's deadline has passed
+     */
+    private Lease lease(Backend exclude) {
+        UpstreamDeadline.check(); // Nothing would be sent; don't take a probe or a place in the load count
+        for (Backend backend : backends) {
+            if (backend != exclude && backend.tryProbe()) {
+                return new Lease(backend, true);
+            }
+        }
+
+        List<Backend> candidates = new ArrayList<>(backends.size());
+        for (Backend backend : backends) {
+            if (backend != exclude && backend.isClosed()) {
+                candidates.add(backend);
+            }
+        }
+        if (candidates.isEmpty() && exclude != null && exclude.isClosed()) {
+            candidates.add(exclude);
+        }
+        if (candidates.isEmpty()) {
+            rejected.increment();
+            throw new RejectedExecutionException("No file server available");
+        }
+
+        Backend chosen = candidates.get(0);
+        if (candidates.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(candidates.size());
+            int j = random.nextInt(candidates.size() - 1);
+            Backend a = candidates.get(i);
+            Backend b = candidates.get(j >= i ? j + 1 : j);
+            chosen = a.score() <= b.score() ? a : b;
+        }
+        return new Lease(chosen, false);
+    }
+
+    /**
+     * Checks every replica, taking out the ones that don't answer and bringing back the ones that do.
+     */
+    private void checkHealth() {
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(healthTimeoutMs)
+                .setConnectionRequestTimeout(healthTimeoutMs)
+                .setSocketTimeout(healthTimeoutMs)
+                .build();
+        for (Backend backend : backends) {
+            HttpGet request = new HttpGet(backend.baseUrl + healthPath);
+            request.setConfig(config);
+            boolean up;
+            try (CloseableHttpResponse response = fileServerHttpClient.execute(request)) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                up = response.getStatusLine().getStatusCode() < 300;
+            } catch (IOException | RuntimeException e) {
+                up = false;
+            }
+            if (up) {
+                backend.passedHealthCheck();
+            } else {
+                backend.failed();
+            }
+        }
+    }
+
+    private static boolean isConnectionFailure(Exception e) {
+        return e instanceof IOException || e instanceof ResourceAccessException;
+    }
+
+    /**
+     * A request in progress on a replica. Counts as outstanding until closed.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Backend backend;
+        private final boolean probe;
+        private final long startedAt = System.nanoTime();
+        private boolean closed;
+
+        private Lease(Backend backend, boolean probe) {
+            this.backend = backend;
+            this.probe = probe;
+            backend.outstanding.incrementAndGet();
+        }
+
+        public String getBaseUrl() {
+            return backend.baseUrl;
+        }
+
+        /**
+         * Records that the replica answered; the time until now is its response time.
+         */
+        public void succeeded() {
+            backend.observe(System.nanoTime() - startedAt);
+            backend.succeeded();
+        }
+
+        /**
+         * Records a failed request. Only connection failures count against the replica;
+         * an error response still means it is up, and a passed deadline says nothing about it.
+         *
+         * @param e What went wrong
+         */
+        public void failed(Exception e) {
+            if (isConnectionFailure(e)) {
+                backend.failed();
+            }
+        }
+
+        private <T> T run(Attempt<T> attempt) throws Exception {
+            try {
+                T result = attempt.call(backend.baseUrl);
+                succeeded();
+                return result;
+            } catch (Exception e) {
+                failed(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                backend.outstanding.decrementAndGet();
+                if (probe) {
+                    backend.endProbe(); // Inconclusive (e.g. an error response); the next request probes again
+                }
+            }
+        }
+    }
+
+    /**
+     * A replica and what is known about its load and health.
+     */
+    private class Backend {
+        final String baseUrl;
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        // Guarded by "this"
+        double latencyNanos = INITIAL_LATENCY_NANOS;
+        long observedAt = System.nanoTime();
+
+        // Circuit breaker; guarded by "this"
+        Circuit circuit = Circuit.CLOSED;
+        int failures;
+        long retryAt;
+        boolean probing;
+
+        Backend(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        synchronized double score() {
+            return latency() * (outstanding.get() + 1);
+        }
+
+        /**
+         * Returns the latency estimate, decayed for the time since the last response, so a
+         * replica avoided after a spike is tried again instead of being starved of samples.
+         */
+        synchronized double latency() {
+            return latencyNanos * Math.exp(-(System.nanoTime() - observedAt) / DECAY_NANOS);
+        }
+
+        /**
+         * Takes a slower response time at once, and decays towards faster ones over time.
+         */
+        synchronized void observe(long nanos) {
+            long now = System.nanoTime();
+            if (nanos > latencyNanos) {
+                latencyNanos = nanos;
+            } else {
+                double weight = Math.exp(-(now - observedAt) / DECAY_NANOS);
+                latencyNanos = latencyNanos * weight + nanos * (1 - weight);
+            }
+            observedAt = now;
+        }
+
+        synchronized boolean isClosed() {
+            return circuit == Circuit.CLOSED;
+        }
+
+        /**
+         * Claims the probe of an open circuit whose wait is over.
+         *
+         * @return true if the caller's request is the probe
+         */
+        synchronized boolean tryProbe() {
+            if (circuit == Circuit.OPEN && System.nanoTime() - retryAt >= 0) {
+                circuit = Circuit.HALF_OPEN;
+            }
+            if (circuit != Circuit.HALF_OPEN || probing) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized void endProbe() {
+            probing = false;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            if (circuit != Circuit.CLOSED) {
+                circuit = Circuit.CLOSED;
+                probing = false;
+                log.info("File server {} is back", baseUrl);
+            }
+        }
+
+        synchronized void passedHealthCheck() {
+            if (circuit == Circuit.CLOSED) {
+                failures = 0;
+            } else if (circuit == Circuit.OPEN) {
+                retryAt = System.nanoTime(); // Up again; let the next request probe it
+            }
+        }
+
+        synchronized void failed() {
+            failures++;
+            if (circuit == Circuit.HALF_OPEN || (circuit == Circuit.CLOSED && failures >= unhealthyThreshold)) {
+                if (circuit == Circuit.CLOSED) {
+                    log.warn("File server {} taken out after {} failures", baseUrl, failures);
+                }
+                circuit = Circuit.OPEN;
+                probing = false;
+                retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openMs);
+                meterRegistry.counter("upstream.circuit.opened", "backend", baseUrl).increment();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl;
+        }
+    }
+
+    private enum Circuit {
+        CLOSED, OPEN, HALF_OPEN
+    }
+}
@@ -1,27 +1,101 @@
 package com.webserver.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.webserver.model.FileInfo;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UriComponentsBuilder;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 
 /**
- * Service class that communicates with the File Server (hosted on another VM or container)
- * to fetch file metadata, download files, retrieve content, and view files.
+ * Service class that communicates with the File Server (replicas on other VMs or containers,
+ * picked per call by FileServerPool) to fetch file metadata, download files, retrieve content, and view files.
+ * Small responses are kept in the ResponseCache; larger file bodies are relayed as
+ * they arrive, never held in this server's memory.
  */
 @Service
 public class FileServerService {
 
-    // Base URL of the file server (change as per your File Server IP/port)
-    private final String FILE_SERVER_BASE_URL = "http://192.168.29.162:8081/api/files";
+    // Path of the file API on every file server replica (see FileServerPool for the replicas)
+    private static final String FILES_PATH = "/api/files";
 
-    // ObjectMapper is used to convert JSON responses into Java objects
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Request headers passed on to the file server when relaying a file
+    private static final List<String> FORWARDED_REQUEST_HEADERS = List.of(HttpHeaders.RANGE, HttpHeaders.IF_RANGE,
+            HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.ACCEPT_ENCODING);
+
+    // Response headers passed back to the client (hop-by-hop headers are left to each connection)
+    private static final List<String> FORWARDED_RESPONSE_HEADERS = List.of(HttpHeaders.CONTENT_TYPE,
+            HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_RANGE, HttpHeaders.CONTENT_ENCODING,
+            HttpHeaders.ACCEPT_RANGES, HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.CACHE_CONTROL,
+            HttpHeaders.RETRY_AFTER, "X-Change-Sequence", "X-Change-Journal");
+
+    // Size of the buffers relayed bodies are copied through
+    @Value("${web.relay.buffer-bytes:65536}")
+    private int relayBufferBytes;
+
+    // Buffers kept for reuse; relays beyond this allocate and drop their own
+    @Value("${web.relay.pooled-buffers:256}")
+    private int pooledBuffers;
+
+    // Shares the pooled keep-alive connections to the file server (see AppConfig)
+    @Autowired
+    private RestTemplate restTemplate;
+
+    // Same pool, used directly for relays so an abandoned download can be aborted
+    @Autowired
+    private CloseableHttpClient fileServerHttpClient;
+
+    // Picks the file server replica for each call
+    @Autowired
+    private FileServerPool fileServerPool;
+
+    // Limits the calls in flight per kind of request and sets their deadlines
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Autowired
+    private RequestConfig fileServerRequestConfig;
+
+    // Small responses are served from memory (see ResponseCache)
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private BlockingQueue<byte[]> buffers;
+
+    @PostConstruct
+    public void init() {
+        buffers = new ArrayBlockingQueue<>(pooledBuffers);
+    }
 
     /**
      * Calls the file server to fetch a list of all files and their metadata.
@@ -30,61 +104,287 @@ public class FileServerService {
      * @throws Exception If the request fails or response parsing fails
      */
     public List<FileInfo> getAllFiles() throws Exception {
-        URL url = new URL(FILE_SERVER_BASE_URL + "/list");
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Accept", "application/json");
+        return bulkheads.call(Bulkheads.LIST, () -> fileServerPool.executeRead(baseUrl -> timed("list", () -> {
+            FileInfo[] files = restTemplate.getForObject(baseUrl + FILES_PATH + "/list", FileInfo[].class);
+            return files != null ? Arrays.asList(files) : Collections.emptyList();
+        })));
+    }
+
+    /**
+     * Relays a file from the file server to a client.
+     *
+     * @param operation      Endpoint on the file server ("download" or "view"), also the metrics tag
+     * @param fileName       Name of the file
+     * @param requestHeaders Headers of the client's request
+     * @param disposition    Content-Disposition to send to the client
+     * @return Response whose body copies the upstream body to the client
+     * @throws Exception If the file server can't be reached
+     * @see #relay(String, String, String, HttpHeaders, String)
+     */
+    public ResponseEntity<StreamingResponseBody> relayFile(String operation, String fileName,
+                                                           HttpHeaders requestHeaders, String disposition)
+            throws Exception {
+        String path = UriComponentsBuilder.fromPath(FILES_PATH + "/" + operation + "/{fileName}")
+                .buildAndExpand(fileName)
+                .encode()
+                .toUriString();
+        return relay(path, operation, Bulkheads.DOWNLOAD, requestHeaders, disposition);
+    }
+
+    /**
+     * Relays a GET from the file server to a client. Small responses come from the
+     * ResponseCache, so identical requests arriving together cost one upstream call;
+     * everything else (ranges, large bodies, and requests sent with Cache-Control:
+     * no-cache, which must not get a stale copy) is streamed through as it arrives.
+     * A body found too large once is streamed from then on, until a streamed answer
+     * shows it fits in the cache again.
+     * Conditional, range and encoding headers are passed on in both directions, so the
+     * client gets 304, 206 or gzip exactly as the file server would answer it.
+     *
+     * @param path           Encoded path and query on the file server, e.g. /api/files/list?sort=size
+     * @param operation      Name of the call used as metrics tag (e.g. "list")
+     * @param bulkhead       Bulkhead the upstream call runs in (see Bulkheads)
+     * @param requestHeaders Headers of the client's request
+     * @param disposition    Content-Disposition to send with a body, or null for none
+     * @return Response whose body is written from the cache or copied from the file server
+     * @throws Exception If the file server can't be reached
+     */
+    public ResponseEntity<StreamingResponseBody> relay(String path, String operation, String bulkhead,
+                                                       HttpHeaders requestHeaders, String disposition)
+            throws Exception {
+        String cacheKey = null;
+        if (requestHeaders.getRange().isEmpty() && requestHeaders.getFirst(HttpHeaders.IF_RANGE) == null
+                && !isNoCache(requestHeaders)) {
+            // One cached variant per encoding the client accepts; validators are checked here
+            boolean gzip = acceptsGzip(requestHeaders);
+            cacheKey = path + (gzip ? " gzip" : "");
+            ResponseCache.CachedResponse cached = responseCache.get(cacheKey,
+                    previous -> bulkheads.call(bulkhead, () -> fileServerPool.executeRead(
+                            baseUrl -> fetchForCache(URI.create(baseUrl + path), operation, gzip, previous))));
+            if (cached != null) {
+                return respond(cached, requestHeaders, disposition);
+            }
+        }
+        return stream(path, operation, bulkhead, requestHeaders, disposition, cacheKey);
+    }
+
+    /**
+     * Whether the client wants an answer straight from the file server, e.g. a listing
+     * reloaded after missing change events, which must be at least as new as the events.
+     */
+    private static boolean isNoCache(HttpHeaders requestHeaders) {
+        String cacheControl = requestHeaders.getCacheControl();
+        return (cacheControl != null && cacheControl.contains("no-cache"))
+                || requestHeaders.getOrEmpty(HttpHeaders.PRAGMA).contains("no-cache");
+    }
+
+    /**
+     * Answers a request from a cached response, with 304 if the client's copy matches.
+     */
+    private ResponseEntity<StreamingResponseBody> respond(ResponseCache.CachedResponse cached,
+                                                          HttpHeaders requestHeaders, String disposition) {
+        String etag = cached.getHeaders().getETag();
+        List<String> ifNoneMatch = requestHeaders.getIfNoneMatch();
+        if (etag != null && cached.getStatus() == HttpStatus.OK.value()
+                && (ifNoneMatch.contains(etag) || ifNoneMatch.contains("*"))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .headers(headers -> headers.addAll(HttpHeaders.CACHE_CONTROL,
+                            cached.getHeaders().getOrEmpty(HttpHeaders.CACHE_CONTROL)))
+                    .build();
+        }
 
-        int responseCode = connection.getResponseCode();
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(cached.getHeaders());
+        if (disposition != null && cached.getStatus() == HttpStatus.OK.value()) {
+            headers.set(HttpHeaders.CONTENT_DISPOSITION, disposition);
+        }
+        byte[] body = cached.getBody();
+        headers.setContentLength(body.length);
+        return ResponseEntity.status(cached.getStatus()).headers(headers).body(out -> out.write(body));
+    }
 
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            // Read the response body into a string
-            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            StringBuilder response = new StringBuilder();
-            String line;
+    /**
+     * Fetches a response for the cache, revalidating the previous one with its ETag.
+     *
+     * @return The response, previous if it is still current, or null if it can't be cached
+     */
+    private ResponseCache.CachedResponse fetchForCache(URI uri, String operation, boolean gzip,
+                                                       ResponseCache.CachedResponse previous) throws Exception {
+        HttpGet request = new HttpGet(uri);
+        request.setConfig(UpstreamDeadline.limit(fileServerRequestConfig));
+        if (gzip) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        }
+        String etag = previous != null ? previous.getHeaders().getETag() : null;
+        if (etag != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        }
 
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
+        try (CloseableHttpResponse upstream = timed(operation, () -> fileServerHttpClient.execute(request))) {
+            int status = upstream.getStatusLine().getStatusCode();
+            if (status == HttpStatus.NOT_MODIFIED.value() && previous != null) {
+                return previous;
+            }
+            HttpHeaders headers = responseHeaders(upstream);
+            HttpEntity entity = upstream.getEntity();
+            String cacheControl = headers.getCacheControl();
+            // Only complete answers are worth keeping; 503s and the like go to the client as they are
+            boolean cacheable = (status == HttpStatus.OK.value() || status == HttpStatus.NOT_FOUND.value())
+                    && (cacheControl == null || !cacheControl.contains("no-store"))
+                    && (entity == null || entity.getContentLength() <= responseCache.getMaxEntryBytes());
+            if (!cacheable) {
+                request.abort();
+                return null;
             }
-            reader.close();
 
-            // Parse the JSON response into a List<FileInfo>
-            return objectMapper.readValue(response.toString(), new TypeReference<List<FileInfo>>() {});
-        } else {
-            throw new RuntimeException("Failed to fetch files from file server");
+            byte[] body = new byte[0];
+            if (entity != null) {
+                int limit = responseCache.getMaxEntryBytes();
+                try (InputStream in = entity.getContent()) {
+                    body = in.readNBytes(limit + 1);
+                }
+                if (body.length > limit) {
+                    request.abort(); // Larger than announced (chunked); relay it instead
+                    return null;
+                }
+            }
+            return new ResponseCache.CachedResponse(status, headers, body);
         }
     }
 
     /**
-     * Downloads the file content as raw bytes from the file server.
+     * Relays a response from the file server, streaming the body through as it arrives.
+     * The bulkhead permit and the replica stay held until the body is relayed, so long
+     * downloads count as load.
      *
-     * @param fileName Name of the file to download
-     * @return Byte array representing the file
-     * @throws Exception If download fails
+     * @param cacheKey Key the response is cached under if it fits, or null if it may not be cached
      */
-    public byte[] downloadFile(String fileName) throws Exception {
-        URL url = new URL(FILE_SERVER_BASE_URL + "/download/" + fileName);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
+    private ResponseEntity<StreamingResponseBody> stream(String path, String operation, String bulkhead,
+                                                         HttpHeaders requestHeaders, String disposition,
+                                                         String cacheKey) throws Exception {
+        Bulkheads.Permit permit = bulkheads.acquire(bulkhead);
+        Upstream upstream;
+        try {
+            upstream = permit.call(() -> open(path, operation, requestHeaders));
+        } catch (Exception e) {
+            permit.close();
+            throw e;
+        }
+        int status = upstream.response.getStatusLine().getStatusCode();
+        HttpHeaders headers = responseHeaders(upstream.response);
 
-        int responseCode = connection.getResponseCode();
+        HttpEntity entity = upstream.response.getEntity();
+        if (entity == null || status >= 300) {
+            // 304, 404, 416, 503 ...: only the status and headers matter
+            EntityUtils.consumeQuietly(entity);
+            upstream.close();
+            permit.close();
+            return ResponseEntity.status(status).headers(headers).build();
+        }
+        String cacheControl = headers.getCacheControl();
+        if (cacheKey != null && status == HttpStatus.OK.value() && entity.getContentLength() >= 0
+                && entity.getContentLength() <= responseCache.getMaxEntryBytes()
+                && (cacheControl == null || !cacheControl.contains("no-store"))) {
+            responseCache.fits(cacheKey); // Replaced by a smaller file; cache it again from the next request
+        }
+
+        if (disposition != null) {
+            headers.set(HttpHeaders.CONTENT_DISPOSITION, disposition);
+        }
+        StreamingResponseBody body = out -> {
+            try (permit; upstream) {
+                relay(upstream.request, upstream.response, entity, out, operation);
+            }
+        };
+        return ResponseEntity.status(status).headers(headers).body(body);
+    }
+
+    /**
+     * Sends a GET to a replica and waits for the response head, failing over once if
+     * the replica can't be reached.
+     */
+    private Upstream open(String path, String operation, HttpHeaders requestHeaders) throws Exception {
+        FileServerPool.Lease lease = fileServerPool.lease();
+        for (int tries = 1; ; tries++) {
+            HttpGet request = new HttpGet(URI.create(lease.getBaseUrl() + path));
+            for (String name : FORWARDED_REQUEST_HEADERS) {
+                for (String value : requestHeaders.getOrEmpty(name)) {
+                    request.addHeader(name, value);
+                }
+            }
+            try {
+                request.setConfig(UpstreamDeadline.limit(fileServerRequestConfig));
+                CloseableHttpResponse response = timed(operation, () -> fileServerHttpClient.execute(request));
+                lease.succeeded();
+                return new Upstream(lease, request, response);
+            } catch (Exception e) {
+                lease.failed(e);
+                lease.close();
+                if (tries > 1) {
+                    throw e;
+                }
+                lease = fileServerPool.failOver(lease, e); // Nothing was received yet, so another replica can answer
+            }
+        }
+    }
 
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            // Read the binary content into a byte array
-            InputStream inputStream = connection.getInputStream();
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    /**
+     * Picks the upstream response headers that are passed on to the client.
+     */
+    private HttpHeaders responseHeaders(CloseableHttpResponse upstream) {
+        HttpHeaders headers = new HttpHeaders();
+        for (String name : FORWARDED_RESPONSE_HEADERS) {
+            for (Header header : upstream.getHeaders(name)) {
+                headers.add(name, header.getValue());
+            }
+        }
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+        // Only the encoding variation carries over; the rest of Vary is the file server's own CORS
+        for (Header vary : upstream.getHeaders(HttpHeaders.VARY)) {
+            if (vary.getValue().toLowerCase().contains("accept-encoding")) {
+                headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+            }
+        }
+        return headers;
+    }
 
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+    private boolean acceptsGzip(HttpHeaders requestHeaders) {
+        for (String value : requestHeaders.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            if (value.toLowerCase().contains("gzip")) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            inputStream.close();
-            return outputStream.toByteArray();
-        } else {
-            throw new RuntimeException("Failed to download file from file server");
+    /**
+     * Copies an upstream body to the client through a pooled buffer. If the client goes
+     * away, the upstream request is aborted rather than read to the end.
+     */
+    private void relay(HttpGet request, CloseableHttpResponse upstream, HttpEntity entity, OutputStream out,
+                       String operation) throws IOException {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new byte[relayBufferBytes];
+        }
+        long copied = 0;
+        boolean complete = false;
+        try {
+            InputStream in = entity.getContent();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+            complete = true; // Fully read, so the connection goes back to the pool
+        } finally {
+            if (!complete) {
+                request.abort(); // Closes the connection instead of draining the rest of the file
+            }
+            upstream.close();
+            buffers.offer(buffer);
+            meterRegistry.counter("upstream.relay.bytes", "operation", operation).increment(copied);
         }
     }
 
@@ -96,59 +396,84 @@ public class FileServerService {
      * @throws Exception If the content can't be retrieved
      */
     public String getFileContent(String fileName) throws Exception {
-        URL url = new URL(FILE_SERVER_BASE_URL + "/content/" + fileName);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-
-        int responseCode = connection.getResponseCode();
-
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            // Read and return the full file content line-by-line
-            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            StringBuilder response = new StringBuilder();
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                response.append(line).append("\n");
-            }
-            reader.close();
-
-            return response.toString();
-        } else {
-            throw new RuntimeException("Failed to get file content from file server");
-        }
+        return getFileContent(fileName, null, null);
     }
 
     /**
-     * Fetches the binary content of a file (image/pdf) to be rendered in the browser.
+     * Gets a window of lines of a .txt or .loc file from the file server.
+     * Only the requested lines cross the network, so huge logs can be paged through.
      *
      * @param fileName Name of the file
-     * @return Byte array of the file
-     * @throws Exception If file cannot be fetched
+     * @param fromLine Zero-based number of the first line, or null for the start
+     * @param count    Number of lines, or null for the whole file
+     * @return Requested lines as text
+     * @throws Exception If the content can't be retrieved
      */
-    public byte[] viewFile(String fileName) throws Exception {
-        URL url = new URL(FILE_SERVER_BASE_URL + "/view/" + fileName);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
+    public String getFileContent(String fileName, Long fromLine, Integer count) throws Exception {
+        return bulkheads.call(Bulkheads.CONTENT, () -> fileServerPool.executeRead(baseUrl -> timed("content", () -> {
+            URI uri = UriComponentsBuilder.fromHttpUrl(baseUrl + FILES_PATH + "/content/{fileName}")
+                    .queryParamIfPresent("fromLine", Optional.ofNullable(fromLine))
+                    .queryParamIfPresent("count", Optional.ofNullable(count))
+                    .buildAndExpand(fileName)
+                    .encode()
+                    .toUri();
+            // Decoded here: the file server doesn't name a charset, and files are UTF-8
+            byte[] content = restTemplate.getForObject(uri, byte[].class);
+            return content != null ? new String(content, StandardCharsets.UTF_8) : "";
+        })));
+    }
 
-        int responseCode = connection.getResponseCode();
+    /**
+     * Runs one call to the file server, timing it and counting failures.
+     *
+     * @param operation Name of the call used as tag (e.g. "download")
+     * @param call      Request to the file server
+     * @return Result of the call
+     * @throws Exception If the call fails
+     */
+    private <T> T timed(String operation, Callable<T> call) throws Exception {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            T result = call.call();
+            outcome = "success";
+            return result;
+        } catch (Exception e) {
+            meterRegistry.counter("upstream.failures", "operation", operation,
+                    "exception", e.getClass().getSimpleName()).increment();
+            throw e;
+        } finally {
+            sample.stop(Timer.builder("upstream.requests")
+                    .description("Calls from the web server to the file server")
+                    .tag("operation", operation)
+                    .tag("outcome", outcome)
+                    .publishPercentiles(0.5, 0.99)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+    }
 
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            // Read file content into a byte array
-            InputStream inputStream = connection.getInputStream();
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    /**
+     * An open response from a replica, whose body is still to be relayed.
+     */
+    private static class Upstream implements AutoCloseable {
+        final FileServerPool.Lease lease;
+        final HttpGet request;
+        final CloseableHttpResponse response;
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+        Upstream(FileServerPool.Lease lease, HttpGet request, CloseableHttpResponse response) {
+            this.lease = lease;
+            this.request = request;
+            this.response = response;
+        }
 
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+        @Override
+        public void close() throws IOException {
+            try {
+                response.close();
+            } finally {
+                lease.close();
             }
-
-            inputStream.close();
-            return outputStream.toByteArray();
-        } else {
-            throw new RuntimeException("Failed to view file from file server");
         }
     }
 }
@@ -0,0 +1,312 @@
+package com.webserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory cache of small file server responses (listings, views), so many browsers
+ * asking for the same thing at once cost the file server one request.
+ *
+ * An entry is fresh for the TTL. After that it is still served for the stale window
+ * while one background request revalidates it with its ETag, which the file server
+ * usually answers with a bodiless 304. Past the stale window the next request waits
+ * for the revalidation. Requests that miss at the same time share one upstream
+ * fetch. Entries are evicted least recently used first to stay within the memory
+ * budget. Responses too large for one entry are remembered as uncacheable until
+ * the caller, relaying one of them, sees an answer small enough again (the file was
+ * replaced), so large downloads are relayed with a single upstream request instead
+ * of being fetched and thrown away every time the note expires.
+ */
+@Service
+public class ResponseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+
+    // Rough per-entry cost of the key, headers and bookkeeping, on top of the body
+    private static final int ENTRY_OVERHEAD = 512;
+
+    // Bytes of response bodies kept in memory (0 disables the cache)
+    @Value("${web.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    // Largest response body that is cached; larger ones are always streamed
+    @Value("${web.cache.max-entry-bytes:4194304}")
+    private int maxEntryBytes;
+
+    // Seconds an entry is served without asking the file server
+    @Value("${web.cache.ttl-seconds:5}")
+    private long ttlSeconds;
+
+    // Further seconds an expired entry is still served while it is revalidated in the background
+    @Value("${web.cache.stale-seconds:30}")
+    private long staleSeconds;
+
+    // Threads revalidating stale entries
+    @Value("${web.cache.refresh-threads:2}")
+    private int refreshThreads;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Entries in access order, for LRU eviction; guarded by "this"
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+
+    // Upstream fetches in progress by key, so concurrent misses share one
+    private final Map<String, CompletableFuture<CachedResponse>> inFlight = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor refresher;
+    private long ttlNanos;
+    private long staleNanos;
+    private Counter hits;
+    private Counter staleHits;
+    private Counter misses;
+    private Counter bypasses;
+    private Counter coalesced;
+    private Counter evictions;
+
+    @PostConstruct
+    public void init() {
+        ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        staleNanos = TimeUnit.SECONDS.toNanos(staleSeconds);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        refresher = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(100), r -> {
+                    Thread t = new Thread(r, "web-cache-refresh-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        refresher.allowCoreThreadTimeOut(true);
+
+        hits = meterRegistry.counter("web.cache.requests", "result", "hit");
+        staleHits = meterRegistry.counter("web.cache.requests", "result", "stale");
+        misses = meterRegistry.counter("web.cache.requests", "result", "miss");
+        bypasses = meterRegistry.counter("web.cache.requests", "result", "bypass");
+        coalesced = meterRegistry.counter("web.cache.coalesced");
+        evictions = meterRegistry.counter("web.cache.evictions");
+        Gauge.builder("web.cache.bytes", this, ResponseCache::getBytes)
+                .description("Memory held by cached responses")
+                .register(meterRegistry);
+        Gauge.builder("web.cache.entries", this, ResponseCache::size)
+                .register(meterRegistry);
+        Gauge.builder("web.cache.hit.ratio", this, ResponseCache::getHitRatio)
+                .description("Share of cacheable requests served without waiting for the file server")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Loads a response from the file server for the cache.
+     */
+    public interface Loader {
+
+        /**
+         * Fetches the response, conditionally if there is a previous one.
+         *
+         * @param previous Expired response to revalidate, or null
+         * @return A new response; previous itself if it is still current (304); null if it can't be cached
+         * @throws Exception If the file server can't be reached
+         */
+        CachedResponse load(CachedResponse previous) throws Exception;
+    }
+
+    /**
+     * Gets the largest response body worth caching.
+     *
+     * @return Size in bytes; loaders return null for anything bigger
+     */
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Returns a cached response, fetching it through the loader if needed.
+     *
+     * @param key    Upstream URL and request variant
+     * @param loader Fetches the response from the file server
+     * @return Response, or null if it isn't cacheable and must be relayed
+     * @throws Exception If the fetch this request waited for failed
+     */
+    public CachedResponse get(String key, Loader loader) throws Exception {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.response == null) {
+            bypasses.increment(); // Remembered as too large to cache; see fits()
+            return null;
+        }
+        if (entry != null) {
+            long age = System.nanoTime() - entry.fetchedAt;
+            if (age < ttlNanos) {
+                hits.increment();
+                return entry.response;
+            }
+            if (age < ttlNanos + staleNanos && entry.response != null) {
+                staleHits.increment();
+                refreshInBackground(key, entry, loader);
+                return entry.response;
+            }
+        }
+
+        misses.increment();
+        CompletableFuture<CachedResponse> fetch = fetch(key, entry, loader);
+        try {
+            return fetch.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Starts a fetch for a key, or joins the one already running.
+     */
+    private CompletableFuture<CachedResponse> fetch(String key, Entry previous, Loader loader) {
+        CompletableFuture<CachedResponse> created = new CompletableFuture<>();
+        CompletableFuture<CachedResponse> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        try {
+            CachedResponse stale = previous != null ? previous.response : null;
+            CachedResponse response = loader.load(stale);
+            if (stale != null) {
+                meterRegistry.counter("web.cache.revalidations",
+                        "outcome", response == stale ? "not_modified" : "modified").increment();
+            }
+            put(key, new Entry(response));
+            created.complete(response);
+        } catch (Exception e) {
+            created.completeExceptionally(e);
+        } finally {
+            inFlight.remove(key, created);
+        }
+        return created;
+    }
+
+    private void refreshInBackground(String key, Entry entry, Loader loader) {
+        if (inFlight.containsKey(key)) {
+            return; // Already being revalidated
+        }
+        try {
+            refresher.execute(() -> {
+                try {
+                    fetch(key, entry, loader).join();
+                } catch (CompletionException e) {
+                    log.debug("Failed to revalidate {}: {}", key, e.getCause().toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many refreshes queued; a later request tries again
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.size;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Notes that a response relayed for a key would fit in the cache after all, so the
+     * next request goes through the cache again instead of being relayed.
+     *
+     * @param key Key the response was relayed for, as passed to get
+     */
+    public synchronized void fits(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.response == null) {
+            entries.remove(key);
+            bytes -= entry.size;
+        }
+    }
+
+    private synchronized long getBytes() {
+        return bytes;
+    }
+
+    private synchronized int size() {
+        return entries.size();
+    }
+
+    private double getHitRatio() {
+        double served = hits.count() + staleHits.count();
+        double total = served + misses.count();
+        return total > 0 ? served / total : 0;
+    }
+
+    /**
+     * A response held in the cache. Bodies are never modified once cached.
+     */
+    public static class CachedResponse {
+        private final int status;
+        private final HttpHeaders headers;
+        private final byte[] body;
+
+        public CachedResponse(int status, HttpHeaders headers, byte[] body) {
+            this.status = status;
+            this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * A cached response (or the note that it can't be cached) and when it was fetched.
+     */
+    private static class Entry {
+        final CachedResponse response;
+        final long fetchedAt = System.nanoTime();
+        final long size;
+
+        Entry(CachedResponse response) {
+            this.response = response;
+            this.size = ENTRY_OVERHEAD + (response != null ? response.body.length : 0);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.webserver.service;
+
+import org.apache.http.client.config.RequestConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which the file server call made on the current thread must be done.
+ * Set while a bulkhead permit is held; every call made meanwhile has its connect,
+ * pool and read timeouts cut down to the time that is left, so a stalled file
+ * server can't hold a thread longer than the request's budget.
+ *
+ * Once the deadline has passed, calls fail with DeadlineExceededException before
+ * anything is sent. That is the caller running out of time, not a replica failing,
+ * so FileServerPool neither counts it against a replica nor fails over.
+ */
+public final class UpstreamDeadline {
+
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    private UpstreamDeadline() {
+    }
+
+    /**
+     * Gets the deadline of the current thread.
+     *
+     * @return System.nanoTime() value of the deadline, or null if there is none
+     */
+    public static Long get() {
+        return DEADLINE.get();
+    }
+
+    /**
+     * Sets or clears the deadline of the current thread.
+     *
+     * @param deadline System.nanoTime() value of the deadline, or null to clear it
+     */
+    public static void set(Long deadline) {
+        if (deadline != null) {
+            DEADLINE.set(deadline);
+        } else {
+            DEADLINE.remove();
+        }
+    }
+
+    /**
+     * Checks whether the deadline of the current thread has passed.
+     *
+     * @return true if there is a deadline and no time is left
+     */
+    public static boolean isExceeded() {
+        Long deadline = DEADLINE.get();
+        return deadline != null && TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) <= 0;
+    }
+
+    /**
+     * Fails if the deadline of the current thread has passed, e.g. before picking a
+     * replica for a call that couldn't be made anyway.
+     *
+     * @throws DeadlineExceededException If the deadline has passed already
+     */
+    public static void check() {
+        if (isExceeded()) {
+            throw new DeadlineExceededException();
+        }
+    }
+
+    /**
+     * Caps the timeouts of a request configuration to the time left.
+     *
+     * @param config Configured timeouts
+     * @return config itself without a deadline, otherwise a copy with smaller timeouts
+     * @throws DeadlineExceededException If the deadline has passed already
+     */
+    public static RequestConfig limit(RequestConfig config) {
+        Long deadline = DEADLINE.get();
+        if (deadline == null) {
+            return config;
+        }
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left <= 0) {
+            throw new DeadlineExceededException();
+        }
+        return RequestConfig.copy(config)
+                .setConnectTimeout(cap(config.getConnectTimeout(), left))
+                .setConnectionRequestTimeout(cap(config.getConnectionRequestTimeout(), left))
+                .setSocketTimeout(cap(config.getSocketTimeout(), left))
+                .build();
+    }
+
+    // A timeout of 0 or less means none, which the deadline replaces
+    private static int cap(int timeout, long left) {
+        return (int) (timeout > 0 ? Math.min(timeout, left) : left);
+    }
+
+    /**
+     * Thrown instead of sending a request when the caller's deadline has passed.
+     * Unchecked, so it passes through RestTemplate as it is.
+     */
+    public static class DeadlineExceededException extends RuntimeException {
+        public DeadlineExceededException() {
+            super("Deadline exceeded");
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.webserver.config;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AppConfigTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private HttpServer server;
+    private String baseUrl;
+    private AppConfig config;
+    private CloseableHttpClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // Stands in for the file server; answers /fast at once and /slow after five seconds
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            if (exchange.getRequestURI().getPath().equals("/slow")) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        config = new AppConfig();
+        ReflectionTestUtils.setField(config, "maxConnections", 20);
+        ReflectionTestUtils.setField(config, "maxConnectionsPerRoute", 10);
+        ReflectionTestUtils.setField(config, "connectTimeoutMs", 1000);
+        ReflectionTestUtils.setField(config, "poolTimeoutMs", 1000);
+        ReflectionTestUtils.setField(config, "readTimeoutMs", 1000);
+        ReflectionTestUtils.setField(config, "idleTimeoutSeconds", 30L);
+        client = config.fileServerHttpClient(registry, config.fileServerRequestConfig());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private String get(String path) throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(baseUrl + path))) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    @Test
+    void callsShareOneKeptAliveConnection() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("ok", get("/fast"));
+        }
+
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    void aStalledResponseTimesOut() {
+        long start = System.nanoTime();
+
+        assertThrows(SocketTimeoutException.class, () -> get("/slow"));
+        assertTrue(System.nanoTime() - start < 4_000_000_000L);
+    }
+
+    @Test
+    void thePoolIsLimitedAndMeasured() {
+        assertEquals(20, registry.get("httpcomponents.httpclient.pool.total.max")
+                .tag("httpclient", "file-server").gauge().value());
+    }
+
+    @Test
+    void theRestTemplateUsesThePool() throws IOException {
+        RestTemplate restTemplate = config.restTemplate(new RestTemplateBuilder(), client, config.fileServerRequestConfig());
+
+        assertEquals("ok", restTemplate.getForObject(baseUrl + "/fast", String.class));
+        assertEquals("ok", get("/fast"));
+        assertEquals(1, clientPorts.size());
+    }
+}
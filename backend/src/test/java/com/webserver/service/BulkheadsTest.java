@@ -0,0 +1,89 @@
+package com.webserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkheadsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final Bulkheads bulkheads = new Bulkheads();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(bulkheads, "listMaxConcurrent", 2);
+        ReflectionTestUtils.setField(bulkheads, "listDeadlineMs", 1000L);
+        ReflectionTestUtils.setField(bulkheads, "contentMaxConcurrent", 1);
+        ReflectionTestUtils.setField(bulkheads, "contentDeadlineMs", 1000L);
+        ReflectionTestUtils.setField(bulkheads, "downloadMaxConcurrent", 1);
+        ReflectionTestUtils.setField(bulkheads, "downloadDeadlineMs", 200L);
+        ReflectionTestUtils.setField(bulkheads, "maxWaitMs", 20L);
+        ReflectionTestUtils.setField(bulkheads, "meterRegistry", registry);
+        bulkheads.init();
+    }
+
+    private double active(String name) {
+        return registry.get("web.bulkhead.active").tag("bulkhead", name).gauge().value();
+    }
+
+    @Test
+    void aFullBulkheadRefusesOnlyItsOwnKindOfCall() throws Exception {
+        Bulkheads.Permit first = bulkheads.acquire(Bulkheads.LIST);
+        Bulkheads.Permit second = bulkheads.acquire(Bulkheads.LIST);
+
+        assertThrows(RejectedExecutionException.class, () -> bulkheads.acquire(Bulkheads.LIST));
+        assertEquals("ok", bulkheads.call(Bulkheads.CONTENT, () -> "ok"));
+        assertEquals(2, active(Bulkheads.LIST));
+        assertEquals(1, registry.get("web.bulkhead.rejected").tag("bulkhead", Bulkheads.LIST).counter().count());
+
+        first.close();
+        first.close(); // Released once
+        assertEquals(1, active(Bulkheads.LIST));
+        bulkheads.acquire(Bulkheads.LIST).close();
+        second.close();
+        assertEquals(0, active(Bulkheads.LIST));
+        assertEquals(0, active(Bulkheads.CONTENT));
+    }
+
+    @Test
+    void callsRunWithThePermitsDeadline() throws Exception {
+        long before = System.nanoTime();
+
+        Long deadline = bulkheads.call(Bulkheads.DOWNLOAD, UpstreamDeadline::get);
+
+        assertNotNull(deadline);
+        assertTrue(deadline - before >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(deadline - System.nanoTime() <= TimeUnit.MILLISECONDS.toNanos(200));
+        assertNull(UpstreamDeadline.get());
+    }
+
+    @Test
+    void theDeadlineStartsWhenThePermitIsTaken() throws Exception {
+        try (Bulkheads.Permit permit = bulkheads.acquire(Bulkheads.DOWNLOAD)) {
+            Thread.sleep(250);
+
+            assertTrue(permit.call(UpstreamDeadline::isExceeded));
+            assertThrows(UpstreamDeadline.DeadlineExceededException.class, () -> permit.call(() -> {
+                UpstreamDeadline.check();
+                return null;
+            }));
+        }
+        assertFalse(UpstreamDeadline.isExceeded());
+    }
+
+    @Test
+    void failedCallsGiveTheirPermitBack() {
+        assertThrows(IllegalStateException.class, () -> bulkheads.call(Bulkheads.CONTENT, () -> {
+            throw new IllegalStateException("Upstream failed");
+        }));
+
+        assertEquals(0, active(Bulkheads.CONTENT));
+        assertThrows(IllegalArgumentException.class, () -> bulkheads.acquire("unknown"));
+    }
+}
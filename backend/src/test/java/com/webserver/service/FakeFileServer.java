@@ -0,0 +1,99 @@
+package com.webserver.service;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A file server replica for tests: answers each path with its handler, the health
+ * check with 200 and anything else with 404, and remembers the requests it got.
+ */
+class FakeFileServer implements AutoCloseable {
+
+    interface Handler {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final List<Headers> requests = new CopyOnWriteArrayList<>();
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final HttpServer server;
+
+    FakeFileServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        on("/actuator/health", exchange -> respond(exchange, 200, "{\"status\":\"UP\"}"));
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath(); // Decoded
+            if (!path.equals("/actuator/health")) {
+                paths.add(path);
+                requests.add(exchange.getRequestHeaders());
+            }
+            try {
+                Handler handler = handlers.get(path);
+                if (handler != null) {
+                    handler.handle(exchange);
+                } else {
+                    respond(exchange, 404, "");
+                }
+            } catch (Exception e) {
+                exchange.close(); // Drops the connection, as a crashed replica would
+            }
+        });
+        server.setExecutor(threads);
+        server.start();
+    }
+
+    void on(String path, Handler handler) {
+        handlers.put(path, handler);
+    }
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Counts the requests for a path, health checks aside.
+     */
+    int requests(String path) {
+        return (int) paths.stream().filter(path::equals).count();
+    }
+
+    /**
+     * Gets the headers of the latest request other than a health check.
+     */
+    Headers lastRequest() {
+        return requests.get(requests.size() - 1);
+    }
+
+    static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        respond(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        boolean empty = body.length == 0 || status == 304;
+        exchange.sendResponseHeaders(status, empty ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (!empty) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        threads.shutdownNow();
+    }
+}
@@ -0,0 +1,308 @@
+package com.webserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileServerPoolTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CloseableHttpClient client = HttpClients.createDefault();
+    private FakeFileServer a;
+    private FakeFileServer b;
+    private FileServerPool pool;
+
+    // Set by a test before start()
+    private long healthIntervalMs = 60_000;
+    private long openMs = 60_000;
+    private long hedgeDelayMs;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        a = new FakeFileServer();
+        b = new FakeFileServer();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        a.close();
+        b.close();
+        client.close();
+    }
+
+    private void start(String... servers) {
+        pool = new FileServerPool();
+        ReflectionTestUtils.setField(pool, "servers", servers);
+        ReflectionTestUtils.setField(pool, "healthPath", "/actuator/health");
+        ReflectionTestUtils.setField(pool, "healthIntervalMs", healthIntervalMs);
+        ReflectionTestUtils.setField(pool, "healthTimeoutMs", 500);
+        ReflectionTestUtils.setField(pool, "unhealthyThreshold", 2);
+        ReflectionTestUtils.setField(pool, "openMs", openMs);
+        ReflectionTestUtils.setField(pool, "hedgeDelayMs", hedgeDelayMs);
+        ReflectionTestUtils.setField(pool, "hedgeThreads", 4);
+        ReflectionTestUtils.setField(pool, "fileServerHttpClient", client);
+        ReflectionTestUtils.setField(pool, "meterRegistry", registry);
+        pool.init();
+    }
+
+    /**
+     * Waits for the health check started with the pool and stops the later ones, so only requests move the circuit.
+     */
+    private void stopHealthChecks() throws InterruptedException {
+        ScheduledExecutorService healthChecker = (ScheduledExecutorService) ReflectionTestUtils.getField(pool, "healthChecker");
+        healthChecker.shutdown();
+        assertTrue(healthChecker.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private void failConnections(int times) {
+        for (int i = 0; i < times; i++) {
+            assertThrows(ConnectException.class, () -> pool.execute(baseUrl -> {
+                throw new ConnectException("Connection refused");
+            }));
+        }
+    }
+
+    private FileServerPool.Lease awaitProbe() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                return pool.lease();
+            } catch (RejectedExecutionException e) {
+                assertTrue(System.nanoTime() < deadline, "Timed out waiting for the probe");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private double healthy(FakeFileServer server) {
+        return registry.get("upstream.backend.healthy").tag("backend", server.getBaseUrl()).gauge().value();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the pool");
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Holds leases until three are on the given replica, so the next request goes to the other one.
+     */
+    private List<FileServerPool.Lease> load(FakeFileServer server) {
+        List<FileServerPool.Lease> held = new ArrayList<>();
+        List<FileServerPool.Lease> others = new ArrayList<>();
+        while (held.size() < 3) {
+            FileServerPool.Lease lease = pool.lease(); // Alternates as the load evens out
+            (lease.getBaseUrl().equals(server.getBaseUrl()) ? held : others).add(lease);
+        }
+        others.forEach(FileServerPool.Lease::close);
+        return held;
+    }
+
+    @Test
+    void serversAreListedWithoutTrailingSlashes() {
+        start(a.getBaseUrl() + "/", " ", b.getBaseUrl());
+
+        assertEquals(1, healthy(a));
+        assertEquals(1, healthy(b));
+        assertThrows(IllegalStateException.class, () -> {
+            FileServerPool empty = new FileServerPool();
+            ReflectionTestUtils.setField(empty, "servers", new String[] {" "});
+            empty.init();
+        });
+    }
+
+    @Test
+    void requestsGoToTheLessLoadedReplica() throws Exception {
+        start(a.getBaseUrl(), b.getBaseUrl());
+        List<FileServerPool.Lease> held = load(a);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(b.getBaseUrl(), pool.execute(baseUrl -> baseUrl));
+        }
+
+        held.forEach(FileServerPool.Lease::close);
+        assertEquals(0, registry.get("upstream.backend.outstanding").tag("backend", a.getBaseUrl()).gauge().value());
+    }
+
+    @Test
+    void aSlowReplicaIsAvoided() throws Exception {
+        start(a.getBaseUrl(), b.getBaseUrl());
+        List<FileServerPool.Lease> held = load(b);
+        pool.execute(baseUrl -> {
+            assertEquals(a.getBaseUrl(), baseUrl);
+            Thread.sleep(200);
+            return null;
+        });
+        held.forEach(FileServerPool.Lease::close);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(b.getBaseUrl(), pool.execute(baseUrl -> baseUrl));
+        }
+    }
+
+    @Test
+    void readsFailOverToAnotherReplica() throws Exception {
+        start(a.getBaseUrl(), b.getBaseUrl());
+        List<FileServerPool.Lease> held = load(b);
+
+        String answered = pool.executeRead(baseUrl -> {
+            if (baseUrl.equals(a.getBaseUrl())) {
+                throw new ConnectException("Connection refused");
+            }
+            return baseUrl;
+        });
+
+        assertEquals(b.getBaseUrl(), answered);
+        assertEquals(1, registry.get("upstream.failovers").counter().count());
+        held.forEach(FileServerPool.Lease::close);
+    }
+
+    @Test
+    void errorsOtherThanConnectionFailuresAreNotRetried() {
+        start(a.getBaseUrl(), b.getBaseUrl());
+
+        assertThrows(IllegalStateException.class, () -> pool.executeRead(baseUrl -> {
+            throw new IllegalStateException("Bad response");
+        }));
+        assertEquals(0, registry.get("upstream.failovers").counter().count());
+    }
+
+    @Test
+    void slowReadsAreHedgedOnASecondReplica() throws Exception {
+        hedgeDelayMs = 50;
+        start(a.getBaseUrl(), b.getBaseUrl());
+        List<FileServerPool.Lease> held = load(b);
+
+        long start = System.nanoTime();
+        String answered = pool.executeRead(baseUrl -> {
+            if (baseUrl.equals(a.getBaseUrl())) {
+                Thread.sleep(2000);
+            }
+            return baseUrl;
+        });
+
+        assertEquals(b.getBaseUrl(), answered);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, registry.get("upstream.hedges").counter().count());
+        await(() -> registry.get("upstream.hedge.wins").counter().count() == 1); // Counted after the answer is handed over
+        held.forEach(FileServerPool.Lease::close);
+    }
+
+    @Test
+    void replicasFailingHealthChecksGetNoRequests() throws Exception {
+        healthIntervalMs = 50;
+        String down = a.getBaseUrl();
+        a.close(); // Connection refused from now on
+        start(down, b.getBaseUrl());
+
+        await(() -> registry.get("upstream.backend.healthy").tag("backend", down).gauge().value() == 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(b.getBaseUrl(), pool.execute(baseUrl -> baseUrl));
+        }
+        assertEquals(1, registry.get("upstream.circuit.opened").tag("backend", down).counter().count());
+    }
+
+    @Test
+    void consecutiveConnectionFailuresOpenTheCircuit() throws Exception {
+        start(a.getBaseUrl());
+        stopHealthChecks();
+
+        assertThrows(IllegalStateException.class, () -> pool.execute(baseUrl -> {
+            throw new IllegalStateException("Error response"); // The replica answered, so it is up
+        }));
+        failConnections(1);
+        pool.execute(baseUrl -> baseUrl); // Resets the count
+        failConnections(1);
+        assertEquals(1, healthy(a));
+
+        failConnections(1);
+
+        assertEquals(0, healthy(a));
+        assertThrows(RejectedExecutionException.class, () -> pool.execute(baseUrl -> fail("Sent to an open circuit")));
+        assertEquals(1, registry.get("upstream.circuit.rejected").counter().count());
+        assertEquals(1, registry.get("upstream.circuit.opened").tag("backend", a.getBaseUrl()).counter().count());
+    }
+
+    @Test
+    void oneProbeAtATimeClosesOrReopensTheCircuit() throws Exception {
+        openMs = 100;
+        start(a.getBaseUrl());
+        stopHealthChecks();
+        failConnections(2);
+
+        FileServerPool.Lease probe = awaitProbe();
+        assertThrows(RejectedExecutionException.class, () -> pool.lease()); // Only the probe goes through
+        probe.failed(new ConnectException("Connection refused"));
+        probe.close();
+        assertThrows(RejectedExecutionException.class, () -> pool.lease()); // Open again for another wait
+        assertEquals(2, registry.get("upstream.circuit.opened").tag("backend", a.getBaseUrl()).counter().count());
+
+        probe = awaitProbe();
+        probe.close(); // No outcome, e.g. an error response; the next request probes again
+        probe = pool.lease();
+        probe.succeeded();
+        probe.close();
+
+        assertEquals(1, healthy(a));
+        pool.lease().close();
+        pool.lease().close();
+    }
+
+    @Test
+    void aPassingHealthCheckEndsTheWaitOfAnOpenCircuit() throws Exception {
+        healthIntervalMs = 50;
+        AtomicBoolean up = new AtomicBoolean(false);
+        a.on("/actuator/health", exchange -> FakeFileServer.respond(exchange, up.get() ? 200 : 503, ""));
+        start(a.getBaseUrl());
+
+        await(() -> healthy(a) == 0);
+        assertThrows(RejectedExecutionException.class, () -> pool.lease());
+        up.set(true);
+
+        try (FileServerPool.Lease probe = awaitProbe()) { // Long before openMs
+            probe.succeeded();
+        }
+        assertEquals(1, healthy(a));
+    }
+
+    @Test
+    void passedDeadlinesFailWithoutCountingAgainstTheReplica() throws Exception {
+        start(a.getBaseUrl(), b.getBaseUrl());
+        stopHealthChecks();
+        UpstreamDeadline.set(System.nanoTime() - 1);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertThrows(UpstreamDeadline.DeadlineExceededException.class,
+                        () -> pool.executeRead(baseUrl -> fail("Sent after the deadline")));
+            }
+        } finally {
+            UpstreamDeadline.set(null);
+        }
+
+        assertEquals(1, healthy(a));
+        assertEquals(1, healthy(b));
+        assertEquals(0, registry.get("upstream.failovers").counter().count());
+    }
+}
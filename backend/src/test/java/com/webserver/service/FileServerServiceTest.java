@@ -0,0 +1,217 @@
+package com.webserver.service;
+
+import com.sun.net.httpserver.Headers;
+import com.webserver.config.AppConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileServerServiceTest {
+
+    private static final String FILE = "/api/files/download/my file.bin";
+    private static final String ETAG = "\"v1\"";
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final byte[] content = new byte[100];
+    private FakeFileServer upstream;
+    private CloseableHttpClient client;
+    private FileServerPool pool;
+    private ResponseCache cache;
+    private FileServerService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Arrays.fill(content, (byte) 'x');
+        upstream = new FakeFileServer();
+        upstream.on(FILE, exchange -> {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("ETag", ETAG);
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("Set-Cookie", "upstream=1");
+            headers.set("Vary", "Origin, Accept-Encoding");
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && ETAG.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+                headers.set("Content-Range", "bytes 0-9/100");
+                FakeFileServer.respond(exchange, 206, Arrays.copyOf(content, 10));
+            } else if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                headers.set("Content-Encoding", "gzip");
+                FakeFileServer.respond(exchange, 200, "compressed");
+            } else {
+                FakeFileServer.respond(exchange, 200, content);
+            }
+        });
+
+        AppConfig config = new AppConfig();
+        ReflectionTestUtils.setField(config, "maxConnections", 20);
+        ReflectionTestUtils.setField(config, "maxConnectionsPerRoute", 20);
+        ReflectionTestUtils.setField(config, "connectTimeoutMs", 1000);
+        ReflectionTestUtils.setField(config, "poolTimeoutMs", 1000);
+        ReflectionTestUtils.setField(config, "readTimeoutMs", 5000);
+        ReflectionTestUtils.setField(config, "idleTimeoutSeconds", 30L);
+        RequestConfig requestConfig = config.fileServerRequestConfig();
+        client = config.fileServerHttpClient(registry, requestConfig);
+
+        pool = new FileServerPool();
+        ReflectionTestUtils.setField(pool, "servers", new String[] {upstream.getBaseUrl() + "/"});
+        ReflectionTestUtils.setField(pool, "healthPath", "/actuator/health");
+        ReflectionTestUtils.setField(pool, "healthIntervalMs", 60_000L);
+        ReflectionTestUtils.setField(pool, "healthTimeoutMs", 1000);
+        ReflectionTestUtils.setField(pool, "unhealthyThreshold", 2);
+        ReflectionTestUtils.setField(pool, "openMs", 5000L);
+        ReflectionTestUtils.setField(pool, "hedgeDelayMs", 0L);
+        ReflectionTestUtils.setField(pool, "hedgeThreads", 4);
+        ReflectionTestUtils.setField(pool, "fileServerHttpClient", client);
+        ReflectionTestUtils.setField(pool, "meterRegistry", registry);
+        pool.init();
+
+        Bulkheads bulkheads = new Bulkheads();
+        for (String name : List.of("list", "content", "download")) {
+            ReflectionTestUtils.setField(bulkheads, name + "MaxConcurrent", 10);
+            ReflectionTestUtils.setField(bulkheads, name + "DeadlineMs", 5000L);
+        }
+        ReflectionTestUtils.setField(bulkheads, "maxWaitMs", 50L);
+        ReflectionTestUtils.setField(bulkheads, "meterRegistry", registry);
+        bulkheads.init();
+
+        cache = new ResponseCache();
+        ReflectionTestUtils.setField(cache, "maxBytes", 1L << 20);
+        ReflectionTestUtils.setField(cache, "maxEntryBytes", 1024);
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 60L);
+        ReflectionTestUtils.setField(cache, "staleSeconds", 0L);
+        ReflectionTestUtils.setField(cache, "refreshThreads", 1);
+        ReflectionTestUtils.setField(cache, "meterRegistry", registry);
+        cache.init();
+
+        service = new FileServerService();
+        ReflectionTestUtils.setField(service, "relayBufferBytes", 16);
+        ReflectionTestUtils.setField(service, "pooledBuffers", 4);
+        ReflectionTestUtils.setField(service, "restTemplate",
+                config.restTemplate(new RestTemplateBuilder(), client, requestConfig));
+        ReflectionTestUtils.setField(service, "fileServerHttpClient", client);
+        ReflectionTestUtils.setField(service, "fileServerPool", pool);
+        ReflectionTestUtils.setField(service, "bulkheads", bulkheads);
+        ReflectionTestUtils.setField(service, "fileServerRequestConfig", requestConfig);
+        ReflectionTestUtils.setField(service, "responseCache", cache);
+        ReflectionTestUtils.setField(service, "meterRegistry", registry);
+        service.init();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        cache.shutdown();
+        pool.shutdown();
+        client.close();
+        upstream.close();
+    }
+
+    private ResponseEntity<StreamingResponseBody> download(HttpHeaders headers) throws Exception {
+        return service.relayFile("download", "my file.bin", headers, "attachment; filename=my file.bin");
+    }
+
+    private static byte[] body(ResponseEntity<StreamingResponseBody> response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (response.getBody() != null) {
+            response.getBody().writeTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void rangeRequestsArePassedThroughAndStreamed() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=0-9");
+        headers.set(HttpHeaders.IF_RANGE, ETAG);
+        headers.set(HttpHeaders.COOKIE, "session=secret");
+
+        ResponseEntity<StreamingResponseBody> response = download(headers);
+
+        assertEquals(206, response.getStatusCodeValue());
+        assertEquals("bytes 0-9/100", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals(10, response.getHeaders().getContentLength());
+        assertEquals("attachment; filename=my file.bin", response.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION));
+        assertArrayEquals(Arrays.copyOf(content, 10), body(response));
+
+        Headers sent = upstream.lastRequest();
+        assertEquals("bytes=0-9", sent.getFirst("Range"));
+        assertEquals(ETAG, sent.getFirst("If-Range"));
+        assertNull(sent.getFirst("Cookie")); // Only conditional, range and encoding headers go upstream
+        assertEquals(1, upstream.requests(FILE));
+        assertEquals(10, registry.get("upstream.relay.bytes").tag("operation", "download").counter().count());
+    }
+
+    @Test
+    void onlyEndToEndResponseHeadersReachTheClient() throws Exception {
+        ResponseEntity<StreamingResponseBody> response = download(new HttpHeaders());
+
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals(ETAG, response.getHeaders().getETag());
+        assertEquals("bytes", response.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+        assertNull(response.getHeaders().getFirst(HttpHeaders.SET_COOKIE));
+        assertEquals(List.of(HttpHeaders.ACCEPT_ENCODING), response.getHeaders().getVary()); // Not the upstream's Origin
+        assertArrayEquals(content, body(response));
+    }
+
+    @Test
+    void matchingValidatorsGetNotModifiedFromTheCache() throws Exception {
+        body(download(new HttpHeaders()));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(ETAG);
+
+        ResponseEntity<StreamingResponseBody> response = download(headers);
+
+        assertEquals(304, response.getStatusCodeValue());
+        assertEquals(ETAG, response.getHeaders().getETag());
+        assertNull(response.getBody());
+        assertEquals(1, upstream.requests(FILE));
+    }
+
+    @Test
+    void gzipIsRequestedAndPassedBackAsItIs() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+
+        ResponseEntity<StreamingResponseBody> response = download(headers);
+
+        assertEquals("gzip", upstream.lastRequest().getFirst("Accept-Encoding"));
+        assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("compressed", new String(body(response), StandardCharsets.UTF_8));
+        assertArrayEquals(content, body(download(new HttpHeaders()))); // Cached apart from the gzip variant
+    }
+
+    @Test
+    void bodiesTooLargeToCacheAreStreamedWithOneRequestEach() throws Exception {
+        byte[] large = new byte[5000];
+        Arrays.fill(large, (byte) 'y');
+        upstream.on("/api/files/download/large.bin", exchange -> FakeFileServer.respond(exchange, 200, large));
+
+        assertArrayEquals(large, body(service.relayFile("download", "large.bin", new HttpHeaders(), null)));
+        assertArrayEquals(large, body(service.relayFile("download", "large.bin", new HttpHeaders(), null)));
+
+        assertEquals(3, upstream.requests("/api/files/download/large.bin")); // A probe for the cache, then relays only
+    }
+
+    @Test
+    void errorStatusesArePassedOnWithoutABody() throws Exception {
+        ResponseEntity<StreamingResponseBody> response =
+                service.relayFile("download", "missing.bin", new HttpHeaders(), "attachment; filename=missing.bin");
+
+        assertEquals(404, response.getStatusCodeValue());
+        assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION));
+    }
+}
@@ -0,0 +1,206 @@
+package com.webserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ResponseCache cache;
+
+    @AfterEach
+    void tearDown() {
+        cache.shutdown();
+    }
+
+    private void start(long maxBytes, long ttlSeconds, long staleSeconds) {
+        cache = new ResponseCache();
+        ReflectionTestUtils.setField(cache, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(cache, "maxEntryBytes", 1024);
+        ReflectionTestUtils.setField(cache, "ttlSeconds", ttlSeconds);
+        ReflectionTestUtils.setField(cache, "staleSeconds", staleSeconds);
+        ReflectionTestUtils.setField(cache, "refreshThreads", 1);
+        ReflectionTestUtils.setField(cache, "meterRegistry", registry);
+        cache.init();
+    }
+
+    private static ResponseCache.CachedResponse response(String body) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"" + body + "\"");
+        return new ResponseCache.CachedResponse(200, headers, body.getBytes());
+    }
+
+    private static String body(ResponseCache.CachedResponse response) {
+        return new String(response.getBody());
+    }
+
+    // Zero for counters not created yet, e.g. before the first revalidation
+    private double count(String name, String... tags) {
+        Counter counter = registry.find(name).tags(tags).counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the cache");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void freshEntriesAreServedWithoutLoading() throws Exception {
+        start(1 << 20, 60, 0);
+        AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("a", body(cache.get("/list", previous -> {
+                loads.incrementAndGet();
+                return response("a");
+            })));
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(2, count("web.cache.requests", "result", "hit"));
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        start(1 << 20, 60, 0);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService clients = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<ResponseCache.CachedResponse>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                results.add(clients.submit(() -> cache.get("/list", previous -> {
+                    loads.incrementAndGet();
+                    release.await();
+                    return response("a");
+                })));
+            }
+            await(() -> count("web.cache.coalesced") == 4);
+            release.countDown();
+
+            for (Future<ResponseCache.CachedResponse> result : results) {
+                assertEquals("a", body(result.get(10, TimeUnit.SECONDS)));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    void staleEntriesAreServedWhileRevalidatedInTheBackground() throws Exception {
+        start(1 << 20, 0, 60);
+        ResponseCache.CachedResponse first = response("a");
+        List<ResponseCache.CachedResponse> revalidated = new ArrayList<>();
+        ResponseCache.Loader loader = previous -> {
+            synchronized (revalidated) {
+                revalidated.add(previous);
+            }
+            return previous == null ? first : response("b");
+        };
+
+        assertSame(first, cache.get("/list", loader));
+        assertSame(first, cache.get("/list", loader)); // Expired at once, still served
+
+        await(() -> count("web.cache.revalidations", "outcome", "modified") == 1);
+        assertSame(first, revalidated.get(1)); // Revalidated with the stale copy, for its ETag
+        assertEquals("b", body(cache.get("/list", loader)));
+        assertEquals(2, count("web.cache.requests", "result", "stale"));
+    }
+
+    @Test
+    void unchangedEntriesAreKeptOnRevalidation() throws Exception {
+        start(1 << 20, 0, 0);
+        ResponseCache.CachedResponse first = response("a");
+
+        assertSame(first, cache.get("/list", previous -> first));
+        assertSame(first, cache.get("/list", previous -> {
+            assertSame(first, previous); // Past the stale window, so revalidated while the caller waits
+            return previous;
+        }));
+
+        assertEquals(1, count("web.cache.revalidations", "outcome", "not_modified"));
+        assertEquals(2, count("web.cache.requests", "result", "miss"));
+    }
+
+    @Test
+    void uncacheableResponsesAreBypassedUntilTheyFit() throws Exception {
+        start(1 << 20, 60, 0);
+        AtomicInteger loads = new AtomicInteger();
+        ResponseCache.Loader tooLarge = previous -> {
+            loads.incrementAndGet();
+            return null;
+        };
+
+        assertNull(cache.get("/large", tooLarge));
+        assertNull(cache.get("/large", tooLarge));
+        assertEquals(1, loads.get());
+        assertEquals(1, count("web.cache.requests", "result", "bypass"));
+
+        cache.fits("/large");
+
+        assertEquals("small", body(cache.get("/large", previous -> response("small"))));
+    }
+
+    @Test
+    void leastRecentlyUsedEntriesAreEvictedOverTheBudget() throws Exception {
+        start(2000, 60, 0); // Two entries of 400 bytes and their overhead
+        AtomicInteger loads = new AtomicInteger();
+        ResponseCache.Loader loader = previous -> {
+            loads.incrementAndGet();
+            return response("x".repeat(398));
+        };
+
+        cache.get("/a", loader);
+        cache.get("/b", loader);
+        cache.get("/a", loader);
+        cache.get("/c", loader); // Evicts /b, used longest ago
+        assertEquals(3, loads.get());
+
+        cache.get("/a", loader);
+        cache.get("/c", loader);
+        assertEquals(3, loads.get());
+        cache.get("/b", loader);
+        assertEquals(4, loads.get());
+        assertEquals(2, count("web.cache.evictions"));
+    }
+
+    @Test
+    void failedLoadsAreNotCached() throws Exception {
+        start(1 << 20, 60, 0);
+
+        assertThrows(IOException.class, () -> cache.get("/list", previous -> {
+            throw new IOException("Connection refused");
+        }));
+
+        assertEquals("a", body(cache.get("/list", previous -> response("a"))));
+    }
+
+    @Test
+    void aZeroBudgetDisablesTheCache() throws Exception {
+        start(0, 60, 0);
+
+        assertNull(cache.get("/list", previous -> fail("Loaded without a cache")));
+    }
+}
@@ -0,0 +1,73 @@
+package com.webserver.service;
+
+import org.apache.http.client.config.RequestConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamDeadlineTest {
+
+    private static final RequestConfig CONFIG = RequestConfig.custom()
+            .setConnectTimeout(2000)
+            .setConnectionRequestTimeout(0) // None
+            .setSocketTimeout(60_000)
+            .build();
+
+    @AfterEach
+    void tearDown() {
+        UpstreamDeadline.set(null);
+    }
+
+    @Test
+    void withoutADeadlineTheConfiguredTimeoutsApply() {
+        assertSame(CONFIG, UpstreamDeadline.limit(CONFIG));
+        assertFalse(UpstreamDeadline.isExceeded());
+        UpstreamDeadline.check();
+    }
+
+    @Test
+    void timeoutsAreCutToTheTimeLeft() {
+        UpstreamDeadline.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500));
+
+        RequestConfig limited = UpstreamDeadline.limit(CONFIG);
+
+        assertTrue(limited.getConnectTimeout() > 0 && limited.getConnectTimeout() <= 500);
+        assertTrue(limited.getConnectionRequestTimeout() > 0 && limited.getConnectionRequestTimeout() <= 500);
+        assertTrue(limited.getSocketTimeout() > 0 && limited.getSocketTimeout() <= 500);
+        assertEquals(60_000, CONFIG.getSocketTimeout());
+    }
+
+    @Test
+    void shorterTimeoutsAreKept() {
+        UpstreamDeadline.set(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+
+        assertEquals(2000, UpstreamDeadline.limit(CONFIG).getConnectTimeout());
+    }
+
+    @Test
+    void nothingIsSentOnceTheDeadlineHasPassed() {
+        UpstreamDeadline.set(System.nanoTime() - 1);
+
+        assertTrue(UpstreamDeadline.isExceeded());
+        assertThrows(UpstreamDeadline.DeadlineExceededException.class, () -> UpstreamDeadline.limit(CONFIG));
+        assertThrows(UpstreamDeadline.DeadlineExceededException.class, UpstreamDeadline::check);
+
+        UpstreamDeadline.set(null);
+        assertNull(UpstreamDeadline.get());
+    }
+
+    @Test
+    void deadlinesBelongToTheirThread() throws InterruptedException {
+        UpstreamDeadline.set(System.nanoTime() - 1);
+        Long[] seen = {0L};
+
+        Thread other = new Thread(() -> seen[0] = UpstreamDeadline.get());
+        other.start();
+        other.join();
+
+        assertNull(seen[0]);
+    }
+}
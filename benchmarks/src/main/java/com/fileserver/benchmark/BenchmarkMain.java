@@ -0,0 +1,52 @@
+package com.fileserver.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Entry point of benchmarks.jar.
+ *
+ * Accepts the usual JMH command line (e.g. a benchmark regex, -p files=1000, -f 1),
+ * but always runs the GC profiler, so every result carries its allocation rate, and
+ * writes results as JSON to target/jmh-result.json unless -rf/-rff say otherwise.
+ * The JSON files of two builds can be compared to spot regressions.
+ */
+public class BenchmarkMain {
+
+    // Where results go when -rff is not given
+    private static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        if (cli.shouldList()) {
+            new Runner(cli).list();
+            return;
+        }
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cli)
+                .resultFormat(cli.getResultFormat().orElse(ResultFormatType.JSON))
+                .result(cli.getResult().orElse(DEFAULT_RESULT_FILE));
+
+        boolean gcRequested = false;
+        for (ProfilerConfig profiler : cli.getProfilers()) {
+            gcRequested |= profiler.getKlass().equals(GCProfiler.class.getName())
+                    || profiler.getKlass().equals("gc");
+        }
+        if (!gcRequested) {
+            builder.addProfiler(GCProfiler.class);
+        }
+
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,67 @@
+package com.fileserver.benchmark;
+
+import com.fileserver.service.FileIndex;
+import com.fileserver.service.FileService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one text file through FileService, across file sizes.
+ *
+ * getFileContent and getFileContentAsString load the whole file onto the heap;
+ * transferTo is the streaming path /download and /view use. At 1 GB the difference
+ * shows in gc.alloc.rate.norm (bytes allocated per operation) as much as in time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ContentBenchmark {
+
+    @Param({"1KB", "64KB", "1MB", "10MB", "1GB"})
+    private String size;
+
+    private FileServerFixture fixture;
+    private FileService fileService;
+    private Path file;
+    private long length;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = SyntheticTree.singleFile(SyntheticTree.parseSize(size));
+        fixture = new FileServerFixture(Map.of(
+                "file.upload-dir", dir.toString(),
+                "file.state-dir", SyntheticTree.stateDir().toString()),
+                FileIndex.class, FileService.class);
+        fileService = fixture.get(FileService.class);
+        file = fileService.resolveFile(SyntheticTree.SINGLE_FILE_NAME);
+        length = file.toFile().length();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public byte[] getFileContent() throws IOException {
+        return fileService.getFileContent(SyntheticTree.SINGLE_FILE_NAME);
+    }
+
+    @Benchmark
+    public String getFileContentAsString() throws IOException {
+        return fileService.getFileContentAsString(SyntheticTree.SINGLE_FILE_NAME);
+    }
+
+    @Benchmark
+    public void transferTo() throws IOException {
+        fileService.transferTo(file, 0, length, OutputStream.nullOutputStream());
+    }
+}
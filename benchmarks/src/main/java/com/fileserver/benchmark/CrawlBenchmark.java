@@ -0,0 +1,83 @@
+package com.fileserver.benchmark;
+
+import com.fileserver.service.DirectoryCrawler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Full crawl of a synthetic upload tree by DirectoryCrawler, across thread counts,
+ * next to the single-threaded Files.walkFileTree the index used before.
+ *
+ * The tree is in the page cache after the first iteration, so this measures how
+ * the per-entry work spreads over cores. For network filesystems, also try a high
+ * I/O concurrency (e.g. -p ioConcurrency=64) against a mounted tree (-Dbench.dir).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CrawlBenchmark {
+
+    @Param({"100000", "1000000"})
+    private int files;
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int parallelism;
+
+    // 0 = same as parallelism
+    @Param({"0"})
+    private int ioConcurrency;
+
+    private Path tree;
+    private DirectoryCrawler crawler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tree = SyntheticTree.files(files);
+        crawler = new DirectoryCrawler(parallelism, ioConcurrency > 0 ? ioConcurrency : parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        crawler.close();
+    }
+
+    @Benchmark
+    public long crawl() throws IOException {
+        LongAdder found = new LongAdder();
+        crawler.crawl(tree, new DirectoryCrawler.Visitor() {
+            @Override
+            public boolean directory(Path dir) {
+                return true;
+            }
+
+            @Override
+            public void file(Path file, BasicFileAttributes attrs) {
+                found.add(attrs.size() >= 0 ? 1 : 0);
+            }
+        });
+        return found.sum();
+    }
+
+    @Benchmark
+    public long walkFileTree() throws IOException {
+        long[] found = new long[1];
+        Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    found[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return found[0];
+    }
+}
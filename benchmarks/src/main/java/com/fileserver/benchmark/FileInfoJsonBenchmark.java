@@ -0,0 +1,79 @@
+package com.fileserver.benchmark;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fileserver.model.FileInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON encoding of file listings on the file server and decoding on the web server.
+ *
+ * serialize is what a listing costs with the list built up front; writeIncrementally
+ * is how /list writes it now, one entry at a time to the response stream.
+ * deserialize parses the listing into the web server's FileInfo, as
+ * FileServerService.getAllFiles does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileInfoJsonBenchmark {
+
+    private static final String[] TYPES = {"txt", "loc", "pdf", "png", "jpg", "docx"};
+
+    @Param({"1000", "100000", "1000000"})
+    private int files;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectWriter entryWriter = objectMapper.writerFor(FileInfo.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private List<FileInfo> listing;
+    private byte[] json;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        listing = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            String type = TYPES[random.nextInt(TYPES.length)];
+            String name = "file-" + i + "." + type;
+            listing.add(new FileInfo(name, type, random.nextInt(1 << 30),
+                    "/home/file/uploads/d" + (i / 1000) + "/" + name,
+                    1_700_000_000_000L + random.nextInt(), null));
+        }
+        json = objectMapper.writeValueAsBytes(listing);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return objectMapper.writeValueAsBytes(listing);
+    }
+
+    @Benchmark
+    public void writeIncrementally() throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(OutputStream.nullOutputStream())) {
+            generator.writeStartArray();
+            for (FileInfo info : listing) {
+                entryWriter.writeValue(generator, info);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    @Benchmark
+    public List<com.webserver.model.FileInfo> deserialize() throws IOException {
+        return objectMapper.readValue(json, new TypeReference<List<com.webserver.model.FileInfo>>() {});
+    }
+}
@@ -0,0 +1,49 @@
+package com.fileserver.benchmark;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.Map;
+
+/**
+ * The file server's services wired as Spring would wire them, without a web server.
+ *
+ * Benchmarks name the beans they need; @Value properties come from the given map,
+ * and @PostConstruct/@PreDestroy run as in the application, so e.g. FileIndex scans
+ * its upload directory on start.
+ */
+final class FileServerFixture implements AutoCloseable {
+
+    private final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+    /**
+     * Starts a context holding the given components and a simple meter registry.
+     *
+     * @param properties Configuration properties (e.g. "file.upload-dir")
+     * @param components Component classes to register
+     */
+    FileServerFixture(Map<String, Object> properties, Class<?>... components) {
+        context.getEnvironment().getPropertySources()
+                .addFirst(new MapPropertySource("benchmark", properties));
+        context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        context.register(components);
+        context.refresh();
+    }
+
+    /**
+     * Gets a bean from the context.
+     *
+     * @param type Type of the bean
+     * @return The bean
+     */
+    <T> T get(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+}
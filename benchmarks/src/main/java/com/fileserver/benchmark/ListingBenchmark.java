@@ -0,0 +1,77 @@
+package com.fileserver.benchmark;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.FileSort;
+import com.fileserver.service.FileIndex;
+import com.fileserver.service.FileService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Listing a synthetic upload tree of 1k, 100k and 1M files.
+ *
+ * getAllFiles and listFiles are served from the in-memory index; rescan is the full
+ * walk the index does at startup and after watcher overflows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ListingBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int files;
+
+    private FileServerFixture fixture;
+    private FileService fileService;
+    private FileIndex fileIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new FileServerFixture(Map.of(
+                "file.upload-dir", SyntheticTree.files(files).toString(),
+                "file.state-dir", SyntheticTree.stateDir().toString()),
+                FileIndex.class, FileService.class);
+        fileService = fixture.get(FileService.class);
+        fileIndex = fixture.get(FileIndex.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public List<FileInfo> getAllFiles() {
+        return fileService.getAllFiles();
+    }
+
+    @Benchmark
+    public void listBySize(Blackhole blackhole) {
+        try (Stream<FileInfo> listing = fileService.listFiles(FileSort.SIZE, false, null, null, null)) {
+            listing.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void listTextFiles(Blackhole blackhole) {
+        try (Stream<FileInfo> listing = fileService.listFiles(FileSort.NAME, false, Set.of("txt", "loc"), null, null)) {
+            listing.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public int rescan() {
+        fileIndex.rescan();
+        return fileIndex.size();
+    }
+}
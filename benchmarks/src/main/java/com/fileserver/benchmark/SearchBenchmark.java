@@ -0,0 +1,120 @@
+package com.fileserver.benchmark;
+
+import com.fileserver.model.SearchHit;
+import com.fileserver.service.FileIndex;
+import com.fileserver.service.FileService;
+import com.fileserver.service.SearchIndexService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-text search: building the inverted index over a corpus of .loc files, and
+ * query latency against the finished index.
+ *
+ * index is single-shot: each run starts with an empty state directory and ends when
+ * every file is searchable, so throughput is the corpus size (32 x 8 MB) divided
+ * by the reported time. search is sampled, so the JSON results carry its
+ * latency percentiles (p0.50 ... p0.99).
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+
+    // Corpus: this many log files of FILE_BYTES bytes each
+    private static final int FILE_COUNT = 32;
+    private static final long FILE_BYTES = 8L << 20;
+
+    // Longest wait for the indexer before a run is considered broken
+    private static final long INDEX_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * An index built from scratch on every invocation.
+     */
+    @State(Scope.Thread)
+    public static class EmptyIndex {
+        Path uploadDir;
+        Path stateDir;
+
+        @Setup(Level.Trial)
+        public void createCorpus() throws IOException {
+            uploadDir = SyntheticTree.logs(FILE_COUNT, FILE_BYTES);
+        }
+
+        @Setup(Level.Invocation)
+        public void clearState() throws IOException {
+            stateDir = SyntheticTree.stateDir();
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteState() {
+            SyntheticTree.delete(stateDir);
+        }
+    }
+
+    /**
+     * An index built once and shared by all queries.
+     */
+    @State(Scope.Benchmark)
+    public static class BuiltIndex {
+        @Param({"ERROR", "quota exceeded", "timeout retry disk"})
+        String query;
+
+        FileServerFixture fixture;
+        SearchIndexService search;
+
+        @Setup(Level.Trial)
+        public void build() throws IOException, InterruptedException {
+            fixture = start(SyntheticTree.logs(FILE_COUNT, FILE_BYTES), SyntheticTree.stateDir());
+            search = fixture.get(SearchIndexService.class);
+            awaitIndexed(search);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            fixture.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public int index(EmptyIndex state) throws InterruptedException {
+        try (FileServerFixture fixture = start(state.uploadDir, state.stateDir)) {
+            return awaitIndexed(fixture.get(SearchIndexService.class));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public List<SearchHit> search(BuiltIndex state) throws IOException {
+        return state.search.search(state.query, 50);
+    }
+
+    private static FileServerFixture start(Path uploadDir, Path stateDir) {
+        return new FileServerFixture(Map.of(
+                "file.upload-dir", uploadDir.toString(),
+                "file.state-dir", stateDir.toString()),
+                FileIndex.class, FileService.class, SearchIndexService.class);
+    }
+
+    private static int awaitIndexed(SearchIndexService search) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + INDEX_TIMEOUT_MS;
+        while (search.getIndexedFileCount() < FILE_COUNT) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + search.getIndexedFileCount() + " of " + FILE_COUNT
+                        + " files indexed after " + INDEX_TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(1);
+        }
+        return search.getIndexedFileCount();
+    }
+}
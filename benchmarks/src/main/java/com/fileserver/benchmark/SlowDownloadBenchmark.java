@@ -0,0 +1,113 @@
+package com.fileserver.benchmark;
+
+import com.fileserver.config.ThreadingConfig;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.task.AsyncTaskExecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a quick request waits behind 1k or 10k slow downloads on the file I/O
+ * executor, with platform threads (file.threads.virtual=false) and virtual threads.
+ *
+ * Each download writes its chunks to a client that takes SLOW_CLIENT_DELAY_MS to
+ * accept each one; the measured time is how long a short task submitted after them
+ * (standing in for a /list request) takes to complete. The slow client sleeps rather
+ * than blocking in Tomcat's connector, so on Java 21-23 this shows the best case:
+ * there Tomcat 9 pins virtual threads while waiting on a socket.
+ *
+ * The virtual mode needs Java 21+; on older runtimes run it with -p threads=platform.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SlowDownloadBenchmark {
+
+    // Chunks per download and the time the client takes to accept each of them
+    private static final int CHUNKS = 10;
+    private static final long SLOW_CLIENT_DELAY_MS = 20;
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    @Param({"platform", "virtual"})
+    private String threads;
+
+    @Param({"1000", "10000"})
+    private int downloads;
+
+    private FileServerFixture fixture;
+    private AsyncTaskExecutor executor;
+    private final List<Future<?>> running = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean virtual = threads.equals("virtual");
+        if (virtual && Runtime.version().feature() < 21) {
+            throw new IllegalStateException("Virtual threads need Java 21+, running on " + Runtime.version());
+        }
+        fixture = new FileServerFixture(Map.of("file.threads.virtual", virtual), ThreadingConfig.class);
+        executor = fixture.get(AsyncTaskExecutor.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void startDownloads() {
+        byte[] chunk = new byte[CHUNK_BYTES];
+        for (int i = 0; i < downloads; i++) {
+            running.add(executor.submit(() -> {
+                try (OutputStream client = new SlowClient()) {
+                    for (int c = 0; c < CHUNKS; c++) {
+                        client.write(chunk);
+                    }
+                }
+                return null;
+            }));
+        }
+    }
+
+    @Benchmark
+    public Object quickRequest() throws ExecutionException, InterruptedException {
+        return executor.submit(() -> "listing").get();
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitDownloads() throws ExecutionException, InterruptedException {
+        for (Future<?> download : running) {
+            download.get();
+        }
+        running.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * A client on a slow link: every write blocks for a while, then the bytes are dropped.
+     */
+    private static class SlowClient extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                Thread.sleep(SLOW_CLIENT_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+}
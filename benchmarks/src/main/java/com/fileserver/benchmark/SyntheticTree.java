@@ -0,0 +1,213 @@
+package com.fileserver.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Creates the upload trees and files the benchmarks run against.
+ *
+ * Generated data is kept under bench.dir (default: a "file-server-bench" directory in
+ * java.io.tmpdir) and reused by later runs, since a tree of a million files takes
+ * minutes to create. A ".done" marker next to each tree tells complete trees from
+ * ones interrupted half-way.
+ */
+final class SyntheticTree {
+
+    // Name of the file created by singleFile
+    static final String SINGLE_FILE_NAME = "data.txt";
+
+    // Files per directory in generated trees
+    private static final int FILES_PER_DIR = 1000;
+
+    // Extensions of generated files, in rough proportion to a real upload directory
+    private static final String[] TYPES = {"txt", "loc", "loc", "pdf", "png", "jpg", "jpeg", "docx"};
+
+    // Words making up generated log lines; the later ones are rare
+    private static final String[] WORDS = {"INFO", "request", "completed", "status", "user", "worker", "latency",
+            "DEBUG", "cache", "hit", "miss", "WARN", "retry", "timeout", "ERROR", "disk", "quota", "exceeded"};
+
+    private SyntheticTree() {
+    }
+
+    /**
+     * Gets the directory that holds generated data.
+     *
+     * @return Base directory
+     */
+    static Path baseDir() {
+        return Paths.get(System.getProperty("bench.dir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "file-server-bench").toString()));
+    }
+
+    /**
+     * Gets (creating it on first use) a tree of empty-content files of mixed types and sizes.
+     * Files are sparse, so a million of them take inodes but almost no disk space.
+     *
+     * @param count Number of files
+     * @return Root of the tree
+     * @throws IOException If the tree can't be created
+     */
+    static Path files(int count) throws IOException {
+        Path root = baseDir().resolve("tree-" + count);
+        return cached(root, () -> {
+            int dirs = (count + FILES_PER_DIR - 1) / FILES_PER_DIR;
+            IntStream.range(0, dirs).parallel().forEach(d -> {
+                Random random = new Random(d);
+                Path dir = root.resolve(String.format("d%03d/d%03d", d / 100, d % 100));
+                try {
+                    Files.createDirectories(dir);
+                    for (int i = d * FILES_PER_DIR; i < Math.min(count, (d + 1) * FILES_PER_DIR); i++) {
+                        String type = TYPES[random.nextInt(TYPES.length)];
+                        try (RandomAccessFile file = new RandomAccessFile(
+                                dir.resolve("file-" + i + "." + type).toFile(), "rw")) {
+                            file.setLength(random.nextInt(1 << 20));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        });
+    }
+
+    /**
+     * Gets (creating it on first use) a directory of generated log files.
+     *
+     * @param count     Number of files
+     * @param fileBytes Approximate size of each file in bytes
+     * @return Directory holding the .loc files
+     * @throws IOException If the files can't be created
+     */
+    static Path logs(int count, long fileBytes) throws IOException {
+        Path root = baseDir().resolve("logs-" + count + "x" + fileBytes);
+        return cached(root, () -> {
+            Files.createDirectories(root);
+            IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    writeLog(root.resolve("server-" + i + ".loc"), fileBytes, i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        });
+    }
+
+    /**
+     * Gets (creating it on first use) a directory holding one text file, named
+     * SINGLE_FILE_NAME, of the given size.
+     *
+     * @param fileBytes Approximate size of the file in bytes
+     * @return Directory holding the file
+     * @throws IOException If the file can't be created
+     */
+    static Path singleFile(long fileBytes) throws IOException {
+        Path root = baseDir().resolve("single-" + fileBytes);
+        return cached(root, () -> {
+            Files.createDirectories(root);
+            writeLog(root.resolve(SINGLE_FILE_NAME), fileBytes, 0);
+        });
+    }
+
+    /**
+     * Parses a size such as "1KB", "10MB" or "1GB".
+     *
+     * @param size Size with a unit
+     * @return Size in bytes
+     */
+    static long parseSize(String size) {
+        String unit = size.replaceAll("[0-9]", "");
+        long value = Long.parseLong(size.substring(0, size.length() - unit.length()));
+        switch (unit) {
+            case "KB":
+                return value << 10;
+            case "MB":
+                return value << 20;
+            case "GB":
+                return value << 30;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Creates an empty directory for server state (indexes, caches).
+     *
+     * @return New directory, deleted on exit of the benchmark JVM at the latest
+     * @throws IOException If it can't be created
+     */
+    static Path stateDir() throws IOException {
+        Files.createDirectories(baseDir());
+        Path dir = Files.createTempDirectory(baseDir(), "state-");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dir)));
+        return dir;
+    }
+
+    /**
+     * Deletes a directory tree, ignoring failures.
+     *
+     * @param dir Directory to delete
+     */
+    static void delete(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            // Only temporary data
+        }
+    }
+
+    private static Path cached(Path root, Generator generator) throws IOException {
+        Path done = root.resolveSibling(root.getFileName() + ".done");
+        if (Files.exists(done)) {
+            return root;
+        }
+        delete(root);
+        try {
+            generator.generate();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.createFile(done);
+        return root;
+    }
+
+    private static void writeLog(Path file, long bytes, int seed) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder line = new StringBuilder(128);
+        long written = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            for (long n = 0; written < bytes; n++) {
+                line.setLength(0);
+                line.append("2024-05-").append(10 + n % 20).append("T12:00:").append(n % 60);
+                int words = 6 + random.nextInt(8);
+                for (int w = 0; w < words; w++) {
+                    // Squaring skews the choice towards the first (common) words
+                    double r = random.nextDouble();
+                    line.append(' ').append(WORDS[(int) (r * r * WORDS.length)]);
+                }
+                line.append(" id=").append(random.nextInt(1_000_000)).append('\n');
+                byte[] data = line.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(data);
+                written += data.length;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Generator {
+        void generate() throws IOException;
+    }
+}
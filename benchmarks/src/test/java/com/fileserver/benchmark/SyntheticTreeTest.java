@@ -0,0 +1,83 @@
+package com.fileserver.benchmark;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyntheticTreeTest {
+
+    @TempDir
+    Path benchDir;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("bench.dir", benchDir.toString());
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.clearProperty("bench.dir");
+    }
+
+    private static List<Path> regularFiles(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void parsesSizesWithUnits() {
+        assertEquals(512, SyntheticTree.parseSize("512"));
+        assertEquals(1024, SyntheticTree.parseSize("1KB"));
+        assertEquals(10L << 20, SyntheticTree.parseSize("10MB"));
+        assertEquals(2L << 30, SyntheticTree.parseSize("2GB"));
+    }
+
+    @Test
+    void treesHoldTheRequestedNumberOfFilesInDirectoriesOfAThousand() throws IOException {
+        Path root = SyntheticTree.files(2500);
+
+        List<Path> files = regularFiles(root);
+        assertEquals(2500, files.size());
+        assertEquals(3, files.stream().map(Path::getParent).distinct().count());
+        assertTrue(Files.exists(benchDir.resolve("tree-2500.done")));
+        for (Path file : files) {
+            assertTrue(Files.size(file) < 1 << 20);
+        }
+    }
+
+    @Test
+    void logsAreAtLeastTheRequestedSizeAndEndWithANewline() throws IOException {
+        Path file = SyntheticTree.singleFile(10_000).resolve(SyntheticTree.SINGLE_FILE_NAME);
+
+        String text = Files.readString(file);
+        assertTrue(text.length() >= 10_000 && text.length() < 10_200);
+        assertTrue(text.endsWith("\n"));
+        assertTrue(text.lines().allMatch(line -> line.startsWith("2024-05-") && line.contains(" id=")));
+    }
+
+    @Test
+    void completeDataIsReusedAndInterruptedDataIsRegenerated() throws IOException {
+        Path root = SyntheticTree.logs(2, 1000);
+        Path log = root.resolve("server-0.loc");
+        Files.writeString(log, "kept");
+
+        assertEquals(root, SyntheticTree.logs(2, 1000));
+        assertEquals("kept", Files.readString(log));
+
+        Files.delete(benchDir.resolve("logs-2x1000.done")); // As if the run generating it had died
+        SyntheticTree.logs(2, 1000);
+        assertNotEquals("kept", Files.readString(log));
+        assertEquals(2, regularFiles(root).size());
+    }
+}
@@ -1,8 +1,10 @@
 import { Component } from '@angular/core';
 import { CommonModule } from '@angular/common';
 import { FileService } from '../../services/file.service';
-import { FileInfo } from '../../models/file-info.model';
-import { OnInit } from '@angular/core';
+import { FileInfo, FileListing } from '../../models/file-info.model';
+import { FileChange } from '../../models/file-change.model';
+import { OnDestroy, OnInit } from '@angular/core';
+import { Subscription } from 'rxjs';
 import { DomSanitizer, SafeResourceUrl } from '@angular/platform-browser';
 
 @Component({
@@ -12,7 +14,7 @@ import { DomSanitizer, SafeResourceUrl } from '@angular/platform-browser';
   templateUrl: './file-list.component.html',
   styleUrls: ['./file-list.component.css']
 })
-export class FileListComponent implements OnInit {
+export class FileListComponent implements OnInit, OnDestroy {
 
   // Stores the list of all files fetched from backend
   files: FileInfo[] = [];
@@ -32,6 +34,12 @@ export class FileListComponent implements OnInit {
   // Holds URL for viewing images or PDFs safely
   fileUrl: SafeResourceUrl = '';
 
+  // Live file changes pushed by the server, from the position of the list shown on
+  private changes?: Subscription;
+
+  // List request in flight, if any
+  private listing?: Subscription;
+
   constructor(
     private fileService: FileService,
     private sanitizer: DomSanitizer // Used to securely load blob URLs
@@ -44,32 +52,76 @@ export class FileListComponent implements OnInit {
   ngOnInit(): void {
     console.log('ngOnInit called ✅');
 
-    this.fileService.getAllFiles().subscribe({
-      next: (data: FileInfo[]) => {
-        console.log('Files received ✅:', data);
-        this.files = data;
-      },
-      error: (error: any) => {
-        console.error('Error fetching files ❌:', error);
+    // Uncached, so the change stream doesn't have to replay from an old list
+    this.loadFiles(true);
+  }
+
+  /**
+   * Closes the change stream when the component goes away.
+   */
+  ngOnDestroy(): void {
+    this.changes?.unsubscribe();
+    this.listing?.unsubscribe();
+  }
+
+  /**
+   * Keeps the list current from the server's change events instead of re-fetching it.
+   * The stream starts from the position of the list just loaded, so the server replays
+   * whatever changed since the list was taken, and asks for a resync if it can't.
+   * @param position Position of the list ("journal:sequence"), or null to start from now
+   */
+  watchChanges(position: string | null): void {
+    this.changes?.unsubscribe();
+    this.changes = this.fileService.watchFiles(position).subscribe(event => {
+      if (event.kind === 'resync') {
+        this.loadFiles(true); // Missed some changes; start over from a current full list
+      } else {
+        this.applyChange(event.change);
       }
     });
   }
 
   /**
-   * Reloads the list of files manually.
+   * Applies one added, modified or deleted file to the list, keeping it sorted by name.
+   * Changes may repeat what the list already shows, so applying one twice is harmless.
+   * @param change The change pushed by the server
+   */
+  applyChange(change: FileChange): void {
+    const others = this.files.filter(file => file.filePath !== change.file.filePath);
+    if (change.type === 'DELETED') {
+      this.files = others;
+      if (this.selectedFile?.filePath === change.file.filePath) {
+        this.selectedFile = null;
+      }
+      return;
+    }
+    const index = others.findIndex(file => file.fileName > change.file.fileName);
+    others.splice(index < 0 ? others.length : index, 0, change.file);
+    this.files = others;
+  }
+
+  /**
+   * Loads the list of files, on start, after a resync or manually, then follows the
+   * changes made after it. The change stream is closed while the list loads; it
+   * replays what was missed once reopened. A newer load replaces one still in flight.
+   * @param fresh Whether to bypass cached copies of the list
    */
-  loadFiles(): void {
+  loadFiles(fresh = false): void {
     this.loading = true;
     this.error = '';
 
-    this.fileService.getAllFiles().subscribe({
-      next: (files) => {
-        console.log('Fetched files:', files);
-        this.files = files;
+    this.changes?.unsubscribe();
+    this.listing?.unsubscribe();
+    this.listing = this.fileService.getListing(fresh).subscribe({
+      next: (listing: FileListing) => {
+        console.log('Fetched files:', listing.files);
+        this.files = listing.files;
+        this.watchChanges(listing.position);
         this.loading = false;
       },
       error: (error) => {
         this.error = 'Failed to load files';
+        this.watchChanges(null); // Keep the list we have current at least
         this.loading = false;
         console.error('Error loading files:', error);
       }
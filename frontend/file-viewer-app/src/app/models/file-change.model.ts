@@ -0,0 +1,19 @@
+import { FileInfo } from './file-info.model';
+
+/**
+ * A file that was added, modified or deleted on the server.
+ * For deletions, file holds the last known metadata.
+ */
+export interface FileChange {
+  sequence: number;
+  type: 'ADDED' | 'MODIFIED' | 'DELETED';
+  file: FileInfo;
+}
+
+/**
+ * Event pushed by the backend: a single change, or a request to reload the
+ * whole list because changes were missed.
+ */
+export type FileEvent =
+  | { kind: 'change'; change: FileChange }
+  | { kind: 'resync' };
@@ -3,5 +3,21 @@ export interface FileInfo {
   fileType: string;
   fileSize: number;
   filePath: string;
+  // Computed by the file server in the background; absent until then
+  mimeType?: string;
+  lineCount?: number;
+  width?: number;
+  height?: number;
 }
 
+/**
+ * The full file list, together with the change sequence it is current up to:
+ * changes pushed with a higher sequence are not in it yet. Sequences are counted
+ * per journal (per file server replica), so position names both, "journal:sequence",
+ * for the change stream to replay from; null if the server didn't say.
+ */
+export interface FileListing {
+  files: FileInfo[];
+  sequence: number;
+  position: string | null;
+}
@@ -1,7 +1,8 @@
-import { HttpClient } from '@angular/common/http';
+import { HttpClient, HttpHeaders } from '@angular/common/http';
 import { Injectable } from '@angular/core';
-import { Observable } from 'rxjs';
-import { FileInfo } from '../models/file-info.model'; // Adjust the import path based on your project structure
+import { Observable, map } from 'rxjs';
+import { FileInfo, FileListing } from '../models/file-info.model'; // Adjust the import path based on your project structure
+import { FileEvent } from '../models/file-change.model';
 
 @Injectable({
   providedIn: 'root'
@@ -21,6 +22,47 @@ export class FileService {
     return this.http.get<FileInfo[]>(`${this.baseUrl}/list`);
   }
 
+  /**
+   * Fetches all files along with the change sequence the list is current up to
+   * (the X-Change-Sequence header), so pushed changes can be replayed on top of it.
+   * @param fresh Bypasses cached copies of the list, e.g. after a resync, when even a
+   *              slightly old list would lack changes that won't be pushed again
+   * @returns Observable emitting the files and their sequence (-1 if unknown)
+   */
+  getListing(fresh = false): Observable<FileListing> {
+    const headers = fresh ? new HttpHeaders({ 'Cache-Control': 'no-cache' }) : undefined;
+    return this.http.get<FileInfo[]>(`${this.baseUrl}/list`, { headers, observe: 'response' }).pipe(
+      map(response => {
+        const sequence = response.headers.get('X-Change-Sequence');
+        const journal = response.headers.get('X-Change-Journal');
+        return {
+          files: response.body ?? [],
+          sequence: Number(sequence ?? -1),
+          position: sequence !== null && journal !== null ? `${journal}:${sequence}` : null
+        };
+      }));
+  }
+
+  /**
+   * Streams file changes pushed by the backend as Server-Sent Events.
+   * The browser reconnects by itself and resumes after the last event it received;
+   * a 'resync' event means changes were missed and the list has to be reloaded.
+   * The connection is closed when the subscription ends.
+   * @param position Position of the list held (FileListing.position), to get the changes
+   *                 made after it; null to get only changes from now on
+   * @returns Observable emitting each change or resync request
+   */
+  watchFiles(position: string | null = null): Observable<FileEvent> {
+    return new Observable<FileEvent>(subscriber => {
+      const from = position !== null ? `?lastEventId=${encodeURIComponent(position)}` : '';
+      const source = new EventSource(`${this.baseUrl}/events${from}`);
+      source.addEventListener('change', event =>
+        subscriber.next({ kind: 'change', change: JSON.parse((event as MessageEvent).data) }));
+      source.addEventListener('resync', () => subscriber.next({ kind: 'resync' }));
+      return () => source.close();
+    });
+  }
+
   /**
    * Downloads a file as binary (Blob).
    * Used for triggering file downloads like PDF, DOC, etc.
@@ -0,0 +1,108 @@
+package com.fileserver.config;
+
+import com.fileserver.service.CompressionService;
+import com.fileserver.service.FileIndex;
+import com.fileserver.service.FileService;
+import com.fileserver.service.HotFileCache;
+import com.fileserver.service.SearchIndexService;
+import com.fileserver.service.ThumbnailService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the counters the services already keep (index size, hot-file cache,
+ * compression, search, thumbnails) as Micrometer meters, next to the request timers that
+ * Spring Boot records for every endpoint.
+ *
+ * The meters are registered once the services exist rather than through a
+ * MeterBinder bean, because the services themselves record into the registry and
+ * a binder would make the registry depend on them.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private HotFileCache hotFileCache;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    @Autowired
+    private SearchIndexService searchIndexService;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    /**
+     * Registers the service gauges and counters.
+     */
+    @PostConstruct
+    public void bindServiceMetrics() {
+        Gauge.builder("file.index.entries", fileIndex, FileIndex::size)
+                .description("Files currently in the metadata index")
+                .register(registry);
+        TimeGauge.builder("file.startup.first.list", fileService, TimeUnit.MILLISECONDS,
+                        s -> s.getFirstListingMillis() < 0 ? Double.NaN : s.getFirstListingMillis())
+                .description("Time from JVM start until the first listing was served")
+                .register(registry);
+        Gauge.builder("file.search.indexed.files", searchIndexService, SearchIndexService::getIndexedFileCount)
+                .description("Text files searchable through the inverted index")
+                .register(registry);
+
+        FunctionCounter.builder("file.cache.hits", hotFileCache, HotFileCache::getHits)
+                .description("Requests served from the hot-file cache")
+                .register(registry);
+        FunctionCounter.builder("file.cache.misses", hotFileCache, HotFileCache::getMisses)
+                .description("Cacheable requests that had to read the file")
+                .register(registry);
+        FunctionCounter.builder("file.cache.evictions", hotFileCache, HotFileCache::getEvictions)
+                .register(registry);
+        Gauge.builder("file.cache.size", hotFileCache, HotFileCache::getSizeBytes)
+                .baseUnit("bytes")
+                .register(registry);
+
+        FunctionCounter.builder("file.compression.responses", compressionService, CompressionService::getResponses)
+                .description("Gzip-encoded responses sent")
+                .register(registry);
+        FunctionCounter.builder("file.compression.cached.responses", compressionService,
+                        CompressionService::getCachedResponses)
+                .description("Gzip responses sent from the variant cache")
+                .register(registry);
+        FunctionCounter.builder("file.compression.identity", compressionService, CompressionService::getIdentityBytes)
+                .description("Uncompressed size of gzip responses")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("file.compression.wire", compressionService, CompressionService::getWireBytes)
+                .description("Bytes gzip responses put on the wire")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("file.compression.cpu", compressionService, s -> s.getCpuNanos() / 1e9)
+                .description("CPU time spent writing gzip responses")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("file.compression.cache.size", compressionService, CompressionService::getCacheBytes)
+                .description("Disk space held by cached gzip variants")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("file.thumbnail.cache.size", thumbnailService, ThumbnailService::getCacheBytes)
+                .description("Disk space held by cached thumbnails")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+}
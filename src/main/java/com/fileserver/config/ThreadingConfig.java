@@ -0,0 +1,123 @@
+package com.fileserver.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Chooses the threads that serve requests and stream file contents.
+ *
+ * Downloads, views, listings and archives are written by StreamingResponseBody on
+ * the MVC async executor, so a slow client holds one of its threads for as long as
+ * its socket writes take. By default that executor is a pool of file.io.threads
+ * platform threads. With file.threads.virtual=true, both Tomcat's request threads
+ * and the file I/O executor become one virtual thread per task, so thousands of
+ * slow downloads don't hold back a /list request.
+ *
+ * The project still targets Java 11, so virtual threads are created reflectively and
+ * the setting falls back to platform threads (with a warning) on older runtimes.
+ */
+@Configuration
+public class ThreadingConfig implements WebMvcConfigurer {
+
+    private static final Logger log = LoggerFactory.getLogger(ThreadingConfig.class);
+
+    // First Java release whose virtual threads can block inside synchronized without pinning their carrier
+    private static final int UNPINNED_MONITORS_RELEASE = 24;
+
+    // Use virtual threads for request handling and file I/O (needs Java 21+)
+    @Value("${file.threads.virtual:false}")
+    private boolean virtualThreads;
+
+    // Platform threads writing streamed responses when virtual threads are off
+    @Value("${file.io.threads:200}")
+    private int ioThreads;
+
+    @PostConstruct
+    public void checkRuntime() {
+        if (!virtualThreads) {
+            return;
+        }
+        if (Runtime.version().feature() < 21) {
+            log.warn("Virtual threads need Java 21+, running on {}; using platform threads", Runtime.version());
+            virtualThreads = false;
+        } else if (Runtime.version().feature() < UNPINNED_MONITORS_RELEASE) {
+            // Tomcat 9's NIO connector waits for slow clients inside synchronized blocks
+            log.warn("Virtual threads on Java {} are pinned while Tomcat waits on a slow client; "
+                    + "Java {}+ is recommended for this mode", Runtime.version().feature(), UNPINNED_MONITORS_RELEASE);
+        }
+    }
+
+    /**
+     * Executor that runs streamed response bodies, i.e. the reads from disk and writes to clients.
+     *
+     * @return Virtual-thread-per-task executor, or a bounded pool of platform threads
+     */
+    @Bean
+    public AsyncTaskExecutor fileIoExecutor() {
+        if (virtualThreads) {
+            return new TaskExecutorAdapter(newVirtualThreadExecutor("file-io-"));
+        }
+
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(ioThreads);
+        pool.setMaxPoolSize(ioThreads);
+        pool.setAllowCoreThreadTimeOut(true);
+        pool.setThreadNamePrefix("file-io-");
+        return pool;
+    }
+
+    /**
+     * Runs Tomcat's request processing on virtual threads when enabled.
+     *
+     * @return Customizer replacing the connector's worker pool
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadConnector() {
+        return factory -> {
+            if (virtualThreads) {
+                ExecutorService virtual = newVirtualThreadExecutor("http-");
+                factory.addProtocolHandlerCustomizers(handler -> handler.setExecutor(virtual));
+                log.info("Serving requests and file I/O on virtual threads");
+            }
+        };
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(fileIoExecutor());
+    }
+
+    /**
+     * Creates a thread-per-task executor of named virtual threads through reflection.
+     *
+     * @param namePrefix Prefix of the thread names, followed by a counter
+     * @return Executor starting a new virtual thread for every task
+     */
+    private static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not available on " + Runtime.version(), e);
+        }
+    }
+}
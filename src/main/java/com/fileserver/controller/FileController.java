@@ -1,35 +1,272 @@
 package com.fileserver.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fileserver.model.FileChanges;
 import com.fileserver.model.FileInfo;
+import com.fileserver.model.FilePage;
+import com.fileserver.model.FileSort;
+import com.fileserver.model.SearchHit;
+import com.fileserver.model.UploadRequest;
+import com.fileserver.model.UploadStatus;
+import com.fileserver.service.ArchiveService;
+import com.fileserver.service.ChangeJournal;
+import com.fileserver.service.CompressionService;
+import com.fileserver.service.FileEventService;
 import com.fileserver.service.FileService;
+import com.fileserver.service.HotFileCache;
+import com.fileserver.service.LineIndexService;
+import com.fileserver.service.SearchIndexService;
+import com.fileserver.service.ThumbnailService;
+import com.fileserver.service.UploadService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/api/files")
 @CrossOrigin(origins = "*") // Allow cross-origin requests from any origin
 public class FileController {
 
+    private static final Logger log = LoggerFactory.getLogger(FileController.class);
+
+    // Largest page the paged listing endpoint will return
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // Journal position a listing was taken at, for use with /changes
+    private static final String CHANGE_SEQUENCE_HEADER = "X-Change-Sequence";
+
+    // Journal that sequence belongs to; each replica and each run has its own
+    private static final String CHANGE_JOURNAL_HEADER = "X-Change-Journal";
+
+    // Most lines a windowed content request may ask for
+    private static final int MAX_CONTENT_LINES = 10000;
+
     @Autowired
     private FileService fileService; // Injecting the FileService to handle business logic
 
+    @Autowired
+    private SearchIndexService searchIndexService; // Inverted index over text files
+
+    @Autowired
+    private LineIndexService lineIndexService; // Line-offset indexes for windowed text reads
+
+    @Autowired
+    private HotFileCache hotFileCache; // Off-heap cache of small, frequently read files
+
+    @Autowired
+    private ThumbnailService thumbnailService; // Generates and caches image previews
+
+    @Autowired
+    private CompressionService compressionService; // Gzip encoding and its variant cache
+
+    @Autowired
+    private ArchiveService archiveService; // Builds multi-file ZIP downloads
+
+    @Autowired
+    private ChangeJournal changeJournal; // Recent changes, for incremental listing refreshes
+
+    @Autowired
+    private FileEventService fileEventService; // Pushes changes to Server-Sent Event subscribers
+
+    @Autowired
+    private UploadService uploadService; // Resumable chunked uploads
+
+    @Autowired
+    private TransferMetrics transferMetrics; // Times file bodies and counts bytes served
+
+    @Autowired
+    private ObjectMapper objectMapper; // Used to write listings incrementally
+
+    // How long clients may reuse a file without revalidating (0 = always revalidate)
+    @Value("${file.http.max-age-seconds:0}")
+    private long maxAgeSeconds;
+
     /**
      * Endpoint to list all files available on the server.
-     * @return List of FileInfo objects wrapped in ResponseEntity
+     * The JSON array is written one entry at a time straight from the index,
+     * so the full listing is never materialized in memory.
+     * @param sort Sort order: name, size or type
+     * @param order Sort direction: asc or desc
+     * @param ext Comma-separated file extensions to include (optional)
+     * @param prefix File name prefix to include (optional)
+     * @param request Current request, used for conditional headers
+     * @return JSON array of FileInfo objects wrapped in ResponseEntity
      */
     @GetMapping("/list")
-    public ResponseEntity<List<FileInfo>> getAllFiles() {
+    public ResponseEntity<StreamingResponseBody> getAllFiles(@RequestParam(defaultValue = "name") String sort,
+                                                             @RequestParam(defaultValue = "asc") String order,
+                                                             @RequestParam(required = false) String ext,
+                                                             @RequestParam(required = false) String prefix,
+                                                             WebRequest request) {
+        // Unchanged directory: answer 304 without looking at a single entry
+        if (request.checkNotModified(listingEtag())) {
+            return null;
+        }
+
+        // Taken before the listing, so replaying from here covers anything the listing misses
+        long sequence = changeJournal.getSequence();
+        Stream<FileInfo> files;
+        try {
+            files = fileService.listFiles(FileSort.fromParam(sort), isDescending(order),
+                    parseExtensions(ext), prefix, null);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build(); // 400 for unknown sort order
+        }
+
+        ObjectWriter writer = objectMapper.writerFor(FileInfo.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+        StreamingResponseBody body = out -> {
+            try (Stream<FileInfo> listing = files; JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                generator.writeStartArray();
+                Iterator<FileInfo> it = listing.iterator();
+                while (it.hasNext()) {
+                    writer.writeValue(generator, it.next());
+                }
+                generator.writeEndArray();
+            }
+        };
+
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache())
+                .header(CHANGE_SEQUENCE_HEADER, Long.toString(sequence))
+                .header(CHANGE_JOURNAL_HEADER, Long.toString(changeJournal.getJournalId()))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body); // 200 OK with list of files
+    }
+
+    /**
+     * Endpoint to list files one page at a time.
+     * @param cursor Cursor returned with the previous page (omit for the first page)
+     * @param limit Maximum number of files per page
+     * @param sort Sort order: name, size or type
+     * @param order Sort direction: asc or desc
+     * @param ext Comma-separated file extensions to include (optional)
+     * @param prefix File name prefix to include (optional)
+     * @param request Current request, used for conditional headers
+     * @return Page of files plus the cursor for the next page
+     */
+    @GetMapping("/list/page")
+    public ResponseEntity<FilePage> getFilePage(@RequestParam(required = false) String cursor,
+                                                @RequestParam(defaultValue = "100") int limit,
+                                                @RequestParam(defaultValue = "name") String sort,
+                                                @RequestParam(defaultValue = "asc") String order,
+                                                @RequestParam(required = false) String ext,
+                                                @RequestParam(required = false) String prefix,
+                                                WebRequest request) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (request.checkNotModified(listingEtag())) {
+            return null; // 304, listing unchanged
+        }
+        try {
+            FilePage page = fileService.getFilePage(FileSort.fromParam(sort), isDescending(order),
+                    parseExtensions(ext), prefix, cursor, limit);
+            return ResponseEntity.ok()
+                    .cacheControl(CacheControl.noCache())
+                    .body(page);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build(); // 400 for unknown sort order or bad cursor
+        }
+    }
+
+    /**
+     * Endpoint to fetch the changes made since a client's last known position, so a
+     * listing can be kept current without downloading it again.
+     * Start from the X-Change-Sequence header of /list, or ask with since=0 (always a
+     * resync) before listing; if the answer says resync, the position is no longer in
+     * the journal and the listing has to be reloaded.
+     * @param since Sequence of the last change the client has applied
+     * @param limit Maximum number of changes to return
+     * @return Changes oldest first, plus the sequence to pass next time
+     */
+    @GetMapping("/changes")
+    public ResponseEntity<FileChanges> getChanges(@RequestParam long since,
+                                                  @RequestParam(defaultValue = "1000") int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .body(changeJournal.changesSince(since, limit));
+    }
+
+    /**
+     * Endpoint streaming file changes as Server-Sent Events: "change" events carry a
+     * FileChange, "resync" events mean the listing has to be reloaded. Reconnecting
+     * clients send Last-Event-ID and get the changes they missed. The response names
+     * the journal and, for a stream starting now, the position it starts after.
+     * @param lastEventId Id of the last event received before a reconnect (optional)
+     * @return Event stream, or 503 if too many streams are open
+     */
+    @GetMapping(path = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamChanges(@RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+        long start = changeJournal.getSequence();
+        try {
+            return ResponseEntity.ok()
+                    .cacheControl(CacheControl.noStore())
+                    .header(CHANGE_SEQUENCE_HEADER, Long.toString(start))
+                    .header(CHANGE_JOURNAL_HEADER, Long.toString(changeJournal.getJournalId()))
+                    .body(fileEventService.subscribe(lastEventId, start));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    /**
+     * Endpoint to search the content of .txt and .loc files.
+     * Returns lines containing every term of the query, with the matching line as a snippet.
+     * @param q Search terms (case-insensitive)
+     * @param limit Maximum number of matching lines to return
+     * @return List of SearchHit objects
+     */
+    @GetMapping("/search")
+    public ResponseEntity<List<SearchHit>> search(@RequestParam String q,
+                                                  @RequestParam(defaultValue = "50") int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return ResponseEntity.badRequest().build();
+        }
         try {
-            List<FileInfo> files = fileService.getAllFiles();
-            return ResponseEntity.ok(files); // 200 OK with list of files
-        } catch (Exception e) {
+            return ResponseEntity.ok(searchIndexService.search(q, limit));
+        } catch (IOException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build(); // 500 error
         }
     }
@@ -39,80 +276,507 @@ public class FileController {
      */
     @GetMapping("/test")
     public ResponseEntity<String> test() {
-        System.out.println("Test endpoint called!");
+        log.debug("Test endpoint called");
         return ResponseEntity.ok("Test successful");
     }
 
     /**
      * Endpoint to download a file by its name.
+     * The file is streamed from disk, so heap use does not grow with file size.
+     * Range requests are honoured so interrupted downloads can be resumed.
      * @param fileName Name of the file to download
+     * @param request Current request, used for Range headers
      * @return File content as a downloadable response
      */
     @GetMapping("/download/{fileName}")
-    public ResponseEntity<byte[]> downloadFile(@PathVariable String fileName) {
-        try {
-            byte[] fileContent = fileService.getFileContent(fileName); // Load file content
-
-            // Set response headers to trigger download in browser
-            HttpHeaders headers = new HttpHeaders();
-            headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileName);
+    public ResponseEntity<StreamingResponseBody> downloadFile(@PathVariable String fileName, WebRequest request) {
+        // Attachment disposition triggers a download in the browser
+        return streamFile(fileName, "download", "attachment; filename=" + fileName, request);
+    }
 
-            // Determine the MIME type based on file extension
-            String fileType = getFileExtension(fileName).toLowerCase();
-            MediaType mediaType = getMediaType(fileType);
+    /**
+     * Endpoint to download many files as one ZIP archive.
+     * Takes either a list of file names or a name prefix. The archive is streamed
+     * while it is built, so it starts downloading at once and the server's memory
+     * use doesn't depend on how many files it holds. Accepts POST so long name
+     * lists can be sent as a form body.
+     * @param names Names of the files to include (repeated or comma-separated)
+     * @param prefix Include every file whose name starts with this instead
+     * @return ZIP archive, 404 if a named file doesn't exist, or 503 if too many archives are being built
+     */
+    @RequestMapping(value = "/archive", method = {RequestMethod.GET, RequestMethod.POST})
+    public ResponseEntity<StreamingResponseBody> downloadArchive(@RequestParam(required = false) List<String> names,
+                                                                 @RequestParam(required = false) String prefix) {
+        boolean hasNames = names != null && !names.isEmpty();
+        boolean hasPrefix = prefix != null && !prefix.isEmpty();
+        if (hasNames == hasPrefix) {
+            return ResponseEntity.badRequest().build(); // Exactly one way of choosing files
+        }
 
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .contentType(mediaType)
-                    .body(fileContent);
+        Iterator<FileInfo> files;
+        if (hasNames) {
+            // Resolve every name up front, so a typo is a 404 rather than a broken archive
+            List<FileInfo> infos = new ArrayList<>();
+            try {
+                for (String name : new LinkedHashSet<>(names)) {
+                    infos.add(fileService.getFileInfo(name));
+                }
+            } catch (IOException e) {
+                return ResponseEntity.notFound().build();
+            }
+            files = infos.iterator();
+        } else {
+            files = fileService.listFiles(FileSort.NAME, false, null, prefix, null).iterator();
+        }
 
-        } catch (IOException e) {
-            return ResponseEntity.notFound().build(); // 404 if file doesn't exist
+        ArchiveService.Archive archive;
+        try {
+            archive = archiveService.start(files);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "5")
+                    .build();
         }
+
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=files.zip")
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .body(transferMetrics.record("archive", -1, archive::writeTo));
     }
 
     /**
      * Endpoint to get readable content of .txt or .loc files.
+     * Small, frequently read files are served from the hot-file cache.
+     * When fromLine or count is given, only that window of lines is returned; the
+     * window is located through a line-offset index, so any page of a huge log
+     * costs the same. The X-Total-Lines header reports the file's line count.
      * @param fileName Name of the file
+     * @param fromLine Zero-based number of the first line to return (optional)
+     * @param count Number of lines to return (optional)
+     * @param request Current request, used for conditional headers
      * @return File content as plain text
      */
     @GetMapping("/content/{fileName}")
-    public ResponseEntity<String> getFileContent(@PathVariable String fileName) {
+    public ResponseEntity<StreamingResponseBody> getFileContent(@PathVariable String fileName,
+                                                                @RequestParam(required = false) Long fromLine,
+                                                                @RequestParam(required = false) Integer count,
+                                                                WebRequest request) {
         try {
-            String content = fileService.getFileContentAsString(fileName);
-            return ResponseEntity.ok(content); // 200 OK with file content
+            FileInfo info = fileService.getFileInfo(fileName);
+            if (!fileService.isTextFile(fileName)) {
+                byte[] message = "Cannot read content of this file type".getBytes(StandardCharsets.UTF_8);
+                return ResponseEntity.badRequest()
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .body(out -> out.write(message));
+            }
+            boolean gzip = compressionService.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+            HttpHeaders headers = new HttpHeaders();
+            headers.setVary(Collections.singletonList(HttpHeaders.ACCEPT_ENCODING));
+
+            if (fromLine != null || count != null) {
+                long first = fromLine != null ? fromLine : 0;
+                int lines = count != null ? count : MAX_CONTENT_LINES;
+                if (first < 0 || lines < 1 || lines > MAX_CONTENT_LINES) {
+                    return ResponseEntity.badRequest().build();
+                }
+
+                // Windows are small and change with every page, so they're compressed on the fly
+                LineIndexService.LineWindow window = lineIndexService.getWindow(info, first, lines);
+                Path filePath = Paths.get(info.getFilePath());
+                boolean gzipWindow = gzip && compressionService.isCompressible(info.getFileType(), window.getLength());
+                String etag = gzipWindow ? gzipEtag(etagOf(info)) : etagOf(info);
+                if (request.checkNotModified(etag, info.getLastModified())) {
+                    return null; // 304, the client's copy is current
+                }
+
+                headers.set("X-Total-Lines", String.valueOf(window.getTotalLines()));
+                headers.set("X-Line-Count", String.valueOf(window.getLineCount()));
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                        .headers(headers)
+                        .cacheControl(fileCacheControl())
+                        .contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8));
+                if (gzipWindow) {
+                    return response.header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                            .body(transferMetrics.record("content", window.getLength(),
+                                    out -> compressionService.writeGzip(filePath, window.getOffset(), window.getLength(), out)));
+                }
+                return response.contentLength(window.getLength())
+                        .body(transferMetrics.record("content", window.getLength(),
+                                out -> fileService.transferTo(filePath, window.getOffset(), window.getLength(), out)));
+            }
+
+            gzip = gzip && compressionService.isCompressible(info.getFileType(), info.getFileSize());
+            if (request.checkNotModified(gzip ? gzipEtag(etagOf(info)) : etagOf(info), info.getLastModified())) {
+                return null; // 304, the client's copy is current
+            }
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .headers(headers)
+                    .cacheControl(fileCacheControl())
+                    .contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8));
+            if (gzip) {
+                return gzipResponse(response, "content", info);
+            }
+            return response.contentLength(info.getFileSize())
+                    .body(transferMetrics.record("content", info.getFileSize(), fileBody(info))); // 200 OK with file content
         } catch (IOException e) {
             return ResponseEntity.notFound().build(); // 404 if file not found
-        } catch (UnsupportedOperationException e) {
-            return ResponseEntity.badRequest().body("Cannot read content of this file type");
         }
     }
 
     /**
      * Endpoint to display a file inline in the browser (PDF, image, etc.).
+     * Range requests are honoured so viewers can fetch pages of large files lazily.
      * @param fileName Name of the file to view
+     * @param request Current request, used for Range headers
      * @return File content with inline display headers
      */
     @GetMapping("/view/{fileName}")
-    public ResponseEntity<byte[]> viewFile(@PathVariable String fileName) {
+    public ResponseEntity<StreamingResponseBody> viewFile(@PathVariable String fileName, WebRequest request) {
+        // Inline disposition tells browser to try to render the file
+        return streamFile(fileName, "view", "inline; filename=" + fileName, request);
+    }
+
+    /**
+     * Endpoint to get a downscaled preview of a png or jpeg image.
+     * Thumbnails are generated once on a background pool and served from a disk
+     * cache afterwards; the request thread is released while one is generated.
+     * Sizes are rounded up to the next of a few fixed ones (file.thumbnail.sizes),
+     * so the image may be somewhat larger than asked for.
+     * @param fileName Name of the image
+     * @param size Longest edge of the thumbnail in pixels, 1 to 1024
+     * @param request Current request, used for conditional headers
+     * @return Thumbnail image, or 503 if the generation queue is full
+     */
+    @GetMapping("/thumbnail/{fileName}")
+    public CompletableFuture<ResponseEntity<Resource>> getThumbnail(@PathVariable String fileName,
+                                                                    @RequestParam(defaultValue = "200") int size,
+                                                                    WebRequest request) {
+        FileInfo info;
         try {
-            byte[] fileContent = fileService.getFileContent(fileName);
+            info = fileService.getFileInfo(fileName);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build()); // 404 if file not found
+        }
+        if (!thumbnailService.isSupported(info.getFileType()) || size < 1 || size > ThumbnailService.MAX_SIZE) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        if (request.checkNotModified("\"" + thumbnailService.getThumbnailKey(info, size) + "\"")) {
+            return null; // 304, the client's copy is current
+        }
+
+        MediaType mediaType = getMediaType(info.getFileType().equalsIgnoreCase("png") ? "png" : "jpg");
+        try {
+            return thumbnailService.getThumbnail(info, size)
+                    .thenApply(thumbnail -> ResponseEntity.ok()
+                            .cacheControl(fileCacheControl())
+                            .contentType(mediaType)
+                            .<Resource>body(new FileSystemResource(thumbnail)))
+                    .exceptionally(e -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+        } catch (RejectedExecutionException e) {
+            // Too many thumbnails queued; ask the client to come back rather than piling up
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .build());
+        }
+    }
+
+    /**
+     * Endpoint to start a resumable, chunked upload.
+     * The answer says how the file is split; send each chunk with PUT to
+     * /uploads/{uploadId}/chunks/{index}, in any order and in parallel, then
+     * POST /uploads/{uploadId}/complete.
+     * @param upload File name, total size and optionally the chunk size
+     * @return 201 with the upload's status, 400 for bad parameters, 409 if the file exists,
+     *         503 if too many uploads are in progress, 507 if the disk is too full
+     */
+    @PostMapping("/uploads")
+    public ResponseEntity<UploadStatus> startUpload(@RequestBody UploadRequest upload) {
+        try {
+            return ResponseEntity.status(HttpStatus.CREATED).body(uploadService.create(upload));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (FileAlreadyExistsException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build(); // Set overwrite to replace it
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "30")
+                    .build();
+        } catch (UploadService.InsufficientStorageException e) {
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).build();
+        } catch (IOException e) {
+            log.error("Failed to start upload of {}", upload.getFileName(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Endpoint to get the state of an upload, e.g. to find the chunks to resend after an interruption.
+     * @param uploadId Upload id
+     * @return Upload status with the chunks still missing, or 404 if there is no such upload
+     */
+    @GetMapping("/uploads/{uploadId}")
+    public ResponseEntity<UploadStatus> getUploadStatus(@PathVariable String uploadId) {
+        try {
+            return ResponseEntity.ok()
+                    .cacheControl(CacheControl.noStore())
+                    .body(uploadService.getStatus(uploadId));
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    /**
+     * Endpoint to send one chunk of an upload as the raw request body.
+     * The body is streamed to disk as it arrives; the chunk is kept only if its
+     * SHA-256 matches the X-Chunk-SHA256 header.
+     * @param uploadId Upload id
+     * @param index Chunk index, from 0
+     * @param sha256 Hex SHA-256 of the chunk
+     * @param body Chunk content
+     * @return 204 if stored, 422 if the checksum didn't match (resend it), 400 for a bad
+     *         index or length, 404 for an unknown upload, 409 if the upload is being completed
+     *         or the same chunk is being sent by another request
+     */
+    @PutMapping(path = "/uploads/{uploadId}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Void> uploadChunk(@PathVariable String uploadId,
+                                            @PathVariable int index,
+                                            @RequestHeader(name = "X-Chunk-SHA256", required = false) String sha256,
+                                            InputStream body) {
+        try {
+            if (!uploadService.writeChunk(uploadId, index, body, sha256)) {
+                return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).build();
+            }
+            return ResponseEntity.noContent().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IOException e) {
+            log.warn("Failed to store chunk {} of upload {}: {}", index, uploadId, e.toString());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Endpoint to finish an upload: the file is moved into place atomically and listed at once.
+     * @param uploadId Upload id
+     * @return 201 with the new file's metadata, 409 if chunks are missing or the file
+     *         exists, or 404 for an unknown upload
+     */
+    @PostMapping("/uploads/{uploadId}/complete")
+    public ResponseEntity<FileInfo> completeUpload(@PathVariable String uploadId) {
+        try {
+            FileInfo info = uploadService.complete(uploadId);
+            return ResponseEntity.status(HttpStatus.CREATED).body(info);
+        } catch (IllegalStateException | FileAlreadyExistsException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build(); // GET the status for missing chunks
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IOException e) {
+            log.error("Failed to complete upload {}", uploadId, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Endpoint to abandon an upload and delete what was received.
+     * @param uploadId Upload id
+     * @return 204, or 404 for an unknown upload
+     */
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<Void> cancelUpload(@PathVariable String uploadId) {
+        try {
+            uploadService.cancel(uploadId);
+            return ResponseEntity.noContent().build();
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IOException e) {
+            log.error("Failed to cancel upload {}", uploadId, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Builds a response that streams a file straight from disk to the client.
+     * Answers 304 from metadata alone when the client's copy is current, and
+     * honours Range / If-Range by sending only the requested byte ranges (206).
+     * @param fileName Name of the file to send
+     * @param endpoint Endpoint name for metrics
+     * @param disposition Content-Disposition header value
+     * @param request Current request
+     * @return Streaming response, or 404 if the file doesn't exist
+     */
+    private ResponseEntity<StreamingResponseBody> streamFile(String fileName, String endpoint, String disposition,
+                                                             WebRequest request) {
+        try {
+            FileInfo info = fileService.getFileInfo(fileName);
+            Path filePath = Paths.get(info.getFilePath());
+            long fileSize = info.getFileSize();
 
+            // Sniffed from the content in the background; the extension stands in until then
             String fileType = getFileExtension(fileName).toLowerCase();
-            MediaType mediaType = getMediaType(fileType);
+            MediaType mediaType = info.getMimeType() != null
+                    ? MediaType.parseMediaType(info.getMimeType())
+                    : getMediaType(fileType);
+
+            // Range requests address the identity bytes, so they are never compressed
+            String range = request.getHeader(HttpHeaders.RANGE);
+            boolean compressible = compressionService.isCompressible(fileType, fileSize);
+            boolean gzip = compressible && range == null
+                    && compressionService.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+
+            String etag = etagOf(info);
+            if (request.checkNotModified(gzip ? gzipEtag(etag) : etag, info.getLastModified())) {
+                return null; // 304, the file is never opened
+            }
 
-            // Inline disposition tells browser to try to render the file
             HttpHeaders headers = new HttpHeaders();
-            headers.add(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + fileName);
+            headers.add(HttpHeaders.CONTENT_DISPOSITION, disposition);
+            headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+            headers.setCacheControl(fileCacheControl());
+            if (compressible) {
+                headers.setVary(Collections.singletonList(HttpHeaders.ACCEPT_ENCODING));
+            }
+            if (gzip) {
+                return gzipResponse(ResponseEntity.ok().headers(headers).contentType(mediaType), endpoint, info);
+            }
+
+            // Serve only the requested byte ranges when the client's copy is still current
+            if (range != null && RangeResponses.isRangeApplicable(request.getHeader(HttpHeaders.IF_RANGE), etag, info.getLastModified())) {
+                ResponseEntity<StreamingResponseBody> partial =
+                        RangeResponses.build(fileService, range, filePath, fileSize, mediaType, headers);
+                if (partial != null) {
+                    return ResponseEntity.status(partial.getStatusCode())
+                            .headers(partial.getHeaders())
+                            .body(partial.getBody() != null
+                                    ? transferMetrics.record(endpoint, fileSize, partial.getBody())
+                                    : null);
+                }
+            }
 
             return ResponseEntity.ok()
                     .headers(headers)
                     .contentType(mediaType)
-                    .body(fileContent);
+                    .contentLength(fileSize)
+                    .body(transferMetrics.record(endpoint, fileSize, fileBody(info)));
 
         } catch (IOException e) {
-            return ResponseEntity.notFound().build(); // 404
+            return ResponseEntity.notFound().build(); // 404 if file doesn't exist
+        }
+    }
+
+    /**
+     * Builds the body for a whole file: from the hot-file cache for small files,
+     * otherwise streamed from disk.
+     * @param info Metadata of the file to send
+     * @return Response body writing the file content
+     * @throws IOException If a small file can't be loaded into the cache
+     */
+    private StreamingResponseBody fileBody(FileInfo info) throws IOException {
+        if (hotFileCache.isCacheable(info)) {
+            ByteBuffer content = hotFileCache.get(info);
+            return out -> Channels.newChannel(out).write(content); // Copied out through a small heap buffer
+        }
+        Path filePath = Paths.get(info.getFilePath());
+        return out -> fileService.transferTo(filePath, 0, info.getFileSize(), out);
+    }
+
+    /**
+     * Finishes a gzip-encoded response for a whole file. Content-Length is only known,
+     * and sent, once the compressed variant has been cached; the variant is opened
+     * here so the body is exactly the length sent.
+     * @param response Response with status and headers already set
+     * @param endpoint Endpoint name for metrics
+     * @param info Metadata of the file to send
+     * @return Streaming gzip response
+     * @throws IOException If the cached variant can't be read
+     */
+    private ResponseEntity<StreamingResponseBody> gzipResponse(ResponseEntity.BodyBuilder response, String endpoint,
+                                                               FileInfo info) throws IOException {
+        response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        FileChannel variant = compressionService.openVariant(info);
+        if (variant != null) {
+            try {
+                response.contentLength(variant.size());
+            } catch (IOException e) {
+                variant.close();
+                throw e;
+            }
+        }
+        return response.body(transferMetrics.record(endpoint, info.getFileSize(),
+                out -> compressionService.writeGzip(info, variant, out)));
+    }
+
+    /**
+     * Utility method to derive the entity tag of a gzip-encoded representation.
+     * The encoded bytes differ from the file's, so they need a tag of their own.
+     * @param etag Quoted entity tag of the file
+     * @return Quoted entity tag of the gzip representation
+     */
+    private String gzipEtag(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+
+    /**
+     * Utility method to build a strong entity tag for a file version.
+     * Size and modification time identify the version; both are known as soon as
+     * the file is indexed, so the tag stays the same for the life of the version
+     * (the content hash computed later in the background would change it).
+     * @param info File metadata
+     * @return Quoted entity tag
+     */
+    private String etagOf(FileInfo info) {
+        return "\"" + Long.toHexString(info.getFileSize()) + "-" + Long.toHexString(info.getLastModified()) + "\"";
+    }
+
+    /**
+     * Utility method to build the entity tag of the file listing.
+     * @return Quoted entity tag derived from the index version
+     */
+    private String listingEtag() {
+        return "\"list-" + Long.toHexString(fileService.getListingVersion()) + "\"";
+    }
+
+    /**
+     * Utility method to build the Cache-Control policy for file responses.
+     * @return max-age policy if configured, otherwise no-cache (always revalidate)
+     */
+    private CacheControl fileCacheControl() {
+        return maxAgeSeconds > 0 ? CacheControl.maxAge(maxAgeSeconds, TimeUnit.SECONDS) : CacheControl.noCache();
+    }
+
+    /**
+     * Utility method to parse a sort direction parameter.
+     * @param order "asc" or "desc"
+     * @return true for descending order
+     */
+    private boolean isDescending(String order) {
+        if (order.equalsIgnoreCase("desc")) {
+            return true;
+        }
+        if (order.equalsIgnoreCase("asc")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown sort direction: " + order);
+    }
+
+    /**
+     * Utility method to parse a comma-separated extension filter.
+     * @param ext Extensions such as "txt,loc", or null
+     * @return Lower-cased set of extensions (empty if no filter)
+     */
+    private Set<String> parseExtensions(String ext) {
+        Set<String> extensions = new HashSet<>();
+        if (ext != null) {
+            for (String e : ext.split(",")) {
+                if (!e.trim().isEmpty()) {
+                    extensions.add(e.trim().toLowerCase());
+                }
+            }
         }
+        return extensions;
     }
 
     /**
@@ -0,0 +1,154 @@
+package com.fileserver.controller;
+
+import com.fileserver.service.FileService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds partial content (206) responses for HTTP Range requests.
+ *
+ * Every range is sent with a positional transfer from the file, so serving a
+ * range never reads the rest of the file or holds it in memory.
+ */
+final class RangeResponses {
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private RangeResponses() {}
+
+    /**
+     * Checks whether a Range header should be honoured, based on its If-Range precondition.
+     * If-Range holds either an entity tag or a date; when it no longer matches the
+     * current file the whole file must be sent instead of the requested ranges.
+     *
+     * @param ifRange      If-Range header value, or null if absent
+     * @param etag         Current entity tag of the file, or null if it has none
+     * @param lastModified Last modification time of the file in milliseconds
+     * @return true if the ranges may be served
+     */
+    static boolean isRangeApplicable(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Only a strong entity tag can validate a range
+            return etag != null && !ifRange.startsWith("W/") && ifRange.equals(etag);
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return date / 1000 == lastModified / 1000; // HTTP dates have one-second precision
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds the response for a Range request on a file.
+     *
+     * @param fileService Service used to transfer file regions
+     * @param rangeHeader Value of the Range header
+     * @param filePath    Path of the file being served
+     * @param fileSize    Size of the file in bytes
+     * @param mediaType   Media type of the file
+     * @param headers     Headers to send with the response (disposition, validators, ...)
+     * @return 206 with one range or a multipart/byteranges body, 416 if no range can be
+     *         satisfied, or null if the header is malformed and should be ignored
+     */
+    static ResponseEntity<StreamingResponseBody> build(FileService fileService, String rangeHeader, Path filePath,
+                                                      long fileSize, MediaType mediaType, HttpHeaders headers) {
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return null; // Malformed Range headers are ignored and the full file is sent
+        }
+        if (ranges.isEmpty()) {
+            return null;
+        }
+
+        // Keep only the ranges that overlap the file
+        List<long[]> satisfiable = new ArrayList<>();
+        long total = 0;
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(fileSize);
+            long end = range.getRangeEnd(fileSize);
+            if (start < fileSize && start <= end) {
+                satisfiable.add(new long[] {start, end});
+                total += end - start + 1;
+            }
+        }
+
+        if (satisfiable.isEmpty() || total > fileSize && satisfiable.size() > 1) {
+            // Nothing to send, or overlapping ranges asking for more than the whole file
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize);
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).headers(headers).build();
+        }
+
+        if (satisfiable.size() == 1) {
+            long start = satisfiable.get(0)[0];
+            long end = satisfiable.get(0)[1];
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileSize);
+
+            StreamingResponseBody body = out -> fileService.transferTo(filePath, start, end - start + 1, out);
+
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .headers(headers)
+                    .contentType(mediaType)
+                    .contentLength(end - start + 1)
+                    .body(body);
+        }
+
+        return multipart(fileService, satisfiable, filePath, fileSize, mediaType, headers);
+    }
+
+    /**
+     * Builds a multipart/byteranges response carrying several ranges of the file.
+     */
+    private static ResponseEntity<StreamingResponseBody> multipart(FileService fileService, List<long[]> ranges,
+                                                                  Path filePath, long fileSize, MediaType mediaType,
+                                                                  HttpHeaders headers) {
+        String boundary = new String(MimeTypeUtils.generateMultipartBoundary(), StandardCharsets.US_ASCII);
+
+        // Part headers are small; build them up front so Content-Length is exact
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + mediaType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + range[0] + "-" + range[1] + "/" + fileSize + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + (range[1] - range[0] + 1);
+        }
+        byte[] closing = ("\r\n--" + boundary + "--").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length + CRLF.length;
+
+        StreamingResponseBody body = out -> {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                out.write(partHeaders.get(i));
+                fileService.transferTo(filePath, range[0], range[1] - range[0] + 1, out);
+            }
+            out.write(closing);
+            out.write(CRLF);
+        };
+
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .headers(headers)
+                .contentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary))
+                .contentLength(contentLength)
+                .body(body);
+    }
+}
@@ -0,0 +1,103 @@
+package com.fileserver.controller;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records how long file bodies take to send and how many bytes reach clients.
+ *
+ * Transfer times are tagged with the endpoint and a file size bucket, so p50/p99
+ * can be read per endpoint and per size. Unlike http.server.requests, a stream
+ * that fails after the headers went out (e.g. the client disconnects) is counted
+ * as an error here.
+ */
+@Component
+class TransferMetrics {
+
+    // Upper bounds of the size buckets, in bytes, and their tag values
+    private static final long[] SIZE_LIMITS = {64L << 10, 1L << 20, 16L << 20, 256L << 20};
+    private static final String[] SIZE_TAGS = {"<64KB", "64KB-1MB", "1MB-16MB", "16MB-256MB", ">256MB"};
+    private static final String UNKNOWN_SIZE_TAG = "unknown";
+
+    @Autowired
+    private MeterRegistry registry;
+
+    /**
+     * Wraps a response body so that its transfer is timed and its bytes counted.
+     *
+     * @param endpoint Endpoint name used as tag (e.g. "download")
+     * @param size     Size of the file being sent, which picks the size bucket (negative if unknown)
+     * @param body     Body to wrap
+     * @return Body recording metrics when it finishes
+     */
+    StreamingResponseBody record(String endpoint, long size, StreamingResponseBody body) {
+        Counter bytes = Counter.builder("file.bytes.served")
+                .description("Bytes of file bodies written to clients")
+                .baseUnit("bytes")
+                .tag("endpoint", endpoint)
+                .register(registry);
+
+        return out -> {
+            CountingOutputStream counted = new CountingOutputStream(out);
+            Timer.Sample sample = Timer.start(registry);
+            String outcome = "error";
+            try {
+                body.writeTo(counted);
+                outcome = "success";
+            } finally {
+                sample.stop(Timer.builder("file.transfer")
+                        .description("Time to write a file body to the client")
+                        .tag("endpoint", endpoint)
+                        .tag("size", sizeBucket(size))
+                        .tag("outcome", outcome)
+                        .publishPercentiles(0.5, 0.99)
+                        .publishPercentileHistogram()
+                        .register(registry));
+                bytes.increment(counted.count);
+            }
+        };
+    }
+
+    private static String sizeBucket(long size) {
+        if (size < 0) {
+            return UNKNOWN_SIZE_TAG;
+        }
+        for (int i = 0; i < SIZE_LIMITS.length; i++) {
+            if (size < SIZE_LIMITS[i]) {
+                return SIZE_TAGS[i];
+            }
+        }
+        return SIZE_TAGS[SIZE_TAGS.length - 1];
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.fileserver.model;
+
+/**
+ * One entry of the change journal: a file that was added, modified or deleted.
+ */
+public class FileChange {
+
+    /**
+     * Kind of change.
+     */
+    public enum Type { ADDED, MODIFIED, DELETED }
+
+    // Position of this change in the journal; increases by one per change
+    private long sequence;
+
+    // What happened to the file
+    private Type type;
+
+    // Entry after the change, or the last known entry if the file was deleted
+    private FileInfo file;
+
+    /**
+     * Default constructor (required for frameworks like Spring and Jackson)
+     */
+    public FileChange() {}
+
+    /**
+     * Parameterized constructor to initialize all fields
+     *
+     * @param sequence Position of this change in the journal
+     * @param type     Kind of change
+     * @param file     Entry after the change, or the last known entry for a deletion
+     */
+    public FileChange(long sequence, Type type, FileInfo file) {
+        this.sequence = sequence;
+        this.type = type;
+        this.file = file;
+    }
+
+    // ---------- Getters and Setters ----------
+
+    /**
+     * Gets the position of this change in the journal.
+     *
+     * @return sequence
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets the position of this change in the journal.
+     *
+     * @param sequence Position of this change
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Gets the kind of change.
+     *
+     * @return type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Sets the kind of change.
+     *
+     * @param type Kind of change
+     */
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Gets the file the change applies to.
+     *
+     * @return file
+     */
+    public FileInfo getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the file the change applies to.
+     *
+     * @param file Entry after the change, or the last known entry for a deletion
+     */
+    public void setFile(FileInfo file) {
+        this.file = file;
+    }
+}
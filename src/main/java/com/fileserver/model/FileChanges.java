@@ -0,0 +1,115 @@
+package com.fileserver.model;
+
+import java.util.List;
+
+/**
+ * Changes since a client's last known journal position, or a request to reload the full listing.
+ */
+public class FileChanges {
+
+    // Changes after the requested position, oldest first (empty when resync is set)
+    private List<FileChange> changes;
+
+    // Position to pass as "since" on the next request
+    private long sequence;
+
+    // True if more changes are waiting beyond this batch
+    private boolean more;
+
+    // True if the requested position is no longer in the journal; reload /list, then continue from sequence
+    private boolean resync;
+
+    /**
+     * Default constructor (required for frameworks like Spring and Jackson)
+     */
+    public FileChanges() {}
+
+    /**
+     * Parameterized constructor to initialize all fields
+     *
+     * @param changes  Changes after the requested position
+     * @param sequence Position to continue from
+     * @param more     Whether more changes are waiting
+     * @param resync   Whether the client must reload the full listing
+     */
+    public FileChanges(List<FileChange> changes, long sequence, boolean more, boolean resync) {
+        this.changes = changes;
+        this.sequence = sequence;
+        this.more = more;
+        this.resync = resync;
+    }
+
+    // ---------- Getters and Setters ----------
+
+    /**
+     * Gets the changes, oldest first.
+     *
+     * @return changes
+     */
+    public List<FileChange> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Sets the changes.
+     *
+     * @param changes Changes after the requested position
+     */
+    public void setChanges(List<FileChange> changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * Gets the position to continue from.
+     *
+     * @return sequence
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets the position to continue from.
+     *
+     * @param sequence Position to pass as "since" next time
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Checks whether more changes are waiting beyond this batch.
+     *
+     * @return more
+     */
+    public boolean isMore() {
+        return more;
+    }
+
+    /**
+     * Sets whether more changes are waiting.
+     *
+     * @param more Whether more changes are waiting
+     */
+    public void setMore(boolean more) {
+        this.more = more;
+    }
+
+    /**
+     * Checks whether the client must reload the full listing.
+     *
+     * @return resync
+     */
+    public boolean isResync() {
+        return resync;
+    }
+
+    /**
+     * Sets whether the client must reload the full listing.
+     *
+     * @param resync Whether a resync is needed
+     */
+    public void setResync(boolean resync) {
+        this.resync = resync;
+    }
+}
@@ -1,5 +1,7 @@
 package com.fileserver.model;
 
+import java.util.Objects;
+
 /**
  * A simple model class to store metadata about a file.
  */
@@ -17,6 +19,22 @@ public class FileInfo {
     // Absolute file path on the server (e.g., "/home/files/upload/document.txt")
     private String filePath;
 
+    // Last modification time in milliseconds since the epoch
+    private long lastModified;
+
+    // Hex-encoded SHA-256 of the file content, or null if it hasn't been computed
+    private String contentHash;
+
+    // MIME type sniffed from the content, or null until the metadata has been computed
+    private String mimeType;
+
+    // Number of lines for text files, otherwise null
+    private Long lineCount;
+
+    // Pixel dimensions for images, otherwise null
+    private Integer width;
+    private Integer height;
+
     /**
      * Default constructor (required for frameworks like Spring and Jackson)
      */
@@ -37,6 +55,23 @@ public class FileInfo {
         this.filePath = filePath;
     }
 
+    /**
+     * Constructor that also records the file version
+     *
+     * @param fileName     Name of the file
+     * @param fileType     File extension/type
+     * @param fileSize     Size of the file in bytes
+     * @param filePath     Full path to the file on disk
+     * @param lastModified Last modification time in milliseconds
+     * @param contentHash  SHA-256 of the content, or null if not computed
+     */
+    public FileInfo(String fileName, String fileType, long fileSize, String filePath,
+                    long lastModified, String contentHash) {
+        this(fileName, fileType, fileSize, filePath);
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+
     // ---------- Getters and Setters ----------
 
     /**
@@ -110,4 +145,125 @@ public class FileInfo {
     public void setFilePath(String filePath) {
         this.filePath = filePath;
     }
+
+    /**
+     * Gets the last modification time of the file.
+     *
+     * @return lastModified in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Sets the last modification time of the file.
+     *
+     * @param lastModified Time in milliseconds since the epoch
+     */
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Gets the SHA-256 hash of the file content.
+     *
+     * @return contentHash, or null if it hasn't been computed
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Sets the SHA-256 hash of the file content.
+     *
+     * @param contentHash Hex-encoded hash
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Gets the MIME type detected from the file content.
+     *
+     * @return mimeType, or null if the metadata hasn't been computed yet
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Sets the MIME type detected from the file content.
+     *
+     * @param mimeType MIME type (e.g., "image/png")
+     */
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Gets the number of lines of a text file.
+     *
+     * @return lineCount, or null if the file isn't text or hasn't been read yet
+     */
+    public Long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Sets the number of lines of a text file.
+     *
+     * @param lineCount Number of lines
+     */
+    public void setLineCount(Long lineCount) {
+        this.lineCount = lineCount;
+    }
+
+    /**
+     * Gets the width of an image.
+     *
+     * @return width in pixels, or null if the file isn't an image or hasn't been read yet
+     */
+    public Integer getWidth() {
+        return width;
+    }
+
+    /**
+     * Sets the width of an image.
+     *
+     * @param width Width in pixels
+     */
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    /**
+     * Gets the height of an image.
+     *
+     * @return height in pixels, or null if the file isn't an image or hasn't been read yet
+     */
+    public Integer getHeight() {
+        return height;
+    }
+
+    /**
+     * Sets the height of an image.
+     *
+     * @param height Height in pixels
+     */
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    /**
+     * Checks whether another entry describes the same version of the same file.
+     *
+     * @param other Entry to compare with
+     * @return true if path, size and modification time all match
+     */
+    public boolean isSameVersion(FileInfo other) {
+        return other != null
+                && fileSize == other.fileSize
+                && lastModified == other.lastModified
+                && Objects.equals(filePath, other.filePath);
+    }
 }
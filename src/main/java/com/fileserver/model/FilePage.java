@@ -0,0 +1,69 @@
+package com.fileserver.model;
+
+import java.util.List;
+
+/**
+ * One page of a file listing, plus the cursor needed to fetch the next page.
+ */
+public class FilePage {
+
+    // Files on this page, in the requested order
+    private List<FileInfo> files;
+
+    // Opaque cursor for the next page, or null if this is the last page
+    private String nextCursor;
+
+    /**
+     * Default constructor (required for frameworks like Spring and Jackson)
+     */
+    public FilePage() {}
+
+    /**
+     * Parameterized constructor to initialize all fields
+     *
+     * @param files      Files on this page
+     * @param nextCursor Cursor for the next page, or null if there is none
+     */
+    public FilePage(List<FileInfo> files, String nextCursor) {
+        this.files = files;
+        this.nextCursor = nextCursor;
+    }
+
+    // ---------- Getters and Setters ----------
+
+    /**
+     * Gets the files on this page.
+     *
+     * @return files
+     */
+    public List<FileInfo> getFiles() {
+        return files;
+    }
+
+    /**
+     * Sets the files on this page.
+     *
+     * @param files Files on this page
+     */
+    public void setFiles(List<FileInfo> files) {
+        this.files = files;
+    }
+
+    /**
+     * Gets the cursor for the next page.
+     *
+     * @return nextCursor, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Sets the cursor for the next page.
+     *
+     * @param nextCursor Cursor for the next page
+     */
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
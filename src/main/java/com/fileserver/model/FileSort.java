@@ -0,0 +1,50 @@
+package com.fileserver.model;
+
+import java.util.Comparator;
+
+/**
+ * Orders in which file listings can be sorted.
+ * Every order ends with the file path as a tie-breaker, so it is total and stable
+ * across requests, which is what makes cursor-based pagination possible.
+ */
+public enum FileSort {
+
+    // Sort by file name (e.g., "a.txt" before "b.png")
+    NAME(Comparator.comparing(FileInfo::getFileName)
+            .thenComparing(FileInfo::getFilePath)),
+
+    // Sort by file size in bytes
+    SIZE(Comparator.comparingLong(FileInfo::getFileSize)
+            .thenComparing(FileInfo::getFilePath)),
+
+    // Sort by file extension, then by name
+    TYPE(Comparator.comparing(FileInfo::getFileType)
+            .thenComparing(FileInfo::getFileName)
+            .thenComparing(FileInfo::getFilePath));
+
+    private final Comparator<FileInfo> comparator;
+
+    FileSort(Comparator<FileInfo> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Gets the comparator implementing this order.
+     *
+     * @return Comparator over FileInfo objects
+     */
+    public Comparator<FileInfo> getComparator() {
+        return comparator;
+    }
+
+    /**
+     * Parses a sort request parameter (e.g., "name", "size", "type").
+     *
+     * @param value Parameter value, case-insensitive
+     * @return Matching sort order
+     * @throws IllegalArgumentException If the value is not a known sort order
+     */
+    public static FileSort fromParam(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
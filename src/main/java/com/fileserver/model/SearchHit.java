@@ -0,0 +1,113 @@
+package com.fileserver.model;
+
+/**
+ * A single line matching a full-text search query.
+ */
+public class SearchHit {
+
+    // Name of the file containing the match (e.g., "server.loc")
+    private String fileName;
+
+    // Absolute file path on the server
+    private String filePath;
+
+    // Byte offset of the start of the matching line within the file
+    private long lineOffset;
+
+    // Text of the matching line (truncated if very long)
+    private String snippet;
+
+    /**
+     * Default constructor (required for frameworks like Spring and Jackson)
+     */
+    public SearchHit() {}
+
+    /**
+     * Parameterized constructor to initialize all fields
+     *
+     * @param fileName   Name of the file
+     * @param filePath   Full path to the file on disk
+     * @param lineOffset Byte offset of the matching line
+     * @param snippet    Text of the matching line
+     */
+    public SearchHit(String fileName, String filePath, long lineOffset, String snippet) {
+        this.fileName = fileName;
+        this.filePath = filePath;
+        this.lineOffset = lineOffset;
+        this.snippet = snippet;
+    }
+
+    // ---------- Getters and Setters ----------
+
+    /**
+     * Gets the name of the file containing the match.
+     *
+     * @return fileName
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Sets the name of the file containing the match.
+     *
+     * @param fileName Name of the file
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Gets the full file path on the server.
+     *
+     * @return filePath
+     */
+    public String getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * Sets the full file path on the server.
+     *
+     * @param filePath Absolute path to the file
+     */
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    /**
+     * Gets the byte offset of the matching line.
+     *
+     * @return lineOffset
+     */
+    public long getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * Sets the byte offset of the matching line.
+     *
+     * @param lineOffset Offset in bytes from the start of the file
+     */
+    public void setLineOffset(long lineOffset) {
+        this.lineOffset = lineOffset;
+    }
+
+    /**
+     * Gets the text of the matching line.
+     *
+     * @return snippet
+     */
+    public String getSnippet() {
+        return snippet;
+    }
+
+    /**
+     * Sets the text of the matching line.
+     *
+     * @param snippet Line text
+     */
+    public void setSnippet(String snippet) {
+        this.snippet = snippet;
+    }
+}
@@ -0,0 +1,113 @@
+package com.fileserver.model;
+
+/**
+ * Parameters of a chunked upload, sent when it is started.
+ */
+public class UploadRequest {
+
+    // Name the file will have in the upload directory
+    private String fileName;
+
+    // Total size of the file in bytes
+    private long fileSize;
+
+    // Size of every chunk but the last, or 0 for the server's default
+    private long chunkSize;
+
+    // Whether an existing file of the same name may be replaced
+    private boolean overwrite;
+
+    /**
+     * Default constructor (required for frameworks like Spring and Jackson)
+     */
+    public UploadRequest() {}
+
+    /**
+     * Parameterized constructor to initialize all fields
+     *
+     * @param fileName  Name of the file
+     * @param fileSize  Total size in bytes
+     * @param chunkSize Size of every chunk but the last (0 = server default)
+     * @param overwrite Whether an existing file may be replaced
+     */
+    public UploadRequest(String fileName, long fileSize, long chunkSize, boolean overwrite) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.overwrite = overwrite;
+    }
+
+    // ---------- Getters and Setters ----------
+
+    /**
+     * Gets the name of the file.
+     *
+     * @return fileName
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Sets the name of the file.
+     *
+     * @param fileName Name of the file
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Gets the total size of the file.
+     *
+     * @return fileSize in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Sets the total size of the file.
+     *
+     * @param fileSize Size in bytes
+     */
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Gets the requested chunk size.
+     *
+     * @return chunkSize in bytes, or 0 for the server default
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the requested chunk size.
+     *
+     * @param chunkSize Size in bytes, or 0 for the server default
+     */
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Checks whether an existing file may be replaced.
+     *
+     * @return overwrite
+     */
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    /**
+     * Sets whether an existing file may be replaced.
+     *
+     * @param overwrite Whether to replace an existing file
+     */
+    public void setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+    }
+}
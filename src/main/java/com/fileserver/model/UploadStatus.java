@@ -0,0 +1,162 @@
+package com.fileserver.model;
+
+import java.util.List;
+
+/**
+ * State of a chunked upload: how the file is split and which chunks are still missing.
+ */
+public class UploadStatus {
+
+    // Identifies the upload in the chunk, status and complete requests
+    private String uploadId;
+
+    // Name the file will have in the upload directory
+    private String fileName;
+
+    // Total size of the file in bytes
+    private long fileSize;
+
+    // Size of every chunk but the last
+    private long chunkSize;
+
+    // Number of chunks the file is split into
+    private int chunkCount;
+
+    // Indexes of the chunks not received yet, in ascending order
+    private List<Integer> missingChunks;
+
+    /**
+     * Default constructor (required for frameworks like Spring and Jackson)
+     */
+    public UploadStatus() {}
+
+    /**
+     * Parameterized constructor to initialize all fields
+     *
+     * @param uploadId      Upload identifier
+     * @param fileName      Name of the file
+     * @param fileSize      Total size in bytes
+     * @param chunkSize     Size of every chunk but the last
+     * @param chunkCount    Number of chunks
+     * @param missingChunks Indexes of the chunks not received yet
+     */
+    public UploadStatus(String uploadId, String fileName, long fileSize, long chunkSize, int chunkCount,
+                        List<Integer> missingChunks) {
+        this.uploadId = uploadId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.missingChunks = missingChunks;
+    }
+
+    // ---------- Getters and Setters ----------
+
+    /**
+     * Gets the upload identifier.
+     *
+     * @return uploadId
+     */
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Sets the upload identifier.
+     *
+     * @param uploadId Upload identifier
+     */
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    /**
+     * Gets the name of the file.
+     *
+     * @return fileName
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Sets the name of the file.
+     *
+     * @param fileName Name of the file
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Gets the total size of the file.
+     *
+     * @return fileSize in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Sets the total size of the file.
+     *
+     * @param fileSize Size in bytes
+     */
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Gets the size of every chunk but the last.
+     *
+     * @return chunkSize in bytes
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the size of every chunk but the last.
+     *
+     * @param chunkSize Size in bytes
+     */
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Gets the number of chunks.
+     *
+     * @return chunkCount
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Sets the number of chunks.
+     *
+     * @param chunkCount Number of chunks
+     */
+    public void setChunkCount(int chunkCount) {
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Gets the indexes of the chunks not received yet.
+     *
+     * @return missingChunks
+     */
+    public List<Integer> getMissingChunks() {
+        return missingChunks;
+    }
+
+    /**
+     * Sets the indexes of the chunks not received yet.
+     *
+     * @param missingChunks Chunk indexes
+     */
+    public void setMissingChunks(List<Integer> missingChunks) {
+        this.missingChunks = missingChunks;
+    }
+}
@@ -0,0 +1,335 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams many files as one ZIP archive, writing it while it is being built.
+ *
+ * Each archive has a reader thread that works ahead of the response: it reads the
+ * next files into a small, fixed set of buffers while the request thread compresses
+ * and sends the current one, so disk and network stay busy at the same time and
+ * memory use is the same whatever the archive size. Already-compressed types are
+ * added with the STORE method; the reader computes their CRC in a pass ahead of the
+ * entry (ZIP needs it before the data), which the second read then finds in the page cache.
+ *
+ * A reader whose response stops taking data (it never started, or the client stalled)
+ * gives up after the stall timeout, so abandoned archives can't hold reader slots.
+ */
+@Service
+public class ArchiveService {
+
+    private static final Logger log = LoggerFactory.getLogger(ArchiveService.class);
+
+    // Size of each read buffer
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // Buffers each archive may fill ahead of the response
+    private static final int BUFFERS_PER_ARCHIVE = 8;
+
+    // Archives that may be built at the same time; further requests are turned away
+    @Value("${file.archive.max-concurrent:16}")
+    private int maxConcurrent;
+
+    // Comma-separated extensions added without compression
+    @Value("${file.archive.stored-types:jpg,jpeg,png,gif,docx,xlsx,pptx,zip,gz,7z,mp4}")
+    private String storedTypes;
+
+    // Deflate level for the other files, 1 (fastest) to 9 (smallest)
+    @Value("${file.archive.level:6}")
+    private int level;
+
+    // Seconds the reader waits for the response to take data before abandoning the archive
+    @Value("${file.archive.stall-timeout-seconds:60}")
+    private long stallTimeoutSeconds;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    private final Set<String> storedTypeSet = new HashSet<>();
+    private ThreadPoolExecutor readers;
+
+    @PostConstruct
+    public void init() {
+        for (String type : storedTypes.split(",")) {
+            if (!type.trim().isEmpty()) {
+                storedTypeSet.add(type.trim().toLowerCase());
+            }
+        }
+
+        // No queue: a reader either starts right away or the archive is rejected
+        AtomicInteger threadCount = new AtomicInteger();
+        readers = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "archive-reader-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        readers.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        readers.shutdownNow();
+    }
+
+    /**
+     * Reserves a reader for a new archive. Reserving before the response starts lets
+     * callers answer "busy" with a proper status instead of a truncated archive.
+     *
+     * @param files Files to archive, in order; iterated lazily by the reader
+     * @return Archive ready to be written
+     * @throws RejectedExecutionException If too many archives are being built already
+     */
+    public Archive start(Iterator<FileInfo> files) {
+        Archive archive = new Archive();
+        archive.reader = readers.submit(() -> archive.read(files));
+        return archive;
+    }
+
+    private boolean isStored(FileInfo info) {
+        return storedTypeSet.contains(info.getFileType().toLowerCase());
+    }
+
+    /**
+     * Name of a file inside the archive: its path below the upload directory, with forward slashes.
+     */
+    private String entryName(FileInfo info) {
+        Path path = Paths.get(info.getFilePath());
+        Path root = fileIndex.getRoot();
+        Path relative = root != null && path.startsWith(root) ? root.relativize(path) : path.getFileName();
+        return relative.toString().replace('\\', '/');
+    }
+
+    /**
+     * One archive being built: a reader filling buffers and a writer draining them.
+     */
+    public class Archive {
+
+        // Buffers not currently holding data; bounds how far the reader can get ahead
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BUFFERS_PER_ARCHIVE);
+
+        // Work for the writer, in archive order
+        private final BlockingQueue<Item> items = new ArrayBlockingQueue<>(BUFFERS_PER_ARCHIVE * 4);
+
+        private Future<?> reader;
+
+        Archive() {
+            for (int i = 0; i < BUFFERS_PER_ARCHIVE; i++) {
+                free.add(new byte[BUFFER_SIZE]);
+            }
+        }
+
+        /**
+         * Writes the archive to a stream, returning when the last entry has been written.
+         *
+         * @param out Stream to write the archive to; left open
+         * @throws IOException If a file can't be read or the client goes away
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            ZipStream zip = new ZipStream(out);
+            try {
+                zip.setLevel(level);
+                while (true) {
+                    Item item = items.poll(1, TimeUnit.SECONDS);
+                    if (item == null) {
+                        if (!reader.isDone()) {
+                            continue; // Still reading
+                        }
+                        item = items.poll(); // May have queued its last item just now
+                        if (item == null) {
+                            throw new IOException("Archive reader stopped"); // Gave up while we were stalled
+                        }
+                    }
+                    if (item.entry != null) {
+                        zip.putNextEntry(item.entry);
+                    } else if (item.data != null) {
+                        zip.write(item.data, 0, item.length);
+                        free.add(item.data);
+                    } else if (item.failure != null) {
+                        throw item.failure;
+                    } else if (item.endOfEntry) {
+                        zip.closeEntry();
+                    } else {
+                        break; // End of archive
+                    }
+                }
+                zip.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing archive");
+            } finally {
+                reader.cancel(true); // Stops the reader if we're leaving early
+                zip.end();
+            }
+        }
+
+        /**
+         * Reader side: queues an entry header and the content of every file.
+         */
+        private void read(Iterator<FileInfo> files) {
+            try {
+                while (files.hasNext()) {
+                    FileInfo info = files.next();
+                    try (FileChannel channel = FileChannel.open(Paths.get(info.getFilePath()), StandardOpenOption.READ)) {
+                        // Files still being appended to are archived as they were when we got to them
+                        long size = channel.size();
+                        ZipEntry entry = new ZipEntry(entryName(info));
+                        entry.setTime(info.getLastModified());
+                        if (isStored(info)) {
+                            entry.setMethod(ZipEntry.STORED);
+                            entry.setSize(size);
+                            entry.setCompressedSize(size);
+                            entry.setCrc(crc(channel, size));
+                        }
+                        put(Item.entry(entry));
+                        readContent(channel, size);
+                        put(Item.END_OF_ENTRY);
+                    } catch (NoSuchFileException e) {
+                        log.debug("Skipping {} in archive, deleted before it was read", info.getFilePath());
+                    }
+                }
+                put(Item.END_OF_ARCHIVE);
+            } catch (InterruptedException e) {
+                // The writer gave up; nobody is waiting for more items
+            } catch (TimeoutException e) {
+                log.debug("Archive response stopped taking data, abandoning it");
+            } catch (IOException | RuntimeException e) {
+                try {
+                    put(Item.failure(e instanceof IOException ? (IOException) e : new IOException(e)));
+                } catch (InterruptedException | TimeoutException ignored) {
+                    // The writer gave up as well
+                }
+            }
+        }
+
+        /**
+         * Queues an item for the writer, waiting at most the stall timeout for room.
+         */
+        private void put(Item item) throws InterruptedException, TimeoutException {
+            if (!items.offer(item, stallTimeoutSeconds, TimeUnit.SECONDS)) {
+                throw new TimeoutException();
+            }
+        }
+
+        /**
+         * Takes a free buffer, waiting at most the stall timeout for the writer to return one.
+         */
+        private byte[] takeBuffer() throws InterruptedException, TimeoutException {
+            byte[] buffer = free.poll(stallTimeoutSeconds, TimeUnit.SECONDS);
+            if (buffer == null) {
+                throw new TimeoutException();
+            }
+            return buffer;
+        }
+
+        private void readContent(FileChannel channel, long size)
+                throws IOException, InterruptedException, TimeoutException {
+            long position = 0;
+            while (position < size) {
+                byte[] buffer = takeBuffer();
+                int read = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(BUFFER_SIZE, size - position)), position);
+                if (read <= 0) {
+                    free.add(buffer);
+                    return;
+                }
+                position += read;
+                put(Item.data(buffer, read));
+            }
+        }
+
+        private long crc(FileChannel channel, long size) throws IOException, InterruptedException, TimeoutException {
+            CRC32 crc = new CRC32();
+            byte[] buffer = takeBuffer();
+            try {
+                long position = 0;
+                while (position < size) {
+                    int read = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(BUFFER_SIZE, size - position)), position);
+                    if (read <= 0) {
+                        break; // Truncated; the writer's size check will reject the entry
+                    }
+                    crc.update(buffer, 0, read);
+                    position += read;
+                }
+            } finally {
+                free.add(buffer);
+            }
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * ZIP stream whose deflater can be released without closing the underlying stream.
+     */
+    private static class ZipStream extends ZipOutputStream {
+
+        ZipStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Frees the deflater's native memory now instead of at garbage collection.
+         */
+        void end() {
+            def.end();
+        }
+    }
+
+    /**
+     * A unit of work for the writer: an entry header, a chunk of content, the end of an entry, or a failure.
+     */
+    private static class Item {
+        static final Item END_OF_ENTRY = new Item(null, null, 0, null, true);
+        static final Item END_OF_ARCHIVE = new Item(null, null, 0, null, false);
+
+        private final ZipEntry entry;
+        private final byte[] data;
+        private final int length;
+        private final IOException failure;
+        private final boolean endOfEntry;
+
+        private Item(ZipEntry entry, byte[] data, int length, IOException failure, boolean endOfEntry) {
+            this.entry = entry;
+            this.data = data;
+            this.length = length;
+            this.failure = failure;
+            this.endOfEntry = endOfEntry;
+        }
+
+        static Item entry(ZipEntry entry) {
+            return new Item(entry, null, 0, null, false);
+        }
+
+        static Item data(byte[] data, int length) {
+            return new Item(null, data, length, null, false);
+        }
+
+        static Item failure(IOException failure) {
+            return new Item(null, null, 0, failure, false);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileChange;
+import com.fileserver.model.FileChanges;
+import com.fileserver.model.FileInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory journal of the most recent changes to the file index, so clients that
+ * already hold a listing can catch up with only what changed.
+ *
+ * Every change gets the next number of a monotonic sequence and goes into a ring
+ * buffer of fixed capacity; once a client falls further behind than the buffer
+ * reaches, it is told to resync. The sequence starts from the wall clock in
+ * microseconds, so positions handed out before a restart are always older than the
+ * new journal and lead to a resync rather than to wrong deltas. Replicas each keep a
+ * journal of their own, so the position a journal started from also serves as its
+ * id: clients that may talk to several replicas pass positions as
+ * "journalId:sequence" and resync when they land on another journal.
+ *
+ * Only changes to the files themselves are journaled. Metadata computed in the
+ * background would otherwise flood the journal on a first sweep over a large tree
+ * and push every client into a resync; it reaches clients with their next listing.
+ */
+@Service
+public class ChangeJournal implements FileChangeListener {
+
+    // Number of changes kept in memory
+    @Value("${file.changes.capacity:10000}")
+    private int capacity;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Ring buffer slot of a change is its sequence modulo the capacity; guarded by "this"
+    private FileChange[] ring;
+    private long lastSequence;
+    private long firstSequence;
+    private long journalId;
+
+    private Counter resyncs;
+
+    // Called after every change; they run under the index lock, so they must only signal
+    private final List<Runnable> appendListeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        ring = new FileChange[Math.max(1, capacity)];
+        lastSequence = System.currentTimeMillis() * 1000;
+        firstSequence = lastSequence + 1;
+        journalId = lastSequence;
+        resyncs = meterRegistry.counter("file.changes.resyncs");
+        Gauge.builder("file.changes.sequence", this, ChangeJournal::getSequence)
+                .description("Position of the latest change in the journal")
+                .register(meterRegistry);
+        fileIndex.addListener(this);
+    }
+
+    @Override
+    public void onFileChanged(FileInfo previous, FileInfo current) {
+        FileChange.Type type = previous == null ? FileChange.Type.ADDED
+                : current == null ? FileChange.Type.DELETED : FileChange.Type.MODIFIED;
+        append(type, current != null ? current : previous);
+        for (Runnable listener : appendListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Registers a callback run after each change is added to the journal. It runs while
+     * the index is being updated, so it should only wake up whoever reads the journal.
+     *
+     * @param listener Callback to run
+     */
+    public void addAppendListener(Runnable listener) {
+        appendListeners.add(listener);
+    }
+
+    /**
+     * Gets the id of this journal, which sequences are only meaningful within.
+     *
+     * @return Position the journal started from, distinct for every run and replica
+     */
+    public long getJournalId() {
+        return journalId;
+    }
+
+    /**
+     * Gets the position of the latest change.
+     *
+     * @return Sequence number a client that is fully up to date would pass as "since"
+     */
+    public synchronized long getSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the changes made after a given position.
+     *
+     * @param since Last position the client has seen
+     * @param limit Maximum number of changes to return
+     * @return Changes oldest first, or a resync request if the position is unknown
+     */
+    public synchronized FileChanges changesSince(long since, int limit) {
+        // Older than the buffer reaches, or from a journal that no longer exists
+        if (since < firstSequence - 1 || since > lastSequence) {
+            resyncs.increment();
+            return new FileChanges(Collections.emptyList(), lastSequence, false, true);
+        }
+        long end = Math.min(lastSequence, since + limit);
+        List<FileChange> changes = new ArrayList<>((int) (end - since));
+        for (long sequence = since + 1; sequence <= end; sequence++) {
+            changes.add(ring[slot(sequence)]);
+        }
+        return new FileChanges(changes, end, end < lastSequence, false);
+    }
+
+    private synchronized void append(FileChange.Type type, FileInfo file) {
+        long sequence = ++lastSequence;
+        ring[slot(sequence)] = new FileChange(sequence, type, file);
+        if (sequence - firstSequence >= ring.length) {
+            firstSequence = sequence - ring.length + 1; // Oldest change overwritten
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % ring.length);
+    }
+}
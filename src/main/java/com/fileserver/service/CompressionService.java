@@ -0,0 +1,492 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-encodes text files for clients that accept it, keeping compressed variants on disk.
+ *
+ * The first gzip response for a file version is compressed while it streams and is
+ * written to a side cache at the same time; later responses for that version send the
+ * cached variant without compressing again. Variants are keyed by path, size and
+ * modification time and are deleted when the index reports that the file changed;
+ * the least recently used ones are also deleted when the cache outgrows its budget.
+ * Only configured types (text by default) above a size threshold are compressed;
+ * images and office documents are already compressed and gain nothing.
+ */
+@Service
+public class CompressionService implements FileChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(CompressionService.class);
+
+    // Read and deflate buffer size
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // Directory for server-side state (indexes, caches)
+    @Value("${file.state-dir}")
+    private String stateDir;
+
+    // Comma-separated extensions worth compressing
+    @Value("${file.compression.types:txt,loc}")
+    private String types;
+
+    // Smaller bodies are sent as they are; gzip overhead outweighs the saving
+    @Value("${file.compression.min-bytes:1024}")
+    private long minBytes;
+
+    // Deflate level, 1 (fastest) to 9 (smallest)
+    @Value("${file.compression.level:6}")
+    private int level;
+
+    // Bytes of compressed variants kept on disk
+    @Value("${file.compression.cache-max-bytes:1073741824}")
+    private long cacheMaxBytes;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    // Variants currently being written to the cache, so only one request writes each
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> compressibleTypes = new HashSet<>();
+    private Path cacheDir;
+
+    // Bytes of variants in the cache directory
+    private final AtomicLong cacheBytes = new AtomicLong();
+
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong cachedResponses = new AtomicLong();
+    private final AtomicLong identityBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        cacheDir = Paths.get(stateDir, "gzip");
+        Files.createDirectories(cacheDir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir)) {
+            for (Path file : files) {
+                if (file.toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(file); // Left by a write cut short
+                } else {
+                    cacheBytes.addAndGet(Files.size(file));
+                }
+            }
+        }
+        for (String type : types.split(",")) {
+            if (!type.trim().isEmpty()) {
+                compressibleTypes.add(type.trim().toLowerCase());
+            }
+        }
+        fileIndex.addListener(this);
+    }
+
+    /**
+     * Checks whether a client accepts gzip-encoded responses.
+     *
+     * @param acceptEncoding Accept-Encoding request header, or null
+     * @return true if gzip (or any encoding) is listed with a non-zero quality
+     */
+    public boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) {
+                continue;
+            }
+            double quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (quality > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a body of a given file type and length is worth compressing.
+     *
+     * @param fileType File extension
+     * @param length   Number of bytes that would be sent
+     * @return true if the type is compressible and the body is above the threshold
+     */
+    public boolean isCompressible(String fileType, long length) {
+        return length >= minBytes && compressibleTypes.contains(fileType.toLowerCase());
+    }
+
+    /**
+     * Opens the cached gzip variant of a file version. The open channel keeps the
+     * variant readable even if it is evicted meanwhile, so its size can be sent as
+     * Content-Length and the same bytes written later.
+     *
+     * @param info File metadata
+     * @return Channel on the variant for the caller to close, or null if none is cached yet
+     */
+    public FileChannel openVariant(FileInfo info) {
+        Path variant = variantFile(info);
+        try {
+            FileChannel channel = FileChannel.open(variant, StandardOpenOption.READ);
+            try {
+                Files.setLastModifiedTime(variant, FileTime.fromMillis(System.currentTimeMillis())); // For LRU eviction
+            } catch (IOException e) {
+                // Evicted just now; the open channel still reads it
+            }
+            return channel;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a whole file gzip-encoded, from its cached variant when there is one.
+     * Otherwise the file is compressed as it streams and the result is also written
+     * to the cache, unless another request is already doing so.
+     *
+     * @param info    File metadata
+     * @param variant Channel from openVariant, or null; closed when done
+     * @param out     Stream to write the encoded bytes to
+     * @throws IOException If the file can't be read or the client goes away
+     */
+    public void writeGzip(FileInfo info, FileChannel variant, OutputStream out) throws IOException {
+        CountingOutputStream counted = new CountingOutputStream(out);
+        long cpuStart = cpuTime();
+        try {
+            if (variant != null) {
+                cachedResponses.incrementAndGet();
+                try (FileChannel channel = variant) {
+                    WritableByteChannel target = Channels.newChannel(counted);
+                    long size = channel.size();
+                    long position = 0;
+                    while (position < size) {
+                        long sent = channel.transferTo(position, size - position, target);
+                        if (sent <= 0) {
+                            break;
+                        }
+                        position += sent;
+                    }
+                }
+                return;
+            }
+
+            Path target = variantFile(info);
+            String key = target.toString();
+            if (!building.add(key)) {
+                compress(Paths.get(info.getFilePath()), 0, info.getFileSize(), counted); // Someone else is caching it
+                return;
+            }
+            try {
+                Path temp = Files.createTempFile(cacheDir, "variant", ".tmp");
+                try {
+                    try (OutputStream cacheOut = Files.newOutputStream(temp)) {
+                        compress(Paths.get(info.getFilePath()), 0, info.getFileSize(), new TeeOutputStream(counted, cacheOut));
+                    }
+                    if (isCurrent(info)) {
+                        long size = Files.size(temp);
+                        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        if (cacheBytes.addAndGet(size) > cacheMaxBytes) {
+                            evict();
+                        }
+                    }
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            } finally {
+                building.remove(key);
+            }
+        } finally {
+            record(info.getFileSize(), counted.getCount(), cpuStart);
+        }
+    }
+
+    /**
+     * Writes part of a file gzip-encoded. Parts (such as line windows) are compressed on the fly and not cached.
+     *
+     * @param filePath Path of the file
+     * @param position Offset of the first byte to send
+     * @param count    Number of bytes to send
+     * @param out      Stream to write the encoded bytes to
+     * @throws IOException If the file can't be read or the client goes away
+     */
+    public void writeGzip(Path filePath, long position, long count, OutputStream out) throws IOException {
+        CountingOutputStream counted = new CountingOutputStream(out);
+        long cpuStart = cpuTime();
+        try {
+            compress(filePath, position, count, counted);
+        } finally {
+            record(count, counted.getCount(), cpuStart);
+        }
+    }
+
+    @Override
+    public void onFileChanged(FileInfo previous, FileInfo current) {
+        if (previous != null && compressibleTypes.contains(previous.getFileType().toLowerCase())) {
+            try {
+                delete(variantFile(previous));
+            } catch (IOException e) {
+                log.warn("Failed to delete gzip variant of {}", previous.getFilePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of gzip responses sent.
+     *
+     * @return Compressed response count
+     */
+    public long getResponses() {
+        return responses.get();
+    }
+
+    /**
+     * Gets the number of gzip responses sent from the variant cache without compressing.
+     *
+     * @return Cached response count
+     */
+    public long getCachedResponses() {
+        return cachedResponses.get();
+    }
+
+    /**
+     * Gets the number of bytes gzip responses would have taken uncompressed.
+     *
+     * @return Uncompressed byte count
+     */
+    public long getIdentityBytes() {
+        return identityBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes gzip responses actually put on the wire.
+     *
+     * @return Compressed byte count
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * Gets the CPU time spent writing gzip responses, including cache hits.
+     *
+     * @return CPU time in nanoseconds (0 if the JVM can't measure thread CPU time)
+     */
+    public long getCpuNanos() {
+        return cpuNanos.get();
+    }
+
+    /**
+     * Gets the number of bytes of compressed variants kept on disk.
+     *
+     * @return Cached bytes
+     */
+    public long getCacheBytes() {
+        return cacheBytes.get();
+    }
+
+    /**
+     * Deletes the least recently sent variants until the cache is back under 90% of its budget.
+     */
+    private synchronized void evict() {
+        if (cacheBytes.get() <= cacheMaxBytes) {
+            return; // Another request evicted already
+        }
+        List<Path> variants = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir, "*.gz")) {
+            files.forEach(variants::add);
+        } catch (IOException e) {
+            log.warn("Failed to list gzip variants", e);
+            return;
+        }
+        variants.sort(Comparator.comparing(CompressionService::lastModified));
+        long target = cacheMaxBytes / 10 * 9;
+        for (Path variant : variants) {
+            if (cacheBytes.get() <= target) {
+                break;
+            }
+            try {
+                delete(variant);
+            } catch (IOException e) {
+                log.warn("Failed to evict gzip variant {}", variant, e);
+            }
+        }
+    }
+
+    private void delete(Path variant) throws IOException {
+        try {
+            long size = Files.size(variant);
+            if (Files.deleteIfExists(variant)) {
+                cacheBytes.addAndGet(-size);
+            }
+        } catch (NoSuchFileException e) {
+            // Already gone
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Deflates a byte range of a file into a stream.
+     */
+    private void compress(Path filePath, long position, long count, OutputStream out) throws IOException {
+        GzipStream gzip = new GzipStream(out, level);
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long end = position + count;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break; // File was truncated underneath us
+                }
+                gzip.write(buffer.array(), 0, read);
+                position += read;
+            }
+            gzip.finish(); // Leave closing the underlying stream to the caller
+        } finally {
+            gzip.end();
+        }
+    }
+
+    private void record(long identity, long wire, long cpuStart) {
+        responses.incrementAndGet();
+        identityBytes.addAndGet(identity);
+        wireBytes.addAndGet(wire);
+        cpuNanos.addAndGet(cpuTime() - cpuStart);
+    }
+
+    private long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private boolean isCurrent(FileInfo info) {
+        FileInfo latest = fileIndex.get(Paths.get(info.getFilePath()));
+        return latest != null && latest.isSameVersion(info);
+    }
+
+    private Path variantFile(FileInfo info) {
+        String path = UUID.nameUUIDFromBytes(info.getFilePath().getBytes(StandardCharsets.UTF_8)).toString();
+        return cacheDir.resolve(path + "-" + Long.toHexString(info.getFileSize())
+                + "-" + Long.toHexString(info.getLastModified()) + ".gz");
+    }
+
+    /**
+     * Gzip stream whose deflater can be released without closing the underlying stream.
+     */
+    private static class GzipStream extends GZIPOutputStream {
+
+        GzipStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        /**
+         * Frees the deflater's native memory now instead of at garbage collection.
+         */
+        void end() {
+            def.end();
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Writes every byte to two streams.
+     */
+    private static class TeeOutputStream extends FilterOutputStream {
+        private final OutputStream second;
+
+        TeeOutputStream(OutputStream first, OutputStream second) {
+            super(first);
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            second.flush();
+        }
+    }
+}
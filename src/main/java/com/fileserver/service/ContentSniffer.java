@@ -0,0 +1,136 @@
+package com.fileserver.service;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Detects the MIME type of a file from its first bytes.
+ *
+ * Binary formats are recognised by their magic numbers; anything else that decodes
+ * as UTF-8 without control characters is text. Text is always reported as
+ * text/plain, whatever its extension, so uploaded markup is never served as
+ * something a browser would render or run.
+ */
+final class ContentSniffer {
+
+    // Bytes of the file needed to decide
+    static final int HEAD_BYTES = 8 * 1024;
+
+    static final String TEXT = "text/plain";
+    static final String BINARY = "application/octet-stream";
+
+    private ContentSniffer() {
+    }
+
+    /**
+     * Guesses the MIME type of a file.
+     *
+     * @param head      First bytes of the file
+     * @param length    Number of valid bytes in head
+     * @param complete  Whether head holds the whole file
+     * @param extension File extension, used only to name zip-based office formats
+     * @return MIME type, application/octet-stream if nothing matched
+     */
+    static String sniff(byte[] head, int length, boolean complete, String extension) {
+        if (startsWith(head, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "image/png";
+        }
+        if (startsWith(head, length, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(head, length, 0, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(head, length, 0, 'B', 'M') && startsWith(head, length, 6, 0, 0, 0, 0)) {
+            return "image/bmp"; // Reserved header bytes are zero, which no text file has
+        }
+        if (startsWith(head, length, 0, 'R', 'I', 'F', 'F') && startsWith(head, length, 8, 'W', 'E', 'B', 'P')) {
+            return "image/webp";
+        }
+        if (startsWith(head, length, 0, '%', 'P', 'D', 'F', '-')) {
+            return "application/pdf";
+        }
+        if (startsWith(head, length, 0, 'P', 'K', 3, 4)) {
+            return zipType(extension);
+        }
+        if (startsWith(head, length, 0, 0x1F, 0x8B)) {
+            return "application/gzip";
+        }
+        if (startsWith(head, length, 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C)) {
+            return "application/x-7z-compressed";
+        }
+        if (startsWith(head, length, 4, 'f', 't', 'y', 'p')) {
+            return "video/mp4";
+        }
+        if (startsWith(head, length, 0, 'I', 'D', '3')) {
+            return "audio/mpeg";
+        }
+        if (startsWith(head, length, 0, 'O', 'g', 'g', 'S')) {
+            return "application/ogg";
+        }
+        return isText(head, length, complete) ? TEXT : BINARY;
+    }
+
+    /**
+     * Checks whether a MIME type is one of the image formats ImageIO can read dimensions from.
+     *
+     * @param mimeType Detected MIME type
+     * @return true for png, jpeg, gif and bmp
+     */
+    static boolean isImage(String mimeType) {
+        return mimeType.equals("image/png") || mimeType.equals("image/jpeg")
+                || mimeType.equals("image/gif") || mimeType.equals("image/bmp");
+    }
+
+    private static String zipType(String extension) {
+        switch (extension.toLowerCase()) {
+            case "docx":
+                return "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+            case "xlsx":
+                return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+            case "pptx":
+                return "application/vnd.openxmlformats-officedocument.presentationml.presentation";
+            default:
+                return "application/zip";
+        }
+    }
+
+    /**
+     * Checks that the bytes are UTF-8 with no control characters other than whitespace.
+     * A multi-byte character cut off at the end of an incomplete head doesn't count against it.
+     */
+    private static boolean isText(byte[] head, int length, boolean complete) {
+        for (int i = 0; i < length; i++) {
+            int b = head[i] & 0xFF;
+            if (b < 0x20 && b != '\n' && b != '\r' && b != '\t' && b != '\f' && b != 0x1B) {
+                return false;
+            }
+        }
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer in = ByteBuffer.wrap(head, 0, length);
+        CharBuffer out = CharBuffer.allocate(length);
+        CoderResult result = decoder.decode(in, out, complete);
+        if (result.isError()) {
+            return false;
+        }
+        return complete || in.remaining() < 4; // Only the tail of a character that continues past the head
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, int... magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
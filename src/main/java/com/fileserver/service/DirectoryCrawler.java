@@ -0,0 +1,265 @@
+package com.fileserver.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Walks a directory tree in parallel on a ForkJoinPool.
+ *
+ * Every directory is a task, so idle workers steal whole subtrees from busy ones;
+ * directories with more than CHUNK entries are also split into chunks, so one huge
+ * flat directory doesn't keep a single worker busy. Each entry costs one attribute
+ * read (an lstat), which tells files from directories and gives size and mtime.
+ *
+ * Directory listings and attribute reads are blocking I/O. They run as managed
+ * blocks, so the pool keeps parallelism workers busy while others wait on the
+ * disk, and a semaphore caps the reads in flight at ioConcurrency. On local SSDs
+ * both can be the core count; network filesystems hide latency with far more
+ * reads in flight than cores.
+ */
+public class DirectoryCrawler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryCrawler.class);
+
+    // Entries handled by one task; larger directories are split
+    private static final int CHUNK = 512;
+
+    /**
+     * Receives what the crawl finds. Called concurrently from the crawler's threads.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for every directory, including the root, before its entries are read.
+         *
+         * @param dir Directory found
+         * @return false to leave out the directory and everything under it
+         * @throws IOException To skip the directory, or to abort the crawl if it is the root
+         */
+        boolean directory(Path dir) throws IOException;
+
+        /**
+         * Called for every regular file.
+         *
+         * @param file  File found
+         * @param attrs Its attributes
+         */
+        void file(Path file, BasicFileAttributes attrs);
+    }
+
+    private final ForkJoinPool pool;
+    private final Semaphore ioPermits;
+
+    /**
+     * Creates a crawler with its own pool of threads.
+     *
+     * @param parallelism   Worker threads doing CPU work (at least 1)
+     * @param ioConcurrency Directory and attribute reads in flight at once (at least 1)
+     */
+    public DirectoryCrawler(int parallelism, int ioConcurrency) {
+        pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("file-crawler-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        ioPermits = new Semaphore(ioConcurrency);
+    }
+
+    /**
+     * Walks a tree and waits for the walk to finish. Symbolic links are not followed,
+     * and subdirectories and entries that vanish or can't be read are skipped.
+     *
+     * @param root    Directory to walk
+     * @param visitor Receives the directories and files found
+     * @throws IOException If the root can't be read or the visitor aborts the crawl
+     */
+    public void crawl(Path root, Visitor visitor) throws IOException {
+        try {
+            pool.invoke(new DirectoryTask(root, visitor, true));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Lists one directory and handles its entries, in chunks if there are many.
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private final Path dir;
+        private final Visitor visitor;
+        private final boolean root;
+
+        DirectoryTask(Path dir, Visitor visitor, boolean root) {
+            this.dir = dir;
+            this.visitor = visitor;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            List<Path> children;
+            try {
+                if (!visitor.directory(dir)) {
+                    return;
+                }
+                children = blocking(() -> {
+                    List<Path> list = new ArrayList<>();
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                        for (Path child : stream) {
+                            list.add(child);
+                        }
+                    }
+                    return list;
+                });
+            } catch (InterruptedIOException e) {
+                throw new UncheckedIOException(e);
+            } catch (IOException e) {
+                if (root) {
+                    throw new UncheckedIOException(e);
+                }
+                if (!(e instanceof NoSuchFileException)) {
+                    log.warn("Skipping directory {}: {}", dir, e.toString());
+                }
+                return; // Vanished or unreadable; leave it out
+            }
+
+            if (children.size() <= CHUNK) {
+                new EntriesTask(children, 0, children.size(), visitor).compute();
+                return;
+            }
+            List<EntriesTask> chunks = new ArrayList<>();
+            for (int from = 0; from < children.size(); from += CHUNK) {
+                chunks.add(new EntriesTask(children, from, Math.min(children.size(), from + CHUNK), visitor));
+            }
+            invokeAll(chunks);
+        }
+    }
+
+    /**
+     * Reads the attributes of a run of directory entries and descends into subdirectories.
+     */
+    private class EntriesTask extends RecursiveAction {
+        private final List<Path> entries;
+        private final int from;
+        private final int to;
+        private final Visitor visitor;
+
+        EntriesTask(List<Path> entries, int from, int to, Visitor visitor) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            BasicFileAttributes[] attrs;
+            try {
+                attrs = blocking(() -> {
+                    BasicFileAttributes[] read = new BasicFileAttributes[to - from];
+                    for (int i = from; i < to; i++) {
+                        try {
+                            read[i - from] = Files.readAttributes(entries.get(i), BasicFileAttributes.class,
+                                    LinkOption.NOFOLLOW_LINKS);
+                        } catch (NoSuchFileException e) {
+                            // Deleted since the listing; skip it
+                        } catch (IOException e) {
+                            log.warn("Skipping {}: {}", entries.get(i), e.toString());
+                        }
+                    }
+                    return read;
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                BasicFileAttributes entry = attrs[i - from];
+                if (entry == null) {
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    subdirectories.add(new DirectoryTask(entries.get(i), visitor, false));
+                } else if (entry.isRegularFile()) {
+                    visitor.file(entries.get(i), entry);
+                }
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * Runs blocking I/O under an I/O permit, letting the pool start a spare worker meanwhile.
+     * Waiting for the permit itself is not a managed block: when the I/O limit is reached,
+     * more threads would only queue up behind it.
+     */
+    private <T> T blocking(IoCall<T> call) throws IOException {
+        IoBlocker<T> blocker = new IoBlocker<>(call);
+        try {
+            ioPermits.acquire();
+            try {
+                ForkJoinPool.managedBlock(blocker);
+            } finally {
+                ioPermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Crawl interrupted");
+        }
+        if (blocker.error != null) {
+            throw blocker.error;
+        }
+        return blocker.result;
+    }
+
+    @FunctionalInterface
+    private interface IoCall<T> {
+        T call() throws IOException;
+    }
+
+    private static class IoBlocker<T> implements ForkJoinPool.ManagedBlocker {
+        private final IoCall<T> call;
+        private T result;
+        private IOException error;
+        private boolean done;
+
+        IoBlocker(IoCall<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                result = call.call();
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                done = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return done;
+        }
+    }
+}
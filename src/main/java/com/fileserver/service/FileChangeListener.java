@@ -0,0 +1,31 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+
+/**
+ * Callback notified by the FileIndex whenever an indexed file changes.
+ *
+ * Listeners run on the thread that applied the change while the index is being
+ * updated, so they must be quick and must not call back into the index to modify it.
+ */
+public interface FileChangeListener {
+
+    /**
+     * Called after a file was added, modified or removed.
+     *
+     * @param previous Entry before the change, or null if the file was added
+     * @param current  Entry after the change, or null if the file was removed
+     */
+    void onFileChanged(FileInfo previous, FileInfo current);
+
+    /**
+     * Called after computed metadata (MIME type, hash, ...) was added to an entry
+     * whose content didn't change. Caches of the content can ignore it, and it is
+     * not a change clients are told about.
+     *
+     * @param previous Entry before the metadata was added
+     * @param current  Entry with the metadata, for the same file version
+     */
+    default void onMetadataChanged(FileInfo previous, FileInfo current) {
+    }
+}
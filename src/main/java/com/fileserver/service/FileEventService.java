@@ -0,0 +1,330 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileChange;
+import com.fileserver.model.FileChanges;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes file changes to subscribers as Server-Sent Events.
+ *
+ * Subscribers don't get a queue of their own: each one only remembers the last
+ * journal position it was sent, and a small pool of sender threads catches it up
+ * from the ChangeJournal whenever something changes. A subscriber that can't keep up
+ * simply falls behind in the journal; once it is further behind than the journal
+ * reaches, it gets a "resync" event instead of the changes it missed. Idle
+ * subscribers cost no threads, only a heartbeat comment every few seconds, which also
+ * finds connections that went away. A subscriber whose send blocks for longer than
+ * the send timeout is dropped and its sender thread replaced, so a stalled client
+ * can't hold up the others; it reconnects with Last-Event-ID once its write fails.
+ *
+ * Events are named "change" (data: a FileChange) and "resync" (data: the sequence
+ * to continue from); the event id is the journal sequence, so a reconnecting client
+ * that sends Last-Event-ID gets exactly the changes it missed. A Last-Event-ID of the
+ * form "journalId:sequence" from another journal (another replica, or before a
+ * restart) starts the stream at the current position instead; the caller tells from
+ * the journal id returned with the stream that it has to resync.
+ */
+@Service
+public class FileEventService {
+
+    private static final Logger log = LoggerFactory.getLogger(FileEventService.class);
+
+    // Changes read from the journal per catch-up step
+    private static final int BATCH = 256;
+
+    // Seconds of silence after which a subscriber gets a heartbeat comment
+    @Value("${file.events.heartbeat-seconds:15}")
+    private long heartbeatSeconds;
+
+    // Threads sending events; one stuck on a stalled connection is replaced until its write times out
+    @Value("${file.events.threads:2}")
+    private int senderThreads;
+
+    // Milliseconds one event may take to send before the subscriber is dropped and its thread replaced
+    @Value("${file.events.send-timeout-ms:5000}")
+    private long sendTimeoutMs;
+
+    // Open event streams allowed at once; more are refused
+    @Value("${file.events.max-subscribers:1000}")
+    private int maxSubscribers;
+
+    @Autowired
+    private ChangeJournal changeJournal;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<Subscriber, Boolean> subscribers = new ConcurrentHashMap<>();
+
+    // Coalesces bursts of changes into one pass over the subscribers
+    private final AtomicBoolean dispatchPending = new AtomicBoolean();
+
+    private ScheduledExecutorService scheduler;
+    private ThreadPoolExecutor senders;
+
+    // Sender threads stuck on stalled connections, replaced by extra threads meanwhile; guarded by "senders"
+    private int stalledSenders;
+
+    private Counter dropped;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "file-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(senderThreads, senderThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "file-events-send-" + count++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        senders = pool;
+
+        dropped = meterRegistry.counter("file.events.dropped");
+        Gauge.builder("file.events.subscribers", subscribers, Map::size)
+                .description("Open Server-Sent Event streams")
+                .register(meterRegistry);
+
+        changeJournal.addAppendListener(this::scheduleDispatch);
+        scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::dropStalled, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        senders.shutdownNow();
+        for (Subscriber subscriber : subscribers.keySet()) {
+            subscriber.emitter.complete();
+        }
+    }
+
+    /**
+     * Opens an event stream.
+     *
+     * @param lastEventId Last event id the client received (from Last-Event-ID), or null for a new client
+     * @param start Position to start from without a Last-Event-ID of this journal, the current sequence
+     * @return Emitter to return from the controller
+     * @throws RejectedExecutionException If too many streams are open
+     */
+    public SseEmitter subscribe(String lastEventId, long start) {
+        if (subscribers.size() >= maxSubscribers) {
+            throw new RejectedExecutionException("Too many event subscribers");
+        }
+
+        // No timeout: heartbeats find dead connections
+        SseEmitter emitter = new SseEmitter(0L);
+        Subscriber subscriber = new Subscriber(emitter, parsePosition(lastEventId, start));
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        subscribers.put(subscriber, Boolean.TRUE);
+
+        // Sends the response headers right away, plus anything missed since Last-Event-ID
+        senders.execute(() -> drain(subscriber));
+        return emitter;
+    }
+
+    private long parsePosition(String lastEventId, long start) {
+        if (lastEventId == null) {
+            return start;
+        }
+        String position = lastEventId.trim();
+        int separator = position.indexOf(':');
+        try {
+            if (separator >= 0) {
+                if (Long.parseLong(position.substring(0, separator)) != changeJournal.getJournalId()) {
+                    return start; // Another journal; the client resyncs on the journal id
+                }
+                position = position.substring(separator + 1);
+            }
+            return Long.parseLong(position);
+        } catch (NumberFormatException e) {
+            return 0; // Unknown position; the journal will ask for a resync
+        }
+    }
+
+    private void scheduleDispatch() {
+        if (dispatchPending.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                dispatchPending.set(false);
+                for (Subscriber subscriber : subscribers.keySet()) {
+                    if (!subscriber.sending.get()) {
+                        senders.execute(() -> drain(subscriber));
+                    }
+                }
+            });
+        }
+    }
+
+    private void heartbeat() {
+        long idleSince = System.nanoTime() - TimeUnit.SECONDS.toNanos(heartbeatSeconds);
+        for (Subscriber subscriber : subscribers.keySet()) {
+            if (subscriber.lastSent - idleSince <= 0 && !subscriber.sending.get()) {
+                subscriber.heartbeat = true;
+                senders.execute(() -> drain(subscriber));
+            }
+        }
+    }
+
+    /**
+     * Drops subscribers whose current send has been blocked for longer than the send
+     * timeout, and starts another sender thread for each, so the others keep getting
+     * events while the blocked write waits for the connection to time out.
+     */
+    private void dropStalled() {
+        long stalledSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(sendTimeoutMs);
+        for (Subscriber subscriber : subscribers.keySet()) {
+            if (subscriber.state.get() == Subscriber.SENDING && subscriber.sendStarted - stalledSince < 0
+                    && subscriber.state.compareAndSet(Subscriber.SENDING, Subscriber.STALLED)) {
+                log.debug("Dropping stalled event subscriber");
+                dropped.increment();
+                subscribers.remove(subscriber);
+                synchronized (senders) {
+                    stalledSenders++;
+                    senders.setMaximumPoolSize(senderThreads + stalledSenders);
+                    senders.setCorePoolSize(senderThreads + stalledSenders);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends one event, failing if the send was given up on as stalled meanwhile.
+     */
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) throws IOException {
+        subscriber.sendStarted = System.nanoTime();
+        subscriber.state.set(Subscriber.SENDING);
+        boolean stalled;
+        try {
+            subscriber.emitter.send(event);
+        } finally {
+            stalled = !subscriber.state.compareAndSet(Subscriber.SENDING, Subscriber.IDLE);
+            if (stalled) {
+                synchronized (senders) {
+                    stalledSenders--;
+                    senders.setCorePoolSize(senderThreads + stalledSenders);
+                    senders.setMaximumPoolSize(senderThreads + stalledSenders);
+                }
+            }
+        }
+        if (stalled) {
+            // The write went through after all; end the stream so the client reconnects
+            subscriber.emitter.complete();
+            throw new IOException("Event stream stalled");
+        }
+    }
+
+    /**
+     * Sends a subscriber everything it hasn't seen yet. Only one thread drains a
+     * subscriber at a time; changes that arrive meanwhile are picked up by its loop.
+     */
+    private void drain(Subscriber subscriber) {
+        while (subscriber.sending.compareAndSet(false, true)) {
+            try {
+                boolean sent = sendPending(subscriber);
+                if (!sent && (subscriber.heartbeat || subscriber.greet)) {
+                    send(subscriber, SseEmitter.event().comment(subscriber.greet ? "connected" : "heartbeat"));
+                    subscriber.lastSent = System.nanoTime();
+                }
+                subscriber.heartbeat = false;
+                subscriber.greet = false;
+            } catch (IOException | IllegalStateException e) {
+                // Client went away or the stream was already completed. Not completed here:
+                // after a failed write the container completes the request itself, and
+                // completing it concurrently can break the connection that reuses it.
+                log.debug("Dropping event subscriber: {}", e.toString());
+                if (subscribers.remove(subscriber) != null) {
+                    dropped.increment(); // Not counted yet as stalled
+                }
+                return;
+            } finally {
+                subscriber.sending.set(false);
+            }
+            if (changeJournal.getSequence() <= subscriber.position || !subscribers.containsKey(subscriber)) {
+                return;
+            }
+        }
+    }
+
+    private boolean sendPending(Subscriber subscriber) throws IOException {
+        boolean sent = false;
+        while (true) {
+            FileChanges batch = changeJournal.changesSince(subscriber.position, BATCH);
+            if (batch.isResync()) {
+                send(subscriber, SseEmitter.event()
+                        .id(Long.toString(batch.getSequence()))
+                        .name("resync")
+                        .data(batch.getSequence()));
+            } else {
+                for (FileChange change : batch.getChanges()) {
+                    send(subscriber, SseEmitter.event()
+                            .id(Long.toString(change.getSequence()))
+                            .name("change")
+                            .data(change, MediaType.APPLICATION_JSON));
+                }
+            }
+            if (batch.getSequence() == subscriber.position) {
+                return sent;
+            }
+            subscriber.position = batch.getSequence();
+            subscriber.lastSent = System.nanoTime();
+            sent = true;
+            if (!batch.isMore()) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * One open event stream and how far it has been caught up.
+     */
+    private static class Subscriber {
+        static final int IDLE = 0;
+        static final int SENDING = 1;
+        static final int STALLED = 2;
+
+        final SseEmitter emitter;
+        final AtomicBoolean sending = new AtomicBoolean();
+
+        // Whether a single send is in progress, and since when; a stalled send is given up on
+        final AtomicInteger state = new AtomicInteger(IDLE);
+        volatile long sendStarted;
+
+        // Written only by the thread that holds "sending"
+        volatile long position;
+        volatile long lastSent = System.nanoTime();
+        volatile boolean heartbeat;
+        volatile boolean greet = true;
+
+        Subscriber(SseEmitter emitter, long position) {
+            this.emitter = emitter;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.FileSort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Resident metadata index of every regular file under the upload directory.
+ *
+ * The index is built with a single parallel walk (see DirectoryCrawler) at startup
+ * and then kept current by a WatchService registered on every directory of the
+ * upload tree, so listings are served from memory instead of walking the disk on
+ * each request. When the watcher overflows (events were dropped by the OS) the
+ * whole tree is rescanned and the index reconciled against it.
+ *
+ * The index is also saved to a snapshot in the state directory, periodically and at
+ * shutdown. On startup the snapshot is loaded instead of walking the tree, so
+ * listings are served at once, and the walk runs in the background to reconcile
+ * whatever changed while the server was down.
+ */
+@Service
+public class FileIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(FileIndex.class);
+
+    // Directory under the upload root holding uploads in progress; never indexed
+    public static final String STAGING_DIR = ".uploads";
+
+    // Directory where files are stored
+    @Value("${file.upload-dir}")
+    private String uploadDir;
+
+    // Directory for server-side state (indexes, caches)
+    @Value("${file.state-dir}")
+    private String stateDir;
+
+    // Seconds between snapshots of a changed index (0 = only at shutdown)
+    @Value("${file.index.snapshot-interval-seconds:300}")
+    private long snapshotIntervalSeconds;
+
+    // Seconds computed metadata may wait before it changes the listing version
+    @Value("${file.index.metadata-publish-seconds:10}")
+    private long metadataPublishSeconds;
+
+    // Threads crawling the upload tree on full scans (0 = one per core)
+    @Value("${file.index.scan.parallelism:0}")
+    private int scanParallelism;
+
+    // Directory listings and attribute reads in flight during a scan (0 = same as parallelism)
+    @Value("${file.index.scan.io-concurrency:0}")
+    private int scanIoConcurrency;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Indexed files, keyed by their absolute path
+    private final Map<Path, FileInfo> entries = new ConcurrentHashMap<>();
+
+    // The same entries kept in every supported sort order, for paged listings
+    private final Map<FileSort, NavigableSet<FileInfo>> sortedViews = new EnumMap<>(FileSort.class);
+
+    // Serializes updates so the map and the sorted views never disagree
+    private final Object writeLock = new Object();
+
+    // Incremented on every change, so callers can tell cheaply whether the listing changed.
+    // Starts from the wall clock in microseconds, so a listing ETag handed out before a
+    // restart, or by another replica, doesn't match this index by accident
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    // Set when computed metadata changed since the version was last incremented
+    private final AtomicBoolean metadataPending = new AtomicBoolean();
+
+    // Incremented on every update, metadata included, so snapshots know when to save
+    private final AtomicLong modifications = new AtomicLong();
+
+    // Components that react to file changes (caches, journals, ...)
+    private final List<FileChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Directories registered with the watcher, keyed by their watch key
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+
+    private Path root;
+    private WatchService watchService;
+    private volatile Thread watcherThread;
+    private DirectoryCrawler crawler;
+    private volatile boolean running;
+
+    // Snapshot file, the timer writing it and the modification count it was last written at
+    private Path snapshotFile;
+    private ScheduledExecutorService snapshotScheduler;
+    private volatile long snapshotVersion = -1;
+    private final Object snapshotLock = new Object();
+
+    public FileIndex() {
+        for (FileSort sort : FileSort.values()) {
+            sortedViews.put(sort, new ConcurrentSkipListSet<>(sort.getComparator()));
+        }
+    }
+
+    /**
+     * Builds the index, from the snapshot when there is one, and starts watching
+     * the upload tree for changes.
+     *
+     * @throws IOException If the upload directory can't be created or read
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        root = Paths.get(uploadDir).toAbsolutePath().normalize();
+        Files.createDirectories(root);
+
+        watchService = root.getFileSystem().newWatchService();
+        running = true;
+
+        int parallelism = scanParallelism > 0 ? scanParallelism : Runtime.getRuntime().availableProcessors();
+        crawler = new DirectoryCrawler(parallelism, scanIoConcurrency > 0 ? scanIoConcurrency : parallelism);
+
+        snapshotFile = Paths.get(stateDir, "index.snapshot");
+        Files.createDirectories(snapshotFile.getParent());
+        boolean loaded = loadSnapshot();
+
+        if (loaded) {
+            // Serve the snapshot now; the walk registers watches and catches up on changes
+            Thread reconcile = new Thread(() -> {
+                rescan();
+                if (running) {
+                    startWatcher();
+                }
+            }, "file-index-reconcile");
+            reconcile.setDaemon(true);
+            reconcile.start();
+        } else {
+            // Register watches before scanning so nothing created during the scan is missed
+            rescan();
+            startWatcher();
+        }
+
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-index-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        if (snapshotIntervalSeconds > 0) {
+            snapshotScheduler.scheduleWithFixedDelay(this::saveSnapshot,
+                    snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+        snapshotScheduler.scheduleWithFixedDelay(this::publishMetadata,
+                metadataPublishSeconds, Math.max(1, metadataPublishSeconds), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Saves a final snapshot, stops the watcher thread and releases the watch service.
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+            saveSnapshot();
+        }
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close watch service", e);
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+        }
+        if (crawler != null) {
+            crawler.close();
+        }
+    }
+
+    /**
+     * Registers a listener to be told about every subsequent file change.
+     *
+     * @param listener Listener to add
+     */
+    public void addListener(FileChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns every indexed file.
+     *
+     * @return List of FileInfo objects, one per regular file under the upload directory
+     */
+    public List<FileInfo> getAllFiles() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Streams indexed files in the given order, without copying the index.
+     * The stream is weakly consistent: changes made while it is being consumed
+     * may or may not be reflected.
+     *
+     * @param sort       Order to return files in
+     * @param descending Whether to reverse the order
+     * @param after      Return only files strictly after this one in the order, or null to start at the beginning
+     * @return Lazily evaluated stream of FileInfo objects
+     */
+    public Stream<FileInfo> stream(FileSort sort, boolean descending, FileInfo after) {
+        NavigableSet<FileInfo> view = sortedViews.get(sort);
+        if (descending) {
+            view = view.descendingSet();
+        }
+        if (after != null) {
+            view = view.tailSet(after, false);
+        }
+        return view.stream();
+    }
+
+    /**
+     * Looks up a single file in the index.
+     *
+     * @param path Path of the file
+     * @return The indexed FileInfo, or null if the file is not indexed
+     */
+    public FileInfo get(Path path) {
+        return entries.get(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Returns the number of indexed files.
+     *
+     * @return Indexed file count
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the current version of the index. The version changes whenever a
+     * file is added, modified or removed. Metadata computed in the background
+     * changes it at most once per publish interval, so a sweep over the whole
+     * tree doesn't change listing ETags on every file.
+     *
+     * @return Monotonically increasing version number
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns the absolute, normalized upload directory this index covers.
+     *
+     * @return Root of the upload tree
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Walks the whole upload tree and reconciles the index against it. Used for the
+     * initial build and as the fallback whenever watch events may have been lost.
+     */
+    public synchronized void rescan() {
+        Set<Path> seen = ConcurrentHashMap.newKeySet();
+        Queue<FileInfo> changed = new ConcurrentLinkedQueue<>();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            crawler.crawl(root, new DirectoryCrawler.Visitor() {
+                @Override
+                public boolean directory(Path dir) {
+                    if (isStaging(dir)) {
+                        return false;
+                    }
+                    register(dir);
+                    return true;
+                }
+
+                @Override
+                public void file(Path file, BasicFileAttributes attrs) {
+                    seen.add(file);
+                    FileInfo info = newVersion(file, attrs);
+                    if (info != null) {
+                        changed.add(info);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            log.error("Failed to scan upload directory {}", root, e);
+            return;
+        }
+
+        if (entries.isEmpty() && listeners.isEmpty()) {
+            load(changed); // Initial build: nobody to notify, so fill the views in bulk
+        } else {
+            for (FileInfo info : changed) {
+                update(Paths.get(info.getFilePath()), info);
+            }
+        }
+
+        // Drop anything the walk no longer sees
+        for (Path path : new ArrayList<>(entries.keySet())) {
+            if (!seen.contains(path)) {
+                update(path, null);
+            }
+        }
+        sample.stop(meterRegistry.timer("file.index.scan"));
+        DistributionSummary.builder("file.index.scan.files")
+                .description("Files walked per full scan of the upload tree")
+                .register(meterRegistry)
+                .record(seen.size());
+        log.info("Indexed {} files under {}", entries.size(), root);
+    }
+
+    /**
+     * Writes the index to the snapshot file if it changed since the last snapshot.
+     */
+    public void saveSnapshot() {
+        // Not synchronized on the index: a reconcile walk may hold that lock for minutes
+        synchronized (snapshotLock) {
+            long current = modifications.get();
+            if (current == snapshotVersion) {
+                return;
+            }
+            Timer.Sample sample = Timer.start(meterRegistry);
+            try {
+                int count = IndexSnapshot.write(snapshotFile, root, entries.values());
+                snapshotVersion = current;
+                long nanos = sample.stop(meterRegistry.timer("file.index.snapshot.write"));
+                log.debug("Wrote index snapshot of {} files in {} ms", count, TimeUnit.NANOSECONDS.toMillis(nanos));
+            } catch (IOException e) {
+                log.warn("Failed to write index snapshot {}", snapshotFile, e);
+            }
+        }
+    }
+
+    /**
+     * Makes metadata computed since the last change part of a new listing version.
+     */
+    private void publishMetadata() {
+        if (metadataPending.getAndSet(false)) {
+            synchronized (writeLock) {
+                version.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Fills the empty index from the snapshot file, if there is one for this upload directory.
+     * No listener is registered yet, so nobody needs to hear about these entries.
+     *
+     * @return true if the snapshot was loaded
+     */
+    private boolean loadSnapshot() {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        List<FileInfo> snapshot;
+        try {
+            snapshot = IndexSnapshot.read(snapshotFile, root);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable index snapshot {}", snapshotFile, e);
+            return false;
+        }
+        if (snapshot == null) {
+            return false;
+        }
+
+        load(snapshot);
+        snapshotVersion = modifications.get(); // Nothing new to write until something changes
+        long nanos = sample.stop(meterRegistry.timer("file.index.snapshot.load"));
+        log.info("Loaded {} files from index snapshot in {} ms, reconciling with {} in the background",
+                snapshot.size(), TimeUnit.NANOSECONDS.toMillis(nanos), root);
+        return true;
+    }
+
+    /**
+     * Re-reads the attributes of a single path and updates the index accordingly.
+     *
+     * @param path Path that was created, modified or deleted
+     */
+    public void refresh(Path path) {
+        if (path.startsWith(root.resolve(STAGING_DIR))) {
+            return;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attrs.isRegularFile()) {
+                put(path, attrs);
+            } else if (attrs.isDirectory()) {
+                indexTree(path);
+            }
+        } catch (NoSuchFileException e) {
+            remove(path);
+        } catch (IOException e) {
+            log.warn("Failed to read attributes of {}", path, e);
+        }
+    }
+
+    /**
+     * Starts the thread applying watch events, which queue up until then.
+     */
+    private void startWatcher() {
+        watcherThread = new Thread(this::processEvents, "file-index-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    /**
+     * Loop run by the watcher thread: applies watch events to the index until stopped.
+     */
+    private void processEvents() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path dir = watchedDirs.get(key);
+            boolean overflow = false;
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    overflow = true;
+                    continue;
+                }
+                if (dir != null) {
+                    refresh(dir.resolve((Path) event.context()));
+                }
+            }
+
+            if (!key.reset()) {
+                // Directory is gone or no longer accessible
+                watchedDirs.remove(key);
+                if (dir != null) {
+                    remove(dir);
+                }
+            }
+
+            if (overflow) {
+                log.warn("Watch service overflowed, rescanning {}", root);
+                rescan();
+            }
+        }
+    }
+
+    /**
+     * Registers and indexes a directory that appeared after the initial scan.
+     *
+     * @param dir New directory
+     */
+    private void indexTree(Path dir) {
+        try {
+            crawler.crawl(dir, new DirectoryCrawler.Visitor() {
+                @Override
+                public boolean directory(Path d) {
+                    if (isStaging(d)) {
+                        return false;
+                    }
+                    register(d);
+                    return true;
+                }
+
+                @Override
+                public void file(Path file, BasicFileAttributes attrs) {
+                    put(file, attrs);
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Failed to index new directory {}", dir, e);
+        }
+    }
+
+    /**
+     * Checks whether a directory is the staging area for uploads in progress.
+     *
+     * @param dir Directory found while crawling
+     * @return true if it must be left out of the index
+     */
+    private boolean isStaging(Path dir) {
+        return dir.equals(root.resolve(STAGING_DIR));
+    }
+
+    /**
+     * Registers a directory with the watch service. Registering the same directory
+     * again returns its existing key, so this is safe to call on every rescan. A
+     * directory that can't be watched (e.g. the inotify watch limit is reached) is
+     * still indexed; its changes show up on the next rescan.
+     *
+     * @param dir Directory to watch
+     */
+    private void register(Path dir) {
+        try {
+            WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            watchedDirs.put(key, dir);
+        } catch (IOException e) {
+            log.warn("Failed to watch directory {}: {}", dir, e.toString());
+        }
+    }
+
+    /**
+     * Adds or replaces the index entry for a regular file.
+     *
+     * @param path  Path of the file
+     * @param attrs Attributes read for the file
+     */
+    private void put(Path path, BasicFileAttributes attrs) {
+        FileInfo info = newVersion(path, attrs);
+        if (info != null) {
+            update(path, info);
+        }
+    }
+
+    /**
+     * Builds the entry for a regular file if it differs from the indexed one.
+     * Only attributes are read here; content-derived metadata is filled in later
+     * by the MetadataEnrichmentService.
+     *
+     * @param path  Path of the file
+     * @param attrs Attributes read for the file
+     * @return New entry, or null if the indexed entry is still current
+     */
+    private FileInfo newVersion(Path path, BasicFileAttributes attrs) {
+        String fileName = path.getFileName().toString();
+        FileInfo info = new FileInfo(fileName, getFileExtension(fileName), attrs.size(), path.toString(),
+                attrs.lastModifiedTime().toMillis(), null);
+        if (info.isSameVersion(entries.get(path))) {
+            return null; // Unchanged (e.g. a rescan or a repeated modify event); keeps its computed metadata
+        }
+        return info;
+    }
+
+    /**
+     * Replaces an entry with a copy carrying computed metadata, unless the file has
+     * changed since the metadata was computed.
+     *
+     * @param info Entry with the metadata filled in
+     * @return true if the entry was replaced, false if it is no longer the indexed version
+     */
+    public boolean enrich(FileInfo info) {
+        Path path = Paths.get(info.getFilePath());
+        synchronized (writeLock) {
+            if (!info.isSameVersion(entries.get(path))) {
+                return false;
+            }
+            update(path, info, true);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a file, or every file under a directory, from the index.
+     *
+     * @param path Path of the deleted file or directory
+     */
+    private void remove(Path path) {
+        if (update(path, null) == null) {
+            for (Path p : new ArrayList<>(entries.keySet())) {
+                if (p.startsWith(path)) {
+                    update(p, null);
+                }
+            }
+            watchedDirs.values().removeIf(p -> p.startsWith(path));
+        }
+    }
+
+    /**
+     * Adds many entries to the index at once, without notifying listeners.
+     *
+     * @param infos Entries for files not yet in the index
+     */
+    private void load(Collection<FileInfo> infos) {
+        synchronized (writeLock) {
+            for (FileInfo info : infos) {
+                entries.put(Paths.get(info.getFilePath()), info);
+            }
+            // Views fill fastest in order, and independently of each other
+            sortedViews.entrySet().parallelStream().forEach(view -> {
+                List<FileInfo> sorted = new ArrayList<>(infos);
+                sorted.sort(view.getKey().getComparator());
+                view.getValue().addAll(sorted);
+            });
+            version.incrementAndGet();
+            modifications.incrementAndGet();
+        }
+    }
+
+    /**
+     * Replaces the entry for a path in the map and in every sorted view.
+     *
+     * @param path Path of the file
+     * @param info New entry, or null to remove the file
+     * @return The previous entry, or null if there was none
+     */
+    private FileInfo update(Path path, FileInfo info) {
+        return update(path, info, false);
+    }
+
+    /**
+     * Replaces the entry for a path in the map and in every sorted view.
+     * Entries are never modified in place, since the sorted views depend on their fields.
+     *
+     * @param path         Path of the file
+     * @param info         New entry, or null to remove the file
+     * @param metadataOnly Whether only computed metadata changed, not the file itself
+     * @return The previous entry, or null if there was none
+     */
+    private FileInfo update(Path path, FileInfo info, boolean metadataOnly) {
+        synchronized (writeLock) {
+            FileInfo previous = info == null ? entries.remove(path) : entries.put(path, info);
+            for (NavigableSet<FileInfo> view : sortedViews.values()) {
+                if (previous != null) {
+                    view.remove(previous);
+                }
+                if (info != null) {
+                    view.add(info);
+                }
+            }
+            if (previous != null || info != null) {
+                if (metadataOnly) {
+                    metadataPending.set(true); // Published with the next change or interval
+                } else {
+                    version.incrementAndGet();
+                }
+                modifications.incrementAndGet();
+                // Notify under the lock so every listener sees changes in the same order
+                for (FileChangeListener listener : listeners) {
+                    try {
+                        if (metadataOnly) {
+                            listener.onMetadataChanged(previous, info);
+                        } else {
+                            listener.onFileChanged(previous, info);
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("File change listener failed for {}", path, e);
+                    }
+                }
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * Helper method to extract file extension from file name.
+     *
+     * @param fileName Name of the file
+     * @return File extension (without the dot), or empty string if none
+     */
+    private String getFileExtension(String fileName) {
+        int lastDotIndex = fileName.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
+            return fileName.substring(lastDotIndex + 1);
+        }
+        return "";
+    }
+}
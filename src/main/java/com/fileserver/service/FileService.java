@@ -1,57 +1,140 @@
 package com.fileserver.service;
 
 import com.fileserver.model.FileInfo;
+import com.fileserver.model.FilePage;
+import com.fileserver.model.FileSort;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class FileService {
 
+    private static final Logger log = LoggerFactory.getLogger(FileService.class);
+
     // Directory where files are stored
-    private final String UPLOAD_DIR = "/home/files/upload";
+    @Value("${file.upload-dir}")
+    private String UPLOAD_DIR;
+
+    @Autowired
+    private FileIndex fileIndex; // In-memory metadata index of the upload directory
+
+    @Autowired
+    private MeterRegistry meterRegistry; // Records how many entries each listing walks
+
+    // Milliseconds from JVM start to the first listing served, or -1 until then
+    private final AtomicLong firstListingMillis = new AtomicLong(-1);
 
     /**
      * Retrieves a list of all files in the upload directory.
+     * Served from the in-memory index rather than walking the disk on every call.
      * 
      * @return List of FileInfo objects representing each file
      */
     public List<FileInfo> getAllFiles() {
-        List<FileInfo> files = new ArrayList<>();
-        try {
-            Path uploadPath = Paths.get(UPLOAD_DIR); // Convert string path to Path object
-            
-            // If upload directory doesn't exist, create it and return empty list
-            if (!Files.exists(uploadPath)) {
-                Files.createDirectories(uploadPath);
-                return files;
+        return fileIndex.getAllFiles();
+    }
+
+    /**
+     * Lists files in the given order, optionally filtered, as a lazily evaluated stream.
+     * Nothing is copied up front, so callers can write huge listings incrementally.
+     * Closing the stream records how many index entries the listing walked.
+     *
+     * @param sort       Order to list files in
+     * @param descending Whether to reverse the order
+     * @param extensions File extensions to keep (case-insensitive), or null/empty for all
+     * @param prefix     File name prefix to keep, or null for all
+     * @param cursor     Cursor returned with a previous page, or null to start at the beginning
+     * @return Stream of matching FileInfo objects
+     * @throws IllegalArgumentException If the cursor is malformed
+     */
+    public Stream<FileInfo> listFiles(FileSort sort, boolean descending, Set<String> extensions,
+                                      String prefix, String cursor) {
+        if (firstListingMillis.get() < 0) {
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            if (firstListingMillis.compareAndSet(-1, uptime)) {
+                log.info("First listing served {} ms after startup, {} files indexed", uptime, fileIndex.size());
             }
+        }
 
-            // Recursively find all regular files in the upload directory
-            List<Path> filePaths = Files.walk(uploadPath)
-                .filter(Files::isRegularFile)
-                .collect(Collectors.toList());
+        FileInfo after = cursor == null || cursor.isEmpty() ? null : decodeCursor(cursor);
+        boolean hasPrefix = prefix != null && !prefix.isEmpty();
 
-            // For each file, extract name, type, size, and path and add to the list
-            for (Path filePath : filePaths) {
-                File file = filePath.toFile();
-                String fileName = file.getName();                      // File name (e.g., report.txt)
-                String fileType = getFileExtension(fileName);         // File extension (e.g., txt)
-                long fileSize = file.length();                        // File size in bytes
+        AtomicLong walked = new AtomicLong();
+        Stream<FileInfo> files;
+        if (hasPrefix && sort == FileSort.NAME && !descending) {
+            // Names sharing a prefix are contiguous in name order: seek to the first and stop after the last.
+            // The probe has an empty path, so it sorts before every real file with the same name.
+            FileInfo start = new FileInfo(prefix, "", 0, "");
+            if (after == null || sort.getComparator().compare(after, start) < 0) {
+                files = fileIndex.stream(sort, false, start);
+            } else {
+                files = fileIndex.stream(sort, false, after);
+            }
+            files = files.peek(file -> walked.incrementAndGet())
+                    .takeWhile(file -> file.getFileName().startsWith(prefix));
+        } else {
+            files = fileIndex.stream(sort, descending, after).peek(file -> walked.incrementAndGet());
+            if (hasPrefix) {
+                files = files.filter(file -> file.getFileName().startsWith(prefix));
+            }
+        }
 
-                // Debug output to confirm file info being processed
-                System.out.println("Processing file: " + fileName + ", type: " + fileType + ", size: " + fileSize);
+        if (extensions != null && !extensions.isEmpty()) {
+            files = files.filter(file -> extensions.contains(file.getFileType().toLowerCase()));
+        }
+        return files.onClose(() -> DistributionSummary.builder("file.listing.walked")
+                .description("Index entries walked per listing")
+                .register(meterRegistry)
+                .record(walked.get()));
+    }
 
-                // Create a FileInfo object and add it to the list
-                files.add(new FileInfo(fileName, fileType, fileSize, filePath.toString()));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Gets the time from JVM start until the first listing was served.
+     *
+     * @return Milliseconds, or -1 if no listing has been served yet
+     */
+    public long getFirstListingMillis() {
+        return firstListingMillis.get();
+    }
+
+    /**
+     * Retrieves one page of a sorted, filtered file listing.
+     *
+     * @param sort       Order to list files in
+     * @param descending Whether to reverse the order
+     * @param extensions File extensions to keep (case-insensitive), or null/empty for all
+     * @param prefix     File name prefix to keep, or null for all
+     * @param cursor     Cursor returned with the previous page, or null for the first page
+     * @param limit      Maximum number of files on the page
+     * @return Page of files, with a cursor for the next page if there may be more
+     * @throws IllegalArgumentException If the cursor is malformed
+     */
+    public FilePage getFilePage(FileSort sort, boolean descending, Set<String> extensions,
+                                String prefix, String cursor, int limit) {
+        List<FileInfo> files;
+        try (Stream<FileInfo> listing = listFiles(sort, descending, extensions, prefix, cursor)) {
+            files = listing.limit(limit).collect(Collectors.toList());
         }
 
-        return files;
+        String nextCursor = files.size() < limit ? null : encodeCursor(files.get(files.size() - 1));
+        return new FilePage(files, nextCursor);
     }
 
     /**
@@ -69,6 +152,87 @@ public class FileService {
         return Files.readAllBytes(filePath); // Return file content as bytes
     }
 
+    /**
+     * Resolves a file name to its path in the upload directory.
+     *
+     * @param fileName Name of the file
+     * @return Path of the file on disk
+     * @throws IOException If file does not exist
+     */
+    public Path resolveFile(String fileName) throws IOException {
+        Path filePath = Paths.get(UPLOAD_DIR, fileName); // Resolve full path to file
+        if (!Files.isRegularFile(filePath)) {
+            throw new FileNotFoundException("File not found: " + fileName);
+        }
+        return filePath;
+    }
+
+    /**
+     * Retrieves the metadata of a single file, from the index when possible so
+     * that answering conditional requests doesn't touch the disk.
+     *
+     * @param fileName Name of the file
+     * @return FileInfo including size and modification time
+     * @throws IOException If file does not exist
+     */
+    public FileInfo getFileInfo(String fileName) throws IOException {
+        Path filePath = Paths.get(UPLOAD_DIR, fileName);
+        if (!filePath.normalize().startsWith(Paths.get(UPLOAD_DIR).normalize())) {
+            throw new FileNotFoundException("File not found: " + fileName); // e.g. "../" outside the upload directory
+        }
+        FileInfo info = fileIndex.get(filePath);
+        if (info != null) {
+            return info;
+        }
+
+        // Not indexed yet (e.g. the watcher hasn't caught up); read it from disk
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+            if (attrs.isRegularFile()) {
+                return new FileInfo(fileName, getFileExtension(fileName), attrs.size(), filePath.toString(),
+                        attrs.lastModifiedTime().toMillis(), null);
+            }
+        } catch (NoSuchFileException e) {
+            // Fall through to not found
+        }
+        throw new FileNotFoundException("File not found: " + fileName);
+    }
+
+    /**
+     * Returns the version of the file listing, which changes whenever any file does.
+     *
+     * @return Listing version
+     */
+    public long getListingVersion() {
+        return fileIndex.getVersion();
+    }
+
+    /**
+     * Copies a region of a file to an output stream without buffering it on the heap.
+     * FileChannel.transferTo moves the bytes through a small, reused native buffer
+     * (or straight to the socket when the target is a channel the OS can sendfile to),
+     * so memory use is the same whatever the file size.
+     *
+     * @param filePath Path of the file to send
+     * @param position Offset of the first byte to send
+     * @param count    Number of bytes to send
+     * @param out      Stream to write the bytes to
+     * @throws IOException If the file can't be read or the client goes away
+     */
+    public void transferTo(Path filePath, long position, long count, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long end = position + count;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    break; // File was truncated underneath us
+                }
+                position += sent;
+            }
+        }
+    }
+
     /**
      * Retrieves the content of a .txt or .loc file as a string.
      *
@@ -83,12 +247,52 @@ public class FileService {
             throw new FileNotFoundException("File not found: " + fileName);
         }
 
-        String fileType = getFileExtension(fileName).toLowerCase(); // Extract file extension
-        if (fileType.equals("txt") || fileType.equals("loc")) {
+        if (isTextFile(fileName)) {
             return new String(Files.readAllBytes(filePath)); // Convert file bytes to string
         }
 
-        throw new UnsupportedOperationException("Cannot read content of file type: " + fileType);
+        throw new UnsupportedOperationException("Cannot read content of file type: " + getFileExtension(fileName));
+    }
+
+    /**
+     * Checks whether a file's content can be returned as text (.txt or .loc).
+     *
+     * @param fileName Name of the file
+     * @return true for text files
+     */
+    public boolean isTextFile(String fileName) {
+        String fileType = getFileExtension(fileName).toLowerCase(); // Extract file extension
+        return fileType.equals("txt") || fileType.equals("loc");
+    }
+
+    /**
+     * Encodes the position of a file in a listing as an opaque cursor.
+     * The cursor carries every field the sort orders compare, so it stays valid
+     * even if the file itself is deleted before the next page is requested.
+     *
+     * @param last Last file on the current page
+     * @return URL-safe cursor string
+     */
+    private String encodeCursor(FileInfo last) {
+        // NUL can't appear in file names or paths, so it is a safe separator
+        String raw = last.getFileSize() + "\0" + last.getFileType() + "\0" + last.getFileName() + "\0" + last.getFilePath();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor produced by encodeCursor back into a probe FileInfo.
+     *
+     * @param cursor Cursor string
+     * @return FileInfo positioned where the previous page ended
+     * @throws IllegalArgumentException If the cursor is malformed
+     */
+    private FileInfo decodeCursor(String cursor) {
+        String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        String[] parts = raw.split("\0", 4);
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return new FileInfo(parts[2], parts[1], Long.parseLong(parts[0]), parts[3]);
     }
 
     /**
@@ -0,0 +1,280 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of small, frequently requested files, held off-heap in direct ByteBuffers.
+ *
+ * Eviction is a segmented LRU that accounts for entry sizes: new entries go into a
+ * probation segment and are promoted to a protected segment on their second hit, so
+ * a burst of one-off requests can only push out other one-off entries. Entries are
+ * dropped as soon as the index reports that their file changed, and every lookup also
+ * checks the cached version against the caller's metadata. Concurrent misses on the
+ * same file version share one read from disk.
+ */
+@Service
+public class HotFileCache implements FileChangeListener {
+
+    // Share of the byte budget reserved for entries that were hit more than once
+    private static final double PROTECTED_RATIO = 0.8;
+
+    // Total bytes of file content the cache may hold (0 disables the cache)
+    @Value("${file.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    // Files larger than this are never cached
+    @Value("${file.cache.max-entry-bytes:1048576}")
+    private long maxEntryBytes;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    // Both segments are kept in LRU order (eldest first); guarded by "this"
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    // Reads in progress by file version, so concurrent misses load a file once
+    private final Map<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        fileIndex.addListener(this);
+    }
+
+    /**
+     * Checks whether a file is small enough to be served from the cache.
+     *
+     * @param info File metadata
+     * @return true if the file may be cached
+     */
+    public boolean isCacheable(FileInfo info) {
+        return maxBytes > 0 && info.getFileSize() <= maxEntryBytes;
+    }
+
+    /**
+     * Returns the content of a file from the cache, loading it from disk on a miss.
+     *
+     * @param info Metadata of the file; the cached copy must match its version
+     * @return Read-only buffer positioned at the start of the content
+     * @throws IOException If the file can't be read on a miss
+     */
+    public ByteBuffer get(FileInfo info) throws IOException {
+        String key = info.getFilePath();
+        synchronized (this) {
+            Entry entry = lookup(key);
+            if (entry != null && entry.info.isSameVersion(info)) {
+                hits.incrementAndGet();
+                return entry.content.duplicate();
+            }
+        }
+
+        // Miss: read outside the lock so slow disks don't block hits on other files
+        String version = key + "@" + info.getFileSize() + "-" + info.getLastModified();
+        CompletableFuture<ByteBuffer> created = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> existing = loading.putIfAbsent(version, created);
+        if (existing != null) {
+            return await(existing).duplicate(); // Someone is already reading it
+        }
+        misses.incrementAndGet();
+        try {
+            ByteBuffer content = load(info);
+            synchronized (this) {
+                remove(key);
+                Entry entry = new Entry(info, content);
+                probation.put(key, entry);
+                probationBytes += entry.size();
+                evict();
+            }
+            created.complete(content);
+            return content.duplicate();
+        } catch (IOException | RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(version, created);
+        }
+    }
+
+    /**
+     * Waits for a read started by another request.
+     */
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> load) throws IOException {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void onFileChanged(FileInfo previous, FileInfo current) {
+        if (previous != null) {
+            synchronized (this) {
+                remove(previous.getFilePath());
+            }
+        }
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return Hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of requests that had to read the file from disk. Requests that
+     * waited for a read already in progress are not counted.
+     *
+     * @return Miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of entries evicted to stay within the byte budget.
+     *
+     * @return Eviction count
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the number of bytes of file content currently cached.
+     *
+     * @return Cached bytes
+     */
+    public synchronized long getSizeBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    /**
+     * Finds an entry and records the access, promoting probation entries to the protected segment.
+     * Must be called while holding the lock.
+     */
+    private Entry lookup(String key) {
+        Entry entry = protectedSegment.get(key); // get() moves it to the most recently used end
+        if (entry != null) {
+            return entry;
+        }
+        entry = probation.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        probationBytes -= entry.size();
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.size();
+
+        // Demote the least recently used protected entries back to probation when it overflows
+        long protectedLimit = (long) (maxBytes * PROTECTED_RATIO);
+        Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedLimit && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().size();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().size();
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts least recently used entries, probation first, until the cache fits its budget.
+     * Must be called while holding the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            probationBytes -= it.next().getValue().size();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+        it = protectedSegment.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            protectedBytes -= it.next().getValue().size();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes an entry from whichever segment holds it. Must be called while holding the lock.
+     */
+    private void remove(String key) {
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.size();
+        }
+        entry = protectedSegment.remove(key);
+        if (entry != null) {
+            protectedBytes -= entry.size();
+        }
+    }
+
+    /**
+     * Reads a whole file into a new direct buffer. Exactly the indexed size is read, so
+     * the content always matches the Content-Length sent for that version.
+     *
+     * @throws IOException If the file can't be read or is shorter than indexed (it changed meanwhile)
+     */
+    private ByteBuffer load(FileInfo info) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(info.getFilePath()), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) info.getFileSize());
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // Keep reading until the buffer is full or the file ends
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("File shrank while being read: " + info.getFilePath());
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * A cached file: the version it was read at and its content.
+     */
+    private static class Entry {
+        private final FileInfo info;
+        private final ByteBuffer content;
+
+        Entry(FileInfo info, ByteBuffer content) {
+            this.info = info;
+            this.content = content;
+        }
+
+        long size() {
+            return content.capacity();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary copy of the file index, so a restart can serve listings before
+ * the upload tree has been walked again.
+ *
+ * Layout: magic, format version, upload directory, entry count, then per entry
+ * the path relative to the upload directory (UTF-8), size, modification time, the
+ * raw content hash if there is one, then the computed MIME type, line count and
+ * image dimensions (empty / -1 when unknown); a CRC32 of all of it comes last.
+ * Names and types are derived from the path instead of being stored.
+ */
+final class IndexSnapshot {
+
+    // Identifies snapshot files
+    private static final int MAGIC = 0x46494458; // "FIDX"
+
+    // Bumped whenever the layout changes; older snapshots are ignored
+    private static final int FORMAT = 2;
+
+    // Length of a SHA-256 hash in bytes
+    private static final int HASH_BYTES = 32;
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot via a temp file, so a crash mid-write leaves the previous one intact.
+     *
+     * @param file    Snapshot file
+     * @param root    Upload directory the entries belong to
+     * @param entries Entries to write
+     * @return Number of entries written
+     * @throws IOException If the snapshot can't be written
+     */
+    static int write(Path file, Path root, Collection<FileInfo> entries) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(Files.newOutputStream(temp), crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeString(out, root.toString());
+
+            // The count goes first, so take a stable copy of a map that may be changing
+            List<FileInfo> copy = new ArrayList<>(entries);
+            out.writeInt(copy.size());
+            for (FileInfo info : copy) {
+                writeString(out, root.relativize(Paths.get(info.getFilePath())).toString());
+                out.writeLong(info.getFileSize());
+                out.writeLong(info.getLastModified());
+                byte[] hash = decodeHash(info.getContentHash());
+                out.writeByte(hash.length);
+                out.write(hash);
+                writeString(out, info.getMimeType() != null ? info.getMimeType() : "");
+                out.writeLong(info.getLineCount() != null ? info.getLineCount() : -1);
+                out.writeInt(info.getWidth() != null ? info.getWidth() : -1);
+                out.writeInt(info.getHeight() != null ? info.getHeight() : -1);
+                count++;
+            }
+            out.flush();
+            out.writeLong(crc.getValue()); // Checksum of everything above
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Reads a snapshot through a memory mapping.
+     *
+     * @param file Snapshot file
+     * @param root Upload directory the index covers
+     * @return Entries, or null if there is no usable snapshot for this directory
+     * @throws IOException If the snapshot exists but can't be read
+     */
+    static List<FileInfo> read(Path file, Path root) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < Long.BYTES || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // Check the trailer before trusting any length field
+        int bodyLength = buffer.limit() - Long.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(bodyLength));
+        if (crc.getValue() != buffer.getLong(bodyLength)) {
+            throw new IOException("Snapshot checksum mismatch: " + file);
+        }
+        buffer.limit(bodyLength);
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+                return null;
+            }
+            byte[] scratch = new byte[256];
+            if (!readString(buffer, scratch).equals(root.toString())) {
+                return null; // Upload directory moved; the paths mean nothing here
+            }
+
+            int count = buffer.getInt();
+            List<FileInfo> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Path path = root.resolve(readString(buffer, scratch));
+                long size = buffer.getLong();
+                long lastModified = buffer.getLong();
+                byte[] hash = new byte[buffer.get()];
+                buffer.get(hash);
+                String mimeType = readString(buffer, scratch);
+                long lineCount = buffer.getLong();
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+
+                String fileName = path.getFileName().toString();
+                FileInfo info = new FileInfo(fileName, getFileExtension(fileName), size, path.toString(),
+                        lastModified, hash.length == HASH_BYTES ? encodeHash(hash) : null);
+                if (!mimeType.isEmpty()) {
+                    info.setMimeType(mimeType.intern()); // A handful of distinct types across all entries
+                }
+                if (lineCount >= 0) {
+                    info.setLineCount(lineCount);
+                }
+                if (width >= 0 && height >= 0) {
+                    info.setWidth(width);
+                    info.setHeight(height);
+                }
+                entries.add(info);
+            }
+            return entries;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Truncated snapshot: " + file, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length); // Read back unsigned; paths are limited to 4 KB anyway
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer, byte[] scratch) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] decodeHash(String hex) {
+        if (hex == null || hex.length() != HASH_BYTES * 2) {
+            return new byte[0];
+        }
+        byte[] hash = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hash[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return hash;
+    }
+
+    private static String encodeHash(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String getFileExtension(String fileName) {
+        int lastDotIndex = fileName.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
+            return fileName.substring(lastDotIndex + 1);
+        }
+        return "";
+    }
+}
@@ -0,0 +1,352 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Serves windows of lines from large text files in bounded time and memory.
+ *
+ * For each file a sparse line-offset index is built on first use by scanning a
+ * memory-mapped view of the file, recording the byte offset of every
+ * CHECKPOINT_INTERVAL-th line. The index is persisted next to the other server
+ * state so it survives restarts, and is rebuilt whenever the file's size or
+ * modification time changes. Locating any line then costs one lookup plus a scan
+ * of at most CHECKPOINT_INTERVAL lines of the mapping, which the OS pages in on demand.
+ * A bounded number of indexes (and their mappings) are kept loaded.
+ */
+@Service
+public class LineIndexService implements FileChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(LineIndexService.class);
+
+    // Record the offset of every 1024th line
+    private static final int CHECKPOINT_INTERVAL = 1024;
+
+    // Files are mapped in chunks of this size (a single mapping is limited to 2 GB)
+    private static final long MAP_CHUNK = 1L << 30;
+
+    // Most recently used indexes kept loaded at once
+    private static final int MAX_LOADED = 256;
+
+    // Identifies persisted index files
+    private static final int MAGIC = 0x4C494458; // "LIDX"
+
+    // Directory for server-side state (indexes, caches)
+    @Value("${file.state-dir}")
+    private String stateDir;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    // Loaded indexes by file path, least recently used first; futures let concurrent requests share one build
+    private final Map<String, CompletableFuture<LineIndex>> indexes = Collections.synchronizedMap(
+            new LinkedHashMap<String, CompletableFuture<LineIndex>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<LineIndex>> eldest) {
+                    return size() > MAX_LOADED;
+                }
+            });
+
+    private Path indexDir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        indexDir = Paths.get(stateDir, "line-index");
+        Files.createDirectories(indexDir);
+        fileIndex.addListener(this);
+    }
+
+    /**
+     * Locates a window of lines in a text file.
+     *
+     * @param info     Metadata of the file
+     * @param fromLine Zero-based number of the first line to return
+     * @param count    Maximum number of lines to return
+     * @return Byte range of the requested lines and the file's total line count
+     * @throws IOException If the file can't be read
+     */
+    public LineWindow getWindow(FileInfo info, long fromLine, int count) throws IOException {
+        LineIndex index = getIndex(info);
+        long totalLines = index.lineCount;
+        if (fromLine >= totalLines || count <= 0) {
+            return new LineWindow(info.getFileSize(), 0, fromLine, 0, totalLines);
+        }
+
+        try {
+            long checkpoint = index.offsets[(int) (fromLine / CHECKPOINT_INTERVAL)];
+            long start = index.skipLines(checkpoint, fromLine % CHECKPOINT_INTERVAL);
+            int lines = (int) Math.min(count, totalLines - fromLine);
+            long end = index.skipLines(start, lines);
+            return new LineWindow(start, end - start, fromLine, lines, totalLines);
+        } catch (InternalError e) {
+            // Raised when a mapped page disappears because the file was truncated underneath us
+            indexes.remove(info.getFilePath());
+            throw new IOException("File changed while reading: " + info.getFilePath(), e);
+        }
+    }
+
+    @Override
+    public void onFileChanged(FileInfo previous, FileInfo current) {
+        if (previous != null) {
+            indexes.remove(previous.getFilePath());
+            if (current == null) {
+                try {
+                    Files.deleteIfExists(indexFile(previous.getFilePath()));
+                } catch (IOException e) {
+                    log.warn("Failed to delete line index for {}", previous.getFilePath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the line index of a file, loading or building it if needed.
+     */
+    private LineIndex getIndex(FileInfo info) throws IOException {
+        String key = info.getFilePath();
+        for (int attempt = 0; attempt < 2; attempt++) {
+            CompletableFuture<LineIndex> created = new CompletableFuture<>();
+            CompletableFuture<LineIndex> existing = indexes.putIfAbsent(key, created);
+            if (existing == null) {
+                try {
+                    created.complete(loadOrBuild(info));
+                } catch (IOException | RuntimeException e) {
+                    indexes.remove(key, created);
+                    created.completeExceptionally(e);
+                }
+                existing = created;
+            }
+
+            LineIndex index;
+            try {
+                index = existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for line index");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+
+            if (index.matches(info)) {
+                return index;
+            }
+            indexes.remove(key, existing); // Built for an older version; rebuild once
+        }
+        throw new IOException("File changed while indexing: " + key);
+    }
+
+    /**
+     * Loads the persisted index if it matches the file version, otherwise builds and persists a new one.
+     */
+    private LineIndex loadOrBuild(FileInfo info) throws IOException {
+        Path file = indexFile(info.getFilePath());
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() == MAGIC) {
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    long lineCount = in.readLong();
+                    long[] offsets = new long[in.readInt()];
+                    for (int i = 0; i < offsets.length; i++) {
+                        offsets[i] = in.readLong();
+                    }
+                    if (size == info.getFileSize() && lastModified == info.getLastModified()) {
+                        return new LineIndex(size, lastModified, lineCount, offsets, map(info));
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable line index {}", file, e);
+            }
+        }
+
+        LineIndex index = build(info);
+        persist(file, index);
+        return index;
+    }
+
+    /**
+     * Maps a whole file read-only, in chunks of MAP_CHUNK bytes.
+     */
+    private MappedByteBuffer[] map(FileInfo info) throws IOException {
+        long size = info.getFileSize();
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + MAP_CHUNK - 1) / MAP_CHUNK)];
+        try (FileChannel channel = FileChannel.open(Paths.get(info.getFilePath()), StandardOpenOption.READ)) {
+            for (int i = 0; i < chunks.length; i++) {
+                long base = i * MAP_CHUNK;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(MAP_CHUNK, size - base));
+            }
+        }
+        return chunks; // Mappings stay valid after the channel is closed
+    }
+
+    /**
+     * Scans a memory-mapped file and records checkpoint offsets.
+     */
+    private LineIndex build(FileInfo info) throws IOException {
+        long size = info.getFileSize();
+        MappedByteBuffer[] chunks = map(info);
+        long[] offsets = new long[16];
+        int checkpoints = 1; // Line 0 always starts at offset 0
+        long lineCount = 0;
+
+        for (int c = 0; c < chunks.length; c++) {
+            MappedByteBuffer chunk = chunks[c];
+            long base = c * MAP_CHUNK;
+            int limit = chunk.limit();
+            for (int i = 0; i < limit; i++) {
+                if (chunk.get(i) == '\n') {
+                    lineCount++;
+                    long next = base + i + 1;
+                    if (lineCount % CHECKPOINT_INTERVAL == 0 && next < size) {
+                        if (checkpoints == offsets.length) {
+                            offsets = Arrays.copyOf(offsets, checkpoints * 2);
+                        }
+                        offsets[checkpoints++] = next;
+                    }
+                }
+            }
+        }
+        if (size > 0 && chunks[chunks.length - 1].get(chunks[chunks.length - 1].limit() - 1) != '\n') {
+            lineCount++; // Last line has no trailing newline
+        }
+
+        log.debug("Built line index for {}: {} lines", info.getFilePath(), lineCount);
+        return new LineIndex(size, info.getLastModified(), lineCount, Arrays.copyOf(offsets, checkpoints), chunks);
+    }
+
+    /**
+     * Writes an index to disk via a temp file, so readers never see a partial index.
+     */
+    private void persist(Path file, LineIndex index) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(index.size);
+            out.writeLong(index.lastModified);
+            out.writeLong(index.lineCount);
+            out.writeInt(index.offsets.length);
+            for (long offset : index.offsets) {
+                out.writeLong(offset);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to persist line index {}", file, e);
+            return;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to persist line index {}", file, e);
+        }
+    }
+
+    private Path indexFile(String filePath) {
+        return indexDir.resolve(UUID.nameUUIDFromBytes(filePath.getBytes(StandardCharsets.UTF_8)) + ".idx");
+    }
+
+    /**
+     * Sparse line-offset index of one version of a file, plus its memory mapping.
+     */
+    private static class LineIndex {
+        private final long size;
+        private final long lastModified;
+        private final long lineCount;
+        private final long[] offsets; // offsets[k] = start of line k * CHECKPOINT_INTERVAL
+        private final MappedByteBuffer[] chunks;
+
+        LineIndex(long size, long lastModified, long lineCount, long[] offsets, MappedByteBuffer[] chunks) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lineCount = lineCount;
+            this.offsets = offsets;
+            this.chunks = chunks;
+        }
+
+        boolean matches(FileInfo info) {
+            return size == info.getFileSize() && lastModified == info.getLastModified();
+        }
+
+        /**
+         * Advances past a number of lines starting at an offset. Uses absolute gets only,
+         * so the shared mapping can be read by many threads at once.
+         *
+         * @return Offset just after the last skipped line (or end of file)
+         */
+        long skipLines(long offset, long lines) {
+            while (lines > 0 && offset < size) {
+                MappedByteBuffer chunk = chunks[(int) (offset / MAP_CHUNK)];
+                int limit = chunk.limit();
+                int i = (int) (offset % MAP_CHUNK);
+                int start = i;
+                while (lines > 0 && i < limit) {
+                    if (chunk.get(i++) == '\n') {
+                        lines--;
+                    }
+                }
+                offset += i - start;
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Location of a window of lines within a file.
+     */
+    public static class LineWindow {
+        private final long offset;
+        private final long length;
+        private final long fromLine;
+        private final int lineCount;
+        private final long totalLines;
+
+        LineWindow(long offset, long length, long fromLine, int lineCount, long totalLines) {
+            this.offset = offset;
+            this.length = length;
+            this.fromLine = fromLine;
+            this.lineCount = lineCount;
+            this.totalLines = totalLines;
+        }
+
+        /** @return Byte offset of the first line in the window */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** @return Number of bytes the window spans */
+        public long getLength() {
+            return length;
+        }
+
+        /** @return Zero-based number of the first line in the window */
+        public long getFromLine() {
+            return fromLine;
+        }
+
+        /** @return Number of lines in the window */
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        /** @return Total number of lines in the file */
+        public long getTotalLines() {
+            return totalLines;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.FileSort;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes metadata that needs the file content (sniffed MIME type, SHA-256,
+ * line count of text, image dimensions) in the background, once per file version,
+ * and stores it in the index entry so requests only ever read it.
+ *
+ * New and modified files are queued as the index reports them. The queue is
+ * bounded: when it is full the file is left without metadata and a periodic sweep
+ * over the index picks it up later, feeding the pool only as fast as it drains.
+ * The same sweep covers files indexed before anyone was listening (the initial
+ * crawl). Results are written back only if the file hasn't changed in the
+ * meantime; a newer version has been queued by then anyway. A file that can't be
+ * read is left without metadata, so its type still follows its extension, and is
+ * tried again by the next sweep.
+ */
+@Service
+public class MetadataEnrichmentService implements FileChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataEnrichmentService.class);
+
+    // Threads reading file contents
+    @Value("${file.metadata.threads:2}")
+    private int threads;
+
+    // Files that may wait for a thread; more are left to the next sweep
+    @Value("${file.metadata.queue-capacity:10000}")
+    private int queueCapacity;
+
+    // Seconds between sweeps for files that still have no metadata
+    @Value("${file.metadata.sweep-seconds:30}")
+    private long sweepSeconds;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Files queued and not yet picked up, so a burst of changes to one file queues it once
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+
+    // Set when a file was turned away or couldn't be read, so the next sweep looks for it; starts set for the initial crawl
+    private final AtomicBoolean backlog = new AtomicBoolean(true);
+
+    // Files whose last read failed, so a lasting failure is logged once rather than every sweep
+    private final Set<Path> failing = ConcurrentHashMap.newKeySet();
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService sweeper;
+    private Timer readTimer;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "file-metadata-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-metadata-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+
+        readTimer = meterRegistry.timer("file.metadata.read");
+        Gauge.builder("file.metadata.pending", pending, Set::size)
+                .description("Files queued for metadata computation")
+                .register(meterRegistry);
+
+        fileIndex.addListener(this);
+        sweeper.scheduleWithFixedDelay(this::sweep, 0, sweepSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void onFileChanged(FileInfo previous, FileInfo current) {
+        // Called under the index lock, so only queue
+        if (current == null && previous != null) {
+            failing.remove(Paths.get(previous.getFilePath()));
+        }
+        if (current != null && current.getMimeType() == null && !offer(Paths.get(current.getFilePath()))) {
+            backlog.set(true);
+            meterRegistry.counter("file.metadata.rejected").increment();
+        }
+    }
+
+    /**
+     * Queues every indexed file that has no metadata yet, waiting for room in the
+     * queue instead of giving up when it is full.
+     */
+    private void sweep() {
+        if (!backlog.getAndSet(false)) {
+            return;
+        }
+        int queued = 0;
+        Iterator<FileInfo> files = fileIndex.stream(FileSort.NAME, false, null).iterator();
+        try {
+            while (files.hasNext()) {
+                FileInfo info = files.next();
+                if (info.getMimeType() != null) {
+                    continue;
+                }
+                while (!offer(Paths.get(info.getFilePath()))) {
+                    Thread.sleep(100); // Queue full; let the workers catch up
+                }
+                queued++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            log.warn("Metadata sweep failed", e);
+            backlog.set(true);
+        }
+        if (queued > 0) {
+            log.info("Queued {} files for metadata computation", queued);
+        }
+    }
+
+    /**
+     * Queues a file unless it is queued already.
+     *
+     * @return false if the queue is full
+     */
+    private boolean offer(Path path) {
+        if (!pending.add(path)) {
+            return true;
+        }
+        try {
+            executor.execute(() -> enrich(path));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(path);
+            return false;
+        }
+    }
+
+    /**
+     * Computes the metadata of the current version of a file and stores it in the index.
+     */
+    private void enrich(Path path) {
+        pending.remove(path); // From here on, a new change queues the file again
+        FileInfo info = fileIndex.get(path);
+        if (info == null || info.getMimeType() != null) {
+            return; // Deleted, or done by an earlier task
+        }
+
+        String outcome;
+        try {
+            FileInfo enriched = readTimer.recordCallable(() -> read(info));
+            outcome = enriched != null && fileIndex.enrich(enriched) ? "stored" : "stale";
+            failing.remove(path);
+        } catch (NoSuchFileException e) {
+            outcome = "stale"; // Deleted; the watcher removes it from the index
+            failing.remove(path);
+        } catch (Exception e) {
+            // Possibly passing (permissions, a lock, a network mount): leave the type to the
+            // extension until a later sweep manages to read it
+            if (failing.add(path)) {
+                log.warn("Failed to read metadata of {}, will retry", path, e);
+            } else {
+                log.debug("Still failing to read metadata of {}: {}", path, e.toString());
+            }
+            backlog.set(true);
+            outcome = "failed";
+        }
+        meterRegistry.counter("file.metadata.files", "outcome", outcome).increment();
+    }
+
+    /**
+     * Reads a file once, sniffing its type from the first bytes while hashing the
+     * whole content and counting lines if it turns out to be text.
+     *
+     * @param info Indexed version of the file
+     * @return Copy of the entry with the metadata, or null if the file changed while it was read
+     */
+    private FileInfo read(FileInfo info) throws IOException, NoSuchAlgorithmException {
+        Path path = Paths.get(info.getFilePath());
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[64 * 1024];
+        String mimeType;
+        long total;
+        long newlines = 0;
+        byte last = '\n';
+        try (InputStream in = Files.newInputStream(path)) {
+            int read = in.readNBytes(buffer, 0, ContentSniffer.HEAD_BYTES);
+            mimeType = ContentSniffer.sniff(buffer, read, read < ContentSniffer.HEAD_BYTES, info.getFileType());
+            boolean text = mimeType.equals(ContentSniffer.TEXT);
+            total = 0;
+            while (read > 0) {
+                digest.update(buffer, 0, read);
+                if (text) {
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            newlines++;
+                        }
+                    }
+                    last = buffer[read - 1];
+                }
+                total += read;
+                read = in.read(buffer);
+            }
+        }
+        if (total != info.getFileSize()) {
+            return null; // Being written; the next modification queues it again
+        }
+
+        FileInfo enriched = copy(info);
+        enriched.setMimeType(mimeType);
+        enriched.setContentHash(hex(digest.digest()));
+        if (mimeType.equals(ContentSniffer.TEXT)) {
+            enriched.setLineCount(last != '\n' ? newlines + 1 : newlines); // Last line may lack a newline
+        } else if (ContentSniffer.isImage(mimeType)) {
+            readDimensions(path, enriched);
+        }
+        return enriched;
+    }
+
+    /**
+     * Reads the dimensions of an image from its header, without decoding the pixels.
+     */
+    private void readDimensions(Path path, FileInfo enriched) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(path.toFile())) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                return;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                enriched.setWidth(reader.getWidth(0));
+                enriched.setHeight(reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Cannot read dimensions of {}: {}", path, e.toString());
+        }
+    }
+
+    private FileInfo copy(FileInfo info) {
+        return new FileInfo(info.getFileName(), info.getFileType(), info.getFileSize(), info.getFilePath(),
+                info.getLastModified(), null);
+    }
+
+    private String hex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,897 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Full-text search over .txt and .loc files through an incrementally maintained inverted index.
+ *
+ * Each text file gets its own segment file on disk holding, for every term in the file,
+ * the byte offsets of the lines that contain it, delta- and varint-encoded. Segments are written in blocks, so
+ * indexing a huge log never holds more than one block's postings in memory. Each
+ * segment's term dictionary (term to posting locations) is stored sorted after its
+ * postings; memory holds only every 64th term of it, to find the rest with one short
+ * read, and a Bloom filter of 10 bits per term that rules out most segments lacking a
+ * term without touching the disk. Heap use is therefore about 2 bytes per distinct term
+ * per file, however many ids and hashes the logs contain. Postings are streamed and
+ * intersected at query time, stopping as soon as enough hits are found.
+ *
+ * Files are indexed in parallel on a worker pool: all text files at startup (reusing
+ * segments whose file version still matches), then again whenever the FileIndex reports
+ * that one was added, changed or deleted.
+ */
+@Service
+public class SearchIndexService implements FileChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchIndexService.class);
+
+    // Identifies segment files; changed with the layout, so older segments are rebuilt
+    private static final int MAGIC = 0x53454732; // "SEG2"
+
+    // One term in this many of a segment's sorted dictionary is kept in memory
+    private static final int TERM_INDEX_INTERVAL = 64;
+
+    // Bloom filter size and hash count; about 1% of segments lacking a term still get a dictionary read
+    private static final int BLOOM_BITS_PER_TERM = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    // Postings are flushed to disk after this many bytes of source text
+    private static final long BLOCK_BYTES = 32L * 1024 * 1024;
+
+    // Longer tokens (hashes, base64 blobs) are not indexed
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    // Longest line snippet returned with a hit
+    private static final int MAX_SNIPPET_BYTES = 512;
+
+    // Directory for server-side state (indexes, caches)
+    @Value("${file.state-dir}")
+    private String stateDir;
+
+    // Indexing threads (0 = one per core)
+    @Value("${file.search.threads:0}")
+    private int threads;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private FileService fileService;
+
+    // Published segments by id, and the current segment id of each file path
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final Map<String, Integer> segmentIds = new ConcurrentHashMap<>();
+
+    // Paths with an indexing task queued, so bursts of change events collapse into one rebuild
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private ExecutorService executor;
+    private Path segmentDir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        segmentDir = Paths.get(stateDir, "search");
+        Files.createDirectories(segmentDir);
+
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "search-indexer-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        fileIndex.addListener(this);
+
+        // Bootstrap waits on tasks it submits to the pool, so it runs on its own thread
+        Thread bootstrap = new Thread(this::bootstrap, "search-bootstrap");
+        bootstrap.setDaemon(true);
+        bootstrap.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Finds lines containing every term of a query.
+     *
+     * @param query Free-text query; terms are matched case-insensitively
+     * @param limit Maximum number of hits to return
+     * @return Matching lines, grouped by file
+     * @throws IOException If a segment or source file can't be read
+     */
+    public List<SearchHit> search(String query, int limit) throws IOException {
+        Set<String> terms = tokenize(query.getBytes(StandardCharsets.UTF_8));
+        List<SearchHit> hits = new ArrayList<>();
+        if (terms.isEmpty()) {
+            return hits;
+        }
+
+        // Only segments whose Bloom filters admit every term are read
+        long[] hashes = terms.stream().mapToLong(SearchIndexService::termHash).toArray();
+        for (Segment segment : segments.values()) {
+            if (segment.mightContainAll(hashes)) {
+                collectHits(segment, terms, limit, hits);
+                if (hits.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Gets the number of files currently searchable.
+     *
+     * @return Indexed file count
+     */
+    public int getIndexedFileCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void onFileChanged(FileInfo previous, FileInfo current) {
+        FileInfo info = current != null ? current : previous;
+        if (fileService.isTextFile(info.getFileName())) {
+            schedule(info.getFilePath());
+        }
+    }
+
+    /**
+     * Loads segments left by a previous run and indexes every text file that has none.
+     */
+    private void bootstrap() {
+        long start = System.nanoTime();
+
+        // Drop segments whose writer died before moving them into place
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDir, "*.seg.tmp")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to clean up partial search segments", e);
+        }
+
+        // Reuse segments that still match their file; drop the rest
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDir, "*.seg")) {
+            List<Future<?>> loads = new ArrayList<>();
+            for (Path file : files) {
+                loads.add(executor.submit(() -> loadSegment(file)));
+            }
+            for (Future<?> load : loads) {
+                load.get();
+            }
+        } catch (IOException | ExecutionException e) {
+            log.warn("Failed to load search segments", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        int queued = 0;
+        for (FileInfo info : fileIndex.getAllFiles()) {
+            if (fileService.isTextFile(info.getFileName()) && !segmentIds.containsKey(info.getFilePath())) {
+                schedule(info.getFilePath());
+                queued++;
+            }
+        }
+        log.info("Search index loaded {} segments in {} ms, {} files queued for indexing",
+                segments.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), queued);
+    }
+
+    /**
+     * Queues a file for (re)indexing unless it is already queued.
+     */
+    private void schedule(String filePath) {
+        if (pending.add(filePath)) {
+            try {
+                executor.execute(() -> {
+                    pending.remove(filePath);
+                    index(filePath);
+                });
+            } catch (RejectedExecutionException e) {
+                pending.remove(filePath); // Shutting down
+            }
+        }
+    }
+
+    /**
+     * Brings the segment of one file up to date with its current version on disk.
+     */
+    private void index(String filePath) {
+        FileInfo info = fileIndex.get(Paths.get(filePath));
+        Integer currentId = segmentIds.get(filePath);
+        Segment current = currentId != null ? segments.get(currentId) : null;
+
+        if (info == null || !fileService.isTextFile(info.getFileName())) {
+            if (current != null) {
+                replace(filePath, current, null);
+            }
+            return;
+        }
+        if (current != null && current.matches(info)) {
+            return;
+        }
+
+        try {
+            Segment segment = build(info);
+            synchronized (this) {
+                // Another change may have arrived while building; its own task will index it
+                if (!segment.matches(fileIndex.get(Paths.get(filePath)))) {
+                    Files.deleteIfExists(segment.file);
+                    return;
+                }
+                Integer latestId = segmentIds.get(filePath);
+                replace(filePath, latestId != null ? segments.get(latestId) : null, segment);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to index {}", filePath, e);
+        }
+    }
+
+    /**
+     * Swaps the published segment of a file. New postings become visible before old ones disappear.
+     */
+    private synchronized void replace(String filePath, Segment old, Segment segment) {
+        if (segment != null) {
+            segments.put(segment.id, segment);
+            segmentIds.put(filePath, segment.id);
+        } else {
+            segmentIds.remove(filePath);
+        }
+
+        if (old != null) {
+            segments.remove(old.id);
+            try {
+                Files.deleteIfExists(old.file);
+            } catch (IOException e) {
+                log.warn("Failed to delete search segment {}", old.file, e);
+            }
+        }
+    }
+
+    /**
+     * Reads the header, term index and Bloom filter of a segment left on disk, publishing
+     * it if it still matches its file.
+     */
+    private void loadSegment(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a search segment");
+            }
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            String filePath = in.readUTF();
+
+            FileInfo info = fileIndex.get(Paths.get(filePath));
+            if (info == null || info.getFileSize() != size || info.getLastModified() != lastModified
+                    || segmentIds.containsKey(filePath)) {
+                Files.delete(file); // Stale or duplicate
+                return;
+            }
+
+            long footerOffset = channel.size() - 2 * Long.BYTES;
+            ByteBuffer footer = ByteBuffer.allocate(2 * Long.BYTES);
+            channel.read(footer, footerOffset);
+            long indexOffset = footer.getLong(0);
+            long bloomOffset = footer.getLong(Long.BYTES);
+            if (indexOffset < 0 || indexOffset > bloomOffset || bloomOffset > footerOffset) {
+                throw new IOException("Truncated search segment"); // Writer died before the footer
+            }
+
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(indexOffset))));
+            int termCount = in.readInt();
+            int indexSize = in.readInt();
+            if (termCount < 0 || indexSize != (termCount + TERM_INDEX_INTERVAL - 1) / TERM_INDEX_INTERVAL) {
+                throw new IOException("Corrupt search segment term index");
+            }
+            String[] indexTerms = new String[indexSize];
+            long[] indexOffsets = new long[indexSize];
+            for (int i = 0; i < indexSize; i++) {
+                indexTerms[i] = readTerm(in);
+                indexOffsets[i] = in.readLong();
+                if (indexOffsets[i] < 0 || indexOffsets[i] >= indexOffset) {
+                    throw new IOException("Corrupt search segment term index");
+                }
+            }
+
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(bloomOffset))));
+            int words = in.readInt();
+            if (words <= 0 || (long) words * Long.BYTES > footerOffset - bloomOffset) {
+                throw new IOException("Corrupt search segment Bloom filter");
+            }
+            long[] bloom = new long[words];
+            for (int i = 0; i < words; i++) {
+                bloom[i] = in.readLong();
+            }
+
+            synchronized (this) {
+                if (!segmentIds.containsKey(filePath)) {
+                    replace(filePath, null, new Segment(nextId.incrementAndGet(), filePath, size, lastModified, file,
+                            termCount, indexTerms, indexOffsets, indexOffset, bloom));
+                    return;
+                }
+            }
+            Files.delete(file);
+        } catch (IOException | RuntimeException e) {
+            // Damaged on disk (e.g. a garbage term count); rebuilt from the file later
+            log.warn("Discarding unreadable search segment {}", file, e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    /**
+     * Reads a term written by SegmentWriter: its UTF-8 length and bytes.
+     */
+    private static String readTerm(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Truncated search segment");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a term, split into the two hashes the Bloom filters combine.
+     */
+    private static long termHash(String term) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash ^= term.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Bit of a Bloom filter that the i-th hash of a term sets.
+     */
+    private static int bloomBit(long hash, int i, int bits) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return (int) (Integer.toUnsignedLong(h1 + i * h2) % bits);
+    }
+
+    /**
+     * Indexes one version of a file into a new segment file.
+     */
+    private Segment build(FileInfo info) throws IOException {
+        Path file = segmentDir.resolve(UUID.nameUUIDFromBytes(info.getFilePath().getBytes(StandardCharsets.UTF_8))
+                + "-" + UUID.randomUUID() + ".seg");
+        SegmentWriter writer = new SegmentWriter(file, info);
+        try (InputStream in = Files.newInputStream(Paths.get(info.getFilePath()))) {
+            writer.index(in);
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+        return new Segment(nextId.incrementAndGet(), info.getFilePath(), info.getFileSize(), info.getLastModified(),
+                file, writer.termCount, writer.indexTerms, writer.indexOffsets, writer.indexOffset, writer.bloom);
+    }
+
+    /**
+     * Looks up every query term in one segment, intersects their postings and turns matching lines into hits.
+     */
+    private void collectHits(Segment segment, Set<String> terms, int limit, List<SearchHit> hits) throws IOException {
+        Path source = Paths.get(segment.filePath);
+        String fileName = source.getFileName().toString();
+
+        try (FileChannel postingsChannel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+            List<PostingsCursor> cursors = new ArrayList<>();
+            for (String term : terms) {
+                long[] runs = segment.lookup(postingsChannel, term);
+                if (runs == null) {
+                    return; // Let through by the Bloom filter, but not in the segment
+                }
+                cursors.add(new PostingsCursor(postingsChannel, runs));
+            }
+            try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+                intersect(segment, fileName, sourceChannel, cursors, terms, limit, hits);
+            }
+        } catch (NoSuchFileException e) {
+            // Segment or source deleted while searching; its results are gone anyway
+        }
+    }
+
+    /**
+     * Leapfrogs the cursors of all query terms and adds a hit for every line they share.
+     */
+    private void intersect(Segment segment, String fileName, FileChannel sourceChannel, List<PostingsCursor> cursors,
+                           Set<String> terms, int limit, List<SearchHit> hits) throws IOException {
+        // Leapfrog intersection: advance every cursor to the largest current offset until all agree
+        long target = 0;
+        while (hits.size() < limit) {
+            boolean aligned = true;
+            for (PostingsCursor cursor : cursors) {
+                long offset = cursor.advanceTo(target);
+                if (offset < 0) {
+                    return; // One of the terms has no more lines
+                }
+                if (offset != target) {
+                    target = offset;
+                    aligned = false;
+                }
+            }
+            if (aligned) {
+                ByteBuffer line = readLine(sourceChannel, target);
+                byte[] text = Arrays.copyOf(line.array(), line.limit());
+                // The file may have changed since it was indexed; only report lines that still match.
+                // Lines cut off at the snippet limit can't be checked and are trusted.
+                boolean truncated = line.limit() == MAX_SNIPPET_BYTES;
+                if (text.length > 0 && (truncated || tokenize(text).containsAll(terms))) {
+                    hits.add(new SearchHit(fileName, segment.filePath, target, new String(text, StandardCharsets.UTF_8)));
+                }
+                target++;
+            }
+        }
+    }
+
+    /**
+     * Reads the line starting at an offset, up to MAX_SNIPPET_BYTES.
+     *
+     * @return Heap buffer whose limit marks the end of the line (without line terminator)
+     */
+    private ByteBuffer readLine(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_SNIPPET_BYTES);
+        channel.read(buffer, offset);
+        int end = 0;
+        while (end < buffer.position() && buffer.get(end) != '\n') {
+            end++;
+        }
+        boolean terminated = end < buffer.position();
+        if (terminated && end > 0 && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        buffer.limit(end);
+        return buffer;
+    }
+
+    /**
+     * Splits text into lower-cased terms: runs of letters, digits, underscores and non-ASCII bytes.
+     */
+    private static Set<String> tokenize(byte[] text) {
+        Set<String> terms = new HashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length; i++) {
+            if (i < text.length && isTokenByte(text[i])) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (i - start <= MAX_TOKEN_LENGTH) {
+                    terms.add(toTerm(text, start, i - start));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private static boolean isTokenByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_' || b < 0;
+    }
+
+    private static String toTerm(byte[] bytes, int offset, int length) {
+        byte[] term = new byte[length];
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[offset + i];
+            term[i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+        }
+        return new String(term, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A published, immutable segment: one indexed version of one file. Its dictionary
+     * stays on disk; memory holds every TERM_INDEX_INTERVAL-th term and a Bloom filter.
+     */
+    private static class Segment {
+        private final int id;
+        private final String filePath;
+        private final long size;
+        private final long lastModified;
+        private final Path file;
+        private final int termCount;
+        private final String[] indexTerms; // Every TERM_INDEX_INTERVAL-th term of the sorted dictionary
+        private final long[] indexOffsets; // Where each of those terms' entries starts in the file
+        private final long dictionaryEnd;
+        private final long[] bloom;
+
+        Segment(int id, String filePath, long size, long lastModified, Path file, int termCount,
+                String[] indexTerms, long[] indexOffsets, long dictionaryEnd, long[] bloom) {
+            this.id = id;
+            this.filePath = filePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.file = file;
+            this.termCount = termCount;
+            this.indexTerms = indexTerms;
+            this.indexOffsets = indexOffsets;
+            this.dictionaryEnd = dictionaryEnd;
+            this.bloom = bloom;
+        }
+
+        boolean matches(FileInfo info) {
+            return info != null && size == info.getFileSize() && lastModified == info.getLastModified();
+        }
+
+        /**
+         * Checks the Bloom filter for terms; false means at least one is certainly missing.
+         *
+         * @param hashes termHash of every term
+         */
+        boolean mightContainAll(long[] hashes) {
+            int bits = bloom.length * Long.SIZE;
+            for (long hash : hashes) {
+                for (int i = 0; i < BLOOM_HASHES; i++) {
+                    int bit = bloomBit(hash, i, bits);
+                    if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Finds a term's posting runs by reading the one block of the dictionary it would be in.
+         *
+         * @param channel Open channel on the segment file; its position is moved
+         * @return Runs flattened as [offset, length, offset, length, ...] in bytes, or null if the term isn't there
+         */
+        long[] lookup(FileChannel channel, String term) throws IOException {
+            int block = Arrays.binarySearch(indexTerms, term);
+            if (block < 0) {
+                block = -block - 2; // Block of the largest indexed term before it
+                if (block < 0) {
+                    return null;
+                }
+            }
+            long start = indexOffsets[block];
+            long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dictionaryEnd;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(
+                    channel.position(start)), (int) Math.min(8 * 1024, Math.max(1, end - start))));
+            int entries = Math.min(TERM_INDEX_INTERVAL, termCount - block * TERM_INDEX_INTERVAL);
+            for (int i = 0; i < entries; i++) {
+                String entryTerm = readTerm(in);
+                int runCount = in.readInt();
+                if (runCount < 0) {
+                    throw new IOException("Corrupt search segment dictionary");
+                }
+                int order = entryTerm.compareTo(term);
+                if (order > 0) {
+                    return null; // Sorted; passed where it would be
+                }
+                if (order == 0) {
+                    long[] runs = new long[runCount * 2];
+                    for (int r = 0; r < runs.length; r++) {
+                        runs[r] = in.readLong();
+                    }
+                    return runs;
+                }
+                skipFully(in, (long) runCount * 2 * Long.BYTES); // Its runs
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Streams one term's line offsets from a segment, decoding the runs in small chunks.
+     */
+    private static class PostingsCursor {
+        private final FileChannel channel;
+        private final long[] runs;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        private int run = -1;
+        private long position;
+        private long runEnd;
+        private long current = -1;
+
+        PostingsCursor(FileChannel channel, long[] runs) {
+            this.channel = channel;
+            this.runs = runs;
+            this.buffer.limit(0);
+        }
+
+        /**
+         * Moves to the first offset at or after a target.
+         *
+         * @return That offset, or -1 if the postings are exhausted
+         */
+        long advanceTo(long target) throws IOException {
+            while (current < target) {
+                if (!buffer.hasRemaining() && position == runEnd) {
+                    // Next run: deltas restart from zero at the start of every run
+                    if (++run * 2 >= runs.length) {
+                        return -1;
+                    }
+                    position = runs[run * 2];
+                    runEnd = position + runs[run * 2 + 1];
+                    current = 0;
+                }
+                current += readVarLong();
+            }
+            return current;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (!buffer.hasRemaining()) {
+                    fill();
+                }
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private void fill() throws IOException {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), runEnd - position));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Truncated search segment");
+                }
+                position += read;
+            }
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("Truncated search segment");
+            }
+        }
+    }
+
+    /**
+     * Writes a segment: header, postings in per-block runs, the term dictionary sorted by
+     * term, the sampled term index, the Bloom filter, and a footer pointing at the last two.
+     * The segment is written to a temp file and moved into place once complete, so a crash
+     * never leaves a partial segment under its final name.
+     */
+    private static class SegmentWriter {
+        private final Path file;
+        private final Path temp;
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+
+        // Postings of the current block, and the runs already flushed for every term
+        private final Map<String, LongList> block = new HashMap<>();
+        private final Map<String, LongList> runs = new HashMap<>();
+
+        // What the published Segment keeps in memory, set by finish()
+        private int termCount;
+        private String[] indexTerms;
+        private long[] indexOffsets;
+        private long indexOffset;
+        private long[] bloom;
+
+        SegmentWriter(Path file, FileInfo info) throws IOException {
+            this.file = file;
+            this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024));
+            this.out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeLong(info.getFileSize());
+            out.writeLong(info.getLastModified());
+            out.writeUTF(info.getFilePath());
+        }
+
+        void index(InputStream in) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            byte[] token = new byte[MAX_TOKEN_LENGTH];
+            Set<String> lineTerms = new HashSet<>();
+            int tokenLength = 0;
+            boolean inToken = false;
+            long offset = 0;
+            long lineStart = 0;
+            long blockStart = 0;
+
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (isTokenByte(b)) {
+                        if (tokenLength < MAX_TOKEN_LENGTH) {
+                            token[tokenLength] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+                        }
+                        tokenLength++;
+                        inToken = true;
+                        continue;
+                    }
+                    if (inToken) {
+                        if (tokenLength <= MAX_TOKEN_LENGTH) {
+                            lineTerms.add(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+                        }
+                        tokenLength = 0;
+                        inToken = false;
+                    }
+                    if (b == '\n') {
+                        endLine(lineTerms, lineStart);
+                        lineStart = offset + i + 1;
+                        if (lineStart - blockStart >= BLOCK_BYTES) {
+                            flushBlock();
+                            blockStart = lineStart;
+                        }
+                    }
+                }
+                offset += read;
+            }
+            if (inToken && tokenLength <= MAX_TOKEN_LENGTH) {
+                lineTerms.add(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+            }
+            endLine(lineTerms, lineStart);
+            flushBlock();
+            finish();
+        }
+
+        void abort() {
+            try {
+                out.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Best effort cleanup
+            }
+        }
+
+        private void endLine(Set<String> lineTerms, long lineStart) {
+            for (String term : lineTerms) {
+                block.computeIfAbsent(term, t -> new LongList()).add(lineStart);
+            }
+            lineTerms.clear();
+        }
+
+        private void flushBlock() throws IOException {
+            for (Map.Entry<String, LongList> entry : block.entrySet()) {
+                LongList postings = entry.getValue();
+                long start = counter.count;
+                long previous = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    writeVarLong(postings.values[i] - previous); // Offsets ascend, so deltas are small
+                    previous = postings.values[i];
+                }
+                LongList termRuns = runs.computeIfAbsent(entry.getKey(), t -> new LongList());
+                termRuns.add(start);
+                termRuns.add(counter.count - start);
+            }
+            block.clear();
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        private void writeTerm(String term) throws IOException {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        private void finish() throws IOException {
+            List<String> sorted = new ArrayList<>(runs.keySet());
+            Collections.sort(sorted);
+            termCount = sorted.size();
+            int indexSize = (termCount + TERM_INDEX_INTERVAL - 1) / TERM_INDEX_INTERVAL;
+            indexTerms = new String[indexSize];
+            indexOffsets = new long[indexSize];
+            bloom = new long[Math.max(1, (int) (((long) termCount * BLOOM_BITS_PER_TERM + Long.SIZE - 1) / Long.SIZE))];
+            int bits = bloom.length * Long.SIZE;
+
+            for (int i = 0; i < termCount; i++) {
+                String term = sorted.get(i);
+                if (i % TERM_INDEX_INTERVAL == 0) {
+                    indexTerms[i / TERM_INDEX_INTERVAL] = term;
+                    indexOffsets[i / TERM_INDEX_INTERVAL] = counter.count;
+                }
+                long hash = termHash(term);
+                for (int h = 0; h < BLOOM_HASHES; h++) {
+                    int bit = bloomBit(hash, h, bits);
+                    bloom[bit >>> 6] |= 1L << bit;
+                }
+                LongList termRuns = runs.get(term);
+                writeTerm(term);
+                out.writeInt(termRuns.size / 2);
+                for (int r = 0; r < termRuns.size; r++) {
+                    out.writeLong(termRuns.values[r]);
+                }
+            }
+            runs.clear();
+
+            indexOffset = counter.count;
+            out.writeInt(termCount);
+            out.writeInt(indexSize);
+            for (int i = 0; i < indexSize; i++) {
+                writeTerm(indexTerms[i]);
+                out.writeLong(indexOffsets[i]);
+            }
+            long bloomOffset = counter.count;
+            out.writeInt(bloom.length);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.close();
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Counts the bytes written through it, so segment offsets can go past 2 GB.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Growable array of primitive longs.
+     */
+    private static class LongList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Generates downscaled previews of images and keeps them in an on-disk cache.
+ *
+ * Thumbnails are keyed by the file version they were made from (path, size and
+ * modification time), so a changed image never serves a stale preview. Generation runs on a small bounded pool; concurrent
+ * requests for the same thumbnail share a single generation, and new uploads get
+ * their default-size thumbnail generated in the background ahead of the first request.
+ * Background generations may only take a share of the queue, so a burst of uploads
+ * never turns away thumbnails users are waiting for.
+ *
+ * Requested sizes are rounded up to one of a few fixed sizes, so an image has at most
+ * that many thumbnails. Each file version's thumbnails share a directory, which is
+ * removed as a whole once the version is superseded, and the whole cache is kept under
+ * a byte budget by evicting the least recently used thumbnails.
+ */
+@Service
+public class ThumbnailService implements FileChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+    // Largest thumbnail edge that may be requested, in pixels
+    public static final int MAX_SIZE = 1024;
+
+    // Milliseconds between updates of a cached thumbnail's last use
+    private static final long TOUCH_INTERVAL_MS = 60_000;
+
+    // Directory for server-side state (indexes, caches)
+    @Value("${file.state-dir}")
+    private String stateDir;
+
+    // Threads decoding and scaling images
+    @Value("${file.thumbnail.threads:2}")
+    private int threads;
+
+    // Generations that may wait for a thread before new requests are turned away
+    @Value("${file.thumbnail.queue-capacity:100}")
+    private int queueCapacity;
+
+    // Background generations for new images queued or running at once; further ones are skipped
+    @Value("${file.thumbnail.prefetch-capacity:20}")
+    private int prefetchCapacity;
+
+    // Edge length generated ahead of time for new images
+    @Value("${file.thumbnail.default-size:200}")
+    private int defaultSize;
+
+    // Comma-separated edge lengths thumbnails are made in; requests are rounded up to the next one
+    @Value("${file.thumbnail.sizes:64,128,200,400,800,1024}")
+    private String sizes;
+
+    // Bytes of thumbnails kept on disk before the least recently used ones are deleted
+    @Value("${file.thumbnail.cache-max-bytes:536870912}")
+    private long cacheMaxBytes;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    // Generations in progress by cache key, so concurrent requests share one
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    // Bytes of thumbnails in the cache directory
+    private final AtomicLong cacheBytes = new AtomicLong();
+
+    private ThreadPoolExecutor executor;
+    private ExecutorService cleaner;
+    private Semaphore prefetchPermits;
+    private int[] sizeSteps;
+    private Path cacheDir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        sizeSteps = Arrays.stream(sizes.split(","))
+                .map(String::trim)
+                .filter(size -> !size.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .filter(size -> size >= 1 && size <= MAX_SIZE)
+                .sorted()
+                .distinct()
+                .toArray();
+        if (sizeSteps.length == 0) {
+            sizeSteps = new int[]{MAX_SIZE};
+        }
+
+        cacheDir = Paths.get(stateDir, "thumbnails");
+        Files.createDirectories(cacheDir);
+        try (Stream<Path> files = Files.walk(cacheDir, 2)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                try {
+                    if (file.getParent().equals(cacheDir)) {
+                        Files.deleteIfExists(file); // Interrupted write, or a thumbnail of the old flat layout
+                    } else {
+                        cacheBytes.addAndGet(Files.size(file));
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to check cached thumbnail {}", file, e);
+                }
+            });
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "thumbnail-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        prefetchPermits = new Semaphore(Math.min(prefetchCapacity, queueCapacity));
+
+        // Unbounded: deletions are cheap and must never be dropped, or their files would stay forever
+        cleaner = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "thumbnail-cleanup");
+            t.setDaemon(true);
+            return t;
+        });
+        fileIndex.addListener(this);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * Checks whether thumbnails can be made for a file type.
+     *
+     * @param fileType File extension
+     * @return true for png, jpg and jpeg
+     */
+    public boolean isSupported(String fileType) {
+        String type = fileType.toLowerCase();
+        return type.equals("png") || type.equals("jpg") || type.equals("jpeg");
+    }
+
+    /**
+     * Rounds a requested size up to the size its thumbnail is made in.
+     *
+     * @param size Requested longest edge in pixels
+     * @return The smallest configured size at least as large, or the largest one
+     */
+    public int sizeStep(int size) {
+        for (int step : sizeSteps) {
+            if (step >= size) {
+                return step;
+            }
+        }
+        return sizeSteps[sizeSteps.length - 1];
+    }
+
+    /**
+     * Returns the cached thumbnail of an image, generating it if needed.
+     *
+     * @param info Metadata of the source image
+     * @param size Longest edge of the thumbnail in pixels; rounded up (see sizeStep)
+     * @return Future completed with the path of the thumbnail file
+     * @throws RejectedExecutionException If the generation queue is full
+     */
+    public CompletableFuture<Path> getThumbnail(FileInfo info, int size) {
+        int step = sizeStep(size);
+        Path cached = cacheFile(info, step);
+        if (touch(cached)) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<Path> created = new CompletableFuture<>();
+        CompletableFuture<Path> existing = inFlight.putIfAbsent(cached.toString(), created);
+        if (existing != null) {
+            return existing; // Someone is already generating it
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    created.complete(generate(info, step, cached));
+                } catch (Exception e) {
+                    created.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(cached.toString(), created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(cached.toString(), created);
+            throw e;
+        }
+        return created;
+    }
+
+    /**
+     * Gets a stable identifier for a thumbnail, suitable as an entity tag.
+     *
+     * @param info Metadata of the source image
+     * @param size Longest edge of the thumbnail in pixels; rounded up (see sizeStep)
+     * @return Identifier that changes whenever the source content does
+     */
+    public String getThumbnailKey(FileInfo info, int size) {
+        return versionKey(info) + "-" + sizeStep(size);
+    }
+
+    /**
+     * Gets the bytes of thumbnails currently cached on disk.
+     *
+     * @return Size of the thumbnail cache in bytes
+     */
+    public long getCacheBytes() {
+        return cacheBytes.get();
+    }
+
+    @Override
+    public void onFileChanged(FileInfo previous, FileInfo current) {
+        // Called under the index lock, so all disk work is handed to other threads
+        if (previous != null && isSupported(previous.getFileType())) {
+            // Thumbnails of the old version can never be requested again
+            String key = versionKey(previous);
+            cleaner.execute(() -> deleteThumbnails(key));
+        }
+        if (current != null && isSupported(current.getFileType())) {
+            try {
+                prefetch(current);
+            } catch (RejectedExecutionException e) {
+                log.debug("Thumbnail queue full, skipping background generation for {}", current.getFilePath());
+            }
+        }
+    }
+
+    /**
+     * Generates the default-size thumbnail of a new image in the background, if few enough
+     * background generations are pending. Skipped ones are generated on first request.
+     */
+    private void prefetch(FileInfo info) {
+        if (!prefetchPermits.tryAcquire()) {
+            log.debug("Too many thumbnails pending, skipping background generation for {}", info.getFilePath());
+            return;
+        }
+        try {
+            getThumbnail(info, defaultSize).whenComplete((path, e) -> prefetchPermits.release());
+        } catch (RejectedExecutionException e) {
+            prefetchPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes an image at reduced resolution, scales it to fit the requested size, and writes it to the cache.
+     */
+    private Path generate(FileInfo info, int size, Path target) throws IOException {
+        if (Files.exists(target)) {
+            return target;
+        }
+        if (!isCurrent(info)) {
+            // Superseded while queued (e.g. an upload still being written); skip the wasted decode
+            throw new IOException("File changed before thumbnail was generated: " + info.getFilePath());
+        }
+
+        BufferedImage source = read(Paths.get(info.getFilePath()), size);
+        double scale = Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        String format = formatOf(info);
+        int type = format.equals("png") ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage thumbnail = new BufferedImage(width, height, type);
+        Graphics2D g = thumbnail.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+
+        // Write to a temp file and rename, so readers never see a partial thumbnail
+        Path temp = Files.createTempFile(cacheDir, "thumb", ".tmp");
+        try {
+            if (!ImageIO.write(thumbnail, format, temp.toFile())) {
+                throw new IOException("No image writer for " + format);
+            }
+            long written = Files.size(temp);
+            Files.createDirectories(target.getParent());
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (cacheBytes.addAndGet(written) > cacheMaxBytes) {
+                cleaner.execute(this::evict);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (!isCurrent(info)) {
+            // Changed while we were decoding; the cleanup for the old version may already have run
+            deleteThumbnails(versionKey(info));
+            throw new IOException("File changed while thumbnail was generated: " + info.getFilePath());
+        }
+        return target;
+    }
+
+    /**
+     * Checks that the index still holds the version of the file a thumbnail is being made from.
+     */
+    private boolean isCurrent(FileInfo info) {
+        FileInfo latest = fileIndex.get(Paths.get(info.getFilePath()));
+        return latest == null || latest.isSameVersion(info);
+    }
+
+    /**
+     * Reads an image, skipping pixels while decoding so that large images are never
+     * fully decoded when only a small thumbnail is needed.
+     */
+    private BufferedImage read(Path file, int size) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            if (in == null) {
+                throw new IOException("Cannot open image " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longestEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+
+                // Subsample down to no less than twice the target size, then scale smoothly
+                int step = Math.max(1, longestEdge / (size * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private Path cacheFile(FileInfo info, int step) {
+        return cacheDir.resolve(versionKey(info)).resolve(step + "." + formatOf(info));
+    }
+
+    /**
+     * Marks a cached thumbnail as used, for eviction.
+     *
+     * @return false if it isn't cached
+     */
+    private boolean touch(Path thumbnail) {
+        try {
+            long now = System.currentTimeMillis();
+            // Not on every request, so hot thumbnails don't cost a metadata write each
+            if (Files.getLastModifiedTime(thumbnail).toMillis() < now - TOUCH_INTERVAL_MS) {
+                Files.setLastModifiedTime(thumbnail, FileTime.fromMillis(now));
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            return Files.exists(thumbnail);
+        }
+    }
+
+    private String versionKey(FileInfo info) {
+        // Not the content hash: it is computed later, and the key must not change under a cached thumbnail
+        String version = info.getFilePath() + "\0" + info.getFileSize() + "\0" + info.getLastModified();
+        return UUID.nameUUIDFromBytes(version.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private String formatOf(FileInfo info) {
+        return info.getFileType().equalsIgnoreCase("png") ? "png" : "jpg";
+    }
+
+    private void deleteThumbnails(String key) {
+        Path dir = cacheDir.resolve(key);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                delete(file);
+            }
+        } catch (NoSuchFileException e) {
+            return; // Never had a thumbnail
+        } catch (IOException e) {
+            log.warn("Failed to delete thumbnails for {}", key, e);
+        }
+        try {
+            Files.deleteIfExists(dir);
+        } catch (DirectoryNotEmptyException e) {
+            // A thumbnail of the old version was just written; its generation deletes it again
+        } catch (IOException e) {
+            log.warn("Failed to delete thumbnail directory {}", dir, e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the cache is well under its budget.
+     * Thumbnails used in the last two minutes are kept, so none is deleted while it is
+     * being sent; their directories are left for deleteThumbnails, so generations never
+     * write into a removed one.
+     */
+    private void evict() {
+        if (cacheBytes.get() <= cacheMaxBytes) {
+            return; // Evicted already
+        }
+        List<Path> thumbnails = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(cacheDir, 2)) {
+            files.filter(file -> !file.getParent().equals(cacheDir) && Files.isRegularFile(file))
+                    .forEach(thumbnails::add);
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Failed to list thumbnails", e);
+            return;
+        }
+        thumbnails.sort(Comparator.comparing(ThumbnailService::lastModified));
+        long target = cacheMaxBytes / 10 * 9;
+        long inUse = System.currentTimeMillis() - TOUCH_INTERVAL_MS * 2;
+        for (Path thumbnail : thumbnails) {
+            if (cacheBytes.get() <= target || lastModified(thumbnail).toMillis() > inUse) {
+                break;
+            }
+            delete(thumbnail);
+        }
+    }
+
+    private void delete(Path thumbnail) {
+        try {
+            long size = Files.size(thumbnail);
+            if (Files.deleteIfExists(thumbnail)) {
+                cacheBytes.addAndGet(-size);
+            }
+        } catch (NoSuchFileException e) {
+            // Already gone
+        } catch (IOException e) {
+            log.warn("Failed to delete thumbnail {}", thumbnail, e);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
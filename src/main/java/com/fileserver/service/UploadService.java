@@ -0,0 +1,527 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.UploadRequest;
+import com.fileserver.model.UploadStatus;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resumable uploads of large files in chunks.
+ *
+ * An upload is staged as a part file of the final size in the staging directory
+ * under the upload root, which the index never looks at. Each chunk is streamed
+ * from the request straight to its offset in the part file with positional writes,
+ * through one small buffer, so chunks can arrive in any order and in parallel and
+ * memory use doesn't depend on the chunk size. A chunk only counts as received
+ * once its SHA-256 matches the one the client sent; otherwise it is simply sent
+ * again. A chunk that is sent again stops counting as received before its bytes
+ * are overwritten, and only one request may write a chunk at a time, so a failed
+ * resend can't leave a stored chunk corrupted. When every chunk is in, the part file
+ * is renamed into place atomically and indexed right away; without overwrite it is
+ * linked into place instead, which fails if a file of that name appeared meanwhile.
+ *
+ * Which chunks were received is kept in a small manifest next to the part file, so
+ * uploads survive a restart; uploads left alone for too long are removed.
+ */
+@Service
+public class UploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadService.class);
+
+    // Smallest and largest chunk size a client may ask for
+    private static final long MIN_CHUNK_SIZE = 64 * 1024;
+    private static final long MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    // Bytes copied from the request to the part file at a time
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String MANIFEST_SUFFIX = ".upload";
+
+    // Chunk size used when the client doesn't ask for one
+    @Value("${file.upload.chunk-size:8388608}")
+    private long defaultChunkSize;
+
+    // Largest file that may be uploaded
+    @Value("${file.upload.max-bytes:10737418240}")
+    private long maxFileSize;
+
+    // Uploads in progress at once; more are refused
+    @Value("${file.upload.max-active:100}")
+    private int maxActive;
+
+    // Hours an upload may go without a chunk before it is removed
+    @Value("${file.upload.expire-hours:24}")
+    private long expireHours;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Uploads in progress, by id
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    private Path stagingDir;
+    private ScheduledExecutorService cleaner;
+
+    @PostConstruct
+    public void init() throws IOException {
+        stagingDir = fileIndex.getRoot().resolve(FileIndex.STAGING_DIR);
+        Files.createDirectories(stagingDir);
+        loadManifests();
+
+        Gauge.builder("file.upload.active", uploads, Map::size)
+                .description("Chunked uploads in progress")
+                .register(meterRegistry);
+
+        cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "file-upload-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::removeExpired, 1, 1, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * Starts an upload and reserves a part file of the final size.
+     *
+     * @param request Name and size of the file, and optionally the chunk size
+     * @return Status listing every chunk as missing
+     * @throws IOException If the part file can't be created
+     */
+    public UploadStatus create(UploadRequest request) throws IOException {
+        String fileName = checkFileName(request.getFileName());
+        long fileSize = request.getFileSize();
+        if (fileSize < 0 || fileSize > maxFileSize) {
+            throw new IllegalArgumentException("File size must be between 0 and " + maxFileSize);
+        }
+        long chunkSize = request.getChunkSize() > 0 ? request.getChunkSize() : defaultChunkSize;
+        if (chunkSize < Math.min(MIN_CHUNK_SIZE, Math.max(fileSize, 1)) || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+        if (!request.isOverwrite() && Files.exists(fileIndex.getRoot().resolve(fileName))) {
+            throw new FileAlreadyExistsException(fileName);
+        }
+        if (uploads.size() >= maxActive) {
+            throw new RejectedExecutionException("Too many uploads in progress");
+        }
+        if (Files.getFileStore(stagingDir).getUsableSpace() < fileSize) {
+            throw new InsufficientStorageException("Not enough free space for " + fileSize + " bytes");
+        }
+
+        Upload upload = new Upload(UUID.randomUUID().toString(), fileName, fileSize, chunkSize,
+                request.isOverwrite(), new BitSet());
+        try (RandomAccessFile part = new RandomAccessFile(partFile(upload).toFile(), "rw")) {
+            part.setLength(fileSize); // Chunks may arrive in any order
+        }
+        saveManifest(upload);
+        uploads.put(upload.id, upload);
+        log.info("Started upload {} of {} ({} bytes in {} chunks)", upload.id, fileName, fileSize, upload.chunkCount);
+        return status(upload);
+    }
+
+    /**
+     * Gets the state of an upload.
+     *
+     * @param uploadId Upload id
+     * @return Status with the chunks still missing
+     * @throws FileNotFoundException If there is no such upload
+     */
+    public UploadStatus getStatus(String uploadId) throws FileNotFoundException {
+        return status(find(uploadId));
+    }
+
+    /**
+     * Streams one chunk from a request body to its place in the part file.
+     *
+     * @param uploadId Upload id
+     * @param index    Chunk index, from 0
+     * @param body     Request body holding exactly the chunk
+     * @param sha256   Hex SHA-256 of the chunk as computed by the client
+     * @return true if the chunk was stored, false if its checksum didn't match (send it again)
+     * @throws IOException If the upload is unknown or the chunk can't be written
+     * @throws IllegalStateException If the upload is being completed or the chunk is being written already
+     */
+    public boolean writeChunk(String uploadId, int index, InputStream body, String sha256) throws IOException {
+        Upload upload = find(uploadId);
+        if (index < 0 || index >= upload.chunkCount) {
+            throw new IllegalArgumentException("Chunk index must be between 0 and " + (upload.chunkCount - 1));
+        }
+        byte[] expected = parseHex(sha256);
+        long offset = index * upload.chunkSize;
+        long length = Math.min(upload.chunkSize, upload.fileSize - offset);
+
+        boolean wasReceived = upload.beginWrite(index);
+        boolean stored = false;
+        try {
+            if (wasReceived) {
+                saveManifest(upload); // Not received any more until the new bytes check out
+            }
+            MessageDigest digest = sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long written = 0;
+            try (FileChannel channel = FileChannel.open(partFile(upload), StandardOpenOption.WRITE)) {
+                int read;
+                while ((read = body.read(buffer.array(), 0, buffer.capacity())) != -1) {
+                    if (written + read > length) {
+                        throw new IllegalArgumentException("Chunk " + index + " must be " + length + " bytes");
+                    }
+                    digest.update(buffer.array(), 0, read);
+                    buffer.limit(read).position(0);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, offset + written + buffer.position());
+                    }
+                    written += read;
+                    buffer.clear();
+                }
+            }
+            if (written != length) {
+                throw new IllegalArgumentException("Chunk " + index + " must be " + length + " bytes, got " + written);
+            }
+
+            stored = MessageDigest.isEqual(expected, digest.digest());
+            meterRegistry.counter("file.upload.chunks", "outcome", stored ? "stored" : "checksum_mismatch").increment();
+            if (stored) {
+                meterRegistry.counter("file.upload.bytes").increment(length);
+            }
+            return stored;
+        } finally {
+            upload.endWrite(index, stored);
+            if (stored) {
+                saveManifest(upload);
+            }
+        }
+    }
+
+    /**
+     * Moves a fully received upload into the upload directory and indexes it.
+     *
+     * @param uploadId Upload id
+     * @return Metadata of the new file
+     * @throws IOException If the upload is unknown, the file exists already, or the move fails
+     * @throws IllegalStateException If chunks are missing or still being written
+     */
+    public FileInfo complete(String uploadId) throws IOException {
+        Upload upload = find(uploadId);
+        upload.beginComplete();
+
+        Path part = partFile(upload);
+        Path target = fileIndex.getRoot().resolve(upload.fileName);
+        try {
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                channel.force(true); // Durable before it becomes visible
+            }
+            if (upload.overwrite) {
+                Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                publish(part, target);
+            }
+        } catch (IOException e) {
+            upload.completing = false;
+            throw e;
+        }
+
+        uploads.remove(upload.id);
+        Files.deleteIfExists(manifestFile(upload));
+
+        // Index now rather than waiting for the watcher, so it lists immediately
+        fileIndex.refresh(target);
+        log.info("Completed upload {} as {}", upload.id, target);
+        FileInfo info = fileIndex.get(target);
+        if (info == null) {
+            throw new FileNotFoundException("Uploaded file vanished: " + upload.fileName);
+        }
+        return info;
+    }
+
+    /**
+     * Moves a part file into place unless the target exists. A rename would replace a
+     * file created after any check, so the part file is hard-linked, which fails
+     * atomically if the name is taken, and then unlinked.
+     *
+     * @throws FileAlreadyExistsException If the target exists
+     */
+    private void publish(Path part, Path target) throws IOException {
+        try {
+            Files.createLink(target, part);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // No hard links on this file store; a plain move still refuses a target that exists by then
+            Files.move(part, target);
+            return;
+        }
+        Files.delete(part);
+    }
+
+    /**
+     * Abandons an upload and deletes what was received.
+     *
+     * @param uploadId Upload id
+     * @throws IOException If the upload is unknown or its files can't be deleted
+     */
+    public void cancel(String uploadId) throws IOException {
+        Upload upload = find(uploadId);
+        if (uploads.remove(upload.id) != null) {
+            deleteFiles(upload);
+        }
+    }
+
+    private Upload find(String uploadId) throws FileNotFoundException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new FileNotFoundException("No such upload: " + uploadId);
+        }
+        return upload;
+    }
+
+    private UploadStatus status(Upload upload) {
+        return new UploadStatus(upload.id, upload.fileName, upload.fileSize, upload.chunkSize,
+                upload.chunkCount, upload.missing());
+    }
+
+    /**
+     * Accepts plain file names only, so an upload can't land outside the upload
+     * directory or in the staging area.
+     */
+    private static String checkFileName(String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.startsWith(".") || fileName.contains("/")
+                || fileName.contains("\\") || fileName.indexOf('\0') >= 0 || fileName.length() > 255) {
+            throw new IllegalArgumentException("Invalid file name: " + fileName);
+        }
+        return fileName;
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex == null || !hex.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("A hex SHA-256 of the chunk is required");
+        }
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // ---------- Staging files ----------
+
+    private Path partFile(Upload upload) {
+        return stagingDir.resolve(upload.id + PART_SUFFIX);
+    }
+
+    private Path manifestFile(Upload upload) {
+        return stagingDir.resolve(upload.id + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Records an upload's parameters and received chunks, replacing the previous manifest atomically.
+     * Runs under the upload's monitor, so a manifest never overwrites a newer one.
+     */
+    private void saveManifest(Upload upload) throws IOException {
+        synchronized (upload) {
+            Properties manifest = new Properties();
+            manifest.setProperty("fileName", upload.fileName);
+            manifest.setProperty("fileSize", Long.toString(upload.fileSize));
+            manifest.setProperty("chunkSize", Long.toString(upload.chunkSize));
+            manifest.setProperty("overwrite", Boolean.toString(upload.overwrite));
+            manifest.setProperty("received", Base64.getEncoder().encodeToString(upload.receivedBytes()));
+
+            Path file = manifestFile(upload);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                manifest.store(out, null);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Picks up uploads left by a previous run; anything without a usable manifest is removed.
+     */
+    private void loadManifests() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(stagingDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(MANIFEST_SUFFIX)) {
+                    if (!name.endsWith(PART_SUFFIX)
+                            || !Files.exists(stagingDir.resolve(name.replace(PART_SUFFIX, MANIFEST_SUFFIX)))) {
+                        Files.deleteIfExists(file); // Orphaned part or leftover temp file
+                    }
+                    continue;
+                }
+                String id = name.substring(0, name.length() - MANIFEST_SUFFIX.length());
+                try (InputStream in = Files.newInputStream(file)) {
+                    Properties manifest = new Properties();
+                    manifest.load(in);
+                    Upload upload = new Upload(id, manifest.getProperty("fileName"),
+                            Long.parseLong(manifest.getProperty("fileSize")),
+                            Long.parseLong(manifest.getProperty("chunkSize")),
+                            Boolean.parseBoolean(manifest.getProperty("overwrite")),
+                            BitSet.valueOf(Base64.getDecoder().decode(manifest.getProperty("received"))));
+                    if (!Files.exists(partFile(upload))) {
+                        throw new IOException("Part file missing");
+                    }
+                    uploads.put(id, upload);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Discarding unreadable upload {}", file, e);
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(stagingDir.resolve(id + PART_SUFFIX));
+                }
+            }
+        }
+        if (!uploads.isEmpty()) {
+            log.info("Resuming {} unfinished uploads", uploads.size());
+        }
+    }
+
+    /**
+     * Removes uploads that received nothing for longer than the expiry.
+     */
+    private void removeExpired() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(expireHours);
+        for (Upload upload : uploads.values()) {
+            try {
+                if (Files.getLastModifiedTime(manifestFile(upload)).toMillis() < cutoff
+                        && uploads.remove(upload.id, upload)) {
+                    log.info("Removing expired upload {} of {}", upload.id, upload.fileName);
+                    deleteFiles(upload);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to check upload {}", upload.id, e);
+            }
+        }
+    }
+
+    private void deleteFiles(Upload upload) throws IOException {
+        Files.deleteIfExists(partFile(upload));
+        Files.deleteIfExists(manifestFile(upload));
+    }
+
+    /**
+     * Thrown when there isn't enough free disk space for an upload.
+     */
+    public static class InsufficientStorageException extends IOException {
+        public InsufficientStorageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One upload in progress. Received chunks and the writer count are guarded by the object's monitor.
+     */
+    private static class Upload {
+        final String id;
+        final String fileName;
+        final long fileSize;
+        final long chunkSize;
+        final int chunkCount;
+        final boolean overwrite;
+        private final BitSet received;
+        private final BitSet writing = new BitSet();
+        private int writers;
+        volatile boolean completing;
+
+        Upload(String id, String fileName, long fileSize, long chunkSize, boolean overwrite, BitSet received) {
+            long count = (fileSize + chunkSize - 1) / chunkSize;
+            if (count > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many chunks; use a larger chunk size");
+            }
+            this.id = id;
+            this.fileName = checkFileName(fileName);
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) count;
+            this.overwrite = overwrite;
+            this.received = received;
+        }
+
+        /**
+         * Claims a chunk for writing. A chunk that was received already stops counting
+         * as received, since its bytes are about to be overwritten.
+         *
+         * @return true if the chunk had been received, so the manifest must be saved
+         */
+        synchronized boolean beginWrite(int index) {
+            if (completing) {
+                throw new IllegalStateException("Upload is being completed");
+            }
+            if (writing.get(index)) {
+                throw new IllegalStateException("Chunk " + index + " is being written already");
+            }
+            writing.set(index);
+            writers++;
+            boolean wasReceived = received.get(index);
+            received.clear(index);
+            return wasReceived;
+        }
+
+        synchronized void endWrite(int index, boolean stored) {
+            writing.clear(index);
+            writers--;
+            if (stored) {
+                received.set(index);
+            }
+        }
+
+        /**
+         * Stops accepting chunks, provided every chunk is in and none is being written.
+         */
+        synchronized void beginComplete() {
+            if (completing || writers > 0) {
+                throw new IllegalStateException("Chunks are still being written");
+            }
+            if (received.cardinality() < chunkCount) {
+                throw new IllegalStateException((chunkCount - received.cardinality()) + " chunks missing");
+            }
+            completing = true;
+        }
+
+        synchronized List<Integer> missing() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = received.nextClearBit(0); i < chunkCount; i = received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        }
+
+        synchronized byte[] receivedBytes() {
+            return received.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.fileserver.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadingConfigTest {
+
+    private static ThreadingConfig config(boolean virtualThreads) {
+        ThreadingConfig config = new ThreadingConfig();
+        ReflectionTestUtils.setField(config, "virtualThreads", virtualThreads);
+        ReflectionTestUtils.setField(config, "ioThreads", 3);
+        config.checkRuntime();
+        return config;
+    }
+
+    private static Thread runOn(AsyncTaskExecutor executor) throws Exception {
+        return executor.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+    }
+
+    private static boolean isVirtual(Thread thread) throws ReflectiveOperationException {
+        return (boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    @Test
+    void fileIoRunsOnABoundedPlatformPoolByDefault() throws Exception {
+        AsyncTaskExecutor executor = config(false).fileIoExecutor();
+
+        ThreadPoolTaskExecutor pool = assertInstanceOf(ThreadPoolTaskExecutor.class, executor);
+        pool.initialize(); // Done by the container for the bean
+        try {
+            assertEquals(3, pool.getMaxPoolSize());
+            Thread thread = runOn(pool);
+            assertTrue(thread.getName().startsWith("file-io-"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void tomcatKeepsItsOwnPoolByDefault() {
+        TomcatServletWebServerFactory factory = new TomcatServletWebServerFactory();
+
+        config(false).virtualThreadConnector().customize(factory);
+
+        assertTrue(factory.getTomcatProtocolHandlerCustomizers().isEmpty());
+    }
+
+    @Test
+    void virtualThreadsAreUsedWhereTheRuntimeHasThemAndPlatformThreadsElsewhere() throws Exception {
+        ThreadingConfig config = config(true);
+        TomcatServletWebServerFactory factory = new TomcatServletWebServerFactory();
+        config.virtualThreadConnector().customize(factory);
+        AsyncTaskExecutor executor = config.fileIoExecutor();
+
+        if (Runtime.version().feature() < 21) {
+            assertInstanceOf(ThreadPoolTaskExecutor.class, executor);
+            assertTrue(factory.getTomcatProtocolHandlerCustomizers().isEmpty());
+        } else {
+            Thread thread = runOn(executor);
+            assertTrue(isVirtual(thread));
+            assertTrue(thread.getName().startsWith("file-io-"));
+            assertEquals(1, factory.getTomcatProtocolHandlerCustomizers().size());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.fileserver.controller;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the file server on a random port over a temporary upload directory and
+ * checks the HTTP behaviour of the file endpoints.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "logging.level.com.fileserver=INFO")
+class FileControllerTest {
+
+    private static final Path root;
+    private static final Path uploadDir;
+
+    static {
+        try {
+            // Under target rather than deleted after the class: the context outlives it and saves its state at exit
+            root = Files.createTempDirectory(Files.createDirectories(Path.of("target")), "file-controller-test");
+            uploadDir = Files.createDirectories(root.resolve("upload"));
+            Files.writeString(uploadDir.resolve("hello.txt"), "Hello, world\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @DynamicPropertySource
+    static void directories(DynamicPropertyRegistry registry) {
+        registry.add("file.upload-dir", uploadDir::toString);
+        registry.add("file.state-dir", () -> root.resolve("state").toString());
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private ResponseEntity<String> get(String path, Consumer<HttpHeaders> headers) {
+        HttpHeaders requestHeaders = new HttpHeaders();
+        headers.accept(requestHeaders);
+        return rest.exchange("/api/files" + path, HttpMethod.GET, new HttpEntity<>(requestHeaders), String.class);
+    }
+
+    private ResponseEntity<String> await(String path, Predicate<ResponseEntity<String>> condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            ResponseEntity<String> response = get(path, headers -> {});
+            if (condition.test(response)) {
+                return response;
+            }
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for " + path);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void downloadsCarryValidatorsAndAnswerMatchingRequestsWith304() {
+        ResponseEntity<String> full = get("/download/hello.txt", headers -> {});
+        assertEquals(HttpStatus.OK, full.getStatusCode());
+        assertEquals("Hello, world\n", full.getBody());
+        String etag = full.getHeaders().getETag();
+        assertNotNull(etag);
+        assertTrue(full.getHeaders().getLastModified() > 0);
+
+        ResponseEntity<String> byTag = get("/download/hello.txt", headers -> headers.setIfNoneMatch(etag));
+        assertEquals(HttpStatus.NOT_MODIFIED, byTag.getStatusCode());
+        assertNull(byTag.getBody());
+        assertEquals(etag, byTag.getHeaders().getETag());
+
+        ResponseEntity<String> byDate = get("/view/hello.txt",
+                headers -> headers.setIfModifiedSince(full.getHeaders().getLastModified()));
+        assertEquals(HttpStatus.NOT_MODIFIED, byDate.getStatusCode());
+
+        ResponseEntity<String> otherTag = get("/download/hello.txt", headers -> headers.setIfNoneMatch("\"0-0\""));
+        assertEquals(HttpStatus.OK, otherTag.getStatusCode());
+    }
+
+    @Test
+    void aChangedFileGetsANewEntityTag() throws Exception {
+        Path file = uploadDir.resolve("changing.txt");
+        Files.writeString(file, "v1");
+        String etag = await("/download/changing.txt", response -> "v1".equals(response.getBody()))
+                .getHeaders().getETag();
+
+        Files.writeString(file, "version 2");
+        await("/download/changing.txt", response -> "version 2".equals(response.getBody()));
+
+        ResponseEntity<String> revalidated = get("/download/changing.txt", headers -> headers.setIfNoneMatch(etag));
+        assertEquals(HttpStatus.OK, revalidated.getStatusCode());
+        assertNotEquals(etag, revalidated.getHeaders().getETag());
+    }
+
+    @Test
+    void listingsAreRevalidatedAgainstTheIndexVersion() throws Exception {
+        // Other tests' files may still be changing the index; retried until a listing stays current
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        String etag;
+        while (true) {
+            String current = get("/list", headers -> {}).getHeaders().getETag();
+            assertNotNull(current);
+            if (get("/list", headers -> headers.setIfNoneMatch(current)).getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                etag = current;
+                break;
+            }
+            assertTrue(System.nanoTime() < deadline, "Listing never revalidated");
+            Thread.sleep(50);
+        }
+
+        Files.writeString(uploadDir.resolve("added.txt"), "new");
+        ResponseEntity<String> changed = await("/list", response -> response.getBody().contains("added.txt"));
+        assertNotEquals(etag, changed.getHeaders().getETag());
+        assertEquals(HttpStatus.OK, get("/list", headers -> headers.setIfNoneMatch(etag)).getStatusCode());
+    }
+
+    @Test
+    void serviceAndTransferMetricsAreRegistered() throws Exception {
+        get("/download/hello.txt", headers -> {});
+
+        assertNotNull(registry.find("file.index.entries").gauge());
+        assertNotNull(registry.find("file.cache.hits").functionCounter());
+        assertNotNull(registry.find("file.compression.responses").functionCounter());
+        // Recorded once the body is written, which may be just after the client has read it
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registry.find("file.transfer").tags("endpoint", "download", "outcome", "success").timer() == null) {
+            assertTrue(System.nanoTime() < deadline, "Download was never timed");
+            Thread.sleep(20);
+        }
+        assertTrue(registry.get("file.bytes.served").tag("endpoint", "download").counter().count() > 0);
+    }
+
+    /**
+     * Event streams stay open until the class is done: a send failing on a stream the
+     * client closed is completed by Tomcat (9.0.63) asynchronously, and can land on the
+     * request that reuses its processor, ending the next stream opened.
+     */
+    private static final List<HttpURLConnection> eventStreams = new ArrayList<>();
+
+    @AfterAll
+    static void closeEventStreams() {
+        eventStreams.forEach(HttpURLConnection::disconnect);
+    }
+
+    private HttpURLConnection openEvents(String lastEventId) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/api/files/events")
+                .openConnection();
+        connection.setReadTimeout(10_000);
+        if (lastEventId != null) {
+            connection.setRequestProperty("Last-Event-ID", lastEventId);
+        }
+        eventStreams.add(connection);
+        assertEquals(200, connection.getResponseCode());
+        return connection;
+    }
+
+    private static BufferedReader read(HttpURLConnection events) throws IOException {
+        return new BufferedReader(new InputStreamReader(events.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads an event stream up to the first event whose lines match, and returns those lines.
+     */
+    private static List<String> nextEvent(BufferedReader events, Predicate<List<String>> condition) throws IOException {
+        List<String> event = new ArrayList<>();
+        for (String line; (line = events.readLine()) != null; ) {
+            if (!line.isEmpty()) {
+                event.add(line);
+            } else if (condition.test(event)) {
+                return event;
+            } else {
+                event = new ArrayList<>();
+            }
+        }
+        throw new AssertionError("Event stream ended");
+    }
+
+    private static Predicate<List<String>> changeOf(String fileName) {
+        return event -> event.contains("event:change") && event.stream().anyMatch(line -> line.contains(fileName));
+    }
+
+    @Test
+    void eventStreamsReplayChangesAfterTheLastEventIdOfTheirJournal() throws Exception {
+        HttpURLConnection live = openEvents(null);
+        String journal = live.getHeaderField("X-Change-Journal");
+        assertNotNull(journal);
+        assertNotNull(live.getHeaderField("X-Change-Sequence"));
+        BufferedReader events = read(live);
+        Files.writeString(uploadDir.resolve("first-event.txt"), "1");
+        String firstId = nextEvent(events, changeOf("first-event.txt")).get(0).substring("id:".length());
+        Files.writeString(uploadDir.resolve("missed-event.txt"), "2");
+        nextEvent(events, changeOf("missed-event.txt"));
+
+        // Reconnecting from the first event replays the second one
+        nextEvent(read(openEvents(journal + ":" + firstId)), changeOf("missed-event.txt"));
+    }
+
+    @Test
+    void eventStreamsFromAnotherJournalStartNowAndStalePositionsResync() throws Exception {
+        HttpURLConnection foreign = openEvents("1:5");
+        assertEquals(":connected", read(foreign).readLine()); // Nothing replayed; the journal header tells the client to resync
+        assertNotEquals("1", foreign.getHeaderField("X-Change-Journal"));
+
+        nextEvent(read(openEvents("5")), event -> event.contains("event:resync"));
+    }
+
+    @Test
+    void missingFilesAre404() {
+        assertEquals(HttpStatus.NOT_FOUND, get("/download/missing.txt", headers -> {}).getStatusCode());
+    }
+}
@@ -0,0 +1,129 @@
+package com.fileserver.controller;
+
+import com.fileserver.service.FileService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeResponsesTest {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+    private final FileService fileService = new FileService();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = dir.resolve("file.txt");
+        Files.writeString(file, CONTENT);
+    }
+
+    private ResponseEntity<StreamingResponseBody> build(String range) {
+        return RangeResponses.build(fileService, range, file, CONTENT.length(), MediaType.TEXT_PLAIN, new HttpHeaders());
+    }
+
+    private static String body(ResponseEntity<StreamingResponseBody> response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    @Test
+    void ifRangeWithoutPreconditionOrWithTheCurrentStrongTagApplies() {
+        assertTrue(RangeResponses.isRangeApplicable(null, "\"v1\"", 0));
+        assertTrue(RangeResponses.isRangeApplicable("\"v1\"", "\"v1\"", 0));
+    }
+
+    @Test
+    void ifRangeWithAnotherOrAWeakTagSendsTheWholeFile() {
+        assertFalse(RangeResponses.isRangeApplicable("\"v0\"", "\"v1\"", 0));
+        assertFalse(RangeResponses.isRangeApplicable("W/\"v1\"", "\"v1\"", 0));
+        assertFalse(RangeResponses.isRangeApplicable("\"v1\"", null, 0));
+    }
+
+    @Test
+    void ifRangeDateMatchesToTheSecond() {
+        long lastModified = 1_700_000_000_123L;
+
+        assertTrue(RangeResponses.isRangeApplicable(httpDate(lastModified), null, lastModified));
+        assertFalse(RangeResponses.isRangeApplicable(httpDate(lastModified - 1000), null, lastModified));
+        assertFalse(RangeResponses.isRangeApplicable("not a date", null, lastModified));
+    }
+
+    @Test
+    void singleRange() throws IOException {
+        ResponseEntity<StreamingResponseBody> response = build("bytes=2-5");
+
+        assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+        assertEquals("bytes 2-5/36", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals(4, response.getHeaders().getContentLength());
+        assertEquals("2345", body(response));
+    }
+
+    @Test
+    void suffixAndOpenEndedRanges() throws IOException {
+        assertEquals("wxyz", body(build("bytes=-4")));
+        assertEquals("yz", body(build("bytes=34-")));
+        assertEquals("bytes 30-35/36", build("bytes=30-100").getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void severalRangesAreSentAsMultipartWithAnExactLength() throws IOException {
+        ResponseEntity<StreamingResponseBody> response = build("bytes=0-1,10-12");
+
+        assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+        MediaType type = response.getHeaders().getContentType();
+        assertEquals("multipart", type.getType());
+        assertEquals("byteranges", type.getSubtype());
+        String boundary = type.getParameter("boundary");
+
+        String body = body(response);
+        assertEquals(response.getHeaders().getContentLength(), body.length());
+        assertTrue(body.contains("--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/36\r\n\r\n01"));
+        assertTrue(body.contains("Content-Range: bytes 10-12/36\r\n\r\nabc"));
+        assertTrue(body.endsWith("\r\n--" + boundary + "--\r\n"));
+    }
+
+    @Test
+    void rangesPastTheEndAreNotSatisfiable() {
+        ResponseEntity<StreamingResponseBody> response = build("bytes=36-40");
+
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatusCode());
+        assertEquals("bytes */36", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertNull(response.getBody());
+    }
+
+    @Test
+    void overlappingRangesLargerThanTheFileAreRefused() {
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, build("bytes=0-30,5-35").getStatusCode());
+    }
+
+    @Test
+    void malformedRangeHeadersAreIgnored() {
+        assertNull(build("bytes=abc"));
+        assertNull(build("lines=1-2"));
+    }
+}
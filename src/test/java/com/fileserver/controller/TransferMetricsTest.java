@@ -0,0 +1,61 @@
+package com.fileserver.controller;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final TransferMetrics metrics = new TransferMetrics();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(metrics, "registry", registry);
+    }
+
+    private Timer timer(String endpoint, String size, String outcome) {
+        return registry.find("file.transfer")
+                .tags("endpoint", endpoint, "size", size, "outcome", outcome)
+                .timer();
+    }
+
+    private double bytes(String endpoint) {
+        return registry.get("file.bytes.served").tag("endpoint", endpoint).counter().count();
+    }
+
+    @Test
+    void transfersAreTimedPerEndpointAndSizeBucket() throws IOException {
+        metrics.record("download", 100, out -> out.write(new byte[100])).writeTo(new ByteArrayOutputStream());
+        metrics.record("download", 2L << 20, out -> out.write(new byte[10])).writeTo(new ByteArrayOutputStream());
+        metrics.record("view", -1, out -> out.write('x')).writeTo(new ByteArrayOutputStream());
+
+        assertEquals(1, timer("download", "<64KB", "success").count());
+        assertEquals(1, timer("download", "1MB-16MB", "success").count());
+        assertEquals(1, timer("view", "unknown", "success").count());
+        assertEquals(110, bytes("download"));
+        assertEquals(1, bytes("view"));
+    }
+
+    @Test
+    void aBrokenStreamIsAnErrorAndCountsWhatWasSent() {
+        StreamingResponseBody body = metrics.record("download", 1L << 30, out -> {
+            out.write(new byte[5]);
+            throw new IOException("Broken pipe");
+        });
+
+        assertThrows(IOException.class, () -> body.writeTo(new ByteArrayOutputStream()));
+
+        assertEquals(1, timer("download", ">256MB", "error").count());
+        assertNull(timer("download", ">256MB", "success"));
+        assertEquals(5, bytes("download"));
+    }
+}
@@ -0,0 +1,147 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveServiceTest {
+
+    @TempDir
+    Path uploadDir;
+
+    private ArchiveService service;
+
+    @BeforeEach
+    void setUp() {
+        FileIndex fileIndex = Mockito.mock(FileIndex.class);
+        Mockito.when(fileIndex.getRoot()).thenReturn(uploadDir);
+
+        service = new ArchiveService();
+        ReflectionTestUtils.setField(service, "maxConcurrent", 1);
+        ReflectionTestUtils.setField(service, "storedTypes", "png, ZIP");
+        ReflectionTestUtils.setField(service, "level", 6);
+        ReflectionTestUtils.setField(service, "stallTimeoutSeconds", 1L);
+        ReflectionTestUtils.setField(service, "fileIndex", fileIndex);
+        service.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    private FileInfo write(String name, byte[] content) throws IOException {
+        Path file = uploadDir.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        String type = name.substring(name.lastIndexOf('.') + 1);
+        return new FileInfo(file.getFileName().toString(), type, content.length, file.toString(),
+                Files.getLastModifiedTime(file).toMillis(), null);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Map<String, ZipEntry> entries(byte[] archive, Map<String, byte[]> contents) throws IOException {
+        Map<String, ZipEntry> entries = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+                entries.put(entry.getName(), entry);
+                contents.put(entry.getName(), in.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    void archivesEveryFileUnderItsRelativePath() throws IOException {
+        byte[] text = "compressible text\n".repeat(20_000).getBytes();
+        byte[] image = randomBytes(3 * 1024 * 1024); // More than all read buffers together
+        FileInfo textInfo = write("logs/app.txt", text);
+        FileInfo imageInfo = write("photo.PNG", image);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        service.start(List.of(textInfo, imageInfo).iterator()).writeTo(out);
+
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        Map<String, ZipEntry> entries = entries(out.toByteArray(), contents);
+        assertEquals(List.of("logs/app.txt", "photo.PNG"), List.copyOf(entries.keySet()));
+        assertArrayEquals(text, contents.get("logs/app.txt"));
+        assertArrayEquals(image, contents.get("photo.PNG"));
+        assertEquals(ZipEntry.DEFLATED, entries.get("logs/app.txt").getMethod());
+
+        ZipEntry stored = entries.get("photo.PNG");
+        CRC32 crc = new CRC32();
+        crc.update(image);
+        assertEquals(ZipEntry.STORED, stored.getMethod());
+        assertEquals(crc.getValue(), stored.getCrc());
+        assertEquals(image.length, stored.getCompressedSize());
+    }
+
+    @Test
+    void filesDeletedBeforeTheyAreReadAreLeftOut() throws IOException {
+        FileInfo gone = write("gone.txt", new byte[] {'x'});
+        FileInfo kept = write("kept.txt", new byte[] {'y'});
+        Files.delete(Path.of(gone.getFilePath()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        service.start(List.of(gone, kept).iterator()).writeTo(out);
+
+        assertEquals(List.of("kept.txt"), List.copyOf(entries(out.toByteArray(), new LinkedHashMap<>()).keySet()));
+    }
+
+    @Test
+    void archivesBeyondTheLimitAreTurnedAway() throws IOException {
+        FileInfo info = write("a.txt", new byte[] {'a'});
+        ArchiveService.Archive first = service.start(List.of(info).iterator());
+
+        assertThrows(RejectedExecutionException.class, () -> service.start(List.of(info).iterator()));
+
+        first.writeTo(new ByteArrayOutputStream());
+    }
+
+    @Test
+    void abandonedArchivesFreeTheirReader() throws Exception {
+        FileInfo large = write("large.bin", randomBytes(3 * 1024 * 1024));
+        ArchiveService.Archive abandoned = service.start(List.of(large).iterator()); // Never written
+
+        // The reader fills its buffers, waits out the stall timeout and gives its slot back
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        ArchiveService.Archive next = null;
+        while (next == null) {
+            try {
+                next = service.start(List.of(write("small.txt", new byte[] {'s'})).iterator());
+            } catch (RejectedExecutionException e) {
+                assertTrue(System.nanoTime() < deadline, "Reader of the abandoned archive never gave up");
+                Thread.sleep(100);
+            }
+        }
+
+        assertThrows(IOException.class, () -> abandoned.writeTo(new ByteArrayOutputStream()));
+        next.writeTo(new ByteArrayOutputStream());
+    }
+}
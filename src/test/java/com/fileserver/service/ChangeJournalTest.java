@@ -0,0 +1,143 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileChange;
+import com.fileserver.model.FileChanges;
+import com.fileserver.model.FileInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeJournalTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ChangeJournal journal;
+
+    @BeforeEach
+    void setUp() {
+        journal = newJournal();
+    }
+
+    private ChangeJournal newJournal() {
+        ChangeJournal journal = new ChangeJournal();
+        ReflectionTestUtils.setField(journal, "capacity", 4);
+        ReflectionTestUtils.setField(journal, "fileIndex", Mockito.mock(FileIndex.class));
+        ReflectionTestUtils.setField(journal, "meterRegistry", registry);
+        journal.init();
+        return journal;
+    }
+
+    private static FileInfo file(String name) {
+        return new FileInfo(name, "txt", 1, "/upload/" + name, 1L, null);
+    }
+
+    private static List<String> describe(FileChanges changes) {
+        return changes.getChanges().stream()
+                .map(change -> change.getType() + " " + change.getFile().getFileName())
+                .collect(Collectors.toList());
+    }
+
+    private double resyncs() {
+        return registry.get("file.changes.resyncs").counter().count();
+    }
+
+    @Test
+    void changesSinceAPositionComeOldestFirst() {
+        long start = journal.getSequence();
+        journal.onFileChanged(null, file("a"));
+        journal.onFileChanged(file("a"), file("a"));
+        journal.onFileChanged(file("b"), null);
+
+        FileChanges all = journal.changesSince(start, 10);
+        FileChanges last = journal.changesSince(start + 2, 10);
+
+        assertEquals(List.of("ADDED a", "MODIFIED a", "DELETED b"), describe(all));
+        assertEquals(start + 3, all.getSequence());
+        assertFalse(all.isMore());
+        assertFalse(all.isResync());
+        assertEquals(List.of("DELETED b"), describe(last));
+        assertEquals(List.of(start + 1, start + 2, start + 3),
+                all.getChanges().stream().map(FileChange::getSequence).collect(Collectors.toList()));
+    }
+
+    @Test
+    void anUpToDateClientGetsNothing() {
+        journal.onFileChanged(null, file("a"));
+
+        FileChanges changes = journal.changesSince(journal.getSequence(), 10);
+
+        assertTrue(changes.getChanges().isEmpty());
+        assertEquals(journal.getSequence(), changes.getSequence());
+        assertFalse(changes.isResync());
+    }
+
+    @Test
+    void longBacklogsArePaged() {
+        long start = journal.getSequence();
+        journal.onFileChanged(null, file("a"));
+        journal.onFileChanged(null, file("b"));
+        journal.onFileChanged(null, file("c"));
+
+        FileChanges first = journal.changesSince(start, 2);
+        FileChanges rest = journal.changesSince(first.getSequence(), 2);
+
+        assertEquals(List.of("ADDED a", "ADDED b"), describe(first));
+        assertTrue(first.isMore());
+        assertEquals(List.of("ADDED c"), describe(rest));
+        assertFalse(rest.isMore());
+    }
+
+    @Test
+    void clientsFurtherBehindThanTheBufferMustResync() {
+        long start = journal.getSequence();
+        for (int i = 0; i < 6; i++) {
+            journal.onFileChanged(null, file("f" + i));
+        }
+
+        FileChanges stale = journal.changesSince(start + 1, 10);
+        FileChanges oldestKept = journal.changesSince(start + 2, 10);
+
+        assertTrue(stale.isResync());
+        assertTrue(stale.getChanges().isEmpty());
+        assertEquals(journal.getSequence(), stale.getSequence());
+        assertFalse(oldestKept.isResync());
+        assertEquals(List.of("ADDED f2", "ADDED f3", "ADDED f4", "ADDED f5"), describe(oldestKept));
+        assertEquals(1, resyncs());
+    }
+
+    @Test
+    void positionsFromAnotherJournalMustResync() throws InterruptedException {
+        journal.onFileChanged(null, file("a"));
+        long oldPosition = journal.getSequence();
+        Thread.sleep(2);
+
+        ChangeJournal restarted = newJournal();
+
+        assertTrue(restarted.getJournalId() > oldPosition);
+        assertEquals(restarted.getJournalId(), restarted.getSequence());
+        assertTrue(restarted.changesSince(oldPosition, 10).isResync());
+        assertTrue(journal.changesSince(journal.getSequence() + 1, 10).isResync()); // Ahead of this journal
+        assertFalse(restarted.changesSince(restarted.getJournalId(), 10).isResync());
+    }
+
+    @Test
+    void appendListenersRunAfterEachChange() {
+        AtomicInteger calls = new AtomicInteger();
+        journal.addAppendListener(() -> {
+            calls.incrementAndGet();
+            assertEquals(calls.get(), journal.getSequence() - journal.getJournalId()); // Already appended
+        });
+
+        journal.onFileChanged(null, file("a"));
+        journal.onFileChanged(file("a"), null);
+
+        assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,168 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionServiceTest {
+
+    @TempDir
+    Path dir;
+
+    @TempDir
+    Path stateDir;
+
+    private final FileIndex fileIndex = Mockito.mock(FileIndex.class);
+    private CompressionService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        service = newService(Long.MAX_VALUE);
+    }
+
+    private CompressionService newService(long cacheMaxBytes) throws IOException {
+        CompressionService service = new CompressionService();
+        ReflectionTestUtils.setField(service, "stateDir", stateDir.toString());
+        ReflectionTestUtils.setField(service, "types", "txt, LOC,");
+        ReflectionTestUtils.setField(service, "minBytes", 1024L);
+        ReflectionTestUtils.setField(service, "level", 6);
+        ReflectionTestUtils.setField(service, "cacheMaxBytes", cacheMaxBytes);
+        ReflectionTestUtils.setField(service, "fileIndex", fileIndex);
+        service.init();
+        return service;
+    }
+
+    /**
+     * Writes a text file and makes it the indexed version.
+     */
+    private FileInfo write(String name, String content) throws IOException {
+        Path file = dir.resolve(name);
+        Files.writeString(file, content);
+        FileInfo info = new FileInfo(name, "txt", Files.size(file), file.toString(),
+                Files.getLastModifiedTime(file).toMillis(), null);
+        Mockito.when(fileIndex.get(file)).thenReturn(info);
+        return info;
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private byte[] send(FileInfo info) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.writeGzip(info, service.openVariant(info), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void acceptEncodingIsNegotiatedByQuality() {
+        assertTrue(service.acceptsGzip("gzip"));
+        assertTrue(service.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(service.acceptsGzip("x-gzip"));
+        assertTrue(service.acceptsGzip("*"));
+        assertFalse(service.acceptsGzip(null));
+        assertFalse(service.acceptsGzip("br, deflate"));
+        assertFalse(service.acceptsGzip("gzip;q=0"));
+        assertFalse(service.acceptsGzip("gzip;q=oops"));
+    }
+
+    @Test
+    void onlyConfiguredTypesAboveTheThresholdAreCompressed() {
+        assertTrue(service.isCompressible("txt", 1024));
+        assertTrue(service.isCompressible("loc", 5000));
+        assertFalse(service.isCompressible("TXT", 1023));
+        assertFalse(service.isCompressible("png", 5000));
+    }
+
+    @Test
+    void secondResponseIsSentFromTheCachedVariant() throws IOException {
+        String text = "a line of a log file\n".repeat(1000);
+        FileInfo info = write("app.txt", text);
+        assertNull(service.openVariant(info));
+
+        byte[] first = send(info);
+        byte[] second = send(info);
+
+        assertEquals(text, gunzip(first));
+        assertArrayEquals(first, second);
+        assertEquals(2, service.getResponses());
+        assertEquals(1, service.getCachedResponses());
+        assertEquals(2L * text.length(), service.getIdentityBytes());
+        assertEquals(2L * first.length, service.getWireBytes());
+        assertEquals(first.length, service.getCacheBytes());
+    }
+
+    @Test
+    void variantOfASupersededVersionIsNotCached() throws IOException {
+        FileInfo info = write("app.txt", "x".repeat(2000));
+        Mockito.when(fileIndex.get(Path.of(info.getFilePath()))).thenReturn(null); // Deleted while compressing
+
+        assertEquals("x".repeat(2000), gunzip(send(info)));
+        assertNull(service.openVariant(info));
+        assertEquals(0, service.getCacheBytes());
+    }
+
+    @Test
+    void changedFilesLoseTheirVariant() throws IOException {
+        FileInfo info = write("app.txt", "y".repeat(2000));
+        send(info);
+
+        service.onFileChanged(info, null);
+
+        assertNull(service.openVariant(info));
+        assertEquals(0, service.getCacheBytes());
+    }
+
+    @Test
+    void partsAreCompressedWithoutCaching() throws IOException {
+        FileInfo info = write("app.txt", "0123456789".repeat(200));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        service.writeGzip(Path.of(info.getFilePath()), 5, 10, out);
+
+        assertEquals("5678901234", gunzip(out.toByteArray()));
+        assertEquals(0, service.getCacheBytes());
+    }
+
+    @Test
+    void leastRecentlySentVariantsAreEvictedOverTheBudget() throws IOException {
+        FileInfo old = write("old.txt", "old text\n".repeat(500));
+        send(old);
+        long each = service.getCacheBytes();
+        Path oldVariant;
+        try (Stream<Path> variants = Files.list(stateDir.resolve("gzip"))) {
+            oldVariant = variants.findFirst().orElseThrow();
+        }
+        Files.setLastModifiedTime(oldVariant, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        // Restarted with room for one variant; the existing one is counted in
+        service = newService(each + each / 2);
+        assertEquals(each, service.getCacheBytes());
+        FileInfo fresh = write("new.txt", "new text\n".repeat(500));
+        send(fresh);
+
+        assertFalse(Files.exists(oldVariant));
+        try (FileChannel variant = service.openVariant(fresh)) {
+            assertNotNull(variant);
+        }
+        assertTrue(service.getCacheBytes() <= each + each / 2);
+    }
+}
@@ -0,0 +1,74 @@
+package com.fileserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentSnifferTest {
+
+    private static String sniff(byte[] head, String extension) {
+        return ContentSniffer.sniff(head, head.length, true, extension);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    void binaryFormatsAreRecognisedByTheirMagicNumbers() {
+        assertEquals("image/png", sniff(bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0), "txt"));
+        assertEquals("image/jpeg", sniff(bytes(0xFF, 0xD8, 0xFF, 0xE0), "png"));
+        assertEquals("image/gif", sniff("GIF89a".getBytes(StandardCharsets.US_ASCII), "gif"));
+        assertEquals("application/pdf", sniff("%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII), "pdf"));
+        assertEquals("application/gzip", sniff(bytes(0x1F, 0x8B, 8, 0), "gz"));
+        assertEquals("video/mp4", sniff(bytes(0, 0, 0, 0x20, 'f', 't', 'y', 'p'), "mp4"));
+        assertEquals("image/webp", sniff("RIFF\0\0\0\0WEBPVP8 ".getBytes(StandardCharsets.US_ASCII), "webp"));
+    }
+
+    @Test
+    void zipBasedOfficeFormatsAreNamedByExtension() {
+        byte[] zip = bytes('P', 'K', 3, 4, 20, 0);
+
+        assertEquals("application/zip", sniff(zip, "zip"));
+        assertEquals("application/vnd.openxmlformats-officedocument.wordprocessingml.document", sniff(zip, "DOCX"));
+        assertEquals("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", sniff(zip, "xlsx"));
+    }
+
+    @Test
+    void textIsPlainWhateverItsExtension() {
+        assertEquals(ContentSniffer.TEXT, sniff("<html><script>alert(1)</script></html>\n".getBytes(StandardCharsets.UTF_8), "html"));
+        assertEquals(ContentSniffer.TEXT, sniff("café\r\n\tnaïve €\n".getBytes(StandardCharsets.UTF_8), "csv"));
+        assertEquals(ContentSniffer.TEXT, sniff(new byte[0], "txt"));
+        assertEquals(ContentSniffer.TEXT, sniff("BMP is not enough".getBytes(StandardCharsets.US_ASCII), "bmp"));
+    }
+
+    @Test
+    void controlCharactersAndInvalidUtf8AreBinary() {
+        assertEquals(ContentSniffer.BINARY, sniff(bytes('a', 'b', 0, 'c'), "txt"));
+        assertEquals(ContentSniffer.BINARY, sniff(bytes('a', 0xC3, 0x28, 'b'), "txt"));
+        assertEquals(ContentSniffer.BINARY, sniff(bytes('a', 0xE2, 0x82), "txt")); // Truncated at the end of the file
+    }
+
+    @Test
+    void aCharacterCutOffByTheHeadIsStillText() {
+        byte[] head = "text €".getBytes(StandardCharsets.UTF_8);
+        int cut = head.length - 1; // Inside the three bytes of the euro sign
+
+        assertEquals(ContentSniffer.TEXT, ContentSniffer.sniff(head, cut, false, "txt"));
+        assertEquals(ContentSniffer.BINARY, ContentSniffer.sniff(head, cut, true, "txt"));
+    }
+
+    @Test
+    void imagesWithReadableDimensions() {
+        assertTrue(ContentSniffer.isImage("image/png"));
+        assertTrue(ContentSniffer.isImage("image/bmp"));
+        assertFalse(ContentSniffer.isImage("image/webp"));
+        assertFalse(ContentSniffer.isImage(ContentSniffer.TEXT));
+    }
+}
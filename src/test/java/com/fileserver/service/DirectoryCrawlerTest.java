@@ -0,0 +1,106 @@
+package com.fileserver.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryCrawlerTest {
+
+    @TempDir
+    Path root;
+
+    private final DirectoryCrawler crawler = new DirectoryCrawler(4, 8);
+
+    // Called from the crawler's threads
+    private final Map<Path, Long> files = new ConcurrentHashMap<>();
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+    @AfterEach
+    void tearDown() {
+        crawler.close();
+    }
+
+    private void crawl(Set<String> skipped) throws IOException {
+        crawler.crawl(root, new DirectoryCrawler.Visitor() {
+            @Override
+            public boolean directory(Path dir) {
+                directories.add(dir);
+                return !skipped.contains(dir.getFileName().toString());
+            }
+
+            @Override
+            public void file(Path file, BasicFileAttributes attrs) {
+                assertNull(files.put(file, attrs.size()), "Visited twice: " + file);
+            }
+        });
+    }
+
+    @Test
+    void visitsEveryFileOnceWithItsAttributes() throws IOException {
+        Path flat = Files.createDirectories(root.resolve("flat"));
+        for (int i = 0; i < 1300; i++) { // Split into several chunks
+            Files.write(flat.resolve("f" + i), new byte[i % 10]);
+        }
+        Path deep = Files.createDirectories(root.resolve("a/b/c/d"));
+        Files.writeString(deep.resolve("deep.txt"), "deep");
+        Files.writeString(root.resolve("top.txt"), "top!!");
+
+        crawl(Set.of());
+
+        assertEquals(1302, files.size());
+        assertEquals(7, files.get(flat.resolve("f7")));
+        assertEquals(4, files.get(deep.resolve("deep.txt")));
+        assertEquals(5, files.get(root.resolve("top.txt")));
+        assertEquals(Set.of(root, flat, root.resolve("a"), root.resolve("a/b"), root.resolve("a/b/c"), deep), directories);
+    }
+
+    @Test
+    void skippedDirectoriesAreNotEntered() throws IOException {
+        Files.createDirectories(root.resolve(".uploads/nested"));
+        Files.writeString(root.resolve(".uploads/part"), "partial");
+        Files.writeString(root.resolve(".uploads/nested/part"), "partial");
+        Files.writeString(root.resolve("kept.txt"), "kept");
+
+        crawl(Set.of(".uploads"));
+
+        assertEquals(Set.of(root.resolve("kept.txt")), files.keySet());
+        assertFalse(directories.contains(root.resolve(".uploads/nested")));
+    }
+
+    @Test
+    void symbolicLinksAreNotFollowed() throws IOException {
+        Path target = Files.createDirectories(root.resolve("target"));
+        Files.writeString(target.resolve("file.txt"), "x");
+        Files.createSymbolicLink(root.resolve("link"), target);
+        Files.createSymbolicLink(root.resolve("file-link.txt"), target.resolve("file.txt"));
+
+        crawl(Set.of());
+
+        assertEquals(Set.of(target.resolve("file.txt")), files.keySet());
+    }
+
+    @Test
+    void aMissingRootFailsTheCrawl() {
+        assertThrows(NoSuchFileException.class, () -> crawler.crawl(root.resolve("missing"), new DirectoryCrawler.Visitor() {
+            @Override
+            public boolean directory(Path dir) {
+                return true;
+            }
+
+            @Override
+            public void file(Path file, BasicFileAttributes attrs) {
+            }
+        }));
+    }
+}
@@ -0,0 +1,185 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.FileSort;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileIndexTest {
+
+    @TempDir
+    Path uploadDir;
+
+    @TempDir
+    Path stateDir;
+
+    private FileIndex index;
+
+    // Also fed by the watcher thread, which may report a change a second time
+    private final List<String> changes = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.writeString(uploadDir.resolve("b.txt"), "bb");
+        Files.createDirectories(uploadDir.resolve("sub"));
+        Files.writeString(uploadDir.resolve("sub").resolve("a.log"), "a");
+        Files.createDirectories(uploadDir.resolve(FileIndex.STAGING_DIR));
+        Files.writeString(uploadDir.resolve(FileIndex.STAGING_DIR).resolve("upload.part"), "partial");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (index != null) {
+            index.stop();
+        }
+    }
+
+    /**
+     * Creates and starts an index over the temporary upload directory.
+     */
+    static FileIndex startIndex(Path uploadDir, Path stateDir) throws IOException {
+        FileIndex index = new FileIndex();
+        ReflectionTestUtils.setField(index, "uploadDir", uploadDir.toString());
+        ReflectionTestUtils.setField(index, "stateDir", stateDir.toString());
+        ReflectionTestUtils.setField(index, "snapshotIntervalSeconds", 0L);
+        ReflectionTestUtils.setField(index, "metadataPublishSeconds", 10L);
+        ReflectionTestUtils.setField(index, "meterRegistry", new SimpleMeterRegistry());
+        index.start();
+        return index;
+    }
+
+    private void start() throws IOException {
+        index = startIndex(uploadDir, stateDir);
+        index.addListener((previous, current) -> changes.add(
+                (previous == null ? "ADDED " : current == null ? "DELETED " : "MODIFIED ")
+                        + Path.of((current != null ? current : previous).getFilePath()).getFileName()));
+    }
+
+    private List<String> names(FileSort sort, boolean descending) {
+        return index.stream(sort, descending, null).map(FileInfo::getFileName).collect(Collectors.toList());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the index");
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void indexesTheTreeButNotUploadsInProgress() throws IOException {
+        start();
+
+        assertEquals(2, index.size());
+        assertEquals(List.of("a.log", "b.txt"), names(FileSort.NAME, false));
+        assertEquals(List.of("b.txt", "a.log"), names(FileSort.NAME, true));
+        FileInfo info = index.get(uploadDir.resolve("b.txt"));
+        assertEquals("txt", info.getFileType());
+        assertEquals(2, info.getFileSize());
+    }
+
+    @Test
+    void refreshAppliesAddsModificationsAndDeletes() throws IOException {
+        start();
+        long version = index.getVersion();
+
+        Path file = uploadDir.resolve("c.txt");
+        Files.writeString(file, "c");
+        index.refresh(file);
+        assertTrue(index.getVersion() > version);
+        assertEquals(3, index.size());
+
+        Files.writeString(file, "cccc");
+        index.refresh(file);
+        assertEquals(4, index.get(file).getFileSize());
+
+        Files.delete(file);
+        index.refresh(file);
+        assertNull(index.get(file));
+        assertEquals(List.of("ADDED c.txt", "MODIFIED c.txt", "DELETED c.txt"),
+                changes.stream().distinct().collect(Collectors.toList()));
+    }
+
+    @Test
+    void refreshOfAnUnchangedFileIsNotAChange() throws IOException {
+        start();
+        long version = index.getVersion();
+
+        index.refresh(uploadDir.resolve("b.txt"));
+
+        assertEquals(version, index.getVersion());
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    void sortedViewsFollowChanges() throws IOException {
+        start();
+        Path file = uploadDir.resolve("c.txt");
+        Files.writeString(file, "a much larger file");
+        index.refresh(file);
+
+        assertEquals(List.of("c.txt", "b.txt", "a.log"), names(FileSort.SIZE, true));
+        FileInfo first = index.stream(FileSort.NAME, false, null).findFirst().orElseThrow();
+        assertEquals(List.of("b.txt", "c.txt"), index.stream(FileSort.NAME, false, first)
+                .map(FileInfo::getFileName).collect(Collectors.toList()));
+    }
+
+    @Test
+    void watcherPicksUpNewAndDeletedFiles() throws Exception {
+        start();
+        Path file = uploadDir.resolve("sub").resolve("new.txt");
+
+        Files.writeString(file, "new");
+        await(() -> index.get(file) != null);
+
+        Files.delete(file);
+        await(() -> index.get(file) == null);
+    }
+
+    @Test
+    void deletingADirectoryRemovesItsFiles() throws IOException {
+        start();
+        Path dir = uploadDir.resolve("sub");
+        Files.delete(dir.resolve("a.log"));
+        Files.delete(dir);
+
+        index.refresh(dir);
+
+        assertEquals(List.of("b.txt"), names(FileSort.NAME, false));
+    }
+
+    @Test
+    void enrichOnlyReplacesTheCurrentVersion() throws IOException {
+        start();
+        Path file = uploadDir.resolve("b.txt");
+        FileInfo indexed = index.get(file);
+
+        FileInfo stale = new FileInfo(indexed.getFileName(), indexed.getFileType(), indexed.getFileSize() + 1,
+                indexed.getFilePath(), indexed.getLastModified(), null);
+        stale.setMimeType("text/plain");
+        assertFalse(index.enrich(stale));
+
+        FileInfo current = new FileInfo(indexed.getFileName(), indexed.getFileType(), indexed.getFileSize(),
+                indexed.getFilePath(), indexed.getLastModified(), null);
+        current.setMimeType("text/plain");
+        assertTrue(index.enrich(current));
+        assertEquals("text/plain", index.get(file).getMimeType());
+        assertTrue(changes.isEmpty()); // Metadata isn't a file change
+    }
+}
@@ -0,0 +1,239 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.FilePage;
+import com.fileserver.model.FileSort;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileServiceTest {
+
+    @TempDir
+    Path uploadDir;
+
+    @TempDir
+    Path stateDir;
+
+    private FileIndex index;
+    private FileService fileService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        index = FileIndexTest.startIndex(uploadDir, stateDir);
+        fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "UPLOAD_DIR", uploadDir.toString());
+        ReflectionTestUtils.setField(fileService, "fileIndex", index);
+        ReflectionTestUtils.setField(fileService, "meterRegistry", new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() {
+        index.stop();
+    }
+
+    private Path write(String name, byte[] content) throws IOException {
+        Path file = uploadDir.resolve(name);
+        Files.write(file, content);
+        index.refresh(file);
+        return file;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void transfersAWholeFileLargerThanAnyBuffer() throws IOException {
+        byte[] content = randomBytes(3 * 1024 * 1024 + 17);
+        Path file = write("large.bin", content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        fileService.transferTo(file, 0, content.length, out);
+
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    void transfersOnlyTheRequestedRegion() throws IOException {
+        byte[] content = randomBytes(100_000);
+        Path file = write("region.bin", content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        fileService.transferTo(file, 1000, 5000, out);
+
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 6000), out.toByteArray());
+    }
+
+    @Test
+    void stopsAtTheEndOfATruncatedFile() throws IOException {
+        byte[] content = randomBytes(1000);
+        Path file = write("short.bin", content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        fileService.transferTo(file, 900, 500, out); // Size as indexed before the file shrank
+
+        assertArrayEquals(Arrays.copyOfRange(content, 900, 1000), out.toByteArray());
+    }
+
+    @Test
+    void fileInfoComesFromTheIndex() throws IOException {
+        write("a.txt", new byte[] {'a'});
+
+        FileInfo info = fileService.getFileInfo("a.txt");
+
+        assertSame(index.get(uploadDir.resolve("a.txt")), info);
+    }
+
+    @Test
+    void fileInfoFallsBackToTheDiskForFilesNotIndexedYet() throws IOException {
+        // Moved in whole, so the watcher can't catch it half written either
+        Path written = Files.write(stateDir.resolve("late.txt"), new byte[] {'1', '2', '3'});
+        Files.move(written, uploadDir.resolve("late.txt"));
+
+        FileInfo info = fileService.getFileInfo("late.txt");
+
+        assertEquals(3, info.getFileSize());
+        assertEquals("txt", info.getFileType());
+    }
+
+    @Test
+    void fileInfoRejectsPathsOutsideTheUploadDirectory() throws IOException {
+        Files.writeString(stateDir.resolve("secret.txt"), "secret");
+        String escape = "../" + uploadDir.getParent().relativize(stateDir) + "/secret.txt";
+
+        assertThrows(FileNotFoundException.class, () -> fileService.getFileInfo(escape));
+        assertThrows(FileNotFoundException.class, () -> fileService.getFileInfo("missing.txt"));
+    }
+
+    private void writeListingFiles() throws IOException {
+        write("delta.txt", new byte[40]);
+        write("alpha.txt", new byte[10]);
+        write("echo.LOC", new byte[20]);
+        write("bravo.png", new byte[50]);
+        write("charlie.txt", new byte[30]);
+        write("alpine.pdf", new byte[5]);
+    }
+
+    private static List<String> names(List<FileInfo> files) {
+        return files.stream().map(FileInfo::getFileName).collect(Collectors.toList());
+    }
+
+    private List<String> list(FileSort sort, boolean descending, Set<String> extensions, String prefix) {
+        try (Stream<FileInfo> files = fileService.listFiles(sort, descending, extensions, prefix, null)) {
+            return names(files.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void pagesThroughEveryFileOnceInOrder() throws IOException {
+        writeListingFiles();
+        List<String> seen = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            FilePage page = fileService.getFilePage(FileSort.NAME, false, null, null, cursor, 4);
+            seen.addAll(names(page.getFiles()));
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(List.of("alpha.txt", "alpine.pdf", "bravo.png", "charlie.txt", "delta.txt", "echo.LOC"), seen);
+        assertEquals(2, pages);
+    }
+
+    @Test
+    void aFullLastPageIsFollowedByAnEmptyOne() throws IOException {
+        writeListingFiles();
+
+        FilePage first = fileService.getFilePage(FileSort.SIZE, false, null, null, null, 6);
+        FilePage second = fileService.getFilePage(FileSort.SIZE, false, null, null, first.getNextCursor(), 6);
+
+        assertNotNull(first.getNextCursor());
+        assertTrue(second.getFiles().isEmpty());
+        assertNull(second.getNextCursor());
+    }
+
+    @Test
+    void cursorStaysValidWhenItsFileIsDeleted() throws IOException {
+        writeListingFiles();
+        FilePage first = fileService.getFilePage(FileSort.SIZE, true, null, null, null, 2);
+        assertEquals(List.of("bravo.png", "delta.txt"), names(first.getFiles()));
+
+        Path last = uploadDir.resolve("delta.txt");
+        Files.delete(last);
+        index.refresh(last);
+        FilePage second = fileService.getFilePage(FileSort.SIZE, true, null, null, first.getNextCursor(), 2);
+
+        assertEquals(List.of("charlie.txt", "echo.LOC"), names(second.getFiles()));
+    }
+
+    @Test
+    void sortsBySizeAndType() throws IOException {
+        writeListingFiles();
+
+        assertEquals(List.of("alpine.pdf", "alpha.txt", "echo.LOC", "charlie.txt", "delta.txt", "bravo.png"),
+                list(FileSort.SIZE, false, null, null));
+        assertEquals(List.of("echo.LOC", "alpine.pdf", "bravo.png", "alpha.txt", "charlie.txt", "delta.txt"),
+                list(FileSort.TYPE, false, null, null));
+    }
+
+    @Test
+    void filtersByExtensionIgnoringCase() throws IOException {
+        writeListingFiles();
+
+        assertEquals(List.of("alpha.txt", "charlie.txt", "delta.txt", "echo.LOC"),
+                list(FileSort.NAME, false, Set.of("txt", "loc"), null));
+    }
+
+    @Test
+    void filtersByPrefixInEveryOrder() throws IOException {
+        writeListingFiles();
+
+        assertEquals(List.of("alpha.txt", "alpine.pdf"), list(FileSort.NAME, false, null, "alp"));
+        assertEquals(List.of("alpine.pdf", "alpha.txt"), list(FileSort.NAME, true, null, "alp"));
+        assertEquals(List.of("alpine.pdf", "alpha.txt"), list(FileSort.SIZE, false, null, "alp"));
+        assertEquals(List.of(), list(FileSort.NAME, false, null, "zulu"));
+    }
+
+    @Test
+    void prefixPagesResumeAfterTheCursor() throws IOException {
+        writeListingFiles();
+        write("alps.txt", new byte[1]);
+
+        FilePage first = fileService.getFilePage(FileSort.NAME, false, null, "alp", null, 2);
+        FilePage second = fileService.getFilePage(FileSort.NAME, false, null, "alp", first.getNextCursor(), 2);
+
+        assertEquals(List.of("alpha.txt", "alpine.pdf"), names(first.getFiles()));
+        assertEquals(List.of("alps.txt"), names(second.getFiles()));
+        assertNull(second.getNextCursor());
+    }
+
+    @Test
+    void rejectsMalformedCursors() {
+        assertThrows(IllegalArgumentException.class,
+                () -> fileService.getFilePage(FileSort.NAME, false, null, null, "bm90IGEgY3Vyc29y", 10));
+        assertThrows(IllegalArgumentException.class,
+                () -> fileService.getFilePage(FileSort.NAME, false, null, null, "%%%", 10));
+    }
+}
@@ -0,0 +1,129 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private HotFileCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new HotFileCache();
+        ReflectionTestUtils.setField(cache, "maxBytes", 1000L);
+        ReflectionTestUtils.setField(cache, "maxEntryBytes", 400L);
+        ReflectionTestUtils.setField(cache, "fileIndex", Mockito.mock(FileIndex.class));
+        cache.init();
+    }
+
+    private FileInfo write(String name, int size) throws IOException {
+        Path file = dir.resolve(name);
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) name.charAt(0));
+        Files.write(file, content);
+        return info(file);
+    }
+
+    private static FileInfo info(Path file) throws IOException {
+        return new FileInfo(file.getFileName().toString(), "bin", Files.size(file), file.toString(),
+                Files.getLastModifiedTime(file).toMillis(), null);
+    }
+
+    private static String text(ByteBuffer buffer) {
+        return StandardCharsets.US_ASCII.decode(buffer).toString();
+    }
+
+    @Test
+    void onlySmallFilesAreCacheable() throws IOException {
+        assertTrue(cache.isCacheable(write("a", 400)));
+        assertFalse(cache.isCacheable(write("b", 401)));
+
+        ReflectionTestUtils.setField(cache, "maxBytes", 0L);
+        assertFalse(cache.isCacheable(write("c", 1)));
+    }
+
+    @Test
+    void secondRequestIsServedFromMemory() throws IOException {
+        FileInfo info = write("a", 100);
+
+        ByteBuffer first = cache.get(info);
+        Files.delete(Path.of(info.getFilePath()));
+        ByteBuffer second = cache.get(info);
+
+        assertEquals("a".repeat(100), text(first));
+        assertEquals("a".repeat(100), text(second));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(100, cache.getSizeBytes());
+        assertTrue(second.isReadOnly());
+    }
+
+    @Test
+    void anotherVersionOfTheFileIsReadAgain() throws IOException {
+        FileInfo v1 = write("a", 100);
+        cache.get(v1);
+
+        Files.writeString(Path.of(v1.getFilePath()), "changed");
+        FileInfo v2 = info(Path.of(v1.getFilePath()));
+
+        assertEquals("changed", text(cache.get(v2)));
+        assertEquals(2, cache.getMisses());
+        assertEquals(7, cache.getSizeBytes());
+    }
+
+    @Test
+    void changedFilesAreDropped() throws IOException {
+        FileInfo info = write("a", 100);
+        cache.get(info);
+
+        cache.onFileChanged(info, null);
+
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    @Test
+    void filesHitTwiceSurviveABurstOfOneOffRequests() throws IOException {
+        FileInfo hot1 = write("h", 300);
+        FileInfo hot2 = write("i", 300);
+        for (int i = 0; i < 2; i++) {
+            cache.get(hot1);
+            cache.get(hot2);
+        }
+
+        for (char c = 'p'; c <= 'w'; c++) {
+            cache.get(write(String.valueOf(c), 300)); // One-off requests
+        }
+        long misses = cache.getMisses();
+        cache.get(hot1);
+        cache.get(hot2);
+
+        assertEquals(misses, cache.getMisses());
+        assertTrue(cache.getEvictions() >= 7);
+        assertTrue(cache.getSizeBytes() <= 1000);
+    }
+
+    @Test
+    void aFileShorterThanIndexedIsNotCached() throws IOException {
+        FileInfo info = write("a", 100);
+        Files.write(Path.of(info.getFilePath()), new byte[10]);
+
+        assertThrows(IOException.class, () -> cache.get(info));
+        assertEquals(0, cache.getSizeBytes());
+    }
+}
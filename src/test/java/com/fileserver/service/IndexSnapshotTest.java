@@ -0,0 +1,121 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexSnapshotTest {
+
+    private static final String HASH = "0123456789abcdef".repeat(4);
+
+    @TempDir
+    Path uploadDir;
+
+    @TempDir
+    Path stateDir;
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the index");
+            Thread.sleep(20);
+        }
+    }
+
+    private FileInfo entry(String relativePath, long size) {
+        Path path = uploadDir.resolve(relativePath);
+        String name = path.getFileName().toString();
+        return new FileInfo(name, name.substring(name.lastIndexOf('.') + 1), size, path.toString(), 1_700_000_000_000L, null);
+    }
+
+    @Test
+    void entriesSurviveARoundTripWithTheirMetadata() throws IOException {
+        FileInfo text = new FileInfo("app.log", "log", 42, uploadDir.resolve("logs/app.log").toString(), 1234L, HASH);
+        text.setMimeType("text/plain");
+        text.setLineCount(3L);
+        FileInfo image = entry("photo.png", 1000);
+        image.setWidth(640);
+        image.setHeight(480);
+        FileInfo bare = entry("name with spaces.txt", 0);
+        Path file = stateDir.resolve("index.snapshot");
+
+        assertEquals(3, IndexSnapshot.write(file, uploadDir, List.of(text, image, bare)));
+        List<FileInfo> read = IndexSnapshot.read(file, uploadDir);
+
+        assertEquals(3, read.size());
+        FileInfo readText = read.get(0);
+        assertEquals("app.log", readText.getFileName());
+        assertEquals("log", readText.getFileType());
+        assertEquals(text.getFilePath(), readText.getFilePath());
+        assertEquals(42, readText.getFileSize());
+        assertEquals(1234L, readText.getLastModified());
+        assertEquals(HASH, readText.getContentHash());
+        assertEquals("text/plain", readText.getMimeType());
+        assertEquals(3L, readText.getLineCount());
+        assertNull(readText.getWidth());
+
+        assertEquals(640, read.get(1).getWidth());
+        assertEquals(480, read.get(1).getHeight());
+        assertNull(read.get(1).getContentHash());
+        assertNull(read.get(1).getMimeType());
+
+        assertEquals("name with spaces.txt", read.get(2).getFileName());
+        assertNull(read.get(2).getLineCount());
+        assertFalse(Files.exists(stateDir.resolve("index.snapshot.tmp")));
+    }
+
+    @Test
+    void missingOrForeignSnapshotsAreNotUsed() throws IOException {
+        Path file = stateDir.resolve("index.snapshot");
+        assertNull(IndexSnapshot.read(file, uploadDir));
+
+        IndexSnapshot.write(file, uploadDir, List.of(entry("a.txt", 1)));
+
+        assertNull(IndexSnapshot.read(file, stateDir)); // Written for another upload directory
+    }
+
+    @Test
+    void damagedSnapshotsAreRejected() throws IOException {
+        Path file = stateDir.resolve("index.snapshot");
+        IndexSnapshot.write(file, uploadDir, List.of(entry("a.txt", 1), entry("b.txt", 2)));
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+
+        assertThrows(IOException.class, () -> IndexSnapshot.read(file, uploadDir));
+    }
+
+    @Test
+    void restartedIndexServesTheSnapshotAndCatchesUpWithTheDisk() throws Exception {
+        Files.writeString(uploadDir.resolve("kept.txt"), "kept");
+        Files.writeString(uploadDir.resolve("deleted.txt"), "deleted");
+        FileIndex index = FileIndexTest.startIndex(uploadDir, stateDir);
+        FileInfo kept = index.get(uploadDir.resolve("kept.txt"));
+        FileInfo enriched = new FileInfo(kept.getFileName(), kept.getFileType(), kept.getFileSize(),
+                kept.getFilePath(), kept.getLastModified(), null);
+        enriched.setMimeType("text/plain");
+        index.enrich(enriched);
+        index.stop(); // Saves the snapshot
+
+        Files.delete(uploadDir.resolve("deleted.txt"));
+        Files.writeString(uploadDir.resolve("added.txt"), "added");
+        FileIndex restarted = FileIndexTest.startIndex(uploadDir, stateDir);
+        try {
+            await(() -> restarted.get(uploadDir.resolve("added.txt")) != null
+                    && restarted.get(uploadDir.resolve("deleted.txt")) == null);
+            assertEquals(2, restarted.size());
+            assertEquals("text/plain", restarted.get(uploadDir.resolve("kept.txt")).getMimeType());
+        } finally {
+            restarted.stop();
+        }
+    }
+}
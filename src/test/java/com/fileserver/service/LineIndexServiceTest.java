@@ -0,0 +1,149 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineIndexServiceTest {
+
+    @TempDir
+    Path dir;
+
+    @TempDir
+    Path stateDir;
+
+    private LineIndexService service;
+    private FileIndex fileIndex;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileIndex = Mockito.mock(FileIndex.class);
+        service = newService();
+    }
+
+    private LineIndexService newService() throws IOException {
+        LineIndexService service = new LineIndexService();
+        ReflectionTestUtils.setField(service, "stateDir", stateDir.toString());
+        ReflectionTestUtils.setField(service, "fileIndex", fileIndex);
+        service.init();
+        return service;
+    }
+
+    /**
+     * Writes lines of varying length, so offsets can't be guessed from line numbers.
+     */
+    private static List<String> lines(int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add("line " + i + " " + "x".repeat(i % 7));
+        }
+        return lines;
+    }
+
+    private FileInfo write(String name, String content) throws IOException {
+        Path file = dir.resolve(name);
+        Files.writeString(file, content);
+        return new FileInfo(name, "txt", Files.size(file), file.toString(),
+                Files.getLastModifiedTime(file).toMillis(), null);
+    }
+
+    private static String read(FileInfo info, LineIndexService.LineWindow window) throws IOException {
+        byte[] bytes = Files.readAllBytes(Path.of(info.getFilePath()));
+        return new String(bytes, (int) window.getOffset(), (int) window.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private static String join(List<String> lines, int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines.subList(from, to)) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    @Test
+    void windowsAcrossCheckpointsHoldExactlyTheRequestedLines() throws IOException {
+        List<String> lines = lines(5000);
+        FileInfo info = write("big.txt", join(lines, 0, lines.size()));
+
+        for (int from : new int[] {0, 1, 1023, 1024, 1025, 2047, 4990}) {
+            LineIndexService.LineWindow window = service.getWindow(info, from, 10);
+
+            assertEquals(from, window.getFromLine());
+            assertEquals(10, window.getLineCount());
+            assertEquals(5000, window.getTotalLines());
+            assertEquals(join(lines, from, from + 10), read(info, window), "window from " + from);
+        }
+    }
+
+    @Test
+    void windowIsCutAtTheEndOfTheFile() throws IOException {
+        FileInfo info = write("short.txt", "one\ntwo\nthree");
+
+        LineIndexService.LineWindow window = service.getWindow(info, 1, 100);
+
+        assertEquals(3, window.getTotalLines()); // Last line counts without a trailing newline
+        assertEquals(2, window.getLineCount());
+        assertEquals("two\nthree", read(info, window));
+    }
+
+    @Test
+    void windowPastTheEndIsEmpty() throws IOException {
+        FileInfo info = write("short.txt", "one\ntwo\n");
+
+        LineIndexService.LineWindow window = service.getWindow(info, 2, 10);
+
+        assertEquals(0, window.getLineCount());
+        assertEquals(0, window.getLength());
+        assertEquals(info.getFileSize(), window.getOffset());
+        assertEquals(2, window.getTotalLines());
+        assertEquals(0, service.getWindow(write("empty.txt", ""), 0, 10).getTotalLines());
+    }
+
+    @Test
+    void anotherVersionOfTheFileIsIndexedAgain() throws IOException {
+        FileInfo v1 = write("file.txt", "a\nb\n");
+        assertEquals(2, service.getWindow(v1, 0, 10).getTotalLines());
+
+        FileInfo v2 = write("file.txt", "a\nb\nc\nd\n");
+        service.onFileChanged(v1, v2);
+
+        LineIndexService.LineWindow window = service.getWindow(v2, 2, 10);
+        assertEquals(4, window.getTotalLines());
+        assertEquals("c\nd\n", read(v2, window));
+    }
+
+    @Test
+    void persistedIndexIsReusedAndDeletedWithTheFile() throws IOException {
+        List<String> lines = lines(3000);
+        FileInfo info = write("big.txt", join(lines, 0, lines.size()));
+        service.getWindow(info, 0, 1);
+        Path indexDir = stateDir.resolve("line-index");
+        assertEquals(1, count(indexDir));
+
+        LineIndexService restarted = newService();
+        LineIndexService.LineWindow window = restarted.getWindow(info, 2500, 3);
+        assertEquals(join(lines, 2500, 2503), read(info, window));
+
+        restarted.onFileChanged(info, null);
+        assertEquals(0, count(indexDir));
+    }
+
+    private static long count(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
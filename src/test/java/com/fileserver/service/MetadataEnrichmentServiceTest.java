@@ -0,0 +1,127 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataEnrichmentServiceTest {
+
+    @TempDir
+    Path uploadDir;
+
+    @TempDir
+    Path stateDir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private FileIndex index;
+    private MetadataEnrichmentService service;
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        index.stop();
+    }
+
+    private void start() throws IOException {
+        index = FileIndexTest.startIndex(uploadDir, stateDir);
+        service = new MetadataEnrichmentService();
+        ReflectionTestUtils.setField(service, "threads", 2);
+        ReflectionTestUtils.setField(service, "queueCapacity", 100);
+        ReflectionTestUtils.setField(service, "sweepSeconds", 1L);
+        ReflectionTestUtils.setField(service, "fileIndex", index);
+        ReflectionTestUtils.setField(service, "meterRegistry", registry);
+        service.init();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the metadata");
+            Thread.sleep(20);
+        }
+    }
+
+    private FileInfo enriched(String name) throws InterruptedException {
+        Path path = uploadDir.resolve(name);
+        await(() -> index.get(path) != null && index.get(path).getMimeType() != null);
+        return index.get(path);
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    void existingFilesGetTypeHashAndLineCount() throws Exception {
+        byte[] text = "one\ntwo\nthree".getBytes(StandardCharsets.UTF_8);
+        Files.write(uploadDir.resolve("notes.txt"), text);
+        Files.writeString(uploadDir.resolve("page.html"), "<html>\n</html>\n");
+        Files.write(uploadDir.resolve("data.bin"), new byte[] {1, 2, 3, 0});
+        start();
+
+        FileInfo notes = enriched("notes.txt");
+        FileInfo page = enriched("page.html");
+        FileInfo data = enriched("data.bin");
+
+        assertEquals(ContentSniffer.TEXT, notes.getMimeType());
+        assertEquals(sha256(text), notes.getContentHash());
+        assertEquals(3L, notes.getLineCount()); // The last line has no newline
+        assertEquals(ContentSniffer.TEXT, page.getMimeType());
+        assertEquals(2L, page.getLineCount());
+        assertEquals(ContentSniffer.BINARY, data.getMimeType());
+        assertNull(data.getLineCount());
+        await(() -> registry.get("file.metadata.files").tag("outcome", "stored").counter().count() == 3); // Counted after storing
+    }
+
+    @Test
+    void imagesGetTheirDimensions() throws Exception {
+        ImageIO.write(new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB), "png", uploadDir.resolve("photo.jpg").toFile());
+        start();
+
+        FileInfo photo = enriched("photo.jpg");
+
+        assertEquals("image/png", photo.getMimeType()); // From the content, not the extension
+        assertEquals(30, photo.getWidth());
+        assertEquals(20, photo.getHeight());
+        assertNull(photo.getLineCount());
+    }
+
+    @Test
+    void newVersionsAreEnrichedAgain() throws Exception {
+        Files.writeString(uploadDir.resolve("log.txt"), "a\n");
+        start();
+        String firstHash = enriched("log.txt").getContentHash();
+
+        // Written elsewhere and moved in, so the index never sees it half written
+        Path next = Files.writeString(stateDir.resolve("log.txt"), "a\nb\nc\n");
+        Files.move(next, uploadDir.resolve("log.txt"), StandardCopyOption.REPLACE_EXISTING);
+
+        await(() -> {
+            FileInfo info = index.get(uploadDir.resolve("log.txt"));
+            return info != null && info.getFileSize() == 6 && info.getMimeType() != null;
+        });
+        FileInfo info = index.get(uploadDir.resolve("log.txt"));
+        assertEquals(3L, info.getLineCount());
+        assertNotEquals(firstHash, info.getContentHash());
+    }
+}
@@ -0,0 +1,199 @@
+package com.fileserver.service;
+
+import com.fileserver.model.SearchHit;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexServiceTest {
+
+    @TempDir
+    Path uploadDir;
+
+    @TempDir
+    Path stateDir;
+
+    private FileIndex index;
+    private final List<SearchIndexService> services = new ArrayList<>();
+
+    // Line offsets of the log written by writeLog, by line number
+    private final List<Long> offsets = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        writeLog(uploadDir.resolve("app.log.txt"));
+        Files.writeString(uploadDir.resolve("notes.loc"), "Disk ERROR in notes\nnothing here\n");
+        Files.writeString(uploadDir.resolve("image.png"), "error disk");
+        index = FileIndexTest.startIndex(uploadDir, stateDir);
+    }
+
+    @AfterEach
+    void tearDown() {
+        services.forEach(SearchIndexService::shutdown);
+        index.stop();
+    }
+
+    /**
+     * Writes a log whose lines each hold a unique id, so the dictionary spans many term index
+     * intervals; "error" appears on every 100th line and "disk" on every 150th.
+     */
+    private void writeLog(Path file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            offsets.add((long) text.toString().getBytes(StandardCharsets.UTF_8).length);
+            text.append("line id").append(i);
+            if (i % 100 == 0) {
+                text.append(" error");
+            }
+            if (i % 150 == 0) {
+                text.append(" disk");
+            }
+            text.append('\n');
+        }
+        // Written elsewhere and moved in whole, so the watcher can't index it half written
+        Path written = Files.writeString(stateDir.resolve(file.getFileName()), text);
+        Files.move(written, file);
+    }
+
+    private SearchIndexService start() throws Exception {
+        FileService fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "UPLOAD_DIR", uploadDir.toString());
+        ReflectionTestUtils.setField(fileService, "fileIndex", index);
+        ReflectionTestUtils.setField(fileService, "meterRegistry", new SimpleMeterRegistry());
+
+        SearchIndexService service = new SearchIndexService();
+        ReflectionTestUtils.setField(service, "stateDir", stateDir.toString());
+        ReflectionTestUtils.setField(service, "threads", 2);
+        ReflectionTestUtils.setField(service, "fileIndex", index);
+        ReflectionTestUtils.setField(service, "fileService", fileService);
+        service.init();
+        services.add(service);
+        await(() -> service.getIndexedFileCount() == 2);
+        return service;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the search index");
+            Thread.sleep(20);
+        }
+    }
+
+    private static List<String> snippets(List<SearchHit> hits) {
+        return hits.stream().map(SearchHit::getSnippet).collect(Collectors.toList());
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(stateDir.resolve("search"))) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void findsLinesHoldingEveryTermIgnoringCase() throws Exception {
+        SearchIndexService service = start();
+
+        List<SearchHit> hits = service.search("DISK error", 100);
+
+        List<String> fromLog = hits.stream().filter(hit -> hit.getFileName().equals("app.log.txt"))
+                .map(SearchHit::getSnippet).collect(Collectors.toList());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i += 300) {
+            expected.add("line id" + i + " error" + " disk");
+        }
+        assertEquals(expected, fromLog);
+        assertTrue(snippets(hits).contains("Disk ERROR in notes"));
+        assertEquals(expected.size() + 1, hits.size()); // Not the .png
+    }
+
+    @Test
+    void hitsPointAtTheStartOfTheirLine() throws Exception {
+        SearchIndexService service = start();
+
+        List<SearchHit> hits = service.search("id2047", 10);
+
+        assertEquals(1, hits.size());
+        assertEquals("line id2047", hits.get(0).getSnippet());
+        assertEquals(offsets.get(2047), hits.get(0).getLineOffset());
+    }
+
+    @Test
+    void stopsAtTheLimitAndFindsNothingForUnknownTerms() throws Exception {
+        SearchIndexService service = start();
+
+        assertEquals(5, service.search("error", 5).size());
+        assertTrue(service.search("id3000", 10).isEmpty());
+        assertTrue(service.search("error nowhere", 10).isEmpty());
+        assertTrue(service.search("  ...  ", 10).isEmpty());
+    }
+
+    @Test
+    void changedAndDeletedFilesAreReindexed() throws Exception {
+        SearchIndexService service = start();
+        Path notes = uploadDir.resolve("notes.loc");
+
+        Files.writeString(notes, "a fresh word\n");
+        index.refresh(notes);
+        await(() -> searchQuietly(service, "fresh").size() == 1);
+        assertTrue(searchQuietly(service, "notes").isEmpty());
+
+        Files.delete(notes);
+        index.refresh(notes);
+        await(() -> service.getIndexedFileCount() == 1);
+        assertTrue(searchQuietly(service, "fresh").isEmpty());
+    }
+
+    @Test
+    void segmentsAreReusedAfterARestart() throws Exception {
+        start().shutdown();
+        List<Path> segments = segmentFiles();
+        assertEquals(2, segments.size());
+
+        SearchIndexService restarted = start();
+
+        assertEquals(segments, segmentFiles());
+        assertEquals("line id1234", restarted.search("id1234", 1).get(0).getSnippet());
+    }
+
+    @Test
+    void truncatedSegmentsAreRebuilt() throws Exception {
+        start().shutdown();
+        for (Path segment : segmentFiles()) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() / 2);
+            }
+        }
+
+        SearchIndexService restarted = start();
+
+        assertEquals("line id1234", restarted.search("id1234", 1).get(0).getSnippet());
+        assertEquals(1, restarted.search("notes", 10).size());
+    }
+
+    private static List<SearchHit> searchQuietly(SearchIndexService service, String query) {
+        try {
+            return service.search(query, 10);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
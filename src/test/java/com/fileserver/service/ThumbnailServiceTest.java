@@ -0,0 +1,169 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThumbnailServiceTest {
+
+    @TempDir
+    Path dir;
+
+    @TempDir
+    Path stateDir;
+
+    private ThumbnailService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        service = newService(Long.MAX_VALUE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    private ThumbnailService newService(long cacheMaxBytes) throws IOException {
+        ThumbnailService service = new ThumbnailService();
+        ReflectionTestUtils.setField(service, "stateDir", stateDir.toString());
+        ReflectionTestUtils.setField(service, "threads", 2);
+        ReflectionTestUtils.setField(service, "queueCapacity", 10);
+        ReflectionTestUtils.setField(service, "prefetchCapacity", 2);
+        ReflectionTestUtils.setField(service, "defaultSize", 200);
+        ReflectionTestUtils.setField(service, "sizes", "400, 64,128,,0,2000,200");
+        ReflectionTestUtils.setField(service, "cacheMaxBytes", cacheMaxBytes);
+        ReflectionTestUtils.setField(service, "fileIndex", Mockito.mock(FileIndex.class));
+        service.init();
+        return service;
+    }
+
+    private FileInfo image(String name, int width, int height) throws IOException {
+        Path file = dir.resolve(name);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, x * 7 + y * 13);
+            }
+        }
+        ImageIO.write(image, "png", file.toFile());
+        return new FileInfo(name, "png", Files.size(file), file.toString(),
+                Files.getLastModifiedTime(file).toMillis(), null);
+    }
+
+    private static BufferedImage readImage(Path file) throws IOException {
+        return ImageIO.read(file.toFile());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the thumbnail cache");
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void sizesAreRoundedUpToAConfiguredStep() {
+        assertEquals(64, service.sizeStep(1));
+        assertEquals(64, service.sizeStep(64));
+        assertEquals(128, service.sizeStep(65));
+        assertEquals(200, service.sizeStep(150));
+        assertEquals(400, service.sizeStep(401)); // Out-of-range steps were dropped, so 400 is the largest
+    }
+
+    @Test
+    void thumbnailsFitTheStepAndKeepTheAspectRatio() throws Exception {
+        FileInfo info = image("wide.png", 1000, 500);
+
+        Path thumbnail = service.getThumbnail(info, 100).get(10, TimeUnit.SECONDS);
+
+        BufferedImage image = readImage(thumbnail);
+        assertEquals(128, image.getWidth());
+        assertEquals(64, image.getHeight());
+        assertEquals("128.png", thumbnail.getFileName().toString());
+        assertEquals(stateDir.resolve("thumbnails"), thumbnail.getParent().getParent());
+        assertEquals(Files.size(thumbnail), service.getCacheBytes());
+    }
+
+    @Test
+    void smallImagesAreNotEnlarged() throws Exception {
+        FileInfo info = image("small.png", 30, 20);
+
+        BufferedImage image = readImage(service.getThumbnail(info, 400).get(10, TimeUnit.SECONDS));
+
+        assertEquals(30, image.getWidth());
+        assertEquals(20, image.getHeight());
+    }
+
+    @Test
+    void sizesOfOneStepShareAThumbnail() throws Exception {
+        FileInfo info = image("a.png", 300, 300);
+
+        Path first = service.getThumbnail(info, 130).get(10, TimeUnit.SECONDS);
+        Path second = service.getThumbnail(info, 200).get(10, TimeUnit.SECONDS);
+
+        assertEquals(first, second);
+        assertEquals(service.getThumbnailKey(info, 130), service.getThumbnailKey(info, 200));
+        assertNotEquals(service.getThumbnailKey(info, 130), service.getThumbnailKey(info, 100));
+    }
+
+    @Test
+    void anotherVersionGetsAnotherKey() throws IOException {
+        FileInfo v1 = image("a.png", 50, 50);
+        FileInfo v2 = new FileInfo(v1.getFileName(), v1.getFileType(), v1.getFileSize(), v1.getFilePath(),
+                v1.getLastModified() + 1000, null);
+
+        assertNotEquals(service.getThumbnailKey(v1, 64), service.getThumbnailKey(v2, 64));
+    }
+
+    @Test
+    void thumbnailsOfAReplacedVersionAreDeleted() throws Exception {
+        FileInfo info = image("a.png", 300, 300);
+        Path small = service.getThumbnail(info, 64).get(10, TimeUnit.SECONDS);
+        Path large = service.getThumbnail(info, 400).get(10, TimeUnit.SECONDS);
+
+        service.onFileChanged(info, null);
+
+        await(() -> !Files.exists(small.getParent()));
+        assertFalse(Files.exists(large));
+        assertEquals(0, service.getCacheBytes()); // Counted down before the directory goes
+    }
+
+    @Test
+    void leastRecentlyUsedThumbnailsAreEvictedOverTheBudget() throws Exception {
+        FileInfo old1 = image("old1.png", 300, 300);
+        FileInfo old2 = image("old2.png", 300, 300);
+        Path thumbnail1 = service.getThumbnail(old1, 400).get(10, TimeUnit.SECONDS);
+        Path thumbnail2 = service.getThumbnail(old2, 400).get(10, TimeUnit.SECONDS);
+        long each = Files.size(thumbnail1);
+        Files.setLastModifiedTime(thumbnail1, FileTime.fromMillis(System.currentTimeMillis() - 600_000));
+        Files.setLastModifiedTime(thumbnail2, FileTime.fromMillis(System.currentTimeMillis() - 300_000));
+        service.shutdown();
+
+        // Restarted with room for about two thumbnails; the existing ones are counted in
+        service = newService(each * 2 + each / 2);
+        assertEquals(Files.size(thumbnail1) + Files.size(thumbnail2), service.getCacheBytes());
+        Path fresh = service.getThumbnail(image("new.png", 300, 300), 400).get(10, TimeUnit.SECONDS);
+
+        await(() -> service.getCacheBytes() <= each * 2 + each / 2);
+        assertFalse(Files.exists(thumbnail1));
+        assertTrue(Files.exists(thumbnail2));
+        assertTrue(Files.exists(fresh));
+    }
+}
@@ -0,0 +1,203 @@
+package com.fileserver.service;
+
+import com.fileserver.model.FileInfo;
+import com.fileserver.model.UploadRequest;
+import com.fileserver.model.UploadStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadServiceTest {
+
+    private static final int CHUNK = 64 * 1024;
+
+    @TempDir
+    Path uploadDir;
+
+    @TempDir
+    Path stateDir;
+
+    private FileIndex index;
+    private UploadService service;
+
+    // Four chunks, the last one short
+    private final byte[] content = new byte[3 * CHUNK + 1000];
+
+    @BeforeEach
+    void setUp() throws IOException {
+        new Random(1).nextBytes(content);
+        index = FileIndexTest.startIndex(uploadDir, stateDir);
+        service = newService();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        index.stop();
+    }
+
+    private UploadService newService() throws IOException {
+        UploadService service = new UploadService();
+        ReflectionTestUtils.setField(service, "defaultChunkSize", (long) CHUNK);
+        ReflectionTestUtils.setField(service, "maxFileSize", 1L << 20);
+        ReflectionTestUtils.setField(service, "maxActive", 10);
+        ReflectionTestUtils.setField(service, "expireHours", 24L);
+        ReflectionTestUtils.setField(service, "fileIndex", index);
+        ReflectionTestUtils.setField(service, "meterRegistry", new SimpleMeterRegistry());
+        service.init();
+        return service;
+    }
+
+    private byte[] chunk(int i) {
+        return Arrays.copyOfRange(content, i * CHUNK, Math.min(content.length, (i + 1) * CHUNK));
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private boolean send(String uploadId, int i) throws Exception {
+        return service.writeChunk(uploadId, i, new ByteArrayInputStream(chunk(i)), sha256(chunk(i)));
+    }
+
+    private UploadStatus create(String name, boolean overwrite) throws IOException {
+        return service.create(new UploadRequest(name, content.length, 0, overwrite));
+    }
+
+    private long stagedFiles() throws IOException {
+        try (Stream<Path> files = Files.list(uploadDir.resolve(FileIndex.STAGING_DIR))) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void chunksInAnyOrderMakeTheWholeFile() throws Exception {
+        UploadStatus status = create("big.bin", false);
+        assertEquals(4, status.getChunkCount());
+        assertEquals(List.of(0, 1, 2, 3), status.getMissingChunks());
+
+        assertTrue(send(status.getUploadId(), 3));
+        assertTrue(send(status.getUploadId(), 1));
+        assertEquals(List.of(0, 2), service.getStatus(status.getUploadId()).getMissingChunks());
+        assertTrue(send(status.getUploadId(), 0));
+        assertTrue(send(status.getUploadId(), 2));
+        FileInfo info = service.complete(status.getUploadId());
+
+        assertArrayEquals(content, Files.readAllBytes(uploadDir.resolve("big.bin")));
+        assertEquals(content.length, info.getFileSize());
+        assertSame(info, index.get(uploadDir.resolve("big.bin")));
+        assertEquals(0, stagedFiles());
+        assertThrows(IOException.class, () -> service.getStatus(status.getUploadId()));
+    }
+
+    @Test
+    void aChunkWithTheWrongChecksumIsMissingUntilSentAgain() throws Exception {
+        String id = create("big.bin", false).getUploadId();
+        assertTrue(send(id, 0));
+
+        byte[] corrupt = chunk(0);
+        corrupt[100] ^= 1;
+        assertFalse(service.writeChunk(id, 0, new ByteArrayInputStream(corrupt), sha256(chunk(0))));
+        assertTrue(service.getStatus(id).getMissingChunks().contains(0)); // A failed resend un-receives it
+
+        assertTrue(send(id, 0));
+        assertFalse(service.getStatus(id).getMissingChunks().contains(0));
+    }
+
+    @Test
+    void chunksOfTheWrongSizeOrIndexAreRefused() throws Exception {
+        String id = create("big.bin", false).getUploadId();
+
+        assertThrows(IllegalArgumentException.class,
+                () -> service.writeChunk(id, 3, new ByteArrayInputStream(chunk(0)), sha256(chunk(0))));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.writeChunk(id, 0, new ByteArrayInputStream(chunk(3)), sha256(chunk(3))));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.writeChunk(id, 4, new ByteArrayInputStream(chunk(3)), sha256(chunk(3))));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.writeChunk(id, 0, new ByteArrayInputStream(chunk(0)), "not a hash"));
+        assertEquals(4, service.getStatus(id).getMissingChunks().size());
+    }
+
+    @Test
+    void incompleteUploadsCantBeCompleted() throws Exception {
+        String id = create("big.bin", false).getUploadId();
+        send(id, 0);
+
+        assertThrows(IllegalStateException.class, () -> service.complete(id));
+        assertFalse(Files.exists(uploadDir.resolve("big.bin")));
+    }
+
+    @Test
+    void uploadsResumeAfterARestart() throws Exception {
+        String id = create("big.bin", false).getUploadId();
+        send(id, 0);
+        send(id, 2);
+        service.shutdown();
+
+        service = newService();
+
+        assertEquals(List.of(1, 3), service.getStatus(id).getMissingChunks());
+        send(id, 1);
+        send(id, 3);
+        service.complete(id);
+        assertArrayEquals(content, Files.readAllBytes(uploadDir.resolve("big.bin")));
+    }
+
+    @Test
+    void existingFilesAreOnlyReplacedWhenAskedTo() throws Exception {
+        Files.writeString(uploadDir.resolve("taken.bin"), "old");
+        assertThrows(FileAlreadyExistsException.class, () -> create("taken.bin", false));
+
+        String id = create("taken.bin", true).getUploadId();
+        for (int i = 0; i < 4; i++) {
+            send(id, i);
+        }
+        service.complete(id);
+
+        assertArrayEquals(content, Files.readAllBytes(uploadDir.resolve("taken.bin")));
+    }
+
+    @Test
+    void aFileCreatedWhileUploadingIsNotReplaced() throws Exception {
+        String id = create("late.bin", false).getUploadId();
+        for (int i = 0; i < 4; i++) {
+            send(id, i);
+        }
+        Files.writeString(uploadDir.resolve("late.bin"), "created meanwhile");
+
+        assertThrows(FileAlreadyExistsException.class, () -> service.complete(id));
+
+        assertEquals("created meanwhile", Files.readString(uploadDir.resolve("late.bin")));
+        assertTrue(service.getStatus(id).getMissingChunks().isEmpty()); // Still there to retry or cancel
+        service.cancel(id);
+        assertEquals(0, stagedFiles());
+    }
+
+    @Test
+    void namesOutsideTheUploadDirectoryAreRefused() {
+        for (String name : new String[] {"../escape.bin", "sub/file.bin", ".uploads", "", "a\\b"}) {
+            assertThrows(IllegalArgumentException.class, () -> create(name, false), name);
+        }
+    }
+}